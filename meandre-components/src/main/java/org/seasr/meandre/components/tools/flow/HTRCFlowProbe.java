@@ -0,0 +1,149 @@
+package org.seasr.meandre.components.tools.flow;
+
+import java.io.File;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.FlowProbe;
+import org.seasr.meandre.support.components.htrc.FlowProbeReport;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Pass-through component that can be placed on any connection of a flow to find out where the " +
+                      "flow spends its time. It forwards everything it receives unchanged, including stream markers, " +
+                      "while recording message counts, payload sizes, inter-arrival times and the time each stream " +
+                      "(e.g. each volume) takes to go by. The recording is logged when the flow ends and can be saved " +
+                      "to a probe file; the probe files of all the probes of a flow are merged into a critical-path " +
+                      "breakdown by org.seasr.meandre.support.components.htrc.FlowProbeReport.",
+        name = "HTRC Flow Probe",
+        rights = Licenses.UofINCSA,
+        tags = "#TRANSFORM, htrc, flow, probe, timing, profiling",
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCFlowProbe extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_OBJECT,
+            description = "The data to forward" +
+                "<br>TYPE: java.lang.Object"
+    )
+    protected static final String IN_OBJECT = Names.PORT_OBJECT;
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = Names.PORT_OBJECT,
+            description = "The data received, unchanged" +
+                "<br>TYPE: java.lang.Object"
+    )
+    protected static final String OUT_OBJECT = Names.PORT_OBJECT;
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The name of the probe, unique within the flow (empty = use the component instance id)",
+            name = "probe_name",
+            defaultValue = ""
+    )
+    protected static final String PROP_PROBE_NAME = "probe_name";
+
+    @ComponentProperty(
+            description = "The position of the probe along the flow, counting from the source (0). " +
+                    "Probes on parallel branches share the same position.",
+            name = "position",
+            defaultValue = "0"
+    )
+    protected static final String PROP_POSITION = "position";
+
+    @ComponentProperty(
+            description = "The folder where the probe file is saved when the flow ends (empty = only log the recording)",
+            name = "probe_dir",
+            defaultValue = ""
+    )
+    protected static final String PROP_PROBE_DIR = "probe_dir";
+
+    @ComponentProperty(
+            description = "Record payload sizes? (sizes of protocol buffer messages are cached by the message, " +
+                    "so this is cheap for the SEASR data types)",
+            name = "measure_size",
+            defaultValue = "true"
+    )
+    protected static final String PROP_MEASURE_SIZE = "measure_size";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected FlowProbe probe;
+    protected File probeFile;
+    protected boolean measureSize;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        String probeName = getPropertyOrDieTrying(PROP_PROBE_NAME, true, false, ccp);
+        if (probeName.length() == 0)
+            probeName = ccp.getExecutionInstanceID();
+
+        int position = Integer.parseInt(getPropertyOrDieTrying(PROP_POSITION, ccp));
+        measureSize = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_MEASURE_SIZE, ccp));
+
+        String probeDir = getPropertyOrDieTrying(PROP_PROBE_DIR, true, false, ccp);
+        if (probeDir.length() > 0) {
+            File dir = new File(probeDir);
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new ComponentContextException("Cannot create the probe folder " + dir);
+
+            probeFile = new File(dir, probeName.replaceAll("[^A-Za-z0-9._-]", "_") + FlowProbeReport.PROBE_FILE_SUFFIX);
+        }
+
+        probe = new FlowProbe(probeName, position);
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        Object data = cc.getDataComponentFromInput(IN_OBJECT);
+        probe.message(measureSize ? FlowProbe.sizeOf(data) : -1);
+
+        cc.pushDataComponentToOutput(OUT_OBJECT, data);
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        if (probe == null) return;
+
+        console.info(probe.toString());
+
+        if (probeFile != null) {
+            probe.write(probeFile);
+            console.fine("Probe recording saved to " + probeFile);
+        }
+
+        probe = null;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        probe.streamStart();
+        componentContext.pushDataComponentToOutput(OUT_OBJECT, componentContext.getDataComponentFromInput(IN_OBJECT));
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        probe.streamEnd();
+        componentContext.pushDataComponentToOutput(OUT_OBJECT, componentContext.getDataComponentFromInput(IN_OBJECT));
+    }
+}
@@ -0,0 +1,108 @@
+package org.seasr.meandre.components.tools.flow;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextProperties;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.InFlightBudget;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Pass-through component that tells an HTRC retriever limiting max_inflight_bytes that the content " +
+                      "of a volume has been consumed. It is fed the volume ids output by the stage that consumes the " +
+                      "retrieved content (e.g. with each per-volume result), returns the content of each volume to " +
+                      "the in-flight budget of the retriever, and forwards the volume ids unchanged, including stream " +
+                      "markers. The budget is found by the name set in the inflight_budget_name of the retriever, " +
+                      "which must run in the same JVM.",
+        name = "HTRC In-Flight Release",
+        rights = Licenses.UofINCSA,
+        tags = "#TRANSFORM, htrc, flow, memory, backpressure",
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCInFlightRelease extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The id of a volume whose content has been consumed" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = "volume_id",
+            description = "The volume id received, unchanged" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_VOLUMEID = "volume_id";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The name of the in-flight budget to release (same as the inflight_budget_name of the retriever)",
+            name = "inflight_budget_name",
+            defaultValue = "htrc"
+    )
+    protected static final String PROP_INFLIGHT_BUDGET_NAME = "inflight_budget_name";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected String budgetName;
+    protected boolean warned;
+    protected long releasedCount;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        budgetName = getPropertyOrDieTrying(PROP_INFLIGHT_BUDGET_NAME, ccp);
+        warned = false;
+        releasedCount = 0;
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        Object data = cc.getDataComponentFromInput(IN_VOLUMEID);
+        String volumeId = DataTypeParser.parseAsString(data)[0].trim();
+
+        // looked up every time, the retriever may be initialized after this component
+        InFlightBudget budget = InFlightBudget.lookup(budgetName);
+        if (budget != null) {
+            if (budget.release(volumeId))
+                releasedCount++;
+        }
+        else if (!warned) {
+            console.fine(String.format("No in-flight budget named '%s' (is max_inflight_bytes set on the retriever?)", budgetName));
+            warned = true;
+        }
+
+        cc.pushDataComponentToOutput(OUT_VOLUMEID, data);
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        console.fine(String.format("Released %,d volume(s) from the in-flight budget '%s'", releasedCount, budgetName));
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, componentContext.getDataComponentFromInput(IN_VOLUMEID));
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, componentContext.getDataComponentFromInput(IN_VOLUMEID));
+    }
+}
@@ -0,0 +1,221 @@
+package org.seasr.meandre.components.tools.text.io;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.FiringPolicy;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.system.components.ext.StreamTerminator;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.AsyncShardedWriter;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Writes the results of a flow to files from a background thread, so that writing does not " +
+                      "stall the retrievers and analytics upstream. Results are queued, written in batches and " +
+                      "optionally gzip compressed. Per-volume results can be spread over several shard files by " +
+                      "the hash of their volume id (all the results of a volume go to the same file). The files are " +
+                      "forced to disk at the end of each stream and when the flow completes. Each result is written " +
+                      "as text, followed by a line break if it does not end with one. The volume_id input is only " +
+                      "needed when shard_count is more than 1.",
+        name = "HTRC Async Result Writer",
+        rights = Licenses.UofINCSA,
+        tags = "#OUTPUT, htrc, write, file, gzip, shard, async",
+        firingPolicy = FiringPolicy.any,
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCAsyncResultWriter extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = "data",
+            description = "The result to write" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings" +
+                "<br>TYPE: java.lang.String"
+    )
+    protected static final String IN_DATA = "data";
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The volume id of the result, used to pick its shard file" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The folder where the result files are written - required (created if missing)",
+            name = "output_dir",
+            defaultValue = ""
+    )
+    protected static final String PROP_OUTPUT_DIR = "output_dir";
+
+    @ComponentProperty(
+            description = "The name of the result files (shard files are named <name>.shard-<index>-of-<count>)",
+            name = "file_name",
+            defaultValue = "results.txt"
+    )
+    protected static final String PROP_FILE_NAME = "file_name";
+
+    @ComponentProperty(
+            description = "The number of files the results are spread over, by volume id",
+            name = "shard_count",
+            defaultValue = "1"
+    )
+    protected static final String PROP_SHARD_COUNT = "shard_count";
+
+    @ComponentProperty(
+            description = "Set to 'true' to gzip the result files (a .gz extension is added)",
+            name = "compress",
+            defaultValue = "true"
+    )
+    protected static final String PROP_COMPRESS = "compress";
+
+    @ComponentProperty(
+            description = "The number of bytes buffered per file before they are written",
+            name = "batch_size",
+            defaultValue = "1048576"
+    )
+    protected static final String PROP_BATCH_SIZE = "batch_size";
+
+    @ComponentProperty(
+            description = "The maximum number of results waiting to be written; the flow waits when the queue is full",
+            name = "queue_size",
+            defaultValue = "1000"
+    )
+    protected static final String PROP_QUEUE_SIZE = "queue_size";
+
+    @ComponentProperty(
+            description = "The character encoding of the result files",
+            name = "encoding",
+            defaultValue = "UTF-8"
+    )
+    protected static final String PROP_ENCODING = "encoding";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected AsyncShardedWriter writer;
+    protected Charset charset;
+    protected boolean sharded;
+
+    protected LinkedList<String> pendingData;
+    protected LinkedList<String> pendingVolumeIds;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        String outputDir = getPropertyOrDieTrying(PROP_OUTPUT_DIR, true, true, ccp);
+        String fileName = getPropertyOrDieTrying(PROP_FILE_NAME, ccp);
+        int shardCount = Integer.parseInt(getPropertyOrDieTrying(PROP_SHARD_COUNT, ccp));
+        boolean compress = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_COMPRESS, ccp));
+        int batchSize = Integer.parseInt(getPropertyOrDieTrying(PROP_BATCH_SIZE, ccp));
+        int queueSize = Integer.parseInt(getPropertyOrDieTrying(PROP_QUEUE_SIZE, ccp));
+        charset = Charset.forName(getPropertyOrDieTrying(PROP_ENCODING, ccp));
+
+        if (shardCount < 1)
+            throw new ComponentContextException("Invalid shard_count: " + shardCount);
+
+        File dir = new File(outputDir);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new ComponentContextException("Cannot create the output folder " + dir);
+
+        writer = new AsyncShardedWriter(dir, fileName, shardCount, compress, batchSize, queueSize);
+        sharded = shardCount > 1;
+
+        pendingData = new LinkedList<String>();
+        pendingVolumeIds = new LinkedList<String>();
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        if (cc.isInputAvailable(IN_DATA)) {
+            StringBuilder sb = new StringBuilder();
+            for (String s : DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_DATA)))
+                sb.append(s);
+            if (sb.length() == 0 || sb.charAt(sb.length() - 1) != '\n')
+                sb.append('\n');
+            pendingData.add(sb.toString());
+        }
+
+        if (cc.isInputAvailable(IN_VOLUMEID)) {
+            String volumeId = DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_VOLUMEID))[0];
+            if (sharded)
+                pendingVolumeIds.add(volumeId);
+        }
+
+        // results and their volume ids arrive on separate ports, pair them up in arrival order
+        while (!pendingData.isEmpty() && (!sharded || !pendingVolumeIds.isEmpty()))
+            writer.write(sharded ? pendingVolumeIds.removeFirst() : null, pendingData.removeFirst().getBytes(charset));
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        if (writer == null) return;
+
+        if (!pendingData.isEmpty() || !pendingVolumeIds.isEmpty())
+            console.warning(String.format("Unmatched results (%d) / volume ids (%d) were not written",
+                    pendingData.size(), pendingVolumeIds.size()));
+
+        try {
+            writer.close();
+        }
+        finally {
+            logStatistics();
+
+            writer = null;
+            pendingData = null;
+            pendingVolumeIds = null;
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        // results are written as they come, stream boundaries are only used to sync the files
+        if (componentContext.isInputAvailable(IN_DATA))
+            componentContext.getDataComponentFromInput(IN_DATA);
+        if (componentContext.isInputAvailable(IN_VOLUMEID))
+            componentContext.getDataComponentFromInput(IN_VOLUMEID);
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        boolean ended = componentContext.isInputAvailable(IN_DATA) &&
+                componentContext.getDataComponentFromInput(IN_DATA) instanceof StreamTerminator;
+        if (componentContext.isInputAvailable(IN_VOLUMEID))
+            componentContext.getDataComponentFromInput(IN_VOLUMEID);
+
+        if (ended) {
+            int queueDepth = writer.getQueueDepth();
+            long start = System.currentTimeMillis();
+            writer.sync();
+
+            console.fine(String.format("Synced the result files in %,d ms (%,d results were queued)",
+                    System.currentTimeMillis() - start, queueDepth));
+            logStatistics();
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    protected void logStatistics() {
+        console.info(String.format("Wrote %,d results, %,d bytes (%,d bytes on disk, %.1f KB/s); " +
+                "writer busy %,d ms, max queue depth %,d",
+                writer.getResultCount(), writer.getBytesIn(), writer.getBytesWritten(),
+                writer.getBytesPerSecond() / 1024, writer.getWriteTime(), writer.getMaxQueueDepth()));
+    }
+}
@@ -0,0 +1,280 @@
+package org.seasr.meandre.components.tools.text.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypes.StringsArray;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractStreamingExecutableComponent;
+import org.seasr.meandre.support.components.htrc.FeatureSequenceFile;
+import org.seasr.meandre.support.components.tuples.SimpleTuplePeer;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Builds the Mallet feature sequences of a workset as its pages arrive and writes them to a compact " +
+                      "binary file, instead of creating a Mallet instance per page and aggregating all of them in memory. " +
+                      "Only the vocabulary is kept in memory, so memory use does not grow with the size of the workset. " +
+                      "The tokens are read from the tuples of each page (for example the POS tagged tokens of the HTRC " +
+                      "OpenNLP Pipeline). When the stream ends, the file is output as an iterable over Mallet instances " +
+                      "(read through a memory-mapped window), together with its location. If the mallet_instance_list " +
+                      "output is connected, the file is also read into a Mallet InstanceList sharing a single alphabet, " +
+                      "which can be connected to the mallet_instance_list input of the Mallet topic model trainer " +
+                      "in place of the aggregated Mallet instances.",
+        name = "HTRC Mallet Feature Writer",
+        rights = Licenses.UofINCSA,
+        tags = "#TRANSFORM, htrc, mallet, topic modeling, feature sequence, tuple",
+        dependency = {"protobuf-java-2.2.0.jar", "mallet-2.0.7-full.jar", "mallet-deps.jar"},
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCMalletFeatureWriter extends AbstractStreamingExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_TUPLES,
+            description = "The set of tuples of a page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.StringsArray"
+    )
+    protected static final String IN_TUPLES = Names.PORT_TUPLES;
+
+    @ComponentInput(
+            name = Names.PORT_META_TUPLE,
+            description = "The meta data for the tuples" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_META_TUPLE = Names.PORT_META_TUPLE;
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The volume id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    @ComponentInput(
+            name = "page_id",
+            description = "The page id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_PAGEID = "page_id";
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = "feature_sequences",
+            description = "The feature sequences, iterable as Mallet instances (one per document)" +
+                "<br>TYPE: org.seasr.meandre.support.components.htrc.FeatureSequenceFile"
+    )
+    protected static final String OUT_FEATURE_SEQUENCES = "feature_sequences";
+
+    @ComponentOutput(
+            name = "mallet_instance_list",
+            description = "The feature sequences read into a Mallet instance list (only built if this output is connected)" +
+                "<br>TYPE: cc.mallet.types.InstanceList"
+    )
+    protected static final String OUT_INSTANCE_LIST = "mallet_instance_list";
+
+    @ComponentOutput(
+            name = Names.PORT_LOCATION,
+            description = "The location of the feature sequence file" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_LOCATION = Names.PORT_LOCATION;
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The tuple field holding the tokens",
+            name = "token_field",
+            defaultValue = "token"
+    )
+    protected static final String PROP_TOKEN_FIELD = "token_field";
+
+    @ComponentProperty(
+            description = "Set to 'true' to convert the tokens to lower case",
+            name = "lowercase",
+            defaultValue = "true"
+    )
+    protected static final String PROP_LOWERCASE = "lowercase";
+
+    @ComponentProperty(
+            description = "The unit of the documents: 'page' (one document per page) or 'volume' " +
+                          "(the pages of a volume, which must arrive one after the other, form one document)",
+            name = "document_unit",
+            defaultValue = "page"
+    )
+    protected static final String PROP_DOCUMENT_UNIT = "document_unit";
+
+    @ComponentProperty(
+            description = "The folder where the feature sequence files are written (empty = the temporary folder)",
+            name = "output_dir",
+            defaultValue = ""
+    )
+    protected static final String PROP_OUTPUT_DIR = "output_dir";
+
+    @ComponentProperty(
+            description = "Set to 'true' to keep the feature sequence files after the flow completes",
+            name = "keep_files",
+            defaultValue = "false"
+    )
+    protected static final String PROP_KEEP_FILES = "keep_files";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected String tokenField;
+    protected boolean lowercase;
+    protected boolean volumeDocuments;
+    protected File outputDir;
+    protected boolean keepFiles;
+    protected boolean outputInstanceList;
+
+    protected File file;
+    protected FeatureSequenceFile.Writer writer;
+    protected List<File> files;
+
+    // the document being built
+    protected String documentName;
+    protected List<String> tokens;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        super.initializeCallBack(ccp);
+
+        tokenField = getPropertyOrDieTrying(PROP_TOKEN_FIELD, ccp);
+        lowercase = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_LOWERCASE, ccp));
+        keepFiles = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_KEEP_FILES, ccp));
+
+        String unit = getPropertyOrDieTrying(PROP_DOCUMENT_UNIT, ccp).toLowerCase();
+        if (unit.equals("page"))
+            volumeDocuments = false;
+        else if (unit.equals("volume"))
+            volumeDocuments = true;
+        else
+            throw new ComponentContextException("Invalid document_unit: " + unit);
+
+        String dir = getPropertyOrDieTrying(PROP_OUTPUT_DIR, true, false, ccp);
+        outputDir = new File(dir.length() > 0 ? dir : System.getProperty("java.io.tmpdir"));
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new ComponentContextException("Cannot create the output folder " + outputDir);
+
+        outputInstanceList = Arrays.asList(ccp.getConnectedOutputs()).contains(OUT_INSTANCE_LIST);
+
+        files = new ArrayList<File>();
+        tokens = new ArrayList<String>();
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        Strings inMeta = (Strings) cc.getDataComponentFromInput(IN_META_TUPLE);
+        StringsArray input = (StringsArray) cc.getDataComponentFromInput(IN_TUPLES);
+        String volumeId = DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_VOLUMEID))[0];
+        String pageId = DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_PAGEID))[0];
+
+        SimpleTuplePeer tuplePeer = new SimpleTuplePeer(inMeta);
+        int tokenIndex = tuplePeer.getIndexForFieldName(tokenField);
+        if (tokenIndex < 0)
+            throw new ComponentContextException(String.format("The tuples have no '%s' field", tokenField));
+
+        if (writer == null)
+            startStream();
+
+        String name = volumeDocuments ? volumeId : volumeId + "/" + pageId;
+        if (!name.equals(documentName)) {
+            finishDocument();
+            documentName = name;
+        }
+
+        for (Strings tuple : BasicDataTypesTools.stringsArrayToJavaArray(input)) {
+            String token = tuple.getValue(tokenIndex);
+            tokens.add(lowercase ? token.toLowerCase() : token);
+        }
+
+        if (!volumeDocuments)
+            finishDocument();
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        if (writer != null) {
+            console.warning("The stream did not end, the feature sequences were not output");
+            writer.close();
+            writer = null;
+        }
+
+        if (files != null && !keepFiles)
+            for (File f : files)
+                if (f.exists() && !f.delete())
+                    console.warning("Could not delete " + f);
+
+        files = null;
+        tokens = null;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public boolean isAccumulator() {
+        return true;
+    }
+
+    @Override
+    public void startStream() throws Exception {
+        if (writer != null)
+            throw new ComponentContextException("A new stream started before the previous one ended");
+
+        file = File.createTempFile("htrc-features-", ".fseq", outputDir);
+        files.add(file);
+        writer = new FeatureSequenceFile.Writer(file);
+        documentName = null;
+        tokens.clear();
+
+        console.fine("Writing the feature sequences to " + file);
+    }
+
+    @Override
+    public void endStream() throws Exception {
+        if (writer == null)
+            startStream();
+
+        finishDocument();
+        writer.close();
+
+        console.fine(String.format("Wrote %,d documents, %,d tokens, %,d distinct terms to %s (%,d bytes)",
+                writer.getDocumentCount(), writer.getTokenCount(), writer.getTermCount(), file, file.length()));
+        writer = null;
+
+        FeatureSequenceFile featureSequences = new FeatureSequenceFile(file);
+        componentContext.pushDataComponentToOutput(OUT_FEATURE_SEQUENCES, featureSequences);
+        if (outputInstanceList)
+            componentContext.pushDataComponentToOutput(OUT_INSTANCE_LIST, featureSequences.toInstanceList());
+        componentContext.pushDataComponentToOutput(OUT_LOCATION, BasicDataTypesTools.stringToStrings(file.getAbsolutePath()));
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    protected void finishDocument() throws Exception {
+        if (documentName == null) return;
+
+        writer.add(documentName, tokens);
+
+        documentName = null;
+        tokens.clear();
+    }
+}
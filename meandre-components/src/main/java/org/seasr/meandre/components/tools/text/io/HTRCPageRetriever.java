@@ -1,7 +1,17 @@
 package org.seasr.meandre.components.tools.text.io;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map.Entry;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import org.meandre.annotations.Component;
@@ -19,8 +29,14 @@ import org.seasr.datatypes.core.BasicDataTypesTools;
 import org.seasr.datatypes.core.DataTypeParser;
 import org.seasr.datatypes.core.Names;
 import org.seasr.meandre.components.abstracts.AbstractStreamingExecutableComponent;
-
-import edu.indiana.d2i.htrc.clients.dataapi.HTRCDataClient;
+import org.seasr.meandre.support.components.htrc.DataAPIClients;
+import org.seasr.meandre.support.components.htrc.DataAPIFetcher;
+import org.seasr.meandre.support.components.htrc.EndpointPool;
+import org.seasr.meandre.support.components.htrc.EndpointResolver;
+import org.seasr.meandre.support.components.htrc.InFlightBudget;
+import org.seasr.meandre.support.components.htrc.PairtreeMirror;
+import org.seasr.meandre.support.components.htrc.TimeBudget;
+import org.seasr.meandre.support.components.htrc.VolumeResultCache;
 
 @Component(
         creator = "Jiaan Zeng",
@@ -70,6 +86,15 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
     )
     protected static final String OUT_PAGEID = "page_id";
 
+    @ComponentOutput(
+            name = "memoized_volume_id",
+            description = "The id of each volume whose results are cached (when memo_dir is set), in input order, " +
+                "in place of its pages; to be connected to the HTRC Memoized Token Counter. When the workset is " +
+                "wrapped in a stream, the same stream markers frame these ids." +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_MEMOIZED_VOLUMEID = "memoized_volume_id";
+
     //------------------------------ PROPERTIES --------------------------------------------------
 
     @ComponentProperty(
@@ -89,7 +114,8 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
     protected static final String PROP_READ_TIMEOUT = Names.PROP_READ_TIMEOUT;
 
     @ComponentProperty(
-            description = "The service URL endpoint for HTRC Data API",
+            description = "The service URL endpoint for HTRC Data API " +
+                          "(several comma-separated endpoints can be given to spread the requests across them)",
             name = "data_api_url",
             defaultValue = "https://silvermaple.pti.indiana.edu:25443/data-api/"
     )
@@ -116,6 +142,64 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
     )
     protected static final String PROP_DELIMITER = "delimiter";
 
+    @ComponentProperty(
+            description = "The maximum number of volumes to ask for in a single request " +
+                          "(larger volume lists are broken down into multiple requests, each of a size <= this number; " +
+                          "0 = no max limit, i.e. the whole list in one request as in earlier versions). " +
+                          "POST requests can ask for thousands of volumes; URL requests are limited by the maximum URL length.",
+            name = "max_volumes_per_request",
+            defaultValue = "100"
+    )
+    protected static final String PROP_MAX_VOLS_PER_REQ = "max_volumes_per_request";
+
+    @ComponentProperty(
+            description = "How the volume list is sent to the Data API: 'url' (in the request URL, as in earlier versions), " +
+                          "'post_gzip' (in a compressed POST body) or 'post' (in a plain POST body). " +
+                          "The POST forms are opt-in, for Data API instances that support them; an instance that rejects " +
+                          "a POST form falls back to 'post', then to 'url'.",
+            name = "request_mode",
+            defaultValue = "url"
+    )
+    protected static final String PROP_REQUEST_MODE = "request_mode";
+
+    @ComponentProperty(
+            description = "The number of attempts for a request before the volumes it asks for are split into two smaller requests",
+            name = "max_attempts",
+            defaultValue = "2"
+    )
+    protected static final String PROP_MAX_ATTEMPTS = "max_attempts";
+
+    @ComponentProperty(
+            description = "The number of requests sent concurrently (requests sent ahead of their turn are buffered in memory " +
+                          "so the volumes are still pushed out in order, up to max_readahead_bytes)",
+            name = "fetcher_threads",
+            defaultValue = "1"
+    )
+    protected static final String PROP_FETCHER_THREADS = "fetcher_threads";
+
+    @ComponentProperty(
+            description = "The maximum number of bytes of content retrieved ahead of its turn when fetcher_threads > 1 " +
+                          "(the requests sent ahead pause while the limit is reached; 0 = no limit)",
+            name = "max_readahead_bytes",
+            defaultValue = "268435456"
+    )
+    protected static final String PROP_MAX_READAHEAD_BYTES = "max_readahead_bytes";
+
+    @ComponentProperty(
+            description = "The registry configuration file (in the format of conf/config.properties) used to look up " +
+                          "the instances of the service (empty = use the configured endpoint(s))",
+            name = "registry_config",
+            defaultValue = ""
+    )
+    protected static final String PROP_REGISTRY_CONFIG = "registry_config";
+
+    @ComponentProperty(
+            description = "How long, in seconds, the instances looked up in the registry are used before looking them up again",
+            name = "registry_ttl",
+            defaultValue = "300"
+    )
+    protected static final String PROP_REGISTRY_TTL = "registry_ttl";
+
     @ComponentProperty(
             name = Names.PROP_WRAP_STREAM,
             description = "Enable streaming for the output?",
@@ -130,6 +214,102 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
     )
     protected static final String PROP_STREAM_PER_VOLUME = "stream_per_volume";
 
+    @ComponentProperty(
+            name = "wrap_workset",
+            description = "When stream_per_volume is set, also wrap the per-volume streams in a stream for the whole workset? " +
+                          "(needed by the components that act at the end of the workset, such as the HTRC Dunning Log-Likelihood " +
+                          "and the HTRC Shard Partial Writer; without it, each volume is a workset of its own to them)",
+            defaultValue = "false"
+    )
+    protected static final String PROP_WRAP_WORKSET = "wrap_workset";
+
+    @ComponentProperty(
+            description = "The maximum number of bytes of page content that may be pushed out but not yet released downstream " +
+                          "by an HTRC In-Flight Release component fed with the ids of the consumed volumes " +
+                          "(retrieval pauses before the next volume while the limit is reached; 0 = no limit)",
+            name = "max_inflight_bytes",
+            defaultValue = "0"
+    )
+    protected static final String PROP_MAX_INFLIGHT_BYTES = "max_inflight_bytes";
+
+    @ComponentProperty(
+            description = "The longest time (in seconds) to wait for a volume to be released when max_inflight_bytes is reached; " +
+                          "the retrieval fails if no volume is released in that time (the release is missing, or placed " +
+                          "after a consumer that holds on to the page content until its stream ends)",
+            name = "max_inflight_wait",
+            defaultValue = "60"
+    )
+    protected static final String PROP_MAX_INFLIGHT_WAIT = "max_inflight_wait";
+
+    @ComponentProperty(
+            description = "The name the in-flight budget is registered under, for the HTRC In-Flight Release component " +
+                          "(must be unique among the retrievers of a flow that limit max_inflight_bytes)",
+            name = "inflight_budget_name",
+            defaultValue = "htrc"
+    )
+    protected static final String PROP_INFLIGHT_BUDGET_NAME = "inflight_budget_name";
+
+    @ComponentProperty(
+            description = "The root folder of a local pairtree mirror of the HathiTrust volume ZIP files " +
+                          "(volumes found in the mirror are read locally, the others are retrieved from the Data API; " +
+                          "the volumes are pushed out in input order whatever their source, consecutive volumes missing " +
+                          "from the mirror being requested together; leave empty to retrieve everything from the Data API)",
+            name = "pairtree_root",
+            defaultValue = ""
+    )
+    protected static final String PROP_PAIRTREE_ROOT = "pairtree_root";
+
+    @ComponentProperty(
+            description = "The number of threads reading volumes from the local pairtree mirror",
+            name = "mirror_reader_threads",
+            defaultValue = "4"
+    )
+    protected static final String PROP_MIRROR_READER_THREADS = "mirror_reader_threads";
+
+    @ComponentProperty(
+            description = "The wall-clock time, in seconds, allowed for retrieving a workset " +
+                          "(the volumes are retrieved in a random order, and retrieval stops when the remaining time " +
+                          "cannot cover another volume at the throughput observed so far; 0 = no limit)",
+            name = "time_budget",
+            defaultValue = "0"
+    )
+    protected static final String PROP_TIME_BUDGET = "time_budget";
+
+    @ComponentProperty(
+            description = "The seed of the random order of the volumes when the time is limited " +
+                          "(the same seed retrieves the same sample of a workset)",
+            name = "sample_seed",
+            defaultValue = "0"
+    )
+    protected static final String PROP_SAMPLE_SEED = "sample_seed";
+
+    @ComponentProperty(
+            description = "The folder of the cache of per-volume results kept by the HTRC Memoized Token Counter " +
+                          "(volumes whose results are cached are not retrieved: their ids are pushed out through " +
+                          "memoized_volume_id instead of their pages, and volumes that could only be retrieved in " +
+                          "part are marked so that their results are not cached; empty = retrieve every volume)",
+            name = "memo_dir",
+            defaultValue = ""
+    )
+    protected static final String PROP_MEMO_DIR = "memo_dir";
+
+    @ComponentProperty(
+            description = "The key identifying the configuration of the per-volume stage in the cache, e.g. the " +
+                          "settings of the text cleaning components between this one and the counter; required when " +
+                          "memo_dir is set, and must be the same as the memo_key of the HTRC Memoized Token Counter",
+            name = "memo_key",
+            defaultValue = ""
+    )
+    protected static final String PROP_MEMO_KEY = "memo_key";
+
+    @ComponentProperty(
+            description = "The number of days after which cached results are considered out of date and the volume " +
+                          "is retrieved again (0 = cached results never expire)",
+            name = "memo_max_age",
+            defaultValue = "0"
+    )
+    protected static final String PROP_MEMO_MAX_AGE = "memo_max_age";
+
     //--------------------------------------------------------------------------------------------
 
 
@@ -139,12 +319,25 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
     protected String delimiter;
 
     protected String token;
+    protected InFlightBudget inFlight;
+    protected String inFlightName;
 
     protected boolean selfsign;
     protected boolean wrapStream;
     protected boolean streamPerVolume;
+    protected boolean worksetStream;
+
+    protected DataAPIClients dataAPI;
+    protected DataAPIFetcher fetcher;
+
+    protected PairtreeMirror mirror;
+    protected int mirrorReaderThreads;
+    protected ExecutorService mirrorReaders;
+
+    protected TimeBudget timeBudget;
 
-    protected HTRCDataClient client;
+    protected VolumeResultCache memo;
+    protected long memoMaxAge;
 
 
     //--------------------------------------------------------------------------------------------
@@ -159,7 +352,19 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
         delimiter = getPropertyOrDieTrying(PROP_DELIMITER, ccp);
         selfsign = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_AUTH_SELFSIGN, ccp));
         wrapStream = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_WRAP_STREAM, ccp));
+        inFlight = new InFlightBudget(Long.parseLong(getPropertyOrDieTrying(PROP_MAX_INFLIGHT_BYTES, ccp)),
+                1000L * Long.parseLong(getPropertyOrDieTrying(PROP_MAX_INFLIGHT_WAIT, ccp)));
+        inFlightName = getPropertyOrDieTrying(PROP_INFLIGHT_BUDGET_NAME, ccp);
+        if (inFlight.getMaxBytes() > 0) {
+            try {
+                InFlightBudget.register(inFlightName, inFlight);
+            }
+            catch (IllegalArgumentException e) {
+                throw new ComponentContextException(e.getMessage());
+            }
+        }
         streamPerVolume = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_STREAM_PER_VOLUME, ccp));
+        worksetStream = wrapStream && (!streamPerVolume || Boolean.parseBoolean(getPropertyOrDieTrying(PROP_WRAP_WORKSET, ccp)));
 
         token = getPropertyOrDieTrying(PROP_AUTH_TOKEN, true, false, ccp);
 
@@ -167,13 +372,51 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
         if (!useAuthentication)
             console.fine("No authentication information provided. Performing unauthenticated requests.");
 
-        HTRCDataClient.Builder builder = new HTRCDataClient.Builder(dataAPIEPR)
-            .connectionTimeout(connectionTimeout).readTimeout(readTimeout);
+        EndpointPool endpoints = EndpointPool.create(
+                getPropertyOrDieTrying(PROP_REGISTRY_CONFIG, true, false, ccp),
+                Long.parseLong(getPropertyOrDieTrying(PROP_REGISTRY_TTL, ccp)),
+                EndpointResolver.SERVICE_DATA_API, dataAPIEPR);
 
-        if (useAuthentication)
-            builder.selfsigned(selfsign).token(token);
+        DataAPIClients.RequestMode requestMode;
+        try {
+            requestMode = DataAPIClients.RequestMode.valueOf(getPropertyOrDieTrying(PROP_REQUEST_MODE, ccp).toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ComponentContextException("Invalid request_mode: " + getPropertyOrDieTrying(PROP_REQUEST_MODE, ccp));
+        }
 
-        client = builder.build();
+        dataAPI = new DataAPIClients(endpoints, connectionTimeout, readTimeout, token, selfsign, requestMode);
+        fetcher = new DataAPIFetcher(dataAPI, DataAPIFetcher.Content.PAGES, delimiter,
+                Integer.parseInt(getPropertyOrDieTrying(PROP_MAX_VOLS_PER_REQ, ccp)),
+                Integer.parseInt(getPropertyOrDieTrying(PROP_MAX_ATTEMPTS, ccp)),
+                Integer.parseInt(getPropertyOrDieTrying(PROP_FETCHER_THREADS, ccp)),
+                Long.parseLong(getPropertyOrDieTrying(PROP_MAX_READAHEAD_BYTES, ccp)));
+
+        String pairtreeRoot = getPropertyOrDieTrying(PROP_PAIRTREE_ROOT, true, false, ccp);
+        if (pairtreeRoot.length() > 0) {
+            File root = new File(pairtreeRoot);
+            if (!root.isDirectory())
+                throw new ComponentContextException("The pairtree mirror root does not exist: " + root);
+
+            mirror = new PairtreeMirror(root);
+            mirrorReaderThreads = Integer.parseInt(getPropertyOrDieTrying(PROP_MIRROR_READER_THREADS, ccp));
+            if (mirrorReaderThreads < 1)
+                throw new ComponentContextException("The number of mirror reader threads must be at least 1");
+
+            mirrorReaders = Executors.newFixedThreadPool(mirrorReaderThreads);
+            console.fine("Reading volumes from the pairtree mirror at " + root);
+        }
+
+        timeBudget = new TimeBudget(
+                1000L * Long.parseLong(getPropertyOrDieTrying(PROP_TIME_BUDGET, ccp)),
+                Long.parseLong(getPropertyOrDieTrying(PROP_SAMPLE_SEED, ccp)));
+
+        String memoDir = getPropertyOrDieTrying(PROP_MEMO_DIR, true, false, ccp);
+        if (memoDir.length() > 0) {
+            memo = new VolumeResultCache(new File(memoDir), getPropertyOrDieTrying(PROP_MEMO_KEY, true, true, ccp));
+            memoMaxAge = 24L * 3600 * 1000 * Long.parseLong(getPropertyOrDieTrying(PROP_MEMO_MAX_AGE, ccp));
+            console.fine("Skipping the volumes found in the " + memo);
+        }
     }
 
     @Override
@@ -184,77 +427,45 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
         // convert into real list of volume ids
         String[] volumeIDs = volumes.split(Pattern.quote(delimiter));
 
-        // construct the query path for the DataAPI request
-        String queryStr = HTRCDataClient.ids2URL(Arrays.asList(volumeIDs), delimiter);
-
-        console.finer(String.format("ids2URL: returned '%s'", queryStr));
-
         // start a global stream, if necessary
-        if (wrapStream && !streamPerVolume)
-            pushStreamMarker(new StreamInitiator(streamId));
-
-        String prevVolumeId = null;
-        int pageId = 1;
-
-        Iterable<Entry<String, String>> pages = client.getID2Page(queryStr);
-        if (pages != null) {
-            for (Entry<String, String> page : pages) {
-                final String volumeId = page.getKey();
-                final String pageContent = page.getValue();
-
-                if (volumeId == null || pageContent == null) {
-                    String msg = "";
-                    if (volumeId == null) msg += "volumeId";
-                    if (pageContent == null) {
-                        if (volumeId == null) msg += " and ";
-                        msg += "pageContent";
-                        if (volumeId != null)
-                            msg += " for volume id " + volumeId;
-                    }
-                    console.severe(String.format("getID2Page: Returned NULL %s! Ignoring page...", msg));
-                    continue;
-                }
+        if (worksetStream)
+            pushWorksetMarker(new StreamInitiator(streamId));
 
-                if (volumeId != prevVolumeId) {
-                    // check whether to output a start or end stream marker,
-                    // if streaming is one and streamPerVolume is set
-                    if (wrapStream && streamPerVolume) {
-                        if (prevVolumeId != null)
-                            pushStreamMarker(new StreamTerminator(streamId));
+        timeBudget.start();
 
-                        pushStreamMarker(new StreamInitiator(streamId));
-                    }
-
-                    prevVolumeId = volumeId;
-                    pageId = 1;
-                } else
-                    pageId++;
-
-                console.fine(String.format("Pushing out vol_id: %s  page_id: %d", volumeId, pageId));
-
-                cc.pushDataComponentToOutput(OUT_TEXT, BasicDataTypesTools.stringToStrings(pageContent));
-                cc.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(volumeId));
-                cc.pushDataComponentToOutput(OUT_PAGEID, BasicDataTypesTools.stringToStrings(Integer.toString(pageId)));
-            }
+        retrieve(timeBudget.order(Arrays.asList(volumeIDs)));
 
-            // send an end stream marker for the last volume
-            if (wrapStream && streamPerVolume) {
-                if (prevVolumeId != null)
-                    pushStreamMarker(new StreamTerminator(streamId));
-            }
-        } else
-            console.warning("getID2Page: Returned NULL - possible communication error with the DataAPI service");
+        if (timeBudget.isLimited())
+            console.info(timeBudget.toString());
 
         // end the global stream, if necessary
-        if (wrapStream && !streamPerVolume)
-            pushStreamMarker(new StreamTerminator(streamId));
+        if (worksetStream)
+            pushWorksetMarker(new StreamTerminator(streamId));
     }
 
     @Override
     public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
-        if (client != null) {
-            client.close();
-            client = null;
+        if (mirrorReaders != null) {
+            mirrorReaders.shutdownNow();
+            mirrorReaders = null;
+        }
+
+        if (fetcher != null) {
+            console.info(fetcher.toString());
+            fetcher.close();
+            fetcher = null;
+        }
+
+        if (dataAPI != null) {
+            dataAPI.close();
+            dataAPI = null;
+        }
+
+        if (inFlight != null) {
+            console.info(inFlight.toString());
+            InFlightBudget.unregister(inFlightName, inFlight);
+            inFlight.clear();
+            inFlight = null;
         }
     }
 
@@ -267,9 +478,250 @@ public class HTRCPageRetriever extends AbstractStreamingExecutableComponent {
 
     //--------------------------------------------------------------------------------------------
 
+    /**
+     * Retrieves the volumes and pushes them out in the order of the list, choosing the source of each
+     * volume: the cache of results (only its id is pushed out, through memoized_volume_id), the local
+     * pairtree mirror or the Data API. Consecutive volumes that come from the same source are retrieved
+     * together, so each run of volumes missing from the mirror is requested from the Data API in batches.
+     *
+     * @param volumeIDs The volume IDs to retrieve
+     * @throws Exception
+     */
+    protected void retrieve(List<String> volumeIDs) throws Exception {
+        List<String> run = new ArrayList<String>();
+        boolean runFromMirror = false;
+        int memoized = 0;
+        int mirrored = 0;
+
+        for (String volumeId : volumeIDs) {
+            String vid = volumeId.trim();
+
+            if (memo != null) {
+                if (memo.contains(vid, memoMaxAge)) {
+                    retrieveRun(run, runFromMirror);
+                    componentContext.pushDataComponentToOutput(OUT_MEMOIZED_VOLUMEID, BasicDataTypesTools.stringToStrings(vid));
+                    memoized++;
+                    continue;
+                }
+
+                // a volume left incomplete by an earlier run gets another chance
+                memo.clearIncomplete(vid);
+            }
+
+            boolean fromMirror = mirror != null && mirror.getVolumeZip(vid) != null;
+            if (fromMirror != runFromMirror)
+                retrieveRun(run, runFromMirror);
+
+            run.add(vid);
+            runFromMirror = fromMirror;
+            if (fromMirror)
+                mirrored++;
+        }
+
+        retrieveRun(run, runFromMirror);
+
+        if (memo != null)
+            console.fine(String.format("%,d of %,d volumes have cached results and were not retrieved",
+                    memoized, volumeIDs.size()));
+        if (mirror != null)
+            console.fine(String.format("%,d of %,d volumes not available in the pairtree mirror",
+                    volumeIDs.size() - memoized - mirrored, volumeIDs.size()));
+    }
+
+    /**
+     * Retrieves a run of consecutive volumes that come from the same source, then empties the run
+     */
+    private void retrieveRun(List<String> run, boolean fromMirror) throws Exception {
+        if (run.isEmpty())
+            return;
+
+        if (fromMirror)
+            retrieveFromMirror(new ArrayList<String>(run));
+        else
+            retrieveFromDataAPI(new ArrayList<String>(run));
+
+        run.clear();
+    }
+
+    /**
+     * Retrieves volumes from the local pairtree mirror and pushes out their pages, in order; a volume
+     * that cannot be read from the mirror is retrieved from the Data API in its place
+     *
+     * @param volumeIDs The volume IDs to retrieve
+     * @throws Exception
+     */
+    protected void retrieveFromMirror(List<String> volumeIDs) throws Exception {
+        LinkedList<Future<List<String>>> reads = new LinkedList<Future<List<String>>>();
+        LinkedList<String> readVolumeIDs = new LinkedList<String>();
+
+        // keep a bounded number of volumes read ahead so the output order matches the input order
+        int readAhead = 2 * mirrorReaderThreads;
+        Iterator<String> it = volumeIDs.iterator();
+
+        while (it.hasNext() || !reads.isEmpty()) {
+            while (reads.size() < readAhead && it.hasNext()) {
+                String volumeId = it.next();
+                final File volumeZip = mirror.getVolumeZip(volumeId);
+
+                readVolumeIDs.add(volumeId);
+                reads.add(volumeZip == null ? null : mirrorReaders.submit(new Callable<List<String>>() {
+                    public List<String> call() throws Exception {
+                        return PairtreeMirror.readPages(volumeZip);
+                    }
+                }));
+            }
+
+            if (timeBudget.affordable(1) == 0) {
+                // out of time - leave out the volumes not pushed out yet
+                int skipped = reads.size();
+                for (Future<List<String>> read : reads)
+                    if (read != null)
+                        read.cancel(true);
+                while (it.hasNext()) {
+                    it.next();
+                    skipped++;
+                }
+
+                timeBudget.skipped(skipped);
+                console.fine(String.format("Out of time, left out %,d volume(s)", skipped));
+                return;
+            }
+
+            String volumeId = readVolumeIDs.removeFirst();
+            Future<List<String>> read = reads.removeFirst();
+            List<String> pages = null;
+            String error = "no longer in the mirror";
+            if (read != null)
+                try {
+                    pages = read.get();
+                }
+                catch (ExecutionException e) {
+                    error = String.valueOf(e.getCause());
+                }
+
+            if (pages == null) {
+                console.warning(String.format("Could not read volume %s from the pairtree mirror (%s) - falling back to the Data API",
+                        volumeId, error));
+                retrieveFromDataAPI(Collections.singletonList(volumeId));
+                continue;
+            }
+
+            if (wrapStream && streamPerVolume)
+                pushStreamMarker(new StreamInitiator(streamId));
+
+            int pageId = 0;
+            for (String pageContent : pages)
+                pushPage(volumeId, ++pageId, pageContent);
+
+            if (wrapStream && streamPerVolume)
+                pushStreamMarker(new StreamTerminator(streamId));
+
+            timeBudget.done(1);
+            console.fine(String.format("Pushed out volume %s with %,d pages from the pairtree mirror", volumeId, pageId));
+        }
+    }
+
+    /**
+     * Retrieves volumes from the HTRC Data API and pushes out their pages, in batches sized
+     * to the remaining time when the time is limited
+     *
+     * @param volumeIDs The volume IDs to retrieve
+     * @throws Exception
+     */
+    protected void retrieveFromDataAPI(List<String> volumeIDs) throws Exception {
+        for (int i = 0, iMax = volumeIDs.size(); i < iMax; ) {
+            int count = timeBudget.affordable(iMax - i);
+            if (count == 0) {
+                timeBudget.skipped(iMax - i);
+                console.fine(String.format("Out of time, left out %,d volume(s)", iMax - i));
+                break;
+            }
+
+            fetchFromDataAPI(volumeIDs.subList(i, i + count));
+            timeBudget.done(count);
+            i += count;
+        }
+    }
+
+    /**
+     * Fetches volumes from the HTRC Data API and pushes out their pages
+     *
+     * @param volumeIDs The volume IDs to retrieve
+     * @throws Exception
+     */
+    protected void fetchFromDataAPI(List<String> volumeIDs) throws Exception {
+        PageHandler handler = new PageHandler();
+
+        List<String> failed = fetcher.fetch(volumeIDs, handler);
+
+        // send an end stream marker for the last volume
+        if (wrapStream && streamPerVolume && handler.prevVolumeId != null)
+            pushStreamMarker(new StreamTerminator(streamId));
+
+        if (!failed.isEmpty())
+            console.warning(String.format("Could not retrieve %,d of %,d volume(s) from the Data API: %s",
+                    failed.size(), volumeIDs.size(), failed));
+    }
+
+    protected void pushPage(String volumeId, int pageId, String pageContent) throws Exception {
+        console.fine(String.format("Pushing out vol_id: %s  page_id: %d", volumeId, pageId));
+
+        inFlight.admit(volumeId, 2L * pageContent.length());
+
+        componentContext.pushDataComponentToOutput(OUT_TEXT, BasicDataTypesTools.stringToStrings(pageContent));
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(volumeId));
+        componentContext.pushDataComponentToOutput(OUT_PAGEID, BasicDataTypesTools.stringToStrings(Integer.toString(pageId)));
+    }
+
     private void pushStreamMarker(StreamDelimiter sd) throws ComponentContextException {
         componentContext.pushDataComponentToOutput(OUT_TEXT, sd);
         componentContext.pushDataComponentToOutput(OUT_VOLUMEID, sd);
         componentContext.pushDataComponentToOutput(OUT_PAGEID, sd);
     }
+
+    /**
+     * Pushes out a marker of the workset stream, which also frames the ids of the cached volumes
+     * (ahead of the pages, so the marker is seen there first)
+     */
+    private void pushWorksetMarker(StreamDelimiter sd) throws ComponentContextException {
+        if (memo != null)
+            componentContext.pushDataComponentToOutput(OUT_MEMOIZED_VOLUMEID, sd);
+
+        pushStreamMarker(sd);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Numbers the pages received from the Data API and pushes them out
+     */
+    private class PageHandler implements DataAPIFetcher.Handler {
+        private String prevVolumeId = null;
+        private int pageId = 1;
+
+        public void content(String volumeId, String pageContent) throws Exception {
+            if (!volumeId.equals(prevVolumeId)) {
+                // check whether to output a start or end stream marker,
+                // if streaming is one and streamPerVolume is set
+                if (wrapStream && streamPerVolume) {
+                    if (prevVolumeId != null)
+                        pushStreamMarker(new StreamTerminator(streamId));
+
+                    pushStreamMarker(new StreamInitiator(streamId));
+                }
+
+                prevVolumeId = volumeId;
+                pageId = 1;
+            } else
+                pageId++;
+
+            pushPage(volumeId, pageId, pageContent);
+        }
+
+        public void incomplete(String volumeId) throws Exception {
+            // before the pages of the next volume go out, so the counts of this one are not cached
+            if (memo != null)
+                memo.markIncomplete(volumeId);
+        }
+    }
 }
@@ -1,12 +1,13 @@
 package org.seasr.meandre.components.tools.text.io;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 
 import org.meandre.annotations.Component;
 import org.meandre.annotations.Component.Licenses;
@@ -25,7 +26,10 @@ import org.seasr.datatypes.core.BasicDataTypes.StringsArray;
 import org.seasr.datatypes.core.BasicDataTypesTools;
 import org.seasr.datatypes.core.Names;
 import org.seasr.meandre.components.abstracts.AbstractStreamingExecutableComponent;
-import org.seasr.meandre.support.components.tuples.SimpleTuple;
+import org.seasr.meandre.support.components.htrc.InFlightBudget;
+import org.seasr.meandre.support.components.htrc.ShardSelector;
+import org.seasr.meandre.support.components.htrc.TimeBudget;
+import org.seasr.meandre.support.components.htrc.VolumeIdSet;
 import org.seasr.meandre.support.components.tuples.SimpleTuplePeer;
 
 import edu.indiana.d2i.htrc.clients.dataapi.HTRCDataClient;
@@ -52,7 +56,8 @@ public class HTRCPageRetrieverExternal extends AbstractStreamingExecutableCompon
 
     @ComponentInput(
             name = Names.PORT_TUPLES,
-            description = "The set of tuples" +
+            description = "The set of tuples. A volume id listed more than once in a set is retrieved once, at its " +
+                          "first position, and a warning reports how many duplicates were dropped" +
                 "<br>TYPE: org.seasr.datatypes.BasicDataTypes.StringsArray"
     )
     protected static final String IN_TUPLES = Names.PORT_TUPLES;
@@ -148,6 +153,83 @@ public class HTRCPageRetrieverExternal extends AbstractStreamingExecutableCompon
     )
     protected static final String PROP_STREAM_PER_VOLUME = "stream_per_volume";
 
+    @ComponentProperty(
+            name = "wrap_workset",
+            description = "When stream_per_volume is set, also wrap the per-volume streams in a stream for the whole workset? " +
+                          "(needed by the components that act at the end of the workset, such as the HTRC Dunning Log-Likelihood " +
+                          "and the HTRC Shard Partial Writer; without it, each volume is a workset of its own to them)",
+            defaultValue = "false"
+    )
+    protected static final String PROP_WRAP_WORKSET = "wrap_workset";
+
+    @ComponentProperty(
+            name = "streaming_input",
+            description = "Accept the input tuples in batches framed by stream markers? " +
+                          "(requests are sent as soon as max_volumes_per_request volumes for an EPR have arrived, " +
+                          "instead of waiting for the complete workset; unframed input is processed as a single batch)",
+            defaultValue = "false"
+    )
+    protected static final String PROP_STREAMING_INPUT = "streaming_input";
+
+    @ComponentProperty(
+            description = "The maximum number of bytes of page content that may be pushed out but not yet released downstream " +
+                          "by an HTRC In-Flight Release component fed with the ids of the consumed volumes " +
+                          "(retrieval pauses before the next volume while the limit is reached; 0 = no limit)",
+            name = "max_inflight_bytes",
+            defaultValue = "0"
+    )
+    protected static final String PROP_MAX_INFLIGHT_BYTES = "max_inflight_bytes";
+
+    @ComponentProperty(
+            description = "The longest time (in seconds) to wait for a volume to be released when max_inflight_bytes is reached; " +
+                          "the retrieval fails if no volume is released in that time (the release is missing, or placed " +
+                          "after a consumer that holds on to the page content until its stream ends)",
+            name = "max_inflight_wait",
+            defaultValue = "60"
+    )
+    protected static final String PROP_MAX_INFLIGHT_WAIT = "max_inflight_wait";
+
+    @ComponentProperty(
+            description = "The name the in-flight budget is registered under, for the HTRC In-Flight Release component " +
+                          "(must be unique among the retrievers of a flow that limit max_inflight_bytes)",
+            name = "inflight_budget_name",
+            defaultValue = "htrc"
+    )
+    protected static final String PROP_INFLIGHT_BUDGET_NAME = "inflight_budget_name";
+
+    @ComponentProperty(
+            description = "The number of shards the workset is split into " +
+                          "(each volume is assigned to a shard based on a hash of its id, so that shard_count " +
+                          "instances of the flow, each with a different shard_index, process disjoint parts of the workset)",
+            name = "shard_count",
+            defaultValue = "1"
+    )
+    protected static final String PROP_SHARD_COUNT = "shard_count";
+
+    @ComponentProperty(
+            description = "The index of the shard retrieved by this component (0 <= shard_index < shard_count)",
+            name = "shard_index",
+            defaultValue = "0"
+    )
+    protected static final String PROP_SHARD_INDEX = "shard_index";
+
+    @ComponentProperty(
+            description = "The wall-clock time, in seconds, allowed for retrieving a workset " +
+                          "(the volumes are retrieved in a random order, and retrieval stops when the remaining time " +
+                          "cannot cover another volume at the throughput observed so far; 0 = no limit)",
+            name = "time_budget",
+            defaultValue = "0"
+    )
+    protected static final String PROP_TIME_BUDGET = "time_budget";
+
+    @ComponentProperty(
+            description = "The seed of the random order of the volumes when the time is limited " +
+                          "(the same seed retrieves the same sample of a workset)",
+            name = "sample_seed",
+            defaultValue = "0"
+    )
+    protected static final String PROP_SAMPLE_SEED = "sample_seed";
+
     //--------------------------------------------------------------------------------------------
 
 
@@ -157,13 +239,23 @@ public class HTRCPageRetrieverExternal extends AbstractStreamingExecutableCompon
     protected int maxVolsPerReq;
 
     protected String token;
+    protected InFlightBudget inFlight;
+    protected String inFlightName;
+    protected ShardSelector shard;
+    protected TimeBudget timeBudget;
 
     protected boolean selfsign;
     protected boolean wrapStream;
     protected boolean streamPerVolume;
+    protected boolean worksetStream;
+    protected boolean streamingInput;
 
     boolean useAuthentication;
 
+    // volumes received in streaming mode that have not been requested yet, grouped by EPR
+    protected Map<String, List<String>> pendingVolumes;
+    protected boolean inputStreamOpen;
+
 
     //--------------------------------------------------------------------------------------------
 
@@ -177,7 +269,39 @@ public class HTRCPageRetrieverExternal extends AbstractStreamingExecutableCompon
         maxVolsPerReq = Integer.parseInt(getPropertyOrDieTrying(PROP_MAX_VOLS_PER_REQ, ccp));
         selfsign = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_AUTH_SELFSIGN, ccp));
         wrapStream = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_WRAP_STREAM, ccp));
+        inFlight = new InFlightBudget(Long.parseLong(getPropertyOrDieTrying(PROP_MAX_INFLIGHT_BYTES, ccp)),
+                1000L * Long.parseLong(getPropertyOrDieTrying(PROP_MAX_INFLIGHT_WAIT, ccp)));
+        inFlightName = getPropertyOrDieTrying(PROP_INFLIGHT_BUDGET_NAME, ccp);
+        if (inFlight.getMaxBytes() > 0) {
+            try {
+                InFlightBudget.register(inFlightName, inFlight);
+            }
+            catch (IllegalArgumentException e) {
+                throw new ComponentContextException(e.getMessage());
+            }
+        }
+
+        try {
+            shard = new ShardSelector(
+                    Integer.parseInt(getPropertyOrDieTrying(PROP_SHARD_INDEX, ccp)),
+                    Integer.parseInt(getPropertyOrDieTrying(PROP_SHARD_COUNT, ccp)));
+        }
+        catch (IllegalArgumentException e) {
+            throw new ComponentContextException(e.getMessage());
+        }
+
+        if (!shard.selectsAll())
+            console.info("Retrieving " + shard + " of the workset");
         streamPerVolume = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_STREAM_PER_VOLUME, ccp));
+        worksetStream = wrapStream && (!streamPerVolume || Boolean.parseBoolean(getPropertyOrDieTrying(PROP_WRAP_WORKSET, ccp)));
+        streamingInput = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_STREAMING_INPUT, ccp));
+
+        timeBudget = new TimeBudget(
+                1000L * Long.parseLong(getPropertyOrDieTrying(PROP_TIME_BUDGET, ccp)),
+                Long.parseLong(getPropertyOrDieTrying(PROP_SAMPLE_SEED, ccp)));
+
+        pendingVolumes = new LinkedHashMap<String, List<String>>();
+        inputStreamOpen = false;
 
         token = getPropertyOrDieTrying(PROP_AUTH_TOKEN, true, false, ccp);
 
@@ -189,115 +313,101 @@ public class HTRCPageRetrieverExternal extends AbstractStreamingExecutableCompon
     @Override
     public void executeCallBack(ComponentContext cc) throws Exception {
     	// get the mapping from dataAPI EPR to list of volumes served by that EPR
-        Map<String, List<String>> volMap = getEprVolumesMap(cc);
+        Map<String, VolumeIdSet> volMap = getEprVolumesMap(cc);
+
+        if (streamingInput && inputStreamOpen) {
+        	// queue the batch and send out the partitions that are already full
+        	for (Entry<String, VolumeIdSet> entry : volMap.entrySet()) {
+        		String epr = entry.getKey();
+        		List<String> pending = pendingVolumes.get(epr);
+        		if (pending == null) {
+        			pending = new ArrayList<String>();
+        			pendingVolumes.put(epr, pending);
+        		}
+        		pending.addAll(entry.getValue().inInputOrder());
+        	}
+
+        	flushPendingVolumes(maxVolsPerReq == 0);
+        	return;
+        }
      
         // start a global stream, if necessary
-        if (wrapStream && !streamPerVolume)
+        if (worksetStream)
             pushStreamMarker(new StreamInitiator(streamId));
         
         console.finer(String.format("wrapStream: %s streamPerVolume: %s", wrapStream, streamPerVolume));
         
-        for (Entry<String, List<String>> entry : volMap.entrySet()) {
-        	String epr = entry.getKey();
-        	List<String> volumeIDsForEpr = entry.getValue();
-        	console.finer(String.format("endpoint: %s with %s",epr,volumeIDsForEpr));
-        	
-        	for (List<String> volumeIDs : partition(volumeIDsForEpr, maxVolsPerReq)) {
-        		Set<String> retrievedVolIDs = new HashSet<String>();
-
-        		HTRCDataClient.Builder builder = new HTRCDataClient.Builder(epr)
-	        		.connectionTimeout(connectionTimeout).readTimeout(readTimeout);
-	
-				if (useAuthentication)
-				   builder.selfsigned(selfsign).token(token);
-				
-	        	HTRCDataClient client = builder.build();
-	        	try {
-	        		// construct the query path for the DataAPI request
-	        		String queryStr = HTRCDataClient.ids2URL(volumeIDs, DELIMITER);
-	
-	        		console.finer(String.format("ids2URL returned: '%s'", queryStr));
-	
-	        		String prevVolumeId = null;
-	        		int pageId = 1;
-	        			
-	        		Iterable<Entry<String, String>> pages = client.getID2Page(queryStr);
-	        		if (pages != null) {
-	        			for (Entry<String, String> page : pages) {
-	        				final String volumeId = page.getKey();
-	        				final String pageContent = page.getValue();
-	
-	        				if (volumeId == null || pageContent == null) {
-	        					String msg = "";
-	        					if (volumeId == null) msg += "volumeId";
-	        					if (pageContent == null) {
-	        						if (volumeId == null) msg += " and ";
-	        						msg += "pageContent";
-	        						if (volumeId != null)
-	        							msg += " for volume id " + volumeId;
-	        					}
-	        					console.severe(String.format("getID2Page: Returned NULL %s! Ignoring page...", msg));
-	        					continue;
-	        				}
-	
-	        				if (volumeId != prevVolumeId) {
-	        					// check whether to output a start or end stream marker,
-	        					// if streaming is one and streamPerVolume is set
-	        					if (wrapStream && streamPerVolume) {
-	        						if (prevVolumeId != null)
-	        							pushStreamMarker(new StreamTerminator(streamId));
-	
-	        						pushStreamMarker(new StreamInitiator(streamId));
-	        					}
-	        					
-	        					if (prevVolumeId != null) {
-	        						retrievedVolIDs.add(prevVolumeId);
-	        						console.fine(String.format("Pushed out volume %s with %,d pages", prevVolumeId, pageId));
-	        					}
-	        					
-	        					prevVolumeId = volumeId;
-	        					pageId = 1;
-	        				} else
-	        					pageId++;
-	
-	        				console.finest(String.format("Pushing out vol_id: %s  page_id: %d", volumeId, pageId));
-	
-	        				cc.pushDataComponentToOutput(OUT_TEXT, BasicDataTypesTools.stringToStrings(pageContent));
-	        				cc.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(volumeId));
-	        				cc.pushDataComponentToOutput(OUT_PAGEID, BasicDataTypesTools.stringToStrings(Integer.toString(pageId)));
-	        			}
-	        			
-	        			if (prevVolumeId != null) {
-	        				retrievedVolIDs.add(prevVolumeId);
-	        				console.fine(String.format("Pushed out volume %s with %,d pages", prevVolumeId, pageId));
-	        			}	
-						
-	        			// send an end stream marker for the last volume
-	        			if (wrapStream && streamPerVolume) {
-	        				if (prevVolumeId != null)
-	        					pushStreamMarker(new StreamTerminator(streamId));
-	        			}
-	        		} else
-	        			console.warning("getID2Page: Returned NULL - possible communication error with the DataAPI service");
-	        	}
-	        	finally {
-	        		client.close();
-	        	}
-	        	
-	        	// check for missing volume IDs
-	        	for (String volId : volumeIDs)
-	        		if (!retrievedVolIDs.contains(volId))
-	        			console.warning(String.format("Missing volume %s from %s", volId, epr));
-        	}
-        }
+        timeBudget.start();
+        retrieveVolumes(volMap);
+
+        if (timeBudget.isLimited())
+        	console.info(timeBudget.toString());
         
         // end the global stream, if necessary
-        if (wrapStream && !streamPerVolume)
+        if (worksetStream)
             pushStreamMarker(new StreamTerminator(streamId));
     }
 
 	@Override
     public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+		if (pendingVolumes != null && !pendingVolumes.isEmpty())
+			console.warning("The input stream was not terminated - some volumes were never requested");
+
+		pendingVolumes = null;
+
+		if (inFlight != null) {
+			console.info(inFlight.toString());
+			InFlightBudget.unregister(inFlightName, inFlight);
+			inFlight.clear();
+			inFlight = null;
+		}
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+    	if (!streamingInput) {
+    		super.handleStreamInitiators();
+    		return;
+    	}
+
+    	if (!inputPortsWithInitiators.contains(IN_TUPLES))
+    		throw new ComponentExecutionException("Unexpected stream initiator - the tuples and meta tuple streams are out of sync");
+
+    	if (inputStreamOpen)
+    		throw new ComponentExecutionException("Nested input streams are not supported in streaming input mode");
+
+    	inputStreamOpen = true;
+    	pendingVolumes.clear();
+    	timeBudget.start();
+
+    	if (worksetStream)
+    		pushStreamMarker(new StreamInitiator(streamId));
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+    	if (!streamingInput) {
+    		super.handleStreamTerminators();
+    		return;
+    	}
+
+    	if (!inputPortsWithTerminators.contains(IN_TUPLES))
+    		throw new ComponentExecutionException("Unexpected stream terminator - the tuples and meta tuple streams are out of sync");
+
+    	if (!inputStreamOpen)
+    		throw new ComponentExecutionException("Received a stream terminator without a matching stream initiator");
+
+    	// request whatever is left over from the last (incomplete) partitions
+    	flushPendingVolumes(true);
+    	inputStreamOpen = false;
+
+    	if (timeBudget.isLimited())
+    		console.info(timeBudget.toString());
+
+    	if (worksetStream)
+    		pushStreamMarker(new StreamTerminator(streamId));
     }
 
     //--------------------------------------------------------------------------------------------
@@ -309,25 +419,180 @@ public class HTRCPageRetrieverExternal extends AbstractStreamingExecutableCompon
 
     //--------------------------------------------------------------------------------------------
 	
-	private List<List<String>> partition(List<String> list, int count) {
-		int numPartitions = count > 0 ? (int)Math.ceil((double)list.size() / count) : 1;
-		List<List<String>> partitions = new ArrayList<List<String>>(numPartitions);
-		
-		if (count == 0)
-			partitions.add(list);
-		else {
-			for (int i = 0, iMax = list.size(); i < iMax; i += count)
-				partitions.add(list.subList(i, Math.min(i+count, iMax)));
+	/**
+	 * Requests the volumes queued in streaming input mode
+	 *
+	 * @param all True to request everything that is queued, False to only request full partitions
+	 * @throws Exception
+	 */
+	private void flushPendingVolumes(boolean all) throws Exception {
+		for (Iterator<Entry<String, List<String>>> it = pendingVolumes.entrySet().iterator(); it.hasNext(); ) {
+			Entry<String, List<String>> entry = it.next();
+			String epr = entry.getKey();
+			List<String> pending = entry.getValue();
+
+			int ready = all || maxVolsPerReq == 0 ? pending.size() : pending.size() - pending.size() % maxVolsPerReq;
+			if (ready == 0) continue;
+
+			List<String> volumeIDsForEpr = new ArrayList<String>(pending.subList(0, ready));
+			pending.subList(0, ready).clear();
+			if (pending.isEmpty())
+				it.remove();
+
+			console.finer(String.format("endpoint: %s with %,d streamed volumes ready", epr, volumeIDsForEpr.size()));
+
+			VolumeIdSet vols = VolumeIdSet.of(volumeIDsForEpr);
+			if (vols.getDuplicateCount() > 0)
+				console.warning(String.format("Dropped %,d volume id(s) streamed more than once for %s",
+						vols.getDuplicateCount(), epr));
+
+			retrieveVolumes(Collections.singletonMap(epr, vols));
 		}
-		
-		return partitions;
 	}
-	
-	private Map<String, List<String>> getEprVolumesMap(ComponentContext cc)
+
+	/**
+	 * Retrieves volumes in partitions of at most max_volumes_per_request volumes, in input order.
+	 * When the time is limited, the volumes are retrieved in a random order, the partitions are sized
+	 * to the remaining time and the EPRs take turns, so that what is left out is spread over all of them.
+	 *
+	 * @param volMap The volume IDs to retrieve, grouped by EPR
+	 * @throws Exception
+	 */
+	private void retrieveVolumes(Map<String, VolumeIdSet> volMap) throws Exception {
+		LinkedList<EprVolumes> remaining = new LinkedList<EprVolumes>();
+		for (Entry<String, VolumeIdSet> entry : volMap.entrySet()) {
+			console.finer(String.format("endpoint: %s with %,d volumes", entry.getKey(), entry.getValue().size()));
+			remaining.add(new EprVolumes(entry.getKey(), entry.getValue(), timeBudget.order(entry.getValue().inInputOrder())));
+		}
+
+		while (!remaining.isEmpty()) {
+			for (Iterator<EprVolumes> it = remaining.iterator(); it.hasNext(); ) {
+				EprVolumes vols = it.next();
+
+				do {
+					int left = vols.order.size() - vols.next;
+					int count = timeBudget.affordable(maxVolsPerReq > 0 ? Math.min(maxVolsPerReq, left) : left);
+					if (count == 0) {
+						int skipped = 0;
+						for (EprVolumes v : remaining)
+							skipped += v.order.size() - v.next;
+
+						timeBudget.skipped(skipped);
+						console.fine(String.format("Out of time, left out %,d volume(s)", skipped));
+						return;
+					}
+
+					retrievePartition(vols.epr, vols.order.subList(vols.next, vols.next + count), vols.retrieved);
+					timeBudget.done(count);
+					vols.next += count;
+				} while (vols.next < vols.order.size() && !timeBudget.isLimited());
+
+				if (vols.next == vols.order.size())
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Retrieves the pages of a partition of volumes from a single EPR and pushes them out
+	 *
+	 * @param epr The Data API EPR serving the volumes
+	 * @param volumeIDs The volume IDs to request
+	 * @param retrieved The marks recording the volumes retrieved
+	 * @throws Exception
+	 */
+	private void retrievePartition(String epr, List<String> volumeIDs, VolumeIdSet.Marks retrieved) throws Exception {
+
+		HTRCDataClient.Builder builder = new HTRCDataClient.Builder(epr)
+			.connectionTimeout(connectionTimeout).readTimeout(readTimeout);
+
+		if (useAuthentication)
+			builder.selfsigned(selfsign).token(token);
+
+		HTRCDataClient client = builder.build();
+		try {
+			// construct the query path for the DataAPI request
+			String queryStr = HTRCDataClient.ids2URL(volumeIDs, DELIMITER);
+
+			console.finer(String.format("ids2URL returned: '%s'", queryStr));
+
+			String prevVolumeId = null;
+			int pageId = 1;
+
+			Iterable<Entry<String, String>> pages = client.getID2Page(queryStr);
+			if (pages != null) {
+				for (Entry<String, String> page : pages) {
+					final String volumeId = page.getKey();
+					final String pageContent = page.getValue();
+
+					if (volumeId == null || pageContent == null) {
+						String msg = "";
+						if (volumeId == null) msg += "volumeId";
+						if (pageContent == null) {
+							if (volumeId == null) msg += " and ";
+							msg += "pageContent";
+							if (volumeId != null)
+								msg += " for volume id " + volumeId;
+						}
+						console.severe(String.format("getID2Page: Returned NULL %s! Ignoring page...", msg));
+						continue;
+					}
+
+					if (!volumeId.equals(prevVolumeId)) {
+						// check whether to output a start or end stream marker,
+						// if streaming is one and streamPerVolume is set
+						if (wrapStream && streamPerVolume) {
+							if (prevVolumeId != null)
+								pushStreamMarker(new StreamTerminator(streamId));
+
+							pushStreamMarker(new StreamInitiator(streamId));
+						}
+
+						if (prevVolumeId != null) {
+							retrieved.mark(prevVolumeId);
+							console.fine(String.format("Pushed out volume %s with %,d pages", prevVolumeId, pageId));
+						}
+
+						prevVolumeId = volumeId;
+						pageId = 1;
+					} else
+						pageId++;
+
+					console.finest(String.format("Pushing out vol_id: %s  page_id: %d", volumeId, pageId));
+
+					inFlight.admit(volumeId, 2L * pageContent.length());
+
+					componentContext.pushDataComponentToOutput(OUT_TEXT, BasicDataTypesTools.stringToStrings(pageContent));
+					componentContext.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(volumeId));
+					componentContext.pushDataComponentToOutput(OUT_PAGEID, BasicDataTypesTools.stringToStrings(Integer.toString(pageId)));
+				}
+
+				if (prevVolumeId != null) {
+					retrieved.mark(prevVolumeId);
+					console.fine(String.format("Pushed out volume %s with %,d pages", prevVolumeId, pageId));
+				}
+
+				// send an end stream marker for the last volume
+				if (wrapStream && streamPerVolume) {
+					if (prevVolumeId != null)
+						pushStreamMarker(new StreamTerminator(streamId));
+				}
+			} else
+				console.warning("getID2Page: Returned NULL - possible communication error with the DataAPI service");
+		}
+		finally {
+			client.close();
+		}
+
+		// check for missing volume IDs
+		for (String volId : retrieved.getUnmarked(volumeIDs))
+			console.warning(String.format("Missing volume %s from %s", volId, epr));
+	}
+
+	private Map<String, VolumeIdSet> getEprVolumesMap(ComponentContext cc)
 			throws ComponentContextException, ComponentExecutionException {
 		Strings inputMeta = (Strings) cc.getDataComponentFromInput(IN_META_TUPLE);
 	    SimpleTuplePeer tuplePeer = new SimpleTuplePeer(inputMeta);
-	    SimpleTuple tuple = tuplePeer.createTuple();
 	
 	    StringsArray input = (StringsArray) cc.getDataComponentFromInput(IN_TUPLES);
 	    Strings[] in = BasicDataTypesTools.stringsArrayToJavaArray(input);
@@ -344,20 +609,54 @@ public class HTRCPageRetrieverExternal extends AbstractStreamingExecutableCompon
 	    if (eprIdx < 0)
 	    	console.warning("Missing " + HTRC_VOLUME_EPR + " from input tuples - assuming default");
 		
-	    Map<String, List<String>> volMap = new HashMap<String, List<String>>();
-	    for (int i = 0; i < volCount; i++) {
-	    	tuple.setValues(in[i]);
+	    Map<String, VolumeIdSet> volMap = groupByEpr(in, idIdx, eprIdx, dataAPIEPR, shard);
+
+	    int selected = 0, duplicates = 0;
+	    for (VolumeIdSet vols : volMap.values()) {
+	    	selected += vols.size();
+	    	duplicates += vols.getDuplicateCount();
+	    }
+
+	    if (duplicates > 0)
+	    	console.warning(String.format("Dropped %,d duplicate volume id(s) from the input tuples", duplicates));
+
+	    if (!shard.selectsAll())
+	    	console.fine(String.format("Selected %,d of %,d volumes for %s", selected, volCount, shard));
+
+		return volMap;
+	}
+
+	/**
+	 * Groups the volumes of the input tuples by the EPR serving them, leaving out those of other shards
+	 *
+	 * @param in The input tuples
+	 * @param idIdx The index of the volume id field
+	 * @param eprIdx The index of the EPR field (< 0 if missing)
+	 * @param defaultEpr The EPR of the volumes without one
+	 * @param shard The shard to select
+	 * @return The volume IDs of the shard, grouped by EPR (in input order through {@link VolumeIdSet#inInputOrder()})
+	 */
+	static Map<String, VolumeIdSet> groupByEpr(Strings[] in, int idIdx, int eprIdx, String defaultEpr, ShardSelector shard) {
+	    Map<String, VolumeIdSet.Builder> builders = new LinkedHashMap<String, VolumeIdSet.Builder>();
+	    for (Strings tuple : in) {
 	    	String volId = tuple.getValue(idIdx).trim();
-	    	String volEpr = (eprIdx < 0 ? dataAPIEPR : tuple.getValue(eprIdx)).trim();
+	    	if (!shard.accepts(volId))
+	    		continue;
+
+	    	String volEpr = (eprIdx < 0 ? defaultEpr : tuple.getValue(eprIdx)).trim();
 	    	if (!volEpr.endsWith("/")) volEpr += "/";
-	    	List<String> vols = volMap.get(volEpr);
+	    	VolumeIdSet.Builder vols = builders.get(volEpr);
 	    	if (vols == null) {
-	    		vols = new ArrayList<String>();
-	    		volMap.put(volEpr, vols);
+	    		vols = new VolumeIdSet.Builder();
+	    		builders.put(volEpr, vols);
 	    	}
 	    	vols.add(volId);
 	    }
-	    
+
+	    Map<String, VolumeIdSet> volMap = new LinkedHashMap<String, VolumeIdSet>();
+	    for (Entry<String, VolumeIdSet.Builder> entry : builders.entrySet())
+	    	volMap.put(entry.getKey(), entry.getValue().build());
+
 		return volMap;
 	}
 
@@ -366,4 +665,22 @@ public class HTRCPageRetrieverExternal extends AbstractStreamingExecutableCompon
         componentContext.pushDataComponentToOutput(OUT_VOLUMEID, sd);
         componentContext.pushDataComponentToOutput(OUT_PAGEID, sd);
     }
+
+	//--------------------------------------------------------------------------------------------
+
+	/**
+	 * The volumes of an EPR, in retrieval order, and how far their retrieval got
+	 */
+	private static class EprVolumes {
+		private final String epr;
+		private final List<String> order;
+		private final VolumeIdSet.Marks retrieved;
+		private int next = 0;
+
+		private EprVolumes(String epr, VolumeIdSet volumeIDs, List<String> order) {
+			this.epr = epr;
+			this.order = order;
+			this.retrieved = volumeIDs.newMarks();
+		}
+	}
 }
@@ -0,0 +1,200 @@
+package org.seasr.meandre.components.tools.text.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.ComponentExecutionException;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.PartialResultFile;
+import org.seasr.meandre.support.components.htrc.PartialResultMerger;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Merges the partial results written by the HTRC Shard Partial Writer for all the shards " +
+                      "of a workset into the final result. Waits until the partial files of all the shards of the run " +
+                      "are available (partials left over from another run, or written for a different number of shards, " +
+                      "are not merged), then outputs the sum of all the token counts and the union of all the tuples. " +
+                      "The tuples are ordered by the workset position of the volume they belong to, as recorded by the " +
+                      "partial writers, so the result is in the order of a single-node run whatever the number of shards; " +
+                      "tuples not tagged with a volume by the partial writers follow in shard order.",
+        name = "HTRC Shard Merger",
+        rights = Licenses.UofINCSA,
+        tags = "#INPUT, htrc, shard, merge, token, count, tuple",
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCShardMerger extends AbstractExecutableComponent {
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = Names.PORT_TOKEN_COUNTS,
+            description = "The merged token counts (only pushed if any shard produced token counts)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.IntegersMap"
+    )
+    protected static final String OUT_TOKEN_COUNTS = Names.PORT_TOKEN_COUNTS;
+
+    @ComponentOutput(
+            name = Names.PORT_TUPLES,
+            description = "The merged set of tuples (only pushed if any shard produced tuples)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.StringsArray"
+    )
+    protected static final String OUT_TUPLES = Names.PORT_TUPLES;
+
+    @ComponentOutput(
+            name = Names.PORT_META_TUPLE,
+            description = "The meta data for the merged tuples" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_META_TUPLE = Names.PORT_META_TUPLE;
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The folder where the partial result files of all the shards are collected",
+            name = "partials_dir",
+            defaultValue = ""
+    )
+    protected static final String PROP_PARTIALS_DIR = "partials_dir";
+
+    @ComponentProperty(
+            description = "The name of the result (same as the result_name of the partial writers)",
+            name = "result_name",
+            defaultValue = "result"
+    )
+    protected static final String PROP_RESULT_NAME = "result_name";
+
+    @ComponentProperty(
+            description = "The total number of shards to merge",
+            name = "shard_count",
+            defaultValue = "1"
+    )
+    protected static final String PROP_SHARD_COUNT = "shard_count";
+
+    @ComponentProperty(
+            description = "The ID of the run whose partial results are merged - required (same as the run_id of the partial writers)",
+            name = "run_id",
+            defaultValue = ""
+    )
+    protected static final String PROP_RUN_ID = "run_id";
+
+    @ComponentProperty(
+            description = "The maximum time in seconds to wait for the partial files of all the shards " +
+                          "(0 = wait forever)",
+            name = "wait_timeout",
+            defaultValue = "0"
+    )
+    protected static final String PROP_WAIT_TIMEOUT = "wait_timeout";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected static final long POLL_INTERVAL_MS = 2000;
+
+    protected File partialsDir;
+    protected String resultName;
+    protected String runId;
+    protected int shardCount;
+    protected long waitTimeout;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        partialsDir = new File(getPropertyOrDieTrying(PROP_PARTIALS_DIR, ccp));
+        resultName = getPropertyOrDieTrying(PROP_RESULT_NAME, ccp);
+        shardCount = Integer.parseInt(getPropertyOrDieTrying(PROP_SHARD_COUNT, ccp));
+        runId = getPropertyOrDieTrying(PROP_RUN_ID, true, true, ccp);
+        waitTimeout = Long.parseLong(getPropertyOrDieTrying(PROP_WAIT_TIMEOUT, ccp)) * 1000;
+
+        if (shardCount < 1)
+            throw new ComponentContextException("The shard count must be at least 1");
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        File[] partials = new File[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            partials[i] = PartialResultFile.getFile(partialsDir, resultName, i, shardCount);
+
+        PartialResultMerger merger = new PartialResultMerger(runId, shardCount);
+        waitForPartials(partials, merger);
+
+        for (int i = 0; i < shardCount; i++)
+            merger.add(partials[i], i);
+
+        List<Strings> tuples = merger.getTuples();
+        console.fine(String.format("Merged %d shards of run '%s': %,d distinct tokens, %,d tuples",
+                shardCount, runId, merger.getTokenCounts().size(), tuples.size()));
+
+        if (merger.getUntaggedTupleRecords() > 0 && shardCount > 1)
+            console.warning(String.format("%,d tuple set(s) are not tagged with a volume, their order depends on the sharding",
+                    merger.getUntaggedTupleRecords()));
+
+        if (merger.hasTokenCounts())
+            cc.pushDataComponentToOutput(OUT_TOKEN_COUNTS, BasicDataTypesTools.mapToIntegerMap(merger.getTokenCounts(), true));
+
+        if (merger.getMeta() != null) {
+            cc.pushDataComponentToOutput(OUT_TUPLES,
+                    BasicDataTypesTools.javaArrayToStringsArray(tuples.toArray(new Strings[tuples.size()])));
+            cc.pushDataComponentToOutput(OUT_META_TUPLE, merger.getMeta());
+        }
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Waits until the partial files of all the shards of the run are available
+     *
+     * @param partials The partial files
+     * @param merger The merger, which tells the partials of the run from stale ones
+     * @throws Exception
+     */
+    protected void waitForPartials(File[] partials, PartialResultMerger merger) throws Exception {
+        long deadline = waitTimeout > 0 ? System.currentTimeMillis() + waitTimeout : Long.MAX_VALUE;
+
+        for (File partial : partials) {
+            String stale = null;
+            while (true) {
+                if (partial.isFile()) {
+                    PartialResultFile.Header header;
+                    try {
+                        header = PartialResultFile.readHeader(partial);
+                    }
+                    catch (IOException e) {
+                        throw new ComponentExecutionException(e);
+                    }
+
+                    if (merger.belongsToRun(header))
+                        break;
+
+                    // left over from another run - the shard of this run will replace it
+                    stale = header.toString();
+                    console.finer(String.format("Ignoring %s (%s)", partial, stale));
+                }
+
+                if (System.currentTimeMillis() >= deadline)
+                    throw new ComponentExecutionException("Timed out waiting for the partial result " + partial +
+                            (stale != null ? " of run '" + runId + "' (found a stale partial of " + stale + ")" : ""));
+
+                console.finer("Waiting for " + partial);
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        }
+    }
+}
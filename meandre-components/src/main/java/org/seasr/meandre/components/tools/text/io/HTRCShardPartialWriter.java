@@ -0,0 +1,514 @@
+package org.seasr.meandre.components.tools.text.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.FiringPolicy;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.ComponentExecutionException;
+import org.seasr.datatypes.core.BasicDataTypes.IntegersMap;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypes.StringsArray;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.PartialResultFile;
+import org.seasr.meandre.support.components.htrc.ShardSelector;
+import org.seasr.meandre.support.components.htrc.VolumeIdSet;
+import org.seasr.meandre.support.components.tuples.SimpleTuplePeer;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Saves the token counts and/or tuples produced by one shard of a sharded HTRC flow " +
+                      "to a partial result file, to be combined with the other shards by the HTRC Shard Merger. " +
+                      "The whole workset must arrive within a single outermost stream: the partial file becomes " +
+                      "visible to the merger when that stream has ended on every connected result input (token_counts, " +
+                      "volume_id, tuples, meta_tuple), and is discarded if the flow stops before that (or if results are " +
+                      "left unmatched), so that an incomplete partial is never merged. Per-volume streams must be nested " +
+                      "in the workset stream (wrap_workset on the page retrievers); a second outermost stream is an error. " +
+                      "With per_volume set, each result is tagged with its volume id (tuples carry it in their " +
+                      "volume_id_field, token counts are paired with the volume_id input), and the input tuples of the " +
+                      "retriever must also be connected to the workset inputs: the partial records the workset position " +
+                      "of each of its volumes, so that the merger outputs the tuples in the order of a single-node run " +
+                      "(without time_budget or streaming_input) whatever the number of shards.",
+        name = "HTRC Shard Partial Writer",
+        rights = Licenses.UofINCSA,
+        tags = "#OUTPUT, htrc, shard, token, count, tuple",
+        firingPolicy = FiringPolicy.any,
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCShardPartialWriter extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_TOKEN_COUNTS,
+            description = "The token counts to save" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.IntegersMap"
+    )
+    protected static final String IN_TOKEN_COUNTS = Names.PORT_TOKEN_COUNTS;
+
+    @ComponentInput(
+            name = Names.PORT_TUPLES,
+            description = "The set of tuples to save" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.StringsArray"
+    )
+    protected static final String IN_TUPLES = Names.PORT_TUPLES;
+
+    @ComponentInput(
+            name = Names.PORT_META_TUPLE,
+            description = "The meta data for tuples" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_META_TUPLE = Names.PORT_META_TUPLE;
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The volume id of each token count map, in the order of the token counts " +
+                          "(only used when per_volume is set)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    @ComponentInput(
+            name = "workset",
+            description = "The input tuples of the retriever, in the same order (only used when per_volume is set)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.StringsArray"
+    )
+    protected static final String IN_WORKSET = "workset";
+
+    @ComponentInput(
+            name = "workset_meta_tuple",
+            description = "The meta data for the input tuples of the retriever (only used when per_volume is set)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_WORKSET_META_TUPLE = "workset_meta_tuple";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The folder where the partial result files of all the shards are collected",
+            name = "partials_dir",
+            defaultValue = ""
+    )
+    protected static final String PROP_PARTIALS_DIR = "partials_dir";
+
+    @ComponentProperty(
+            description = "The name of the result (must be the same for all the shards of a workset)",
+            name = "result_name",
+            defaultValue = "result"
+    )
+    protected static final String PROP_RESULT_NAME = "result_name";
+
+    @ComponentProperty(
+            description = "The total number of shards (same as the shard_count of the retriever)",
+            name = "shard_count",
+            defaultValue = "1"
+    )
+    protected static final String PROP_SHARD_COUNT = "shard_count";
+
+    @ComponentProperty(
+            description = "The index of the shard produced by this flow (same as the shard_index of the retriever)",
+            name = "shard_index",
+            defaultValue = "0"
+    )
+    protected static final String PROP_SHARD_INDEX = "shard_index";
+
+    @ComponentProperty(
+            description = "The ID of the run - required (must be the same for all the shards of a workset and change " +
+                          "from one run to the next, so that the merger does not pick up partials left over from an earlier run)",
+            name = "run_id",
+            defaultValue = ""
+    )
+    protected static final String PROP_RUN_ID = "run_id";
+
+    @ComponentProperty(
+            description = "Set to 'true' if each result belongs to a single volume and comes with its volume id " +
+                          "on the volume_id input",
+            name = "per_volume",
+            defaultValue = "false"
+    )
+    protected static final String PROP_PER_VOLUME = "per_volume";
+
+    @ComponentProperty(
+            description = "The tuple field holding the volume id of each tuple (only used when per_volume is set)",
+            name = "volume_id_field",
+            defaultValue = "volume_id"
+    )
+    protected static final String PROP_VOLUME_ID_FIELD = "volume_id_field";
+
+    @ComponentProperty(
+            description = "The field of the workset tuples holding the volume id (only used when per_volume is set)",
+            name = "workset_id_field",
+            defaultValue = HTRCPageRetrieverExternal.HTRC_VOLUME_ID
+    )
+    protected static final String PROP_WORKSET_ID_FIELD = "workset_id_field";
+
+    //--------------------------------------------------------------------------------------------
+
+    // the result inputs, which must all carry the workset stream when connected
+    protected static final String[] RESULT_PORTS = { IN_TOKEN_COUNTS, IN_VOLUMEID, IN_TUPLES, IN_META_TUPLE };
+
+    protected static final ShardSelector ALL_SHARDS = new ShardSelector(0, 1);
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected PartialResultFile.Writer writer;
+    protected boolean perVolume;
+    protected String volumeIdField;
+    protected String worksetIdField;
+    protected ShardSelector shard;
+
+    // the workset position (first occurrence) of the volumes of the shard; the volumes tuples were written for
+    protected Map<String, Integer> positions;
+    protected int worksetSize;
+    protected Set<String> taggedVolumes;
+    protected LinkedList<Strings> pendingWorksetMeta;
+    protected LinkedList<StringsArray> pendingWorkset;
+
+    // the token counts and their volume ids; the tuple sets and their meta tuples
+    protected LinkedList<IntegersMap> pendingCounts;
+    protected LinkedList<String> pendingVolumeIds;
+    protected LinkedList<Strings> pendingMeta;
+    protected LinkedList<StringsArray> pendingTuples;
+
+    // the depth of the stream on each input, and the result inputs whose workset stream has not ended yet
+    protected Map<String, Integer> streamDepth;
+    protected Set<String> openPorts;
+    protected boolean published;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        String partialsDir = getPropertyOrDieTrying(PROP_PARTIALS_DIR, ccp);
+        String resultName = getPropertyOrDieTrying(PROP_RESULT_NAME, ccp);
+        int shardCount = Integer.parseInt(getPropertyOrDieTrying(PROP_SHARD_COUNT, ccp));
+        int shardIndex = Integer.parseInt(getPropertyOrDieTrying(PROP_SHARD_INDEX, ccp));
+        String runId = getPropertyOrDieTrying(PROP_RUN_ID, true, true, ccp);
+        boolean perVolume = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_PER_VOLUME, ccp));
+        String volumeIdField = getPropertyOrDieTrying(PROP_VOLUME_ID_FIELD, ccp);
+        String worksetIdField = getPropertyOrDieTrying(PROP_WORKSET_ID_FIELD, ccp);
+
+        List<String> connected = Arrays.asList(ccp.getConnectedInputs());
+        if (perVolume && !connected.contains(IN_WORKSET))
+            throw new ComponentContextException("per_volume requires the workset input, to record the order of the volumes");
+
+        List<String> resultPorts = new ArrayList<String>();
+        for (String port : RESULT_PORTS)
+            if (connected.contains(port))
+                resultPorts.add(port);
+
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount)
+            throw new ComponentContextException(String.format("Invalid shard %d of %d", shardIndex, shardCount));
+
+        File dir = new File(partialsDir);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new ComponentContextException("Cannot create the partials folder " + dir);
+
+        open(PartialResultFile.getFile(dir, resultName, shardIndex, shardCount), runId, shardIndex, shardCount,
+                perVolume, volumeIdField, worksetIdField, resultPorts);
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        if (cc.isInputAvailable(IN_TOKEN_COUNTS))
+            addTokenCounts((IntegersMap) cc.getDataComponentFromInput(IN_TOKEN_COUNTS));
+
+        if (cc.isInputAvailable(IN_VOLUMEID))
+            addVolumeId(DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_VOLUMEID))[0]);
+
+        if (cc.isInputAvailable(IN_META_TUPLE))
+            addMetaTuple((Strings) cc.getDataComponentFromInput(IN_META_TUPLE));
+
+        if (cc.isInputAvailable(IN_TUPLES))
+            addTuples((StringsArray) cc.getDataComponentFromInput(IN_TUPLES));
+
+        if (cc.isInputAvailable(IN_WORKSET_META_TUPLE))
+            addWorksetMetaTuple((Strings) cc.getDataComponentFromInput(IN_WORKSET_META_TUPLE));
+
+        if (cc.isInputAvailable(IN_WORKSET))
+            addWorksetTuples((StringsArray) cc.getDataComponentFromInput(IN_WORKSET));
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        if (writer == null) return;
+
+        if (!published) {
+            // the flow stopped before the end of the stream, the partial would be incomplete
+            writer.discard();
+            console.warning(String.format("The stream did not end, discarded the partial result (%,d record(s))",
+                    writer.getRecordCount()));
+        }
+
+        writer = null;
+        pendingCounts = null;
+        pendingVolumeIds = null;
+        pendingMeta = null;
+        pendingTuples = null;
+        pendingWorksetMeta = null;
+        pendingWorkset = null;
+        positions = null;
+        taggedVolumes = null;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        for (String port : inputPortsWithInitiators)
+            startStream(port);
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        for (String port : inputPortsWithTerminators)
+            if (endStream(port))
+                console.fine(String.format("Published the partial result, %,d record(s)", writer.getRecordCount()));
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Starts the partial result of the shard
+     *
+     * @param partial The partial file
+     * @param runId The ID of the run
+     * @param shardIndex The shard index
+     * @param shardCount The total number of shards
+     * @param perVolume True if each result belongs to a single volume
+     * @param volumeIdField The tuple field holding the volume id of each tuple
+     * @param worksetIdField The field of the workset tuples holding the volume id
+     * @param resultPorts The connected result inputs, which all carry the workset stream
+     * @throws Exception
+     */
+    protected void open(File partial, String runId, int shardIndex, int shardCount, boolean perVolume, String volumeIdField,
+            String worksetIdField, Collection<String> resultPorts) throws Exception {
+        if (resultPorts.isEmpty())
+            throw new ComponentContextException("None of the result inputs is connected");
+
+        this.perVolume = perVolume;
+        this.volumeIdField = volumeIdField;
+        this.worksetIdField = worksetIdField;
+        this.shard = new ShardSelector(shardIndex, shardCount);
+
+        writer = new PartialResultFile.Writer(partial, runId, shardIndex, shardCount);
+
+        pendingCounts = new LinkedList<IntegersMap>();
+        pendingVolumeIds = new LinkedList<String>();
+        pendingMeta = new LinkedList<Strings>();
+        pendingTuples = new LinkedList<StringsArray>();
+        pendingWorksetMeta = new LinkedList<Strings>();
+        pendingWorkset = new LinkedList<StringsArray>();
+
+        positions = new HashMap<String, Integer>();
+        worksetSize = 0;
+        taggedVolumes = new HashSet<String>();
+
+        streamDepth = new HashMap<String, Integer>();
+        openPorts = new HashSet<String>(resultPorts);
+        published = false;
+    }
+
+    protected void addTokenCounts(IntegersMap counts) throws Exception {
+        checkNotPublished();
+        pendingCounts.add(counts);
+        writePending();
+    }
+
+    protected void addVolumeId(String volumeId) throws Exception {
+        if (!perVolume) return;
+
+        checkNotPublished();
+        pendingVolumeIds.add(volumeId);
+        writePending();
+    }
+
+    protected void addMetaTuple(Strings meta) throws Exception {
+        checkNotPublished();
+        pendingMeta.add(meta);
+        writePending();
+    }
+
+    protected void addTuples(StringsArray tuples) throws Exception {
+        checkNotPublished();
+        pendingTuples.add(tuples);
+        writePending();
+    }
+
+    protected void addWorksetMetaTuple(Strings meta) throws Exception {
+        if (!perVolume) return;
+
+        checkNotPublished();
+        pendingWorksetMeta.add(meta);
+        addWorksetPositions();
+    }
+
+    protected void addWorksetTuples(StringsArray tuples) throws Exception {
+        if (!perVolume) return;
+
+        checkNotPublished();
+        pendingWorkset.add(tuples);
+        addWorksetPositions();
+    }
+
+    /**
+     * Records the workset positions of the volumes of the shard, from the workset tuples that have their meta tuple.
+     * The positions follow the order a single-node retriever requests the volumes in: endpoint by endpoint, each in
+     * input order.
+     */
+    protected void addWorksetPositions() throws Exception {
+        while (!pendingWorksetMeta.isEmpty() && !pendingWorkset.isEmpty()) {
+            SimpleTuplePeer tuplePeer = new SimpleTuplePeer(pendingWorksetMeta.removeFirst());
+            Strings[] tuples = BasicDataTypesTools.stringsArrayToJavaArray(pendingWorkset.removeFirst());
+
+            int idIdx = tuplePeer.getIndexForFieldName(worksetIdField);
+            if (idIdx < 0)
+                throw new ComponentExecutionException(String.format("The workset tuples have no '%s' field", worksetIdField));
+
+            int eprIdx = tuplePeer.getIndexForFieldName(HTRCPageRetrieverExternal.HTRC_VOLUME_EPR);
+            for (VolumeIdSet vols : HTRCPageRetrieverExternal.groupByEpr(tuples, idIdx, eprIdx, "", ALL_SHARDS).values())
+                for (String volumeId : vols.inInputOrder()) {
+                    if (shard.accepts(volumeId) && !positions.containsKey(volumeId))
+                        positions.put(volumeId, worksetSize);
+                    worksetSize++;
+                }
+        }
+    }
+
+    /**
+     * Writes the results that are complete: token counts with their volume id, tuple sets with their meta tuple
+     */
+    protected void writePending() throws Exception {
+        // the volume_id input only pairs with the token counts
+        while (!pendingCounts.isEmpty() && (!perVolume || !pendingVolumeIds.isEmpty()))
+            writer.writeTokenCounts(perVolume ? pendingVolumeIds.removeFirst() : "", pendingCounts.removeFirst());
+
+        // a tuple set and its meta tuple come from the same component, in the same order
+        while (!pendingMeta.isEmpty() && !pendingTuples.isEmpty()) {
+            Strings meta = pendingMeta.removeFirst();
+            StringsArray tuples = pendingTuples.removeFirst();
+
+            if (!perVolume) {
+                writer.writeTuples("", meta, tuples);
+                continue;
+            }
+
+            int idIdx = new SimpleTuplePeer(meta).getIndexForFieldName(volumeIdField);
+            if (idIdx < 0)
+                throw new ComponentExecutionException(String.format("The tuples have no '%s' field (fields: %s)",
+                        volumeIdField, meta.getValueList()));
+
+            // tag each tuple with its own volume id, keeping the order of the tuples of a volume
+            Map<String, List<Strings>> byVolume = new LinkedHashMap<String, List<Strings>>();
+            for (Strings tuple : BasicDataTypesTools.stringsArrayToJavaArray(tuples)) {
+                String volumeId = tuple.getValue(idIdx).trim();
+                List<Strings> volumeTuples = byVolume.get(volumeId);
+                if (volumeTuples == null) {
+                    volumeTuples = new ArrayList<Strings>();
+                    byVolume.put(volumeId, volumeTuples);
+                }
+                volumeTuples.add(tuple);
+            }
+
+            taggedVolumes.addAll(byVolume.keySet());
+            for (Entry<String, List<Strings>> entry : byVolume.entrySet())
+                writer.writeTuples(entry.getKey(), meta, BasicDataTypesTools.javaArrayToStringsArray(
+                        entry.getValue().toArray(new Strings[entry.getValue().size()])));
+        }
+    }
+
+    /**
+     * Records the start of a stream on an input
+     *
+     * @param port The input
+     * @throws ComponentExecutionException If the workset stream has already ended
+     */
+    protected void startStream(String port) throws ComponentExecutionException {
+        checkNotPublished();
+
+        Integer depth = streamDepth.get(port);
+        streamDepth.put(port, depth == null ? 1 : depth + 1);
+    }
+
+    /**
+     * Records the end of a stream on an input, and publishes the partial result when the
+     * outermost (workset) stream has ended on all the connected result inputs (and no stream
+     * is open on the workset inputs)
+     *
+     * @param port The input
+     * @return True if the partial result was published
+     * @throws ComponentExecutionException If the stream markers do not match, or results are left unmatched
+     */
+    protected boolean endStream(String port) throws Exception {
+        Integer depth = streamDepth.get(port);
+        if (depth == null || depth == 0)
+            throw new ComponentExecutionException("Received a stream terminator without a matching stream initiator on " + port);
+        streamDepth.put(port, depth - 1);
+
+        if (depth == 1)
+            openPorts.remove(port);
+
+        // under firingPolicy any, an input may end its stream before another one has started it
+        if (!openPorts.isEmpty())
+            return false;
+
+        for (int d : streamDepth.values())
+            if (d > 0) return false;
+
+        // the workset stream has ended on all the inputs
+        if (!pendingCounts.isEmpty() || !pendingVolumeIds.isEmpty() || !pendingMeta.isEmpty() || !pendingTuples.isEmpty()) {
+            discard();
+            throw new ComponentExecutionException(String.format(
+                    "Unmatched token counts (%d) / volume ids (%d) / tuples (%d) / meta tuples (%d) at the end of the stream, " +
+                    "discarded the partial result", pendingCounts.size(), pendingVolumeIds.size(), pendingTuples.size(), pendingMeta.size()));
+        }
+
+        // the merger puts the tuples of the volumes in workset order
+        for (String volumeId : taggedVolumes) {
+            Integer position = positions.get(volumeId);
+            if (position == null) {
+                discard();
+                throw new ComponentExecutionException(String.format("Received the tuples of %s, which is not in the workset " +
+                        "(%,d workset tuple(s) received), discarded the partial result", volumeId, worksetSize));
+            }
+            writer.writePosition(volumeId, position);
+        }
+
+        writer.close();
+        published = true;
+
+        return true;
+    }
+
+    protected void discard() {
+        writer.discard();
+        writer = null;
+    }
+
+    protected void checkNotPublished() throws ComponentExecutionException {
+        if (published)
+            throw new ComponentExecutionException("Results arrived after the end of the workset stream - the partial file " +
+                    "is already published (with per-volume streams, set wrap_workset on the retriever)");
+    }
+}
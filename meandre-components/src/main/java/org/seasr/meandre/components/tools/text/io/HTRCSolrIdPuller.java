@@ -8,11 +8,16 @@ import org.meandre.annotations.ComponentInput;
 import org.meandre.annotations.ComponentOutput;
 import org.meandre.annotations.ComponentProperty;
 import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
 import org.meandre.core.ComponentContextProperties;
 import org.seasr.datatypes.core.BasicDataTypesTools;
 import org.seasr.datatypes.core.DataTypeParser;
 import org.seasr.datatypes.core.Names;
 import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.EndpointPool;
+import org.seasr.meandre.support.components.htrc.EndpointResolver;
+import org.seasr.meandre.support.components.htrc.SolrIdReader;
+import org.seasr.meandre.support.components.htrc.SolrTransport;
 
 import edu.indiana.d2i.htrc.clients.solr.HTRCSolrClient;
 
@@ -22,7 +27,8 @@ import edu.indiana.d2i.htrc.clients.solr.HTRCSolrClient;
         name = "HTRC Solr Puller",
         rights = Licenses.UofINCSA,
         tags = "text",
-        dependency = {"protobuf-java-2.2.0.jar", "dataapi-client-0.6.2.jar", "pairtree-1.1.1.jar"},
+        dependency = {"protobuf-java-2.2.0.jar", "dataapi-client-0.6.2.jar", "pairtree-1.1.1.jar",
+                      "solr-solrj-3.6.2.jar", "slf4j-api-1.6.1.jar"},
         baseURL = "meandre://seasr.org/components/foundry/"
 )
 public class HTRCSolrIdPuller extends AbstractExecutableComponent {
@@ -62,7 +68,8 @@ public class HTRCSolrIdPuller extends AbstractExecutableComponent {
     protected static final String PROP_READ_TIMEOUT = Names.PROP_READ_TIMEOUT;
 
     @ComponentProperty(
-            description = "The endpoint for HTRC Solr",
+            description = "The endpoint for HTRC Solr (the pooled transport accepts several comma-separated " +
+                          "endpoints and spreads the requests across them)",
             name = "solr_endpoint",
             defaultValue = "http://coffeetree.cs.indiana.edu:9994/solr"
     )
@@ -74,15 +81,84 @@ public class HTRCSolrIdPuller extends AbstractExecutableComponent {
             defaultValue = "|"
     )
     protected static final String PROP_DELIMITER = "delimiter";
+
+    @ComponentProperty(
+            description = "The transport used for Solr requests: 'pooled' (persistent connections, honors the timeouts, " +
+                    "compressed responses) or 'client' (the legacy HTRCSolrClient, which does not apply the timeouts)",
+            name = "solr_transport",
+            defaultValue = "pooled"
+    )
+    protected static final String PROP_TRANSPORT = "solr_transport";
+
+    @ComponentProperty(
+            description = "The Solr response format used by the pooled transport: 'javabin' (smaller, and parses " +
+                    "three to four times faster) or 'xml' (compare them with SolrTransportBenchmark against the Solr " +
+                    "instances in use)",
+            name = "response_format",
+            defaultValue = "javabin"
+    )
+    protected static final String PROP_RESPONSE_FORMAT = "response_format";
+
+    @ComponentProperty(
+            description = "Ask for gzip-compressed responses when using the pooled transport?",
+            name = "compress_response",
+            defaultValue = "true"
+    )
+    protected static final String PROP_COMPRESS = "compress_response";
+
+    @ComponentProperty(
+            description = "The maximum number of concurrent connections to Solr when using the pooled transport",
+            name = "max_connections",
+            defaultValue = "4"
+    )
+    protected static final String PROP_MAX_CONNECTIONS = "max_connections";
+
+    @ComponentProperty(
+            description = "The registry configuration file (in the format of conf/config.properties) used to look up " +
+                          "the Solr instances for the pooled transport (empty = use the configured endpoint(s))",
+            name = "registry_config",
+            defaultValue = ""
+    )
+    protected static final String PROP_REGISTRY_CONFIG = "registry_config";
+
+    @ComponentProperty(
+            description = "How long, in seconds, the instances looked up in the registry are used before looking them up again",
+            name = "registry_ttl",
+            defaultValue = "300"
+    )
+    protected static final String PROP_REGISTRY_TTL = "registry_ttl";
+
+    @ComponentProperty(
+            description = "The number of volume ids to ask for in a single request when using the pooled transport",
+            name = "rows_per_request",
+            defaultValue = "1000"
+    )
+    protected static final String PROP_ROWS_PER_REQUEST = "rows_per_request";
+
+    @ComponentProperty(
+            description = "How the pooled transport pages through the matches: 'offset' (in the order of the query, " +
+                    "as the legacy client, with start=; each request costs more than the previous one, and the pages may " +
+                    "shift if the index changes meanwhile), 'range' (sorted by id, each request asks for the ids after " +
+                    "the last one received; any Solr version) or 'cursor' (sorted by id, with cursorMark; Solr 4.7 or " +
+                    "later). The ids are output in the order Solr returns them: 'range' and 'cursor' output them in " +
+                    "id order, not in the order of the query.",
+            name = "paging",
+            defaultValue = "offset"
+    )
+    protected static final String PROP_PAGING = "paging";
     //--------------------------------------------------------------------------------------------
 
     protected int connectionTimeout;
     protected int readTimeout;
     protected String solrEPR;
     protected String delimiter;
+    protected int rowsPerRequest;
+    protected SolrIdReader.Paging paging;
     //--------------------------------------------------------------------------------------------
 
     protected HTRCSolrClient client = null;
+    protected SolrTransport transport = null;
+    protected SolrIdReader idReader = null;
 
     @Override
     public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
@@ -90,8 +166,41 @@ public class HTRCSolrIdPuller extends AbstractExecutableComponent {
         readTimeout = Integer.parseInt(getPropertyOrDieTrying(PROP_READ_TIMEOUT, ccp));
         solrEPR = getPropertyOrDieTrying(PROP_SOLR_EPR, ccp);
         delimiter = getPropertyOrDieTrying(PROP_DELIMITER, ccp);
-
-        client = new HTRCSolrClient(solrEPR);
+        rowsPerRequest = Integer.parseInt(getPropertyOrDieTrying(PROP_ROWS_PER_REQUEST, ccp));
+        if (rowsPerRequest < 1)
+            throw new ComponentContextException("rows_per_request must be at least 1");
+
+        try {
+            paging = SolrIdReader.Paging.valueOf(getPropertyOrDieTrying(PROP_PAGING, ccp).toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ComponentContextException("Invalid paging: " + getPropertyOrDieTrying(PROP_PAGING, ccp));
+        }
+
+        String transportName = getPropertyOrDieTrying(PROP_TRANSPORT, ccp).toLowerCase();
+        if (transportName.equals("pooled")) {
+            SolrTransport.ResponseFormat format;
+            try {
+                format = SolrTransport.ResponseFormat.valueOf(getPropertyOrDieTrying(PROP_RESPONSE_FORMAT, ccp).toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new ComponentContextException("Invalid response_format: " + getPropertyOrDieTrying(PROP_RESPONSE_FORMAT, ccp));
+            }
+
+            EndpointPool endpoints = EndpointPool.create(
+                    getPropertyOrDieTrying(PROP_REGISTRY_CONFIG, true, false, ccp),
+                    Long.parseLong(getPropertyOrDieTrying(PROP_REGISTRY_TTL, ccp)),
+                    EndpointResolver.SERVICE_SOLR, solrEPR);
+
+            transport = new SolrTransport(endpoints, connectionTimeout, readTimeout,
+                    Boolean.parseBoolean(getPropertyOrDieTrying(PROP_COMPRESS, ccp)), format,
+                    Integer.parseInt(getPropertyOrDieTrying(PROP_MAX_CONNECTIONS, ccp)));
+            idReader = new SolrIdReader(transport, "select", rowsPerRequest, paging);
+        }
+        else if (transportName.equals("client"))
+            client = new HTRCSolrClient(solrEPR);
+        else
+            throw new ComponentContextException("Invalid solr_transport: " + transportName);
     }
 
     @Override
@@ -102,7 +211,7 @@ public class HTRCSolrIdPuller extends AbstractExecutableComponent {
         // check solr query format ??
 
         // parse to map
-        List<String> volumeIDs = client.getVolumeIDs(args[0]);
+        List<String> volumeIDs = transport != null ? getVolumeIDs(args[0]) : client.getVolumeIDs(args[0]);
 
         cc.pushDataComponentToOutput(OUT_VOLUMEIDS,
                 BasicDataTypesTools.stringToStrings(volumeIDs.toArray(new String[0])));
@@ -111,5 +220,21 @@ public class HTRCSolrIdPuller extends AbstractExecutableComponent {
     @Override
     public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
         client = null;
+
+        if (transport != null) {
+            console.info(transport.toString());
+            console.info(transport.getEndpoints().toString());
+            transport = null;
+            idReader = null;
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    protected List<String> getVolumeIDs(String query) throws Exception {
+        List<String> volumeIDs = idReader.read(query);
+        console.fine(String.format("Solr query '%s' matched %,d volumes", query, volumeIDs.size()));
+
+        return volumeIDs;
     }
 }
@@ -1,9 +1,7 @@
 package org.seasr.meandre.components.tools.text.io;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 
 import org.meandre.annotations.Component;
 import org.meandre.annotations.Component.Licenses;
@@ -11,6 +9,7 @@ import org.meandre.annotations.ComponentInput;
 import org.meandre.annotations.ComponentOutput;
 import org.meandre.annotations.ComponentProperty;
 import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
 import org.meandre.core.ComponentContextProperties;
 import org.meandre.core.system.components.ext.StreamInitiator;
 import org.meandre.core.system.components.ext.StreamTerminator;
@@ -18,8 +17,12 @@ import org.seasr.datatypes.core.BasicDataTypesTools;
 import org.seasr.datatypes.core.DataTypeParser;
 import org.seasr.datatypes.core.Names;
 import org.seasr.meandre.components.abstracts.AbstractStreamingExecutableComponent;
-
-import edu.indiana.d2i.htrc.clients.solr.HTRCSolrClient;
+import org.seasr.meandre.support.components.htrc.SolrTermVectorReader;
+import org.seasr.meandre.support.components.htrc.EndpointPool;
+import org.seasr.meandre.support.components.htrc.EndpointResolver;
+import org.seasr.meandre.support.components.htrc.SolrTransport;
+import org.seasr.meandre.support.components.htrc.SolrWordCountReader;
+import org.seasr.meandre.support.components.htrc.TokenCounter;
 
 @Component(
         creator = "Jiaan Zeng",
@@ -27,7 +30,8 @@ import edu.indiana.d2i.htrc.clients.solr.HTRCSolrClient;
         name = "HTRC Solr Word Count Puller",
         rights = Licenses.UofINCSA,
         tags = "text",
-        dependency = {"protobuf-java-2.2.0.jar", "dataapi-client-0.6.2.jar", "pairtree-1.1.1.jar"},
+        dependency = {"protobuf-java-2.2.0.jar", "dataapi-client-0.6.2.jar", "pairtree-1.1.1.jar",
+                      "solr-solrj-3.6.2.jar", "slf4j-api-1.6.1.jar"},
         baseURL = "meandre://seasr.org/components/foundry/"
 )
 public class HTRCSolrWordCountPuller extends AbstractStreamingExecutableComponent {
@@ -48,6 +52,13 @@ public class HTRCSolrWordCountPuller extends AbstractStreamingExecutableComponen
     )
     protected static final String WORD_COUNT = Names.PORT_TOKEN_COUNTS;
 
+    @ComponentOutput(
+            name = "volume_id",
+            description = "The volume id of each word count (only used in per-volume mode)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_VOLUMEID = "volume_id";
+
     //------------------------------ PROPERTIES --------------------------------------------------
     @ComponentProperty(
             description = "The connection timeout in milliseconds " +
@@ -66,7 +77,8 @@ public class HTRCSolrWordCountPuller extends AbstractStreamingExecutableComponen
     protected static final String PROP_READ_TIMEOUT = Names.PROP_READ_TIMEOUT;
 
     @ComponentProperty(
-            description = "The endpoint for HTRC Solr",
+            description = "The endpoint for HTRC Solr (several comma-separated endpoints can be given, " +
+                          "the requests are spread across them)",
             name = "HTRC Solr Endpoint",
             defaultValue = "http://coffeetree.cs.indiana.edu:9994/solr"
     )
@@ -85,6 +97,88 @@ public class HTRCSolrWordCountPuller extends AbstractStreamingExecutableComponen
             name = Names.PROP_N_TOP_TOKENS
     )
     protected static final String PROP_UPPER_LIMIT = Names.PROP_N_TOP_TOKENS;
+
+    @ComponentProperty(
+            defaultValue = "false",
+            description = "Output a separate word count for each volume (pulled from the Solr term vectors of the volume) " +
+                    "instead of a single word count for all the volumes? In per-volume mode the word counts are wrapped in " +
+                    "a stream and the volume id of each word count is pushed on the volume_id port; " +
+                    "the upper limit applies to each volume.",
+            name = "per_volume"
+    )
+    protected static final String PROP_PER_VOLUME = "per_volume";
+
+    @ComponentProperty(
+            defaultValue = "100",
+            description = "The maximum number of volumes to ask for in a single term vector request, " +
+                    "or to filter on in a single 'solr_filter' word count request",
+            name = "volumes_per_request"
+    )
+    protected static final String PROP_VOLUMES_PER_REQUEST = "volumes_per_request";
+
+    @ComponentProperty(
+            defaultValue = "solr_filter",
+            description = "Where the word count for all the volumes comes from: 'solr_filter' (a facet query on the " +
+                    "text_field filtered on the volumes: each word is counted once per volume containing it) or " +
+                    "'term_vectors' (the sum of the term frequencies of the volumes; requires stored term vectors and " +
+                    "the term_vector_handler)",
+            name = "aggregate_source"
+    )
+    protected static final String PROP_AGGREGATE_SOURCE = "aggregate_source";
+
+    @ComponentProperty(
+            defaultValue = "tvrh",
+            description = "The Solr request handler with the TermVectorComponent enabled " +
+                    "(per-volume mode and aggregate_source=term_vectors only)",
+            name = "term_vector_handler"
+    )
+    protected static final String PROP_TV_HANDLER = "term_vector_handler";
+
+    @ComponentProperty(
+            defaultValue = "ocr",
+            description = "The indexed field holding the volume text",
+            name = "text_field"
+    )
+    protected static final String PROP_TEXT_FIELD = "text_field";
+
+    @ComponentProperty(
+            defaultValue = "auto",
+            description = "The Solr response format: 'xml', 'javabin' or 'auto' (xml in per-volume mode, where it is " +
+                    "parsed as a stream so memory use is bounded by a single volume; javabin otherwise, which is smaller " +
+                    "and parses two to three times faster, but is decoded a request at a time). Compare the formats with " +
+                    "SolrTransportBenchmark against the Solr instances in use.",
+            name = "response_format"
+    )
+    protected static final String PROP_RESPONSE_FORMAT = "response_format";
+
+    @ComponentProperty(
+            defaultValue = "true",
+            description = "Ask for gzip-compressed responses?",
+            name = "compress_response"
+    )
+    protected static final String PROP_COMPRESS = "compress_response";
+
+    @ComponentProperty(
+            defaultValue = "4",
+            description = "The maximum number of concurrent connections to Solr",
+            name = "max_connections"
+    )
+    protected static final String PROP_MAX_CONNECTIONS = "max_connections";
+
+    @ComponentProperty(
+            defaultValue = "",
+            description = "The registry configuration file (in the format of conf/config.properties) used to look up " +
+                          "the Solr instances (empty = use the configured endpoint(s))",
+            name = "registry_config"
+    )
+    protected static final String PROP_REGISTRY_CONFIG = "registry_config";
+
+    @ComponentProperty(
+            defaultValue = "300",
+            description = "How long, in seconds, the instances looked up in the registry are used before looking them up again",
+            name = "registry_ttl"
+    )
+    protected static final String PROP_REGISTRY_TTL = "registry_ttl";
     //--------------------------------------------------------------------------------------------
 
     protected int connectionTimeout;
@@ -92,9 +186,14 @@ public class HTRCSolrWordCountPuller extends AbstractStreamingExecutableComponen
     protected String solrEPR;
     protected String delimiter;
     protected int upperLimit;
+    protected boolean perVolume;
+    protected boolean fromTermVectors;
+    protected int volumesPerRequest;
     //--------------------------------------------------------------------------------------------
 
-    protected HTRCSolrClient client = null;
+    protected SolrTransport transport = null;
+    protected SolrTermVectorReader termVectorReader = null;
+    protected SolrWordCountReader wordCountReader = null;
 
     @Override
     public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
@@ -107,7 +206,46 @@ public class HTRCSolrWordCountPuller extends AbstractStreamingExecutableComponen
         String limitStr = getPropertyOrDieTrying(PROP_UPPER_LIMIT, true, false, ccp);
         upperLimit = limitStr.length() > 0 ? Integer.parseInt(limitStr) : Integer.MAX_VALUE;
 
-        client = new HTRCSolrClient(solrEPR);
+        perVolume = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_PER_VOLUME, ccp));
+        volumesPerRequest = Integer.parseInt(getPropertyOrDieTrying(PROP_VOLUMES_PER_REQUEST, ccp));
+        if (volumesPerRequest < 1)
+            throw new ComponentContextException("volumes_per_request must be at least 1");
+
+        String aggregateSource = getPropertyOrDieTrying(PROP_AGGREGATE_SOURCE, ccp).toLowerCase();
+        if (aggregateSource.equals("term_vectors"))
+            fromTermVectors = true;
+        else if (!aggregateSource.equals("solr_filter"))
+            throw new ComponentContextException("Invalid aggregate_source: " + aggregateSource);
+
+        String formatName = getPropertyOrDieTrying(PROP_RESPONSE_FORMAT, ccp);
+        SolrTransport.ResponseFormat format;
+        if (formatName.equalsIgnoreCase("auto"))
+            format = perVolume ? SolrTransport.ResponseFormat.XML : SolrTransport.ResponseFormat.JAVABIN;
+        else
+            try {
+                format = SolrTransport.ResponseFormat.valueOf(formatName.toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                throw new ComponentContextException("Invalid response_format: " + formatName);
+            }
+
+        if (perVolume && format == SolrTransport.ResponseFormat.JAVABIN)
+            console.warning("javabin responses are decoded whole: memory use is bounded by volumes_per_request volumes, not by one");
+
+        EndpointPool endpoints = EndpointPool.create(
+                getPropertyOrDieTrying(PROP_REGISTRY_CONFIG, true, false, ccp),
+                Long.parseLong(getPropertyOrDieTrying(PROP_REGISTRY_TTL, ccp)),
+                EndpointResolver.SERVICE_SOLR, solrEPR);
+
+        transport = new SolrTransport(endpoints, connectionTimeout, readTimeout,
+                Boolean.parseBoolean(getPropertyOrDieTrying(PROP_COMPRESS, ccp)), format,
+                Integer.parseInt(getPropertyOrDieTrying(PROP_MAX_CONNECTIONS, ccp)));
+
+        String textField = getPropertyOrDieTrying(PROP_TEXT_FIELD, ccp);
+        if (perVolume || fromTermVectors)
+            termVectorReader = new SolrTermVectorReader(transport, getPropertyOrDieTrying(PROP_TV_HANDLER, ccp), textField);
+        else
+            wordCountReader = new SolrWordCountReader(transport, "select", textField);
     }
 
     @Override
@@ -116,32 +254,25 @@ public class HTRCSolrWordCountPuller extends AbstractStreamingExecutableComponen
         String[] volumes = DataTypeParser.parseAsString(
                 cc.getDataComponentFromInput(INPUT_VOLUMEIDS));
 
+        if (perVolume) {
+            executePerVolume(Arrays.asList(volumes));
+            return;
+        }
+
         // check solr query format ??
 
-        // parse to map
-        Map<String, Integer> wordCount =
-                client.getWordCountInCountOrderFromSolrFilter(Arrays.asList(volumes), false);
-//    	System.out.println("get word count from solr!!!!!");
-
-
-        // filter
-        Map<String, Integer> result = new HashMap<String, Integer>();
-        int count = 0;
-        Iterator<String> iterator = wordCount.keySet().iterator();
-        while (count < upperLimit && iterator.hasNext()) {
-            String word = iterator.next();
-            Integer freq = wordCount.get(word);
-            result.put(word, freq);
-            count++;
+        if (fromTermVectors) {
+            executeFromTermVectors(Arrays.asList(volumes));
+            return;
         }
 
+        // word count, most frequent first
+        TokenCounter wordCount = wordCountReader.read(Arrays.asList(volumes), volumesPerRequest, upperLimit);
 
         StreamInitiator si = new StreamInitiator(streamId);
         componentContext.pushDataComponentToOutput(WORD_COUNT, si);
 
-        cc.pushDataComponentToOutput(WORD_COUNT,
-                BasicDataTypesTools.mapToIntegerMap(result, false));
-//    	System.out.println("!!!! push word count size " + result.size());
+        cc.pushDataComponentToOutput(WORD_COUNT, wordCount.toIntegersMap(upperLimit));
 
         StreamTerminator st = new StreamTerminator(streamId);
         componentContext.pushDataComponentToOutput(WORD_COUNT, st);
@@ -149,11 +280,57 @@ public class HTRCSolrWordCountPuller extends AbstractStreamingExecutableComponen
 
     @Override
     public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
-        client = null;
+        termVectorReader = null;
+        wordCountReader = null;
+
+        if (transport != null) {
+            console.info(transport.toString());
+            console.info(transport.getEndpoints().toString());
+            transport = null;
+        }
     }
 
     @Override
     public boolean isAccumulator() {
         return false;
     }
+
+    //--------------------------------------------------------------------------------------------
+
+    protected void executeFromTermVectors(List<String> volumeIDs) throws Exception {
+        final TokenCounter wordCount = new TokenCounter();
+
+        int found = termVectorReader.read(volumeIDs, volumesPerRequest, new SolrTermVectorReader.TermVectorHandler() {
+            public void termVector(String volumeId, TokenCounter counts) throws Exception {
+                wordCount.addAll(counts);
+            }
+        });
+
+        if (found < volumeIDs.size())
+            console.warning(String.format("No term vectors found for %,d of %,d volumes", volumeIDs.size() - found, volumeIDs.size()));
+
+        componentContext.pushDataComponentToOutput(WORD_COUNT, new StreamInitiator(streamId));
+        componentContext.pushDataComponentToOutput(WORD_COUNT, wordCount.toIntegersMap(upperLimit));
+        componentContext.pushDataComponentToOutput(WORD_COUNT, new StreamTerminator(streamId));
+    }
+
+    protected void executePerVolume(List<String> volumeIDs) throws Exception {
+        componentContext.pushDataComponentToOutput(WORD_COUNT, new StreamInitiator(streamId));
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, new StreamInitiator(streamId));
+
+        int found = termVectorReader.read(volumeIDs, volumesPerRequest, new SolrTermVectorReader.TermVectorHandler() {
+            public void termVector(String volumeId, TokenCounter counts) throws Exception {
+                console.finer(String.format("Pushing word count for %s (%,d distinct words)", volumeId, counts.size()));
+
+                componentContext.pushDataComponentToOutput(WORD_COUNT, counts.toIntegersMap(upperLimit));
+                componentContext.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(volumeId));
+            }
+        });
+
+        if (found < volumeIDs.size())
+            console.warning(String.format("No term vectors found for %,d of %,d volumes", volumeIDs.size() - found, volumeIDs.size()));
+
+        componentContext.pushDataComponentToOutput(WORD_COUNT, new StreamTerminator(streamId));
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, new StreamTerminator(streamId));
+    }
 }
@@ -1,7 +1,7 @@
 package org.seasr.meandre.components.tools.text.io;
 
 import java.util.Arrays;
-import java.util.Map.Entry;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import org.meandre.annotations.Component;
@@ -19,8 +19,11 @@ import org.seasr.datatypes.core.BasicDataTypesTools;
 import org.seasr.datatypes.core.DataTypeParser;
 import org.seasr.datatypes.core.Names;
 import org.seasr.meandre.components.abstracts.AbstractStreamingExecutableComponent;
-
-import edu.indiana.d2i.htrc.clients.dataapi.HTRCDataClient;
+import org.seasr.meandre.support.components.htrc.DataAPIClients;
+import org.seasr.meandre.support.components.htrc.DataAPIFetcher;
+import org.seasr.meandre.support.components.htrc.EndpointPool;
+import org.seasr.meandre.support.components.htrc.EndpointResolver;
+import org.seasr.meandre.support.components.htrc.InFlightBudget;
 
 @Component(
         creator = "Boris Capitanu",
@@ -82,7 +85,8 @@ public class HTRCVolumeRetriever extends AbstractStreamingExecutableComponent {
     protected static final String PROP_READ_TIMEOUT = Names.PROP_READ_TIMEOUT;
 
     @ComponentProperty(
-            description = "The service URL endpoint for HTRC Data API",
+            description = "The service URL endpoint for HTRC Data API " +
+                          "(several comma-separated endpoints can be given to spread the requests across them)",
             name = "data_api_url",
             defaultValue = "https://silvermaple.pti.indiana.edu:25443/data-api/"
     )
@@ -95,6 +99,49 @@ public class HTRCVolumeRetriever extends AbstractStreamingExecutableComponent {
     )
     protected static final String PROP_DELIMITER = "delimiter";
 
+    @ComponentProperty(
+            description = "The maximum number of volumes to ask for in a single request " +
+                          "(larger volume lists are broken down into multiple requests, each of a size <= this number; " +
+                          "0 = no max limit, i.e. the whole list in one request as in earlier versions). " +
+                          "POST requests can ask for thousands of volumes; URL requests are limited by the maximum URL length.",
+            name = "max_volumes_per_request",
+            defaultValue = "100"
+    )
+    protected static final String PROP_MAX_VOLS_PER_REQ = "max_volumes_per_request";
+
+    @ComponentProperty(
+            description = "How the volume list is sent to the Data API: 'url' (in the request URL, as in earlier versions), " +
+                          "'post_gzip' (in a compressed POST body) or 'post' (in a plain POST body). " +
+                          "The POST forms are opt-in, for Data API instances that support them; an instance that rejects " +
+                          "a POST form falls back to 'post', then to 'url'.",
+            name = "request_mode",
+            defaultValue = "url"
+    )
+    protected static final String PROP_REQUEST_MODE = "request_mode";
+
+    @ComponentProperty(
+            description = "The number of attempts for a request before the volumes it asks for are split into two smaller requests",
+            name = "max_attempts",
+            defaultValue = "2"
+    )
+    protected static final String PROP_MAX_ATTEMPTS = "max_attempts";
+
+    @ComponentProperty(
+            description = "The number of requests sent concurrently (requests sent ahead of their turn are buffered in memory " +
+                          "so the volumes are still pushed out in order, up to max_readahead_bytes)",
+            name = "fetcher_threads",
+            defaultValue = "1"
+    )
+    protected static final String PROP_FETCHER_THREADS = "fetcher_threads";
+
+    @ComponentProperty(
+            description = "The maximum number of bytes of content retrieved ahead of its turn when fetcher_threads > 1 " +
+                          "(the requests sent ahead pause while the limit is reached; 0 = no limit)",
+            name = "max_readahead_bytes",
+            defaultValue = "268435456"
+    )
+    protected static final String PROP_MAX_READAHEAD_BYTES = "max_readahead_bytes";
+
     @ComponentProperty(
             description = "The OAuth2 authentication token.",
             name = "auth_token",
@@ -116,6 +163,47 @@ public class HTRCVolumeRetriever extends AbstractStreamingExecutableComponent {
     )
     protected static final String PROP_WRAP_STREAM = Names.PROP_WRAP_STREAM;
 
+    @ComponentProperty(
+            description = "The maximum number of bytes of volume text that may be pushed out but not yet released downstream " +
+                          "by an HTRC In-Flight Release component fed with the ids of the consumed volumes " +
+                          "(retrieval pauses before the next volume while the limit is reached; 0 = no limit)",
+            name = "max_inflight_bytes",
+            defaultValue = "0"
+    )
+    protected static final String PROP_MAX_INFLIGHT_BYTES = "max_inflight_bytes";
+
+    @ComponentProperty(
+            description = "The longest time (in seconds) to wait for a volume to be released when max_inflight_bytes is reached; " +
+                          "the retrieval fails if no volume is released in that time (the release is missing, or placed " +
+                          "after a consumer that holds on to the volume text until its stream ends)",
+            name = "max_inflight_wait",
+            defaultValue = "60"
+    )
+    protected static final String PROP_MAX_INFLIGHT_WAIT = "max_inflight_wait";
+
+    @ComponentProperty(
+            description = "The name the in-flight budget is registered under, for the HTRC In-Flight Release component " +
+                          "(must be unique among the retrievers of a flow that limit max_inflight_bytes)",
+            name = "inflight_budget_name",
+            defaultValue = "htrc"
+    )
+    protected static final String PROP_INFLIGHT_BUDGET_NAME = "inflight_budget_name";
+
+    @ComponentProperty(
+            description = "The registry configuration file (in the format of conf/config.properties) used to look up " +
+                          "the instances of the service (empty = use the configured endpoint(s))",
+            name = "registry_config",
+            defaultValue = ""
+    )
+    protected static final String PROP_REGISTRY_CONFIG = "registry_config";
+
+    @ComponentProperty(
+            description = "How long, in seconds, the instances looked up in the registry are used before looking them up again",
+            name = "registry_ttl",
+            defaultValue = "300"
+    )
+    protected static final String PROP_REGISTRY_TTL = "registry_ttl";
+
     //--------------------------------------------------------------------------------------------
 
 
@@ -125,11 +213,14 @@ public class HTRCVolumeRetriever extends AbstractStreamingExecutableComponent {
     protected String delimiter;
 
     protected String token;
+    protected InFlightBudget inFlight;
+    protected String inFlightName;
 
     protected boolean selfsign;
     protected boolean wrapStream;
 
-    protected HTRCDataClient client;
+    protected DataAPIClients dataAPI;
+    protected DataAPIFetcher fetcher;
 
 
     //--------------------------------------------------------------------------------------------
@@ -144,6 +235,17 @@ public class HTRCVolumeRetriever extends AbstractStreamingExecutableComponent {
         delimiter = getPropertyOrDieTrying(PROP_DELIMITER, ccp);
         selfsign = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_AUTH_SELFSIGN, ccp));
         wrapStream = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_WRAP_STREAM, ccp));
+        inFlight = new InFlightBudget(Long.parseLong(getPropertyOrDieTrying(PROP_MAX_INFLIGHT_BYTES, ccp)),
+                1000L * Long.parseLong(getPropertyOrDieTrying(PROP_MAX_INFLIGHT_WAIT, ccp)));
+        inFlightName = getPropertyOrDieTrying(PROP_INFLIGHT_BUDGET_NAME, ccp);
+        if (inFlight.getMaxBytes() > 0) {
+            try {
+                InFlightBudget.register(inFlightName, inFlight);
+            }
+            catch (IllegalArgumentException e) {
+                throw new ComponentContextException(e.getMessage());
+            }
+        }
 
         token = getPropertyOrDieTrying(PROP_AUTH_TOKEN, true, false, ccp);
 
@@ -151,13 +253,25 @@ public class HTRCVolumeRetriever extends AbstractStreamingExecutableComponent {
         if (!useAuthentication)
             console.fine("No authentication information provided. Performing unauthenticated requests.");
 
-        HTRCDataClient.Builder builder = new HTRCDataClient.Builder(dataAPIEPR)
-            .connectionTimeout(connectionTimeout).readTimeout(readTimeout);
+        EndpointPool endpoints = EndpointPool.create(
+                getPropertyOrDieTrying(PROP_REGISTRY_CONFIG, true, false, ccp),
+                Long.parseLong(getPropertyOrDieTrying(PROP_REGISTRY_TTL, ccp)),
+                EndpointResolver.SERVICE_DATA_API, dataAPIEPR);
 
-        if (useAuthentication)
-            builder.selfsigned(selfsign).token(token);
+        DataAPIClients.RequestMode requestMode;
+        try {
+            requestMode = DataAPIClients.RequestMode.valueOf(getPropertyOrDieTrying(PROP_REQUEST_MODE, ccp).toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new ComponentContextException("Invalid request_mode: " + getPropertyOrDieTrying(PROP_REQUEST_MODE, ccp));
+        }
 
-        client = builder.build();
+        dataAPI = new DataAPIClients(endpoints, connectionTimeout, readTimeout, token, selfsign, requestMode);
+        fetcher = new DataAPIFetcher(dataAPI, DataAPIFetcher.Content.VOLUMES, delimiter,
+                Integer.parseInt(getPropertyOrDieTrying(PROP_MAX_VOLS_PER_REQ, ccp)),
+                Integer.parseInt(getPropertyOrDieTrying(PROP_MAX_ATTEMPTS, ccp)),
+                Integer.parseInt(getPropertyOrDieTrying(PROP_FETCHER_THREADS, ccp)),
+                Long.parseLong(getPropertyOrDieTrying(PROP_MAX_READAHEAD_BYTES, ccp)));
     }
 
     @Override
@@ -168,28 +282,27 @@ public class HTRCVolumeRetriever extends AbstractStreamingExecutableComponent {
         // convert into real list of volume ids
         String[] volumeIDs = volumeList.split(Pattern.quote(delimiter));
 
-        // construct the query path for the DataAPI request
-        String queryStr = HTRCDataClient.ids2URL(Arrays.asList(volumeIDs), delimiter);
-
         // start a global stream, if necessary
         if (wrapStream)
             pushStreamMarker(new StreamInitiator(streamId));
 
-        Iterable<Entry<String, String>> volumes = client.getID2Content(queryStr);
-        for (Entry<String, String> volume : volumes) {
-            String volumeId = volume.getKey();
-            String volumeText = volume.getValue();
+        List<String> failed = fetcher.fetch(Arrays.asList(volumeIDs), new DataAPIFetcher.Handler() {
+            public void content(String volumeId, String volumeText) throws Exception {
+                console.finer(String.format("Pushing: vol_id: %s (volume text length: %d)", volumeId, volumeText.length()));
+
+                inFlight.admit(volumeId, 2L * volumeText.length());
 
-            if (volumeId == null || volumeText == null) {
-                console.warning("One of volumeId or volumeText is NULL - this should not happen!");
-                continue;
+                componentContext.pushDataComponentToOutput(OUT_TEXT, BasicDataTypesTools.stringToStrings(volumeText));
+                componentContext.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(volumeId));
             }
 
-            console.finer(String.format("Pushing: vol_id: %s (volume text length: %d)", volumeId, volumeText.length()));
+            public void incomplete(String volumeId) {
+                // whole volumes are never delivered in part
+            }
+        });
 
-            cc.pushDataComponentToOutput(OUT_TEXT, BasicDataTypesTools.stringToStrings(volumeText));
-            cc.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(volumeId));
-        }
+        if (!failed.isEmpty())
+            console.warning(String.format("Could not retrieve %,d of %,d volume(s): %s", failed.size(), volumeIDs.length, failed));
 
         // end the global stream, if necessary
         if (wrapStream)
@@ -198,9 +311,22 @@ public class HTRCVolumeRetriever extends AbstractStreamingExecutableComponent {
 
     @Override
     public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
-        if (client != null) {
-            client.close();
-            client = null;
+        if (fetcher != null) {
+            console.info(fetcher.toString());
+            fetcher.close();
+            fetcher = null;
+        }
+
+        if (dataAPI != null) {
+            dataAPI.close();
+            dataAPI = null;
+        }
+
+        if (inFlight != null) {
+            console.info(inFlight.toString());
+            InFlightBudget.unregister(inFlightName, inFlight);
+            inFlight.clear();
+            inFlight = null;
         }
     }
 
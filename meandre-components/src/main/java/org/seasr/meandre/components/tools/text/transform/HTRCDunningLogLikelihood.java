@@ -0,0 +1,330 @@
+package org.seasr.meandre.components.tools.text.transform;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.FiringPolicy;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.ComponentExecutionException;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.DunningScorer;
+import org.seasr.meandre.support.components.htrc.TokenCounter;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Compares the pages of an analysis workset against the pages of a reference workset using " +
+                      "Dunning's log-likelihood, directly from the page streams of two HTRC page retrievers. " +
+                      "The words of each workset are counted as the pages arrive, by one thread per workset, so " +
+                      "the two worksets are processed in parallel in a single pass. When both streams have ended, " +
+                      "the most over-represented and the most under-represented words of the analysis workset are " +
+                      "output. The end of the outermost stream of each input counts as the end of its workset, so the " +
+                      "retrievers must wrap the whole workset in a stream: either set wrap_stream and clear " +
+                      "stream_per_volume, or also set wrap_workset to nest the per-volume streams in a workset stream. " +
+                      "With per-volume streams alone, each volume is scored as a workset of its own. When several " +
+                      "worksets arrive on an input, they are paired in order with the worksets of the other input.",
+        name = "HTRC Dunning Log-Likelihood",
+        rights = Licenses.UofINCSA,
+        tags = "#ANALYTICS, text, htrc, dunning, log-likelihood, token, count",
+        firingPolicy = FiringPolicy.any,
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCDunningLogLikelihood extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_TEXT,
+            description = "The text content of a page of the analysis workset (the whole workset wrapped in a stream, " +
+                          "which may hold nested per-volume streams)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_TEXT = Names.PORT_TEXT;
+
+    @ComponentInput(
+            name = "text_reference",
+            description = "The text content of a page of the reference workset (the whole workset wrapped in a stream, " +
+                          "which may hold nested per-volume streams)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_TEXT_REFERENCE = "text_reference";
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = "int_likelihood_scores",
+            description = "The most over- and under-represented words with their log-likelihood (rounded to integer " +
+                          "values); negative values represent under-representation relative to the reference workset" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.IntegersMap"
+    )
+    protected static final String OUT_SCORES = "int_likelihood_scores";
+
+    @ComponentOutput(
+            name = "over_represented",
+            description = "The most over-represented words, by decreasing log-likelihood (rounded to integer values)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.IntegersMap"
+    )
+    protected static final String OUT_OVER = "over_represented";
+
+    @ComponentOutput(
+            name = "under_represented",
+            description = "The most under-represented words, by decreasing log-likelihood magnitude (rounded to integer values)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.IntegersMap"
+    )
+    protected static final String OUT_UNDER = "under_represented";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "Words with frequency less than this number in both the analysis and reference worksets will be ignored",
+            name = "cutoff",
+            defaultValue = "5"
+    )
+    protected static final String PROP_CUTOFF = "cutoff";
+
+    @ComponentProperty(
+            description = "The number of over-represented and of under-represented words output",
+            name = "top_k",
+            defaultValue = "200"
+    )
+    protected static final String PROP_TOP_K = "top_k";
+
+    @ComponentProperty(
+            description = "Set to 'true' to convert the words to lower case",
+            name = "lowercase",
+            defaultValue = "true"
+    )
+    protected static final String PROP_LOWERCASE = "lowercase";
+
+    @ComponentProperty(
+            description = "The length of the shortest words counted",
+            name = "min_word_length",
+            defaultValue = "2"
+    )
+    protected static final String PROP_MIN_WORD_LENGTH = "min_word_length";
+
+    @ComponentProperty(
+            description = "The maximum number of pages of each workset waiting to be counted",
+            name = "queue_size",
+            defaultValue = "100"
+    )
+    protected static final String PROP_QUEUE_SIZE = "queue_size";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected DunningScorer scorer;
+    protected boolean lowercase;
+    protected int minWordLength;
+    protected int queueSize;
+
+    protected Corpus analysis;
+    protected Corpus reference;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        int cutoff = Integer.parseInt(getPropertyOrDieTrying(PROP_CUTOFF, ccp));
+        int topK = Integer.parseInt(getPropertyOrDieTrying(PROP_TOP_K, ccp));
+        lowercase = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_LOWERCASE, ccp));
+        minWordLength = Integer.parseInt(getPropertyOrDieTrying(PROP_MIN_WORD_LENGTH, ccp));
+        queueSize = Math.max(1, Integer.parseInt(getPropertyOrDieTrying(PROP_QUEUE_SIZE, ccp)));
+
+        scorer = new DunningScorer(cutoff, topK);
+        analysis = new Corpus("analysis");
+        reference = new Corpus("reference");
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        if (cc.isInputAvailable(IN_TEXT))
+            analysis.add(DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_TEXT))[0]);
+
+        if (cc.isInputAvailable(IN_TEXT_REFERENCE))
+            reference.add(DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_TEXT_REFERENCE))[0]);
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        if (analysis != null && (analysis.getUnscoredPages() > 0 || reference.getUnscoredPages() > 0))
+            console.warning(String.format("The streams did not end, %,d analysis and %,d reference page(s) were not scored",
+                    analysis.getUnscoredPages(), reference.getUnscoredPages()));
+
+        if (analysis != null) analysis.close();
+        if (reference != null) reference.close();
+
+        analysis = null;
+        reference = null;
+        scorer = null;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        // the results are output as a whole when the outermost stream of both inputs has ended
+        for (String port : inputPortsWithInitiators)
+            getCorpus(port).depth++;
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        for (String port : inputPortsWithTerminators) {
+            Corpus corpus = getCorpus(port);
+            if (corpus.depth == 0)
+                throw new ComponentExecutionException("Received a stream terminator without a matching stream initiator on " + port);
+
+            if (--corpus.depth == 0)
+                corpus.endWorkset();
+        }
+
+        while (!analysis.ended.isEmpty() && !reference.ended.isEmpty())
+            pushScores();
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    protected Corpus getCorpus(String port) {
+        return port.equals(IN_TEXT_REFERENCE) ? reference : analysis;
+    }
+
+    /**
+     * Scores the oldest ended analysis workset against the oldest ended reference workset
+     */
+    protected void pushScores() throws Exception {
+        Workset analysisWorkset = analysis.finish();
+        Workset referenceWorkset = reference.finish();
+        TokenCounter analysisCounts = analysisWorkset.counts;
+        TokenCounter referenceCounts = referenceWorkset.counts;
+
+        console.fine(String.format("Analysis: %,d pages, %,d words (%,d distinct); reference: %,d pages, %,d words (%,d distinct)",
+                analysisWorkset.pages, analysisCounts.total(), analysisCounts.size(),
+                referenceWorkset.pages, referenceCounts.total(), referenceCounts.size()));
+
+        long start = System.currentTimeMillis();
+        scorer.score(analysisCounts, referenceCounts);
+        console.fine(String.format("Scored %,d words in %,d ms", scorer.getScoredCount(), System.currentTimeMillis() - start));
+
+        componentContext.pushDataComponentToOutput(OUT_SCORES, scorer.getSignedScores());
+        componentContext.pushDataComponentToOutput(OUT_OVER, scorer.getOverRepresented());
+        componentContext.pushDataComponentToOutput(OUT_UNDER, scorer.getUnderRepresented());
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * The word counts of a workset
+     */
+    protected static class Workset {
+        protected final TokenCounter counts = new TokenCounter(1 << 16);
+        protected long pages = 0;
+    }
+
+    /**
+     * The worksets of an input, counted by a thread of their own
+     */
+    protected class Corpus {
+        protected final String name;
+        protected final ExecutorService counter;
+        protected final Semaphore queued;
+
+        // the workset receiving the pages, and the ended worksets waiting to be scored (oldest first)
+        protected Workset current = new Workset();
+        protected final LinkedList<Workset> ended = new LinkedList<Workset>();
+
+        protected volatile Throwable failure = null;
+        protected int depth = 0;
+
+        protected Corpus(String name) {
+            this.name = name;
+            this.counter = Executors.newSingleThreadExecutor();
+            this.queued = new Semaphore(queueSize);
+        }
+
+        /**
+         * Queues a page to be counted, waiting while the queue is full
+         */
+        protected void add(final String text) throws Exception {
+            if (failure != null)
+                throw new Exception("Counting the " + name + " workset failed", failure);
+
+            final TokenCounter counts = current.counts;
+
+            queued.acquire();
+            counter.execute(new Runnable() {
+                public void run() {
+                    try {
+                        TokenCounter.countWords(text, counts, lowercase, minWordLength);
+                    }
+                    catch (Throwable t) {
+                        failure = t;
+                    }
+                    finally {
+                        queued.release();
+                    }
+                }
+            });
+
+            current.pages++;
+        }
+
+        /**
+         * Ends the workset receiving the pages, the following pages go to a new one
+         */
+        protected void endWorkset() {
+            ended.add(current);
+            current = new Workset();
+        }
+
+        /**
+         * Waits for all the queued pages to be counted
+         *
+         * @return The oldest ended workset, removed from the ended worksets
+         */
+        protected Workset finish() throws Exception {
+            try {
+                counter.submit(new Callable<Object>() {
+                    public Object call() {
+                        return null;
+                    }
+                }).get();
+            }
+            catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+
+            if (failure != null)
+                throw new Exception("Counting the " + name + " workset failed", failure);
+
+            return ended.removeFirst();
+        }
+
+        /**
+         * @return The number of pages received and not scored yet
+         */
+        protected long getUnscoredPages() {
+            long pages = current.pages;
+            for (Workset workset : ended)
+                pages += workset.pages;
+
+            return pages;
+        }
+
+        protected void close() {
+            counter.shutdownNow();
+        }
+    }
+}
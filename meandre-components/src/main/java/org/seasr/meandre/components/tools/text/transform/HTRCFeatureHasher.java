@@ -0,0 +1,309 @@
+package org.seasr.meandre.components.tools.text.transform;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.system.components.ext.StreamDelimiter;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.FeatureHasher;
+import org.seasr.meandre.support.components.htrc.FeatureHasher.SparseVector;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Turns each volume produced by the HTRC page retrievers into a sparse feature vector of fixed " +
+                      "dimension by hashing its words (the hashing trick), in a single pass and without building a " +
+                      "vocabulary of the workset first. Volumes are hashed in parallel and output in workset order. " +
+                      "Each vector is output as token counts keyed by feature name (h0, h1, ...), which the Token " +
+                      "Count To Feature Table component turns into a table with at most 'dimension' columns, and as " +
+                      "a sparse row in the LIBSVM format. The pages of a volume must arrive one after the other; the " +
+                      "volumes still pending are output at the next stream marker or at the end of the flow.",
+        name = "HTRC Feature Hasher",
+        rights = Licenses.UofINCSA,
+        tags = "#TRANSFORM, text, htrc, features, hashing, classification",
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCFeatureHasher extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_TEXT,
+            description = "The text content of a page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_TEXT = Names.PORT_TEXT;
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The volume id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = Names.PORT_TOKEN_COUNTS,
+            description = "The features of a volume, as counts keyed by feature name (h<index>)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.IntegersMap"
+    )
+    protected static final String OUT_TOKEN_COUNTS = Names.PORT_TOKEN_COUNTS;
+
+    @ComponentOutput(
+            name = "sparse_row",
+            description = "The features of a volume in the LIBSVM sparse format (index:value pairs, indices starting at 1)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_SPARSE_ROW = "sparse_row";
+
+    @ComponentOutput(
+            name = "volume_id",
+            description = "The volume id" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_VOLUMEID = "volume_id";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The number of features (the width of the vectors)",
+            name = "dimension",
+            defaultValue = "262144"
+    )
+    protected static final String PROP_DIMENSION = "dimension";
+
+    @ComponentProperty(
+            description = "Set to 'true' to use signed hashing (colliding words tend to cancel out, but feature values " +
+                          "can be negative, which count-based classifiers such as Naive Bayes cannot take); " +
+                          "leave 'false' to output non-negative counts",
+            name = "signed",
+            defaultValue = "false"
+    )
+    protected static final String PROP_SIGNED = "signed";
+
+    @ComponentProperty(
+            description = "Set to 'true' to convert the words to lower case",
+            name = "lowercase",
+            defaultValue = "true"
+    )
+    protected static final String PROP_LOWERCASE = "lowercase";
+
+    @ComponentProperty(
+            description = "The length of the shortest words counted",
+            name = "min_word_length",
+            defaultValue = "2"
+    )
+    protected static final String PROP_MIN_WORD_LENGTH = "min_word_length";
+
+    @ComponentProperty(
+            description = "The number of volumes hashed concurrently (0 = the number of processors)",
+            name = "num_threads",
+            defaultValue = "0"
+    )
+    protected static final String PROP_NUM_THREADS = "num_threads";
+
+    @ComponentProperty(
+            description = "The maximum number of volumes waiting to be hashed or output " +
+                          "(0 = twice the number of threads)",
+            name = "queue_size",
+            defaultValue = "0"
+    )
+    protected static final String PROP_QUEUE_SIZE = "queue_size";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected FeatureHasher hasher;
+    protected ExecutorService workers;
+    protected int queueSize;
+
+    // the pages of the volume currently arriving
+    protected Object volumeId;
+    protected String volumeIdString;
+    protected List<String> pages;
+
+    // the volumes in the order they came in
+    protected LinkedList<PendingVolume> pending;
+
+    // statistics
+    protected long volumeCount;
+    protected long featureCount;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        int dimension = Integer.parseInt(getPropertyOrDieTrying(PROP_DIMENSION, ccp));
+        boolean signed = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_SIGNED, ccp));
+        boolean lowercase = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_LOWERCASE, ccp));
+        int minWordLength = Integer.parseInt(getPropertyOrDieTrying(PROP_MIN_WORD_LENGTH, ccp));
+
+        if (dimension < 1)
+            throw new ComponentContextException("Invalid dimension: " + dimension);
+
+        int numThreads = Integer.parseInt(getPropertyOrDieTrying(PROP_NUM_THREADS, ccp));
+        if (numThreads <= 0)
+            numThreads = Runtime.getRuntime().availableProcessors();
+
+        queueSize = Integer.parseInt(getPropertyOrDieTrying(PROP_QUEUE_SIZE, ccp));
+        if (queueSize <= 0)
+            queueSize = 2 * numThreads;
+
+        hasher = new FeatureHasher(dimension, signed, lowercase, minWordLength);
+        workers = Executors.newFixedThreadPool(numThreads);
+        pending = new LinkedList<PendingVolume>();
+        pages = new ArrayList<String>();
+        volumeId = null;
+        volumeIdString = null;
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        String text = DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_TEXT))[0];
+        Object volId = cc.getDataComponentFromInput(IN_VOLUMEID);
+        String volume = DataTypeParser.parseAsString(volId)[0];
+
+        if (!volume.equals(volumeIdString)) {
+            submitVolume();
+            volumeId = volId;
+            volumeIdString = volume;
+        }
+
+        pages.add(text);
+
+        // output the volumes that are done, waiting for the oldest one only when the queue is full
+        while (!pending.isEmpty() && (pending.size() > queueSize || pending.getFirst().features.isDone()))
+            pushVolume(pending.removeFirst());
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        try {
+            // without stream framing the last volumes are only complete once the flow ends
+            if (pending != null)
+                flush();
+        }
+        finally {
+            if (workers != null)
+                workers.shutdownNow();
+        }
+
+        if (hasher != null)
+            console.info(String.format("Hashed %,d volumes into %,d features (%.1f non-zero features per volume)",
+                    volumeCount, hasher.getDimension(), volumeCount > 0 ? (double) featureCount / volumeCount : 0));
+
+        workers = null;
+        pending = null;
+        pages = null;
+        hasher = null;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        flush();
+
+        pushStreamMarker((StreamDelimiter) componentContext.getDataComponentFromInput(IN_TEXT));
+        componentContext.getDataComponentFromInput(IN_VOLUMEID);
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        flush();
+
+        pushStreamMarker((StreamDelimiter) componentContext.getDataComponentFromInput(IN_TEXT));
+        componentContext.getDataComponentFromInput(IN_VOLUMEID);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Hands the pages of the current volume to the workers
+     */
+    protected void submitVolume() {
+        if (volumeId == null) return;
+
+        final List<String> volumePages = pages;
+        Future<SparseVector> features = workers.submit(new Callable<SparseVector>() {
+            public SparseVector call() throws Exception {
+                return hasher.hash(volumePages);
+            }
+        });
+
+        pending.add(new PendingVolume(volumeId, features));
+
+        volumeId = null;
+        volumeIdString = null;
+        pages = new ArrayList<String>();
+    }
+
+    /**
+     * Outputs all the volumes received so far
+     */
+    protected void flush() throws Exception {
+        submitVolume();
+
+        while (!pending.isEmpty())
+            pushVolume(pending.removeFirst());
+    }
+
+    protected void pushVolume(PendingVolume volume) throws Exception {
+        SparseVector features;
+        try {
+            features = volume.features.get();
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>(2 * features.size());
+        for (int i = 0, iMax = features.size(); i < iMax; i++)
+            counts.put("h" + features.getIndex(i), features.getValue(i));
+
+        volumeCount++;
+        featureCount += features.size();
+
+        componentContext.pushDataComponentToOutput(OUT_TOKEN_COUNTS, BasicDataTypesTools.mapToIntegerMap(counts, false));
+        componentContext.pushDataComponentToOutput(OUT_SPARSE_ROW, BasicDataTypesTools.stringToStrings(features.toString()));
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, volume.volumeId);
+    }
+
+    protected void pushStreamMarker(StreamDelimiter sd) throws ComponentContextException {
+        componentContext.pushDataComponentToOutput(OUT_TOKEN_COUNTS, sd);
+        componentContext.pushDataComponentToOutput(OUT_SPARSE_ROW, sd);
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, sd);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    protected static class PendingVolume {
+        protected final Object volumeId;
+        protected final Future<SparseVector> features;
+
+        protected PendingVolume(Object volumeId, Future<SparseVector> features) {
+            this.volumeId = volumeId;
+            this.features = features;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package org.seasr.meandre.components.tools.text.transform;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedList;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.FiringPolicy;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.system.components.ext.StreamDelimiter;
+import org.meandre.core.system.components.ext.StreamInitiator;
+import org.meandre.core.system.components.ext.StreamTerminator;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.TokenCounter;
+import org.seasr.meandre.support.components.htrc.VolumeResultCache;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Counts the words of each volume retrieved by the HTRC Page Retriever, keeping the counts " +
+                      "in an on-disk cache so that later runs over overlapping worksets do not retrieve and count " +
+                      "the same volumes again. When the retriever is given the same memo_dir and memo_key, it does " +
+                      "not retrieve the volumes whose counts are cached but pushes out their ids through its " +
+                      "memoized_volume_id output, which is connected to the input of the same name of this component; " +
+                      "this component outputs the cached counts for them. When the workset is wrapped in a stream " +
+                      "(wrap_workset), the cached counts are output inside that stream. The pages of a volume must " +
+                      "arrive together; the counts of a volume are output when its last page has been seen (when a " +
+                      "page of another volume or a stream delimiter arrives). Only the counts of complete volumes " +
+                      "are cached: a volume that the retriever could only retrieve in part is counted but not cached. " +
+                      "Words are maximal runs of letters or digits. " +
+                      "The memo_key is required with a memo_dir and must change whenever the components between the " +
+                      "retriever and this one (text cleaning...) are configured differently; the settings of this " +
+                      "component are recorded in the cache and checked at every run. If the counts of a volume the " +
+                      "retriever found in the cache are missing or unreadable, the flow fails rather than leave the " +
+                      "volume out, and an unreadable result is dropped so the next run retrieves the volume. Feed the counts to a token counter reducer to combine the " +
+                      "cached and the fresh results.",
+        name = "HTRC Memoized Token Counter",
+        rights = Licenses.UofINCSA,
+        tags = "#TRANSFORM, text, htrc, token, count, cache, memoize",
+        firingPolicy = FiringPolicy.any,
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCMemoizedTokenCounter extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_TEXT,
+            description = "The text content of a page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_TEXT = Names.PORT_TEXT;
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The volume id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    @ComponentInput(
+            name = "page_id",
+            description = "The page id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_PAGEID = "page_id";
+
+    @ComponentInput(
+            name = "memoized_volume_id",
+            description = "The id of a volume whose counts are cached (from the memoized_volume_id output of the retriever)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_MEMOIZED_VOLUMEID = "memoized_volume_id";
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = Names.PORT_TOKEN_COUNTS,
+            description = "The word counts of a volume" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.IntegersMap"
+    )
+    protected static final String OUT_TOKEN_COUNTS = Names.PORT_TOKEN_COUNTS;
+
+    @ComponentOutput(
+            name = "volume_id",
+            description = "The volume id of the word counts" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_VOLUMEID = "volume_id";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The folder of the cache of word counts (empty = no cache, every volume is counted)",
+            name = "memo_dir",
+            defaultValue = ""
+    )
+    protected static final String PROP_MEMO_DIR = "memo_dir";
+
+    @ComponentProperty(
+            description = "The key identifying the configuration of the components between the retriever and this " +
+                          "one, e.g. the settings of the text cleaning components; required when memo_dir is set, " +
+                          "and must be the same as the memo_key of the HTRC Page Retriever",
+            name = "memo_key",
+            defaultValue = ""
+    )
+    protected static final String PROP_MEMO_KEY = "memo_key";
+
+    @ComponentProperty(
+            description = "Set to 'true' to convert the words to lower case",
+            name = "lowercase",
+            defaultValue = "true"
+    )
+    protected static final String PROP_LOWERCASE = "lowercase";
+
+    @ComponentProperty(
+            description = "The length of the shortest words counted",
+            name = "min_word_length",
+            defaultValue = "2"
+    )
+    protected static final String PROP_MIN_WORD_LENGTH = "min_word_length";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected VolumeResultCache memo;
+    protected boolean lowercase;
+    protected int minWordLength;
+
+    protected String volumeId;
+    protected TokenCounter counts;
+
+    // the pages (and their stream markers) arrive on three ports, they are paired up in arrival order
+    protected LinkedList<Object> pendingText;
+    protected LinkedList<Object> pendingVolumeIds;
+    protected LinkedList<Object> pendingPageIds;
+
+    protected int depth;
+    protected boolean worksetFramed;
+    protected int memoStreamsStarted;
+    protected int memoStreamsEnded;
+    protected int worksetsFramed;
+
+    protected int volumesCounted;
+    protected int volumesCached;
+    protected int volumesIncomplete;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        lowercase = Boolean.parseBoolean(getPropertyOrDieTrying(PROP_LOWERCASE, ccp));
+        minWordLength = Integer.parseInt(getPropertyOrDieTrying(PROP_MIN_WORD_LENGTH, ccp));
+
+        String memoDir = getPropertyOrDieTrying(PROP_MEMO_DIR, true, false, ccp);
+        if (memoDir.length() > 0) {
+            memo = new VolumeResultCache(new File(memoDir), getPropertyOrDieTrying(PROP_MEMO_KEY, true, true, ccp));
+            try {
+                // caches written before incomplete volumes were left out are not reused
+                memo.checkSettings(String.format("lowercase=%s, min_word_length=%d, complete_volumes_only=true",
+                        lowercase, minWordLength));
+            }
+            catch (IOException e) {
+                throw new ComponentContextException(e.getMessage());
+            }
+            console.fine("Using the " + memo);
+        }
+
+        pendingText = new LinkedList<Object>();
+        pendingVolumeIds = new LinkedList<Object>();
+        pendingPageIds = new LinkedList<Object>();
+
+        depth = 0;
+        worksetFramed = false;
+        memoStreamsStarted = 0;
+        memoStreamsEnded = 0;
+        worksetsFramed = 0;
+
+        reset();
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        if (cc.isInputAvailable(IN_TEXT))
+            pendingText.add(cc.getDataComponentFromInput(IN_TEXT));
+        if (cc.isInputAvailable(IN_VOLUMEID))
+            pendingVolumeIds.add(cc.getDataComponentFromInput(IN_VOLUMEID));
+        if (cc.isInputAvailable(IN_PAGEID))
+            pendingPageIds.add(cc.getDataComponentFromInput(IN_PAGEID));
+
+        processPages();
+
+        // the end of a workset stream waits for its cache hits, so these never go out after it
+        if (cc.isInputAvailable(IN_MEMOIZED_VOLUMEID))
+            pushCachedCounts(DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_MEMOIZED_VOLUMEID))[0].trim());
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        if (volumeId != null)
+            console.warning(String.format("The stream did not end, the counts of volume %s were not output", volumeId));
+
+        if (pendingText != null && (!pendingText.isEmpty() || !pendingVolumeIds.isEmpty() || !pendingPageIds.isEmpty()))
+            console.warning(String.format("Unmatched pages (%d) / volume ids (%d) / page ids (%d) were not counted",
+                    pendingText.size(), pendingVolumeIds.size(), pendingPageIds.size()));
+
+        console.fine(String.format("Counted %,d volumes (%,d incomplete, not cached), %,d volumes from the cache",
+                volumesCounted, volumesIncomplete, volumesCached));
+
+        memo = null;
+        counts = null;
+        pendingText = null;
+        pendingVolumeIds = null;
+        pendingPageIds = null;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        // the cache hits of a workset are framed ahead of its pages
+        if (inputPortsWithInitiators.contains(IN_MEMOIZED_VOLUMEID)) {
+            componentContext.getDataComponentFromInput(IN_MEMOIZED_VOLUMEID);
+            memoStreamsStarted++;
+        }
+
+        queueStreamMarkers(inputPortsWithInitiators);
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        if (inputPortsWithTerminators.contains(IN_MEMOIZED_VOLUMEID)) {
+            componentContext.getDataComponentFromInput(IN_MEMOIZED_VOLUMEID);
+            memoStreamsEnded++;
+        }
+
+        queueStreamMarkers(inputPortsWithTerminators);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    protected void queueStreamMarkers(Collection<String> ports) throws Exception {
+        if (ports.contains(IN_TEXT))
+            pendingText.add(componentContext.getDataComponentFromInput(IN_TEXT));
+        if (ports.contains(IN_VOLUMEID))
+            pendingVolumeIds.add(componentContext.getDataComponentFromInput(IN_VOLUMEID));
+        if (ports.contains(IN_PAGEID))
+            pendingPageIds.add(componentContext.getDataComponentFromInput(IN_PAGEID));
+
+        processPages();
+    }
+
+    /**
+     * Counts the pages, and forwards the stream markers, that have arrived on all three ports
+     */
+    protected void processPages() throws Exception {
+        while (!pendingText.isEmpty() && !pendingVolumeIds.isEmpty() && !pendingPageIds.isEmpty()) {
+            Object text = pendingText.getFirst();
+
+            if (text instanceof StreamInitiator) {
+                if (depth == 0) {
+                    // an outermost stream whose cache hits are framed too is a workset stream
+                    worksetFramed = memoStreamsStarted > worksetsFramed;
+                    if (worksetFramed)
+                        worksetsFramed++;
+                }
+                depth++;
+            }
+
+            else if (text instanceof StreamTerminator) {
+                // the cached counts of the workset go out before the end of its stream
+                if (depth == 1 && worksetFramed && memoStreamsEnded < worksetsFramed)
+                    return;
+
+                if (depth > 0)
+                    depth--;
+                if (depth == 0)
+                    worksetFramed = false;
+            }
+
+            pendingText.removeFirst();
+            Object vid = pendingVolumeIds.removeFirst();
+            pendingPageIds.removeFirst();
+
+            if (text instanceof StreamDelimiter) {
+                // the counts of the current volume (if any) go out before the stream delimiter
+                pushCounts();
+
+                componentContext.pushDataComponentToOutput(OUT_TOKEN_COUNTS, text);
+                componentContext.pushDataComponentToOutput(OUT_VOLUMEID, text);
+                continue;
+            }
+
+            String pageVolumeId = DataTypeParser.parseAsString(vid)[0].trim();
+            if (!pageVolumeId.equals(volumeId)) {
+                pushCounts();
+                volumeId = pageVolumeId;
+            }
+
+            TokenCounter.countWords(DataTypeParser.parseAsString(text)[0], counts, lowercase, minWordLength);
+        }
+    }
+
+    /**
+     * Pushes out the counts of a volume read from the cache. The retriever did not retrieve the volume,
+     * so if its counts cannot be read the workset cannot be counted completely and the flow fails.
+     */
+    protected void pushCachedCounts(String vid) throws Exception {
+        if (memo == null)
+            throw new ComponentContextException(String.format("The retriever found the counts of volume %s in its cache, " +
+                    "but memo_dir is not set on this component", vid));
+
+        TokenCounter cachedCounts;
+        try {
+            cachedCounts = memo.readTokenCounts(vid);
+        }
+        catch (IOException e) {
+            // drop the damaged result so that the next run retrieves the volume again
+            if (!memo.getFile(vid).delete())
+                console.warning("Could not delete " + memo.getFile(vid));
+            throw new ComponentContextException(String.format("The cached counts of volume %s cannot be read: %s",
+                    vid, e.getMessage()));
+        }
+
+        if (cachedCounts == null)
+            throw new ComponentContextException(String.format("The counts of volume %s are no longer in the cache " +
+                    "(is memo_dir the same as the retriever's?)", vid));
+
+        componentContext.pushDataComponentToOutput(OUT_TOKEN_COUNTS, cachedCounts.toIntegersMap(Integer.MAX_VALUE));
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(vid));
+        volumesCached++;
+    }
+
+    /**
+     * Pushes out the counts of the current volume, storing them in the cache if the volume is complete
+     */
+    protected void pushCounts() throws Exception {
+        if (volumeId == null) return;
+
+        if (memo != null) {
+            // the retriever marks an incomplete volume before it pushes out anything else
+            if (memo.isIncomplete(volumeId)) {
+                console.fine(String.format("Volume %s is incomplete, its counts are not cached", volumeId));
+                volumesIncomplete++;
+            } else
+                memo.writeTokenCounts(volumeId, counts);
+        }
+        volumesCounted++;
+
+        componentContext.pushDataComponentToOutput(OUT_TOKEN_COUNTS, counts.toIntegersMap(Integer.MAX_VALUE));
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, BasicDataTypesTools.stringToStrings(volumeId));
+
+        reset();
+    }
+
+    protected void reset() {
+        volumeId = null;
+        counts = new TokenCounter(1 << 12);
+    }
+}
@@ -0,0 +1,344 @@
+package org.seasr.meandre.components.tools.text.transform;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.system.components.ext.StreamDelimiter;
+import org.meandre.core.system.components.ext.StreamInitiator;
+import org.meandre.core.system.components.ext.StreamTerminator;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.LSHIndex;
+import org.seasr.meandre.support.components.htrc.MinHasher;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Detects near-duplicate volumes (e.g. scans of the same work from different libraries) in the " +
+                      "page stream produced by the HTRC page retrievers, and either drops them or tags them with the " +
+                      "id of the first volume seen from the same cluster. Each volume is summarized by a MinHash " +
+                      "signature of a sample of the word shingles of its pages (chosen by hash value, so that volumes sharing " +
+                      "text sample the same shingles from it wherever it appears); candidate duplicates are found " +
+                      "through locality-sensitive hashing. Volumes too short to have any shingle sampled have no " +
+                      "signature and are never reported as duplicates (lower shingle_sample_rate to cover them). " +
+                      "Volumes are buffered one at a time; the last one is forwarded when the next volume, " +
+                      "a stream marker or the end of the flow is seen.",
+        name = "HTRC Near Duplicate Filter",
+        rights = Licenses.UofINCSA,
+        tags = "#TRANSFORM, text, htrc, duplicate, minhash",
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCNearDuplicateFilter extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_TEXT,
+            description = "The text content of a page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_TEXT = Names.PORT_TEXT;
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The volume id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    @ComponentInput(
+            name = "page_id",
+            description = "The page id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_PAGEID = "page_id";
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = Names.PORT_TEXT,
+            description = "The text content of each page that was not dropped" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_TEXT = Names.PORT_TEXT;
+
+    @ComponentOutput(
+            name = "volume_id",
+            description = "The volume id for each page that was not dropped" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_VOLUMEID = "volume_id";
+
+    @ComponentOutput(
+            name = "page_id",
+            description = "The page id for each page that was not dropped" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_PAGEID = "page_id";
+
+    @ComponentOutput(
+            name = "duplicate_of",
+            description = "For each page that was not dropped, the id of the volume it is a near-duplicate of " +
+                "(empty if the volume is not a duplicate)" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_DUPLICATE_OF = "duplicate_of";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The estimated Jaccard similarity (0..1] of the word shingles at or above which two volumes " +
+                          "are considered near-duplicates",
+            name = "similarity_threshold",
+            defaultValue = "0.8"
+    )
+    protected static final String PROP_THRESHOLD = "similarity_threshold";
+
+    @ComponentProperty(
+            description = "Only 1 in this number of the word shingles of a volume (chosen by hash value) is used to compute " +
+                          "its signature (1 = use all shingles)",
+            name = "shingle_sample_rate",
+            defaultValue = "8"
+    )
+    protected static final String PROP_SHINGLE_SAMPLE_RATE = "shingle_sample_rate";
+
+    @ComponentProperty(
+            description = "The number of MinHash functions (signature length)",
+            name = "num_hashes",
+            defaultValue = "128"
+    )
+    protected static final String PROP_NUM_HASHES = "num_hashes";
+
+    @ComponentProperty(
+            description = "The number of consecutive words in a shingle",
+            name = "shingle_size",
+            defaultValue = "5"
+    )
+    protected static final String PROP_SHINGLE_SIZE = "shingle_size";
+
+    @ComponentProperty(
+            description = "What to do with near-duplicate volumes: 'drop' (only the first volume of each cluster is " +
+                          "forwarded) or 'tag' (all volumes are forwarded, duplicates are marked on the duplicate_of port)",
+            name = "duplicate_action",
+            defaultValue = "drop"
+    )
+    protected static final String PROP_ACTION = "duplicate_action";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected static final long SIGNATURE_SEED = 0x48545243L;
+
+    protected boolean dropDuplicates;
+
+    protected MinHasher minHasher;
+    protected LSHIndex index;
+
+    // the volume currently being buffered
+    protected String volumeId;
+    protected List<Strings> pageTexts;
+    protected List<Strings> pageIds;
+    protected StreamInitiator pendingInitiator;
+
+    // statistics
+    protected long volumeCount, duplicateCount;
+    protected long pageCount, duplicatePageCount;
+    protected long charCount, duplicateCharCount;
+    protected long volumeChars;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        double threshold = Double.parseDouble(getPropertyOrDieTrying(PROP_THRESHOLD, ccp));
+        int sampleRate = Integer.parseInt(getPropertyOrDieTrying(PROP_SHINGLE_SAMPLE_RATE, ccp));
+        int numHashes = Integer.parseInt(getPropertyOrDieTrying(PROP_NUM_HASHES, ccp));
+        int shingleSize = Integer.parseInt(getPropertyOrDieTrying(PROP_SHINGLE_SIZE, ccp));
+
+        String action = getPropertyOrDieTrying(PROP_ACTION, ccp).toLowerCase();
+        if (action.equals("drop"))
+            dropDuplicates = true;
+        else if (action.equals("tag"))
+            dropDuplicates = false;
+        else
+            throw new ComponentContextException("Invalid duplicate_action: " + action);
+
+        try {
+            minHasher = new MinHasher(numHashes, shingleSize, sampleRate, SIGNATURE_SEED);
+            index = new LSHIndex(numHashes, threshold);
+        }
+        catch (IllegalArgumentException e) {
+            throw new ComponentContextException(e.getMessage());
+        }
+
+        console.fine(String.format("LSH layout: %d bands of %d rows", index.getBands(), index.getRows()));
+
+        pageTexts = new ArrayList<Strings>();
+        pageIds = new ArrayList<Strings>();
+        volumeId = null;
+        pendingInitiator = null;
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        Strings text = (Strings) cc.getDataComponentFromInput(IN_TEXT);
+        String volId = DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_VOLUMEID))[0];
+        Strings pageId = (Strings) cc.getDataComponentFromInput(IN_PAGEID);
+
+        if (volumeId != null && !volumeId.equals(volId))
+            finishVolume(null);
+
+        volumeId = volId;
+        pageTexts.add(text);
+        pageIds.add(pageId);
+
+        for (int i = 0, iMax = text.getValueCount(); i < iMax; i++)
+            volumeChars += text.getValue(i).length();
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        // without stream framing the last volume is only complete once the flow ends
+        if (volumeId != null)
+            finishVolume(null);
+
+        console.info(String.format("Near-duplicates %s: %,d of %,d volumes (%.1f%%), %,d of %,d pages, %,d of %,d characters (%.1f%%)",
+                dropDuplicates ? "dropped" : "tagged",
+                duplicateCount, volumeCount, percent(duplicateCount, volumeCount),
+                duplicatePageCount, pageCount,
+                duplicateCharCount, charCount, percent(duplicateCharCount, charCount)));
+
+        pageTexts = null;
+        pageIds = null;
+        index = null;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        StreamInitiator si = (StreamInitiator) componentContext.getDataComponentFromInput(IN_TEXT);
+        componentContext.getDataComponentFromInput(IN_VOLUMEID);
+        componentContext.getDataComponentFromInput(IN_PAGEID);
+
+        if (volumeId != null)
+            finishVolume(null);
+
+        // held back until we know whether the stream contains anything that is forwarded
+        if (pendingInitiator != null)
+            pushStreamMarker(pendingInitiator);
+
+        pendingInitiator = si;
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        StreamTerminator st = (StreamTerminator) componentContext.getDataComponentFromInput(IN_TEXT);
+        componentContext.getDataComponentFromInput(IN_VOLUMEID);
+        componentContext.getDataComponentFromInput(IN_PAGEID);
+
+        if (volumeId != null)
+            finishVolume(st);
+        else if (pendingInitiator != null)
+            pendingInitiator = null;  // nothing was forwarded inside this stream, drop it entirely
+        else
+            pushStreamMarker(st);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Decides whether the buffered volume is a near-duplicate and forwards it accordingly
+     *
+     * @param terminator The stream terminator that closes the volume, or null
+     * @throws Exception
+     */
+    protected void finishVolume(StreamTerminator terminator) throws Exception {
+        int[] signature = minHasher.signature(pageTexts(pageTexts));
+        String duplicateOf = signature != null ? index.findSimilar(signature) : null;
+        if (duplicateOf == null && signature != null)
+            index.add(volumeId, signature);
+
+        volumeCount++;
+        pageCount += pageTexts.size();
+        charCount += volumeChars;
+
+        if (duplicateOf != null) {
+            duplicateCount++;
+            duplicatePageCount += pageTexts.size();
+            duplicateCharCount += volumeChars;
+            console.fine(String.format("Volume %s is a near-duplicate of %s", volumeId, duplicateOf));
+        }
+
+        if (duplicateOf == null || !dropDuplicates) {
+            if (pendingInitiator != null) {
+                pushStreamMarker(pendingInitiator);
+                pendingInitiator = null;
+            }
+
+            Strings volId = BasicDataTypesTools.stringToStrings(volumeId);
+            Strings tag = BasicDataTypesTools.stringToStrings(duplicateOf != null ? duplicateOf : "");
+            for (int i = 0, iMax = pageTexts.size(); i < iMax; i++) {
+                componentContext.pushDataComponentToOutput(OUT_TEXT, pageTexts.get(i));
+                componentContext.pushDataComponentToOutput(OUT_VOLUMEID, volId);
+                componentContext.pushDataComponentToOutput(OUT_PAGEID, pageIds.get(i));
+                componentContext.pushDataComponentToOutput(OUT_DUPLICATE_OF, tag);
+            }
+
+            if (terminator != null)
+                pushStreamMarker(terminator);
+        }
+        else if (terminator != null) {
+            if (pendingInitiator != null)
+                pendingInitiator = null;  // the stream only contained the dropped volume
+            else
+                pushStreamMarker(terminator);
+        }
+
+        volumeId = null;
+        volumeChars = 0;
+        pageTexts.clear();
+        pageIds.clear();
+    }
+
+    /**
+     * Returns a view of the texts of the pages
+     */
+    protected Iterable<String> pageTexts(final List<Strings> pages) {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                Strings page = pages.get(index);
+                return page.getValueCount() > 0 ? page.getValue(0) : "";
+            }
+
+            @Override
+            public int size() {
+                return pages.size();
+            }
+        };
+    }
+
+    protected void pushStreamMarker(StreamDelimiter sd) throws ComponentContextException {
+        componentContext.pushDataComponentToOutput(OUT_TEXT, sd);
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, sd);
+        componentContext.pushDataComponentToOutput(OUT_PAGEID, sd);
+        componentContext.pushDataComponentToOutput(OUT_DUPLICATE_OF, sd);
+    }
+
+    private static double percent(long part, long total) {
+        return total > 0 ? 100.0 * part / total : 0;
+    }
+}
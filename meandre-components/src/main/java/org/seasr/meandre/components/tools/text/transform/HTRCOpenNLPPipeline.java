@@ -0,0 +1,335 @@
+package org.seasr.meandre.components.tools.text.transform;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.system.components.ext.StreamDelimiter;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypes.StringsArray;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.OpenNLPPipeline;
+import org.seasr.meandre.support.components.htrc.OpenNLPPipeline.Analysis;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Runs the OpenNLP sentence detector, tokenizer and named entity finders (or POS tagger) over the " +
+                      "pages produced by the HTRC page retrievers, replacing the chain of OpenNLP components with a " +
+                      "single component that analyzes several pages at once. Each worker thread has its own copy of " +
+                      "the OpenNLP tools (which are not thread-safe) while the models are loaded only once. " +
+                      "The tuples are output in page order, in the same format as the OpenNLP named entity and " +
+                      "POS tagger components, together with the volume id and page id of the page they come from.",
+        name = "HTRC OpenNLP Pipeline",
+        rights = Licenses.UofINCSA,
+        tags = "#TRANSFORM, text, htrc, opennlp, named entity, pos, tuple",
+        dependency = {"protobuf-java-2.2.0.jar", "opennlp-tools-1.5.2-incubating.jar", "opennlp-maxent-3.0.2-incubating.jar"},
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCOpenNLPPipeline extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_TEXT,
+            description = "The text content of a page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_TEXT = Names.PORT_TEXT;
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The volume id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    @ComponentInput(
+            name = "page_id",
+            description = "The page id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_PAGEID = "page_id";
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = Names.PORT_TUPLES,
+            description = "The set of tuples found in a page: (sentenceId, type, textStart, textEnd, text) for entities, " +
+                          "(sentenceId, token, pos, posProb, tokenStart) for tagged tokens" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.StringsArray"
+    )
+    protected static final String OUT_TUPLES = Names.PORT_TUPLES;
+
+    @ComponentOutput(
+            name = Names.PORT_META_TUPLE,
+            description = "The meta data for the tuples" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_META_TUPLE = Names.PORT_META_TUPLE;
+
+    @ComponentOutput(
+            name = "volume_id",
+            description = "The volume id of the page the tuples come from" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_VOLUMEID = "volume_id";
+
+    @ComponentOutput(
+            name = "page_id",
+            description = "The page id of the page the tuples come from" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_PAGEID = "page_id";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The directory holding the OpenNLP 1.5 model files " +
+                          "(<lang>-sent.bin, <lang>-token.bin, <lang>-pos-maxent.bin, <lang>-ner-<type>.bin)",
+            name = "model_dir",
+            defaultValue = "/opt/opennlp/models"
+    )
+    protected static final String PROP_MODEL_DIR = "model_dir";
+
+    @ComponentProperty(
+            description = "The language model to use (2-character ISO 639-1 language code) (Ex: en, de, es, fr,...). " +
+                          "Note: Not all languages are supported.",
+            name = "lang_code",
+            defaultValue = "en"
+    )
+    protected static final String PROP_LANG_CODE = "lang_code";
+
+    @ComponentProperty(
+            description = "What to extract: 'entities' (named entities) or 'pos' (POS tagged tokens)",
+            name = "analysis",
+            defaultValue = "entities"
+    )
+    protected static final String PROP_ANALYSIS = "analysis";
+
+    @ComponentProperty(
+            description = "The comma-separated types of entities to tag (Ex: date, location, money, organization, percentage, person, time)",
+            name = "entity_types",
+            defaultValue = "person, organization, location"
+    )
+    protected static final String PROP_ENTITY_TYPES = "entity_types";
+
+    @ComponentProperty(
+            description = "The regular expression to use to filter the returned tokens by POS (Ex: JJ|RB). " +
+                          "If this property value is empty, no filtering is performed - all tokens are returned.",
+            name = "pos_filter_regex",
+            defaultValue = ""
+    )
+    protected static final String PROP_POS_FILTER = "pos_filter_regex";
+
+    @ComponentProperty(
+            description = "The number of pages analyzed concurrently (0 = the number of processors)",
+            name = "num_threads",
+            defaultValue = "0"
+    )
+    protected static final String PROP_NUM_THREADS = "num_threads";
+
+    @ComponentProperty(
+            description = "The maximum number of pages waiting to be analyzed or output; when it is reached, " +
+                          "no more pages are accepted until the oldest one is done (0 = twice the number of threads)",
+            name = "queue_size",
+            defaultValue = "0"
+    )
+    protected static final String PROP_QUEUE_SIZE = "queue_size";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected OpenNLPPipeline pipeline;
+    protected Strings metaTuple;
+    protected ExecutorService workers;
+    protected int queueSize;
+
+    // the pages in the order they came in
+    protected LinkedList<PendingPage> pending;
+
+    // statistics
+    protected long pageCount;
+    protected long tupleCount;
+    protected long busyTime;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        String modelDir = getPropertyOrDieTrying(PROP_MODEL_DIR, ccp);
+        String langCode = getPropertyOrDieTrying(PROP_LANG_CODE, ccp);
+
+        String analysisName = getPropertyOrDieTrying(PROP_ANALYSIS, ccp).toLowerCase();
+        Analysis analysis;
+        if (analysisName.equals("entities"))
+            analysis = Analysis.ENTITIES;
+        else if (analysisName.equals("pos"))
+            analysis = Analysis.POS;
+        else
+            throw new ComponentContextException("Invalid analysis: " + analysisName);
+
+        String[] entityTypes = getPropertyOrDieTrying(PROP_ENTITY_TYPES, true, analysis == Analysis.ENTITIES, ccp).split(",");
+        for (int i = 0; i < entityTypes.length; i++)
+            entityTypes[i] = entityTypes[i].trim().toLowerCase();
+
+        String posFilter = getPropertyOrDieTrying(PROP_POS_FILTER, true, false, ccp);
+
+        int numThreads = Integer.parseInt(getPropertyOrDieTrying(PROP_NUM_THREADS, ccp));
+        if (numThreads <= 0)
+            numThreads = Runtime.getRuntime().availableProcessors();
+
+        queueSize = Integer.parseInt(getPropertyOrDieTrying(PROP_QUEUE_SIZE, ccp));
+        if (queueSize <= 0)
+            queueSize = 2 * numThreads;
+
+        long start = System.currentTimeMillis();
+        pipeline = new OpenNLPPipeline(new File(modelDir), langCode, analysis, entityTypes,
+                posFilter.length() > 0 ? Pattern.compile(posFilter) : null);
+        console.fine(String.format("Loaded the %s models in %,d ms", langCode, System.currentTimeMillis() - start));
+
+        metaTuple = BasicDataTypesTools.stringToStrings(pipeline.getFieldNames());
+        workers = Executors.newFixedThreadPool(numThreads);
+        pending = new LinkedList<PendingPage>();
+
+        console.fine(String.format("Analyzing up to %d pages at once with %d threads", queueSize, numThreads));
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        final String text = DataTypeParser.parseAsString(cc.getDataComponentFromInput(IN_TEXT))[0];
+        Object volumeId = cc.getDataComponentFromInput(IN_VOLUMEID);
+        Object pageId = cc.getDataComponentFromInput(IN_PAGEID);
+
+        Future<StringsArray> tuples = workers.submit(new Callable<StringsArray>() {
+            public StringsArray call() throws Exception {
+                long start = System.currentTimeMillis();
+
+                List<String[]> found = pipeline.analyze(text);
+                Strings[] tuples = new Strings[found.size()];
+                for (int i = 0; i < tuples.length; i++)
+                    tuples[i] = BasicDataTypesTools.stringToStrings(found.get(i));
+
+                synchronized (HTRCOpenNLPPipeline.this) {
+                    busyTime += System.currentTimeMillis() - start;
+                }
+
+                return BasicDataTypesTools.javaArrayToStringsArray(tuples);
+            }
+        });
+
+        pending.add(new PendingPage(volumeId, pageId, tuples));
+
+        // output the pages that are done, waiting for the oldest one only when the queue is full
+        while (!pending.isEmpty() && (pending.size() > queueSize || pending.getFirst().tuples.isDone()))
+            pushPage(pending.removeFirst());
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        try {
+            // the pages received after the last stream marker (or without any stream) are output before shutting down
+            if (pending != null && !pending.isEmpty()) {
+                console.fine(String.format("Outputting the last %d page(s)", pending.size()));
+                flush();
+            }
+        }
+        finally {
+            if (workers != null)
+                workers.shutdownNow();
+
+            console.info(String.format("Analyzed %,d pages, found %,d tuples (%,d ms of analysis)",
+                    pageCount, tupleCount, busyTime));
+
+            workers = null;
+            pending = null;
+            pipeline = null;
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        flush();
+
+        pushStreamMarker((StreamDelimiter) componentContext.getDataComponentFromInput(IN_TEXT));
+        componentContext.getDataComponentFromInput(IN_VOLUMEID);
+        componentContext.getDataComponentFromInput(IN_PAGEID);
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        flush();
+
+        pushStreamMarker((StreamDelimiter) componentContext.getDataComponentFromInput(IN_TEXT));
+        componentContext.getDataComponentFromInput(IN_VOLUMEID);
+        componentContext.getDataComponentFromInput(IN_PAGEID);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Waits for all the pending pages and outputs them
+     */
+    protected void flush() throws Exception {
+        while (!pending.isEmpty())
+            pushPage(pending.removeFirst());
+    }
+
+    protected void pushPage(PendingPage page) throws Exception {
+        StringsArray tuples;
+        try {
+            tuples = page.tuples.get();
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+
+        pageCount++;
+        tupleCount += tuples.getValueCount();
+
+        componentContext.pushDataComponentToOutput(OUT_TUPLES, tuples);
+        componentContext.pushDataComponentToOutput(OUT_META_TUPLE, metaTuple);
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, page.volumeId);
+        componentContext.pushDataComponentToOutput(OUT_PAGEID, page.pageId);
+    }
+
+    protected void pushStreamMarker(StreamDelimiter sd) throws ComponentContextException {
+        componentContext.pushDataComponentToOutput(OUT_TUPLES, sd);
+        componentContext.pushDataComponentToOutput(OUT_META_TUPLE, sd);
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, sd);
+        componentContext.pushDataComponentToOutput(OUT_PAGEID, sd);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    protected static class PendingPage {
+        protected final Object volumeId;
+        protected final Object pageId;
+        protected final Future<StringsArray> tuples;
+
+        protected PendingPage(Object volumeId, Object pageId, Future<StringsArray> tuples) {
+            this.volumeId = volumeId;
+            this.pageId = pageId;
+            this.tuples = tuples;
+        }
+    }
+}
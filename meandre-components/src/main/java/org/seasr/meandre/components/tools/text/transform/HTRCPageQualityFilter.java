@@ -0,0 +1,269 @@
+package org.seasr.meandre.components.tools.text.transform;
+
+import java.io.File;
+import java.util.Set;
+
+import org.meandre.annotations.Component;
+import org.meandre.annotations.Component.Licenses;
+import org.meandre.annotations.ComponentInput;
+import org.meandre.annotations.ComponentOutput;
+import org.meandre.annotations.ComponentProperty;
+import org.meandre.core.ComponentContext;
+import org.meandre.core.ComponentContextException;
+import org.meandre.core.ComponentContextProperties;
+import org.meandre.core.system.components.ext.StreamDelimiter;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.datatypes.core.DataTypeParser;
+import org.seasr.datatypes.core.Names;
+import org.seasr.meandre.components.abstracts.AbstractExecutableComponent;
+import org.seasr.meandre.support.components.htrc.PageQualityScorer;
+
+@Component(
+        creator = "Jiaan Zeng",
+        description = "Scores the OCR quality of each page produced by the HTRC page retrievers and drops (or tags) " +
+                      "blank pages, plates, tables and OCR garbage before they reach the expensive NLP stages of a flow. " +
+                      "The score (0..1) is computed in a single pass from the ratio of letters, the mean token length, " +
+                      "the ratio of dictionary words in a sample of the tokens and the page length. " +
+                      "The number of pages dropped is logged for each volume and for the whole flow.",
+        name = "HTRC Page Quality Filter",
+        rights = Licenses.UofINCSA,
+        tags = "#TRANSFORM, text, htrc, ocr, quality, filter",
+        baseURL = "meandre://seasr.org/components/htrc/"
+)
+public class HTRCPageQualityFilter extends AbstractExecutableComponent {
+
+    //------------------------------ INPUTS ------------------------------------------------------
+
+    @ComponentInput(
+            name = Names.PORT_TEXT,
+            description = "The text content of a page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_TEXT = Names.PORT_TEXT;
+
+    @ComponentInput(
+            name = "volume_id",
+            description = "The volume id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_VOLUMEID = "volume_id";
+
+    @ComponentInput(
+            name = "page_id",
+            description = "The page id of the page" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String IN_PAGEID = "page_id";
+
+    //------------------------------ OUTPUTS -----------------------------------------------------
+
+    @ComponentOutput(
+            name = Names.PORT_TEXT,
+            description = "The text content of each page that was not dropped" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_TEXT = Names.PORT_TEXT;
+
+    @ComponentOutput(
+            name = "volume_id",
+            description = "The volume id for each page that was not dropped" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_VOLUMEID = "volume_id";
+
+    @ComponentOutput(
+            name = "page_id",
+            description = "The page id for each page that was not dropped" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_PAGEID = "page_id";
+
+    @ComponentOutput(
+            name = "page_quality",
+            description = "The quality score (0..1) of each page that was not dropped" +
+                "<br>TYPE: org.seasr.datatypes.BasicDataTypes.Strings"
+    )
+    protected static final String OUT_QUALITY = "page_quality";
+
+    //------------------------------ PROPERTIES --------------------------------------------------
+
+    @ComponentProperty(
+            description = "The quality score (0..1) below which a page is considered unusable",
+            name = "min_quality",
+            defaultValue = "0.5"
+    )
+    protected static final String PROP_MIN_QUALITY = "min_quality";
+
+    @ComponentProperty(
+            description = "The minimum number of non-whitespace characters of a usable page",
+            name = "min_length",
+            defaultValue = "100"
+    )
+    protected static final String PROP_MIN_LENGTH = "min_length";
+
+    @ComponentProperty(
+            description = "The dictionary used to check a sample of the tokens of each page: a file with one word per line, " +
+                          "empty to use a list of common English words, or 'none' to not use a dictionary " +
+                          "(recommended for worksets that are not in English)",
+            name = "dictionary",
+            defaultValue = ""
+    )
+    protected static final String PROP_DICTIONARY = "dictionary";
+
+    @ComponentProperty(
+            description = "The number of tokens of each page (evenly spread over the page) checked against the dictionary",
+            name = "dictionary_sample",
+            defaultValue = "50"
+    )
+    protected static final String PROP_DICTIONARY_SAMPLE = "dictionary_sample";
+
+    @ComponentProperty(
+            description = "What to do with unusable pages: 'drop' (they are not forwarded) or 'tag' (all pages are " +
+                          "forwarded with their score on the page_quality port)",
+            name = "low_quality_action",
+            defaultValue = "drop"
+    )
+    protected static final String PROP_ACTION = "low_quality_action";
+
+    //--------------------------------------------------------------------------------------------
+
+
+    protected PageQualityScorer scorer;
+    protected double minQuality;
+    protected boolean dropPages;
+
+    // the volume currently going through
+    protected String volumeId;
+    protected int volumePages, volumeDropped;
+
+    // statistics
+    protected long volumeCount;
+    protected long pageCount, droppedPageCount;
+    protected long charCount, droppedCharCount;
+
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void initializeCallBack(ComponentContextProperties ccp) throws Exception {
+        minQuality = Double.parseDouble(getPropertyOrDieTrying(PROP_MIN_QUALITY, ccp));
+        int minLength = Integer.parseInt(getPropertyOrDieTrying(PROP_MIN_LENGTH, ccp));
+        int sampleSize = Integer.parseInt(getPropertyOrDieTrying(PROP_DICTIONARY_SAMPLE, ccp));
+
+        String action = getPropertyOrDieTrying(PROP_ACTION, ccp).toLowerCase();
+        if (action.equals("drop"))
+            dropPages = true;
+        else if (action.equals("tag"))
+            dropPages = false;
+        else
+            throw new ComponentContextException("Invalid low_quality_action: " + action);
+
+        Set<String> dictionary = null;
+        String dictionaryName = getPropertyOrDieTrying(PROP_DICTIONARY, true, false, ccp);
+        if (dictionaryName.equalsIgnoreCase("none"))
+            sampleSize = 0;
+        else if (dictionaryName.length() > 0) {
+            dictionary = PageQualityScorer.loadDictionary(new File(dictionaryName));
+            console.fine(String.format("Loaded %,d dictionary words", dictionary.size()));
+        }
+
+        scorer = new PageQualityScorer(minLength, sampleSize, dictionary);
+        volumeId = null;
+    }
+
+    @Override
+    public void executeCallBack(ComponentContext cc) throws Exception {
+        Strings text = (Strings) cc.getDataComponentFromInput(IN_TEXT);
+        Object volId = cc.getDataComponentFromInput(IN_VOLUMEID);
+        Object pageId = cc.getDataComponentFromInput(IN_PAGEID);
+
+        String volume = DataTypeParser.parseAsString(volId)[0];
+        if (!volume.equals(volumeId)) {
+            finishVolume();
+            volumeId = volume;
+        }
+
+        String pageText = DataTypeParser.parseAsString(text)[0];
+        double quality = scorer.score(pageText);
+
+        volumePages++;
+        pageCount++;
+        charCount += pageText.length();
+
+        boolean usable = quality >= minQuality;
+        if (!usable) {
+            volumeDropped++;
+            droppedPageCount++;
+            droppedCharCount += pageText.length();
+
+            console.finest(String.format("Low quality page %s of %s (%.3f)",
+                    DataTypeParser.parseAsString(pageId)[0], volume, quality));
+
+            if (dropPages) return;
+        }
+
+        cc.pushDataComponentToOutput(OUT_TEXT, text);
+        cc.pushDataComponentToOutput(OUT_VOLUMEID, volId);
+        cc.pushDataComponentToOutput(OUT_PAGEID, pageId);
+        cc.pushDataComponentToOutput(OUT_QUALITY, BasicDataTypesTools.stringToStrings(String.format("%.3f", quality)));
+    }
+
+    @Override
+    public void disposeCallBack(ComponentContextProperties ccp) throws Exception {
+        finishVolume();
+
+        console.info(String.format("Low quality pages %s: %,d of %,d pages (%.1f%%), %,d of %,d characters (%.1f%%) in %,d volumes",
+                dropPages ? "dropped" : "tagged",
+                droppedPageCount, pageCount, percent(droppedPageCount, pageCount),
+                droppedCharCount, charCount, percent(droppedCharCount, charCount), volumeCount));
+
+        scorer = null;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    @Override
+    public void handleStreamInitiators() throws Exception {
+        pushStreamMarker((StreamDelimiter) componentContext.getDataComponentFromInput(IN_TEXT));
+        componentContext.getDataComponentFromInput(IN_VOLUMEID);
+        componentContext.getDataComponentFromInput(IN_PAGEID);
+    }
+
+    @Override
+    public void handleStreamTerminators() throws Exception {
+        finishVolume();
+
+        pushStreamMarker((StreamDelimiter) componentContext.getDataComponentFromInput(IN_TEXT));
+        componentContext.getDataComponentFromInput(IN_VOLUMEID);
+        componentContext.getDataComponentFromInput(IN_PAGEID);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Reports the pages dropped from the volume that just went through
+     */
+    protected void finishVolume() {
+        if (volumeId == null) return;
+
+        volumeCount++;
+        console.fine(String.format("Volume %s: %s %d of %d pages", volumeId,
+                dropPages ? "dropped" : "tagged", volumeDropped, volumePages));
+
+        volumeId = null;
+        volumePages = 0;
+        volumeDropped = 0;
+    }
+
+    protected void pushStreamMarker(StreamDelimiter sd) throws ComponentContextException {
+        componentContext.pushDataComponentToOutput(OUT_TEXT, sd);
+        componentContext.pushDataComponentToOutput(OUT_VOLUMEID, sd);
+        componentContext.pushDataComponentToOutput(OUT_PAGEID, sd);
+        componentContext.pushDataComponentToOutput(OUT_QUALITY, sd);
+    }
+
+    private static double percent(long part, long total) {
+        return total > 0 ? 100.0 * part / total : 0;
+    }
+}
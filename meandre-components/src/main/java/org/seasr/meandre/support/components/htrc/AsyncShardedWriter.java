@@ -0,0 +1,318 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes results to a set of shard files from a background thread, so that the thread producing
+ * the results never blocks on disk I/O (unless the queue is full).
+ *
+ * Results are routed to a shard by the hash of their key ({@link ShardSelector#shardOf(String, int)}),
+ * so all the results of a volume end up in the same file. Each shard buffers its results and writes
+ * them in batches through a {@link FileChannel}; when compression is on, each batch is written as a
+ * complete gzip member (a sequence of gzip members is a valid gzip file), so the synced part of a
+ * file can always be decompressed. Data is forced to disk only by {@link #sync()} and {@link #close()}.
+ */
+public class AsyncShardedWriter {
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private final File[] files;
+    private final FileChannel[] channels;
+    private final ByteArrayOutputStream[] batches;
+    private final boolean compress;
+    private final int batchSize;
+
+    private final BlockingQueue<Item> queue;
+    private final Thread writerThread;
+    private volatile IOException failure = null;
+    private boolean closed = false;
+
+    // statistics
+    private final long startTime = System.currentTimeMillis();
+    private volatile long resultCount = 0;
+    private volatile long bytesIn = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long writeTime = 0;
+    private volatile int maxQueueDepth = 0;
+
+
+    /**
+     * Creates a writer, creating (or truncating) its shard files
+     *
+     * @param dir The folder of the shard files
+     * @param name The base name of the shard files
+     * @param shardCount The number of shard files
+     * @param compress True to gzip the shard files
+     * @param batchSize The number of bytes buffered per shard before they are written
+     * @param queueSize The maximum number of results waiting to be written
+     * @throws IOException If a shard file cannot be created
+     */
+    public AsyncShardedWriter(File dir, String name, int shardCount, boolean compress, int batchSize, int queueSize)
+            throws IOException {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+
+        this.compress = compress;
+        this.batchSize = Math.max(1, batchSize);
+        this.queue = new ArrayBlockingQueue<Item>(Math.max(1, queueSize));
+
+        files = new File[shardCount];
+        channels = new FileChannel[shardCount];
+        batches = new ByteArrayOutputStream[shardCount];
+
+        String ext = compress ? ".gz" : "";
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                files[i] = shardCount == 1 ? new File(dir, name + ext)
+                        : new File(dir, String.format("%s.shard-%d-of-%d%s", name, i, shardCount, ext));
+                channels[i] = new FileOutputStream(files[i]).getChannel();
+                batches[i] = new ByteArrayOutputStream(Math.min(this.batchSize, 1 << 20) + 1024);
+            }
+        }
+        catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "htrc-async-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a result, waiting while the queue is full
+     *
+     * @param key The key selecting the shard (for example a volume id), or null for the first shard
+     * @param data The result
+     * @throws IOException If an earlier write failed
+     * @throws InterruptedException If interrupted while waiting for room in the queue
+     */
+    public void write(String key, byte[] data) throws IOException, InterruptedException {
+        checkOpen();
+
+        queue.put(new Item(getShard(key), data, null));
+
+        int depth = queue.size();
+        if (depth > maxQueueDepth)
+            maxQueueDepth = depth;
+    }
+
+    /**
+     * Writes all the queued results and forces them to disk
+     *
+     * @throws IOException If a write failed
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void sync() throws IOException, InterruptedException {
+        checkOpen();
+
+        CountDownLatch done = new CountDownLatch(1);
+        queue.put(new Item(-1, NO_DATA, done));
+        done.await();
+
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Writes all the queued results, forces them to disk and closes the shard files
+     *
+     * @throws IOException If a write failed
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void close() throws IOException, InterruptedException {
+        if (closed) return;
+
+        try {
+            if (failure == null)
+                sync();
+        }
+        finally {
+            closed = true;
+            writerThread.interrupt();
+            writerThread.join();
+            closeChannels();
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    public File[] getFiles() {
+        return files.clone();
+    }
+
+    public int getShard(String key) {
+        return key == null ? 0 : ShardSelector.shardOf(key, files.length);
+    }
+
+    /**
+     * @return The number of results waiting to be written
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return The largest number of results seen waiting to be written
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getResultCount() {
+        return resultCount;
+    }
+
+    /**
+     * @return The number of bytes of results written (before compression)
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * @return The number of bytes written to the shard files
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return The time spent by the writer thread compressing, writing and syncing, in milliseconds
+     */
+    public long getWriteTime() {
+        return writeTime;
+    }
+
+    /**
+     * @return The number of bytes written to the shard files per second since the writer was created
+     */
+    public double getBytesPerSecond() {
+        long elapsed = System.currentTimeMillis() - startTime;
+        return elapsed > 0 ? bytesWritten * 1000d / elapsed : 0;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private void checkOpen() throws IOException {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("The writer is closed");
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Item item;
+            try {
+                item = queue.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                if (failure == null) {
+                    if (item.synced == null)
+                        append(item.shard, item.data);
+                    else
+                        flushAll();
+                }
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+            finally {
+                if (item.synced != null)
+                    item.synced.countDown();
+            }
+        }
+    }
+
+    private void append(int shard, byte[] data) throws IOException {
+        ByteArrayOutputStream batch = batches[shard];
+        batch.write(data, 0, data.length);
+
+        resultCount++;
+        bytesIn += data.length;
+
+        if (batch.size() >= batchSize)
+            writeBatch(shard);
+    }
+
+    private void writeBatch(int shard) throws IOException {
+        ByteArrayOutputStream batch = batches[shard];
+        if (batch.size() == 0) return;
+
+        long start = System.currentTimeMillis();
+
+        byte[] bytes;
+        if (compress) {
+            ByteArrayOutputStream member = new ByteArrayOutputStream(batch.size() / 3 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(member, 64 * 1024);
+            batch.writeTo(gzip);
+            gzip.close();
+            bytes = member.toByteArray();
+        } else
+            bytes = batch.toByteArray();
+
+        batch.reset();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channels[shard].write(buffer);
+
+        bytesWritten += bytes.length;
+        writeTime += System.currentTimeMillis() - start;
+    }
+
+    private void flushAll() throws IOException {
+        for (int i = 0; i < channels.length; i++)
+            writeBatch(i);
+
+        long start = System.currentTimeMillis();
+        for (FileChannel channel : channels)
+            channel.force(false);
+        writeTime += System.currentTimeMillis() - start;
+    }
+
+    private void closeChannels() {
+        for (FileChannel channel : channels)
+            if (channel != null)
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static class Item {
+        private final int shard;
+        private final byte[] data;
+        private final CountDownLatch synced;
+
+        private Item(int shard, byte[] data, CountDownLatch synced) {
+            this.shard = shard;
+            this.data = data;
+            this.synced = synced;
+        }
+    }
+}
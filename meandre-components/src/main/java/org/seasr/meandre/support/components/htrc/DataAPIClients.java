@@ -0,0 +1,178 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import edu.indiana.d2i.htrc.clients.dataapi.HTRCDataClient;
+
+/**
+ * Keeps one Data API client per instance of the Data API, all configured the same way,
+ * and spreads the requests across the instances through an {@link EndpointPool}.
+ *
+ * Requests are sent in one of these forms, per instance:
+ * <ul>
+ * <li>{@link RequestMode#POST_GZIP}: the volume list is POSTed in a gzip-compressed form body;</li>
+ * <li>{@link RequestMode#POST}: the volume list is POSTed in a plain form body;</li>
+ * <li>{@link RequestMode#URL}: the volume list is encoded in the request URL (HTRCDataClient).</li>
+ * </ul>
+ * An instance that rejects a form (HTTP 404, 405, 415 or 501, or HTTP 400 before it has served a
+ * request in that form) is moved to the next one down the list for the rest of the flow. Once an
+ * instance has served a request in a form, an HTTP 400 is taken as a problem with the request
+ * (e.g. a volume id) and fails that request only.
+ */
+public class DataAPIClients {
+
+    public enum RequestMode { POST_GZIP, POST, URL }
+
+    private static final Logger logger = Logger.getLogger(DataAPIClients.class.getName());
+
+    private final EndpointPool endpoints;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final String token;
+    private final boolean selfsign;
+    private final RequestMode requestMode;
+
+    private final Map<String, HTRCDataClient> clients = new HashMap<String, HTRCDataClient>();
+    private final Map<String, RequestMode> requestModes = new HashMap<String, RequestMode>();
+    private final Set<String> confirmedModes = new HashSet<String>();
+
+
+    /**
+     * Creates the clients
+     *
+     * @param endpoints The Data API instances
+     * @param connectionTimeout The connection timeout in milliseconds (0 = wait forever)
+     * @param readTimeout The read timeout in milliseconds (0 = wait forever)
+     * @param token The OAuth2 token (empty = unauthenticated requests)
+     * @param selfsign True if the Data API uses a self-signed certificate
+     * @param requestMode The preferred request form
+     */
+    public DataAPIClients(EndpointPool endpoints, int connectionTimeout, int readTimeout, String token, boolean selfsign,
+            RequestMode requestMode) {
+        this.endpoints = endpoints;
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+        this.token = token;
+        this.selfsign = selfsign;
+        this.requestMode = requestMode;
+    }
+
+    public EndpointPool getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Returns the client for a Data API instance, creating it if needed
+     *
+     * @param endpoint The instance
+     * @return The client
+     */
+    public synchronized HTRCDataClient getClient(EndpointPool.Endpoint endpoint) {
+        HTRCDataClient client = clients.get(endpoint.getURL());
+        if (client == null) {
+            HTRCDataClient.Builder builder = new HTRCDataClient.Builder(endpoint.getURL())
+                .connectionTimeout(connectionTimeout).readTimeout(readTimeout);
+
+            if (!token.isEmpty())
+                builder.selfsigned(selfsign).token(token);
+
+            client = builder.build();
+            clients.put(endpoint.getURL(), client);
+        }
+
+        return client;
+    }
+
+    /**
+     * Retrieves the pages of volumes from a Data API instance
+     *
+     * @param endpoint The instance
+     * @param volumeIDs The volume IDs
+     * @param delimiter The volume ID delimiter
+     * @return The (volume id, page content) pairs, in page order, or null if the request failed
+     * @throws Exception Thrown if the request fails
+     */
+    public Iterable<Entry<String, String>> getPages(EndpointPool.Endpoint endpoint, List<String> volumeIDs, String delimiter)
+            throws Exception {
+        return request(endpoint, volumeIDs, delimiter, false);
+    }
+
+    /**
+     * Retrieves whole volumes from a Data API instance
+     *
+     * @param endpoint The instance
+     * @param volumeIDs The volume IDs
+     * @param delimiter The volume ID delimiter
+     * @return The (volume id, volume content) pairs, or null if the request failed
+     * @throws Exception Thrown if the request fails
+     */
+    public Iterable<Entry<String, String>> getVolumes(EndpointPool.Endpoint endpoint, List<String> volumeIDs, String delimiter)
+            throws Exception {
+        return request(endpoint, volumeIDs, delimiter, true);
+    }
+
+    /**
+     * Closes all the clients
+     */
+    public synchronized void close() {
+        for (HTRCDataClient client : clients.values())
+            client.close();
+
+        clients.clear();
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private Iterable<Entry<String, String>> request(EndpointPool.Endpoint endpoint, List<String> volumeIDs,
+            String delimiter, boolean volumes) throws Exception {
+        RequestMode mode;
+        while ((mode = getRequestMode(endpoint)) != RequestMode.URL) {
+            DataAPIPostClient client = new DataAPIPostClient(endpoint.getURL(), connectionTimeout, readTimeout,
+                    token, selfsign, mode == RequestMode.POST_GZIP);
+            try {
+                Iterable<Entry<String, String>> response =
+                        volumes ? client.getVolumes(volumeIDs, delimiter) : client.getPages(volumeIDs, delimiter);
+
+                synchronized (this) {
+                    confirmedModes.add(endpoint.getURL());
+                }
+
+                return response;
+            }
+            catch (DataAPIPostClient.UnsupportedRequestException e) {
+                synchronized (this) {
+                    // the form is known to work on this instance, so the request itself is at fault
+                    if (e.getStatus() == HttpURLConnection.HTTP_BAD_REQUEST && confirmedModes.contains(endpoint.getURL()))
+                        throw new IOException("The Data API rejected the request: " + e.getMessage());
+                }
+
+                RequestMode fallback = mode == RequestMode.POST_GZIP ? RequestMode.POST : RequestMode.URL;
+                logger.warning(String.format("%s does not support %s requests (%s), switching to %s requests",
+                        endpoint, mode, e.getMessage(), fallback));
+
+                synchronized (this) {
+                    requestModes.put(endpoint.getURL(), fallback);
+                    confirmedModes.remove(endpoint.getURL());
+                }
+            }
+        }
+
+        String queryStr = HTRCDataClient.ids2URL(volumeIDs, delimiter);
+        HTRCDataClient client = getClient(endpoint);
+
+        return volumes ? client.getID2Content(queryStr) : client.getID2Page(queryStr);
+    }
+
+    private synchronized RequestMode getRequestMode(EndpointPool.Endpoint endpoint) {
+        RequestMode mode = requestModes.get(endpoint.getURL());
+        return mode != null ? mode : requestMode;
+    }
+}
@@ -0,0 +1,436 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Retrieves volumes (as whole volumes or page by page) from the HTRC Data API for the retriever
+ * components, so that a workset of any size can be retrieved:
+ *
+ * <ul>
+ * <li>the volume list is broken into partitions of at most <code>maxVolumesPerRequest</code> volumes,
+ *     each retrieved with its own request;</li>
+ * <li>requests are spread across the Data API instances of the {@link DataAPIClients};</li>
+ * <li>a failed request is retried (on another instance, when there is one) for the volumes it did not
+ *     deliver; when it keeps failing, the partition is split in two and each half is retried, so a
+ *     request that is too large or a volume that cannot be served does not fail the whole partition;</li>
+ * <li>with more than one fetcher thread, several partitions are requested concurrently; each is then
+ *     buffered in memory until its turn comes, so the content is always delivered in workset order.
+ *     The partitions retrieved ahead of their turn hold at most <code>maxBufferedBytes</code> of content:
+ *     their fetchers pause when the limit is reached, while the partition whose turn it is is never held
+ *     up, so the memory used is bounded by that limit plus the size of one partition.</li>
+ * </ul>
+ *
+ * When the requests of a {@link #fetch} call fail repeatedly in a row, the Data API is considered down and the
+ * call fails, rather than returning without the remaining volumes; the count starts over with the next call.
+ *
+ * With a single fetcher the content is delivered as it arrives. If a page request then fails in the middle
+ * of a volume, the pages already delivered cannot be taken back: the volume is reported as incomplete (to the
+ * handler, before any content of another volume is delivered) and is not retried.
+ */
+public class DataAPIFetcher {
+
+    public enum Content { PAGES, VOLUMES }
+
+    /** After this many failed requests in a row the Data API is considered down and the fetch fails */
+    private static final int MAX_CONSECUTIVE_FAILURES = 10;
+
+    private static final Logger logger = Logger.getLogger(DataAPIFetcher.class.getName());
+
+    private final DataAPIClients dataAPI;
+    private final Content content;
+    private final String delimiter;
+    private final int maxVolumesPerRequest;
+    private final int maxAttempts;
+    private final int fetcherCount;
+    private final long maxBufferedBytes;
+    private final ExecutorService fetchers;
+
+    // the content buffered ahead of its turn, and the partition whose turn it is
+    private final Object bufferLock = new Object();
+    private long bufferedBytes = 0;
+    private int head = 0;
+
+    // statistics
+    private long requestCount = 0;
+    private long failedRequestCount = 0;
+    private long splitCount = 0;
+    private long bufferWaitCount = 0;
+    private int consecutiveFailures = 0;
+
+
+    /**
+     * Creates a fetcher
+     *
+     * @param dataAPI The Data API clients
+     * @param content Whether to retrieve pages or whole volumes
+     * @param delimiter The delimiter used in the Data API requests
+     * @param maxVolumesPerRequest The maximum number of volumes per request (0 = no limit)
+     * @param maxAttempts The number of attempts for a partition before it is split
+     * @param fetcherCount The number of partitions requested concurrently
+     * @param maxBufferedBytes The maximum number of bytes of content retrieved ahead of its turn (0 = no limit)
+     */
+    public DataAPIFetcher(DataAPIClients dataAPI, Content content, String delimiter,
+            int maxVolumesPerRequest, int maxAttempts, int fetcherCount, long maxBufferedBytes) {
+        if (maxVolumesPerRequest < 0 || maxAttempts < 1 || fetcherCount < 1 || maxBufferedBytes < 0)
+            throw new IllegalArgumentException("Invalid fetcher configuration");
+
+        this.dataAPI = dataAPI;
+        this.content = content;
+        this.delimiter = delimiter;
+        this.maxVolumesPerRequest = maxVolumesPerRequest;
+        this.maxAttempts = maxAttempts;
+        this.fetcherCount = fetcherCount;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.fetchers = fetcherCount > 1 ? Executors.newFixedThreadPool(fetcherCount) : null;
+    }
+
+    /**
+     * Retrieves volumes
+     *
+     * @param volumeIDs The volume IDs
+     * @param handler The handler receiving the content, in workset order (and page order)
+     * @return The volumes that could not be retrieved, or only partially
+     * @throws IOException Thrown if the Data API keeps failing
+     * @throws Exception Thrown if the handler fails
+     */
+    public List<String> fetch(List<String> volumeIDs, Handler handler) throws Exception {
+        List<String> failed = new ArrayList<String>();
+        List<List<String>> partitions = partition(volumeIDs);
+
+        synchronized (this) {
+            consecutiveFailures = 0;
+        }
+
+        if (fetchers == null) {
+            for (List<String> partition : partitions)
+                fetchPartition(partition, handler, failed);
+
+            return failed;
+        }
+
+        synchronized (bufferLock) {
+            bufferedBytes = 0;
+            head = 0;
+        }
+
+        LinkedList<Future<Buffer>> pending = new LinkedList<Future<Buffer>>();
+        int next = 0;
+        try {
+            for (int turn = 0; turn < partitions.size(); turn++) {
+                // keep a couple of partitions per fetcher queued up (the buffer limit bounds their memory)
+                while (next < partitions.size() && pending.size() < 2 * fetcherCount) {
+                    final List<String> partition = partitions.get(next);
+                    final int index = next++;
+                    pending.add(fetchers.submit(new Callable<Buffer>() {
+                        public Buffer call() throws Exception {
+                            Buffer buffer = new Buffer(index);
+                            fetchPartition(partition, buffer, buffer.failed);
+                            return buffer;
+                        }
+                    }));
+                }
+
+                // the partition whose turn it is can always buffer its content
+                synchronized (bufferLock) {
+                    head = turn;
+                    bufferLock.notifyAll();
+                }
+
+                Buffer buffer;
+                try {
+                    buffer = pending.removeFirst().get();
+                }
+                catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+
+                buffer.replay(handler);
+                failed.addAll(buffer.failed);
+            }
+        }
+        finally {
+            for (Future<Buffer> future : pending)
+                future.cancel(true);
+        }
+
+        return failed;
+    }
+
+    /**
+     * Stops the fetcher threads
+     */
+    public void close() {
+        if (fetchers != null)
+            fetchers.shutdownNow();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Data API fetcher: %,d request(s), %,d failed, %,d partition split(s), " +
+                "%,d pause(s) for the read-ahead buffer limit; %s",
+                requestCount, failedRequestCount, splitCount, bufferWaitCount, dataAPI.getEndpoints());
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private List<List<String>> partition(List<String> list) {
+        List<List<String>> partitions = new ArrayList<List<String>>();
+
+        if (maxVolumesPerRequest == 0)
+            partitions.add(list);
+        else
+            for (int i = 0, iMax = list.size(); i < iMax; i += maxVolumesPerRequest)
+                partitions.add(list.subList(i, Math.min(i + maxVolumesPerRequest, iMax)));
+
+        return partitions;
+    }
+
+    /**
+     * Retrieves a partition, retrying and splitting it as needed
+     */
+    private void fetchPartition(List<String> partition, Handler handler, List<String> failed) throws Exception {
+        List<String> remaining = partition;
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            synchronized (this) {
+                if (consecutiveFailures >= MAX_CONSECUTIVE_FAILURES)
+                    throw new IOException(String.format("The Data API failed %d requests in a row, cannot retrieve %,d volume(s)",
+                            consecutiveFailures, remaining.size()));
+            }
+
+            remaining = request(remaining, handler, failed);
+            if (remaining.isEmpty())
+                return;
+        }
+
+        if (remaining.size() == 1) {
+            logger.warning("Giving up on volume " + remaining.get(0));
+            failed.add(remaining.get(0));
+            return;
+        }
+
+        synchronized (this) {
+            splitCount++;
+        }
+
+        int half = remaining.size() / 2;
+        fetchPartition(remaining.subList(0, half), handler, failed);
+        fetchPartition(remaining.subList(half, remaining.size()), handler, failed);
+    }
+
+    /**
+     * Sends one request
+     *
+     * @return The volumes still to be retrieved if the request failed (empty on success)
+     */
+    private List<String> request(List<String> volumeIDs, Handler handler, List<String> failed) throws Exception {
+        Set<String> started = new HashSet<String>();
+        String current = null;
+        Exception failure = null;
+
+        EndpointPool.Endpoint endpoint = dataAPI.getEndpoints().acquire();
+        try {
+            Iterator<Entry<String, String>> items = null;
+            try {
+                Iterable<Entry<String, String>> response = content == Content.PAGES ?
+                        dataAPI.getPages(endpoint, volumeIDs, delimiter) : dataAPI.getVolumes(endpoint, volumeIDs, delimiter);
+
+                if (response == null)
+                    failure = new Exception("the Data API returned no content");
+                else
+                    items = response.iterator();
+            }
+            catch (Exception e) {
+                failure = e;
+            }
+
+            while (items != null) {
+                Entry<String, String> item;
+                try {
+                    if (!items.hasNext()) break;
+                    item = items.next();
+                }
+                catch (RuntimeException e) {
+                    failure = e;
+                    break;
+                }
+
+                String volumeId = item.getKey();
+                if (volumeId == null || item.getValue() == null) {
+                    logger.severe(String.format("The Data API returned NULL content%s! Ignoring it...",
+                            volumeId != null ? " for volume id " + volumeId : ""));
+                    continue;
+                }
+
+                started.add(volumeId);
+                current = volumeId;
+
+                handler.content(volumeId, item.getValue());
+            }
+        }
+        finally {
+            dataAPI.getEndpoints().release(endpoint, failure != null);
+
+            synchronized (this) {
+                requestCount++;
+                if (failure != null) {
+                    failedRequestCount++;
+                    consecutiveFailures++;
+                }
+                else
+                    consecutiveFailures = 0;
+            }
+        }
+
+        if (failure == null) {
+            for (String volumeId : volumeIDs)
+                if (!started.contains(volumeId)) {
+                    logger.warning(String.format("Missing volume %s from %s", volumeId, endpoint));
+                    failed.add(volumeId);
+                }
+
+            return new ArrayList<String>();
+        }
+
+        logger.warning(String.format("Request for %,d volume(s) to %s failed after %,d volume(s): %s",
+                volumeIDs.size(), endpoint, started.size(), failure));
+
+        boolean retryCurrent = false;
+        if (current != null && content == Content.PAGES) {
+            if (handler instanceof Buffer) {
+                // nothing was delivered yet, so the whole volume can be requested again
+                ((Buffer) handler).discard(current);
+                retryCurrent = true;
+            }
+            else {
+                logger.warning(String.format("Volume %s is incomplete", current));
+                failed.add(current);
+                handler.incomplete(current);
+            }
+        }
+
+        List<String> remaining = new ArrayList<String>();
+        for (String volumeId : volumeIDs)
+            if (!started.contains(volumeId) || (retryCurrent && volumeId.equals(current)))
+                remaining.add(volumeId);
+
+        return remaining;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public interface Handler {
+        /**
+         * Receives a page (pages are delivered in order) or a whole volume
+         *
+         * @param volumeId The volume id
+         * @param content The page or volume content
+         * @throws Exception
+         */
+        public void content(String volumeId, String content) throws Exception;
+
+        /**
+         * Tells that the content delivered for a volume is incomplete (a page request failed in the middle of
+         * the volume); called before any content of another volume is delivered
+         *
+         * @param volumeId The volume id
+         * @throws Exception
+         */
+        public void incomplete(String volumeId) throws Exception;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Accounts for content about to be buffered, waiting while the buffer limit is reached
+     * (unless the content belongs to the partition whose turn it is)
+     */
+    private void reserve(int index, long bytes) throws InterruptedException {
+        synchronized (bufferLock) {
+            boolean waited = false;
+            while (maxBufferedBytes > 0 && index != head && bufferedBytes > 0 && bufferedBytes + bytes > maxBufferedBytes) {
+                waited = true;
+                bufferLock.wait();
+            }
+
+            bufferedBytes += bytes;
+
+            if (waited)
+                synchronized (this) {
+                    bufferWaitCount++;
+                }
+        }
+    }
+
+    private void release(long bytes) {
+        synchronized (bufferLock) {
+            bufferedBytes -= bytes;
+            bufferLock.notifyAll();
+        }
+    }
+
+    private static long sizeOf(String content) {
+        return 2L * content.length();
+    }
+
+    /**
+     * Holds the content of a partition retrieved ahead of its turn
+     */
+    private class Buffer implements Handler {
+        private final int index;
+        private final Map<String, List<String>> volumes = new LinkedHashMap<String, List<String>>();
+        private final List<String> failed = new ArrayList<String>();
+
+        private Buffer(int index) {
+            this.index = index;
+        }
+
+        public void content(String volumeId, String content) throws InterruptedException {
+            reserve(index, sizeOf(content));
+
+            List<String> items = volumes.get(volumeId);
+            if (items == null) {
+                items = new ArrayList<String>();
+                volumes.put(volumeId, items);
+            }
+            items.add(content);
+        }
+
+        public void incomplete(String volumeId) {
+            // never called: a buffered volume is discarded and requested again instead
+        }
+
+        private void discard(String volumeId) {
+            List<String> items = volumes.remove(volumeId);
+            if (items != null)
+                for (String content : items)
+                    release(sizeOf(content));
+        }
+
+        private void replay(Handler handler) throws Exception {
+            for (Entry<String, List<String>> volume : volumes.entrySet()) {
+                List<String> items = volume.getValue();
+                for (int i = 0, iMax = items.size(); i < iMax; i++) {
+                    String content = items.set(i, null);  // let go of it once handed over
+                    handler.content(volume.getKey(), content);
+                    release(sizeOf(content));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Retrieves volumes from the HTRC Data API by POSTing the volume list to its <code>volumes</code>
+ * resource, instead of encoding it in the request URL, so a single request can ask for thousands
+ * of volumes. The form body is gzip-compressed unless compression is turned off.
+ *
+ * The response (a ZIP file holding one folder of page files per volume, or one text file per volume
+ * when the pages are concatenated) is read as it arrives; pages are handed out in the order they are
+ * stored, which is page order.
+ *
+ * Endpoints that do not accept POST requests or compressed bodies answer with an
+ * {@link UnsupportedRequestException}, so the caller can fall back to another request form.
+ */
+public class DataAPIPostClient {
+
+    private static final Logger logger = Logger.getLogger(DataAPIPostClient.class.getName());
+
+    private static final String ERROR_ENTRY = "ERROR.err";
+
+    private static final HostnameVerifier TRUST_ALL_HOSTS = new HostnameVerifier() {
+        public boolean verify(String hostname, SSLSession session) {
+            return true;
+        }
+    };
+
+    private static SSLSocketFactory trustAllSocketFactory = null;
+
+    private final String volumesURL;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final String token;
+    private final boolean selfsign;
+    private final boolean compress;
+
+
+    /**
+     * Creates a client
+     *
+     * @param dataAPIEPR The Data API endpoint
+     * @param connectionTimeout The connection timeout in milliseconds (0 = wait forever)
+     * @param readTimeout The read timeout in milliseconds (0 = wait forever)
+     * @param token The OAuth2 token (empty = unauthenticated requests)
+     * @param selfsign True to accept the self-signed certificate of the Data API (authenticated requests only)
+     * @param compress True to gzip-compress the request body
+     */
+    public DataAPIPostClient(String dataAPIEPR, int connectionTimeout, int readTimeout,
+            String token, boolean selfsign, boolean compress) {
+        this.volumesURL = (dataAPIEPR.endsWith("/") ? dataAPIEPR : dataAPIEPR + "/") + "volumes";
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+        this.token = token;
+        this.selfsign = selfsign;
+        this.compress = compress;
+    }
+
+    /**
+     * Retrieves the pages of volumes
+     *
+     * @param volumeIDs The volume IDs
+     * @param delimiter The volume ID delimiter understood by the Data API
+     * @return The (volume id, page content) pairs, in page order
+     * @throws IOException Thrown if the request fails
+     */
+    public Iterable<Entry<String, String>> getPages(List<String> volumeIDs, String delimiter) throws IOException {
+        return request(volumeIDs, delimiter, false);
+    }
+
+    /**
+     * Retrieves whole volumes
+     *
+     * @param volumeIDs The volume IDs
+     * @param delimiter The volume ID delimiter understood by the Data API
+     * @return The (volume id, volume content) pairs
+     * @throws IOException Thrown if the request fails
+     */
+    public Iterable<Entry<String, String>> getVolumes(List<String> volumeIDs, String delimiter) throws IOException {
+        return request(volumeIDs, delimiter, true);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private Iterable<Entry<String, String>> request(List<String> volumeIDs, String delimiter, boolean concat)
+            throws IOException {
+        StringBuilder ids = new StringBuilder();
+        Map<String, String> cleanIds = new HashMap<String, String>(volumeIDs.size() * 2);
+        for (String volumeId : volumeIDs) {
+            if (ids.length() > 0) ids.append(delimiter);
+            ids.append(volumeId);
+            cleanIds.put(clean(volumeId), volumeId);
+        }
+
+        String form = "volumeIDs=" + URLEncoder.encode(ids.toString(), "UTF-8") + (concat ? "&concat=true" : "");
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(compress ? form.length() / 4 : form.length());
+        OutputStream out = compress ? new GZIPOutputStream(body) : body;
+        out.write(form.getBytes("UTF-8"));
+        out.close();
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(volumesURL).openConnection();
+        // like HTRCDataClient, the certificate checks are only relaxed for authenticated requests
+        if (selfsign && token.length() > 0 && connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getTrustAllSocketFactory());
+            ((HttpsURLConnection) connection).setHostnameVerifier(TRUST_ALL_HOSTS);
+        }
+
+        connection.setConnectTimeout(connectionTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.size());
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+        if (compress)
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        if (token.length() > 0)
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+
+        OutputStream request = connection.getOutputStream();
+        try {
+            body.writeTo(request);
+        }
+        finally {
+            request.close();
+        }
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            InputStream err = connection.getErrorStream();
+            if (err != null) err.close();
+
+            switch (status) {
+                case HttpURLConnection.HTTP_BAD_REQUEST:
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                case HttpURLConnection.HTTP_BAD_METHOD:
+                case HttpURLConnection.HTTP_UNSUPPORTED_TYPE:
+                case HttpURLConnection.HTTP_NOT_IMPLEMENTED:
+                    throw new UnsupportedRequestException(status, connection.getResponseMessage());
+
+                default:
+                    throw new IOException(String.format("The Data API returned HTTP %d: %s",
+                            status, connection.getResponseMessage()));
+            }
+        }
+
+        return new ZipResponse(new ZipInputStream(connection.getInputStream()), cleanIds);
+    }
+
+    /**
+     * Returns the name under which the Data API stores a volume in its responses
+     * (the namespace followed by the pairtree-cleaned identifier)
+     */
+    private static String clean(String volumeId) {
+        int dot = volumeId.indexOf('.');
+        return dot < 0 ? PairtreeMirror.cleanId(volumeId) :
+            volumeId.substring(0, dot + 1) + PairtreeMirror.cleanId(volumeId.substring(dot + 1));
+    }
+
+    private static synchronized SSLSocketFactory getTrustAllSocketFactory() throws IOException {
+        if (trustAllSocketFactory == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager[] { new X509TrustManager() {
+                    public void checkClientTrusted(X509Certificate[] chain, String authType) { }
+                    public void checkServerTrusted(X509Certificate[] chain, String authType) { }
+                    public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+                }}, null);
+                trustAllSocketFactory = context.getSocketFactory();
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("Cannot set up SSL for self-signed certificates: " + e.getMessage());
+            }
+        }
+
+        return trustAllSocketFactory;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Thrown when the endpoint does not support the request form (HTTP 404, 405, 415 or 501)
+     */
+    public static class UnsupportedRequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public UnsupportedRequestException(int status, String message) {
+            super(String.format("HTTP %d: %s", status, message));
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Reads the volumes and pages out of the ZIP response as it arrives (single use)
+     */
+    private static class ZipResponse implements Iterable<Entry<String, String>>, Iterator<Entry<String, String>> {
+        private final ZipInputStream zip;
+        private final Map<String, String> cleanIds;
+        private Entry<String, String> next = null;
+        private boolean done = false;
+
+        private ZipResponse(ZipInputStream zip, Map<String, String> cleanIds) {
+            this.zip = zip;
+            this.cleanIds = cleanIds;
+        }
+
+        public Iterator<Entry<String, String>> iterator() {
+            return this;
+        }
+
+        public boolean hasNext() {
+            if (next == null && !done)
+                next = readNext();
+
+            return next != null;
+        }
+
+        public Entry<String, String> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            Entry<String, String> entry = next;
+            next = null;
+
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Entry<String, String> readNext() {
+            try {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    String name = entry.getName();
+                    if (entry.isDirectory())
+                        continue;
+
+                    if (name.equals(ERROR_ENTRY)) {
+                        logger.warning("The Data API reported errors: " + readText());
+                        continue;
+                    }
+
+                    // <volume>/<page>.txt, or <volume>.txt for concatenated volumes
+                    int slash = name.indexOf('/');
+                    String cleanId = slash >= 0 ? name.substring(0, slash) :
+                        name.endsWith(".txt") ? name.substring(0, name.length() - 4) : null;
+                    if (cleanId == null || (slash >= 0 && !name.endsWith(".txt")))
+                        continue;  // metadata (e.g. METS) or other non-text entries
+
+                    String volumeId = cleanIds.get(cleanId);
+                    if (volumeId == null) {
+                        if (slash < 0) continue;  // e.g. volume-rights.txt
+                        volumeId = PairtreeMirror.uncleanId(cleanId);
+                    }
+
+                    return new AbstractMap.SimpleImmutableEntry<String, String>(volumeId, readText());
+                }
+
+                done = true;
+                zip.close();
+
+                return null;
+            }
+            catch (IOException e) {
+                done = true;
+                try {
+                    zip.close();
+                }
+                catch (IOException ignored) { }
+
+                throw new RuntimeException("Could not read the Data API response", e);
+            }
+        }
+
+        private String readText() throws IOException {
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = zip.read(buf)) >= 0)
+                text.write(buf, 0, n);
+
+            return text.toString("UTF-8");
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.seasr.datatypes.core.BasicDataTypes.Integers;
+import org.seasr.datatypes.core.BasicDataTypes.IntegersMap;
+
+/**
+ * Compares the token counts of an analysis corpus against those of a reference corpus using
+ * Dunning's log-likelihood ratio (G<sup>2</sup>), keeping only the most over-represented and the
+ * most under-represented tokens of the analysis corpus.
+ *
+ * The scores are computed in one pass over the two {@link TokenCounter}s; each side keeps its
+ * best tokens in a min-heap bounded to <code>topK</code> entries, so no score map of the whole
+ * vocabulary is built.
+ */
+public class DunningScorer {
+
+    private final int cutoff;
+    private final int topK;
+
+    private ScoredToken[] overRepresented = new ScoredToken[0];
+    private ScoredToken[] underRepresented = new ScoredToken[0];
+    private int scoredCount = 0;
+
+
+    /**
+     * Creates a scorer
+     *
+     * @param cutoff Tokens whose count is below this number in both corpora are ignored
+     * @param topK The number of over- and under-represented tokens kept
+     */
+    public DunningScorer(int cutoff, int topK) {
+        if (topK < 1)
+            throw new IllegalArgumentException("topK must be positive");
+
+        this.cutoff = cutoff;
+        this.topK = topK;
+    }
+
+    /**
+     * Computes Dunning's log-likelihood ratio of a token
+     *
+     * @param a The count of the token in the analysis corpus
+     * @param b The count of the token in the reference corpus
+     * @param totalA The number of tokens of the analysis corpus
+     * @param totalB The number of tokens of the reference corpus
+     * @return G<sup>2</sup>, positive if the token is over-represented in the analysis corpus, negative if under-represented
+     */
+    public static double logLikelihood(long a, long b, long totalA, long totalB) {
+        double expectedA = (double) totalA * (a + b) / (totalA + totalB);
+        double expectedB = (double) totalB * (a + b) / (totalA + totalB);
+
+        double g2 = 0;
+        if (a > 0) g2 += a * Math.log(a / expectedA);
+        if (b > 0) g2 += b * Math.log(b / expectedB);
+        g2 *= 2;
+
+        return (double) a * totalB >= (double) b * totalA ? g2 : -g2;
+    }
+
+    /**
+     * Scores the tokens of two corpora
+     *
+     * @param analysis The token counts of the analysis corpus
+     * @param reference The token counts of the reference corpus
+     */
+    public void score(TokenCounter analysis, TokenCounter reference) {
+        PriorityQueue<ScoredToken> over = new PriorityQueue<ScoredToken>(topK + 1, BY_MAGNITUDE);
+        PriorityQueue<ScoredToken> under = new PriorityQueue<ScoredToken>(topK + 1, BY_MAGNITUDE);
+        scoredCount = 0;
+
+        long totalA = analysis.total();
+        long totalB = reference.total();
+
+        if (totalA > 0 && totalB > 0) {
+            String[] tokens = new String[analysis.size()];
+            int[] counts = new int[analysis.size()];
+            analysis.copyTo(tokens, counts);
+            for (int i = 0; i < tokens.length; i++)
+                score(tokens[i], counts[i], reference.get(tokens[i]), totalA, totalB, over, under);
+
+            // tokens found only in the reference corpus
+            tokens = new String[reference.size()];
+            counts = new int[reference.size()];
+            reference.copyTo(tokens, counts);
+            for (int i = 0; i < tokens.length; i++)
+                if (analysis.get(tokens[i]) == 0)
+                    score(tokens[i], 0, counts[i], totalA, totalB, over, under);
+        }
+
+        overRepresented = sorted(over);
+        underRepresented = sorted(under);
+    }
+
+    /**
+     * @return The number of tokens scored by the last call to {@link #score(TokenCounter, TokenCounter)}
+     */
+    public int getScoredCount() {
+        return scoredCount;
+    }
+
+    /**
+     * @return The most over-represented tokens, by decreasing score (G<sup>2</sup> rounded to an integer)
+     */
+    public IntegersMap getOverRepresented() {
+        return toIntegersMap(overRepresented);
+    }
+
+    /**
+     * @return The most under-represented tokens, by decreasing magnitude (|G<sup>2</sup>| rounded to an integer)
+     */
+    public IntegersMap getUnderRepresented() {
+        return toIntegersMap(underRepresented);
+    }
+
+    /**
+     * @return The most over- and under-represented tokens with their signed scores
+     *         (negative values represent under-representation)
+     */
+    public IntegersMap getSignedScores() {
+        IntegersMap.Builder builder = IntegersMap.newBuilder();
+        for (ScoredToken token : overRepresented)
+            add(builder, token.token, token.score);
+        for (int i = underRepresented.length - 1; i >= 0; i--)
+            add(builder, underRepresented[i].token, -underRepresented[i].score);
+
+        return builder.build();
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private void score(String token, int a, int b, long totalA, long totalB,
+            PriorityQueue<ScoredToken> over, PriorityQueue<ScoredToken> under) {
+        if (a < cutoff && b < cutoff)
+            return;
+
+        scoredCount++;
+
+        double g2 = logLikelihood(a, b, totalA, totalB);
+        PriorityQueue<ScoredToken> heap = g2 >= 0 ? over : under;
+        double magnitude = Math.abs(g2);
+
+        if (heap.size() < topK)
+            heap.add(new ScoredToken(token, magnitude));
+        else if (magnitude > heap.peek().score) {
+            heap.poll();
+            heap.add(new ScoredToken(token, magnitude));
+        }
+    }
+
+    private static ScoredToken[] sorted(PriorityQueue<ScoredToken> heap) {
+        ScoredToken[] tokens = heap.toArray(new ScoredToken[heap.size()]);
+        Arrays.sort(tokens, BY_MAGNITUDE);
+
+        // decreasing order
+        for (int i = 0, j = tokens.length - 1; i < j; i++, j--) {
+            ScoredToken t = tokens[i];
+            tokens[i] = tokens[j];
+            tokens[j] = t;
+        }
+
+        return tokens;
+    }
+
+    private static IntegersMap toIntegersMap(ScoredToken[] tokens) {
+        IntegersMap.Builder builder = IntegersMap.newBuilder();
+        for (ScoredToken token : tokens)
+            add(builder, token.token, token.score);
+
+        return builder.build();
+    }
+
+    private static void add(IntegersMap.Builder builder, String token, double score) {
+        builder.addKey(token);
+        builder.addValue(Integers.newBuilder().addValue((int) Math.round(score)).build());
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /** Orders by increasing magnitude, ties broken by reverse token order (so equal scores list tokens alphabetically) */
+    private static final Comparator<ScoredToken> BY_MAGNITUDE = new Comparator<ScoredToken>() {
+        public int compare(ScoredToken t1, ScoredToken t2) {
+            if (t1.score != t2.score) return t1.score < t2.score ? -1 : 1;
+            return t2.token.compareTo(t1.token);
+        }
+    };
+
+    private static class ScoredToken {
+        private final String token;
+        private final double score;
+
+        private ScoredToken(String token, double score) {
+            this.token = token;
+            this.score = score;
+        }
+    }
+}
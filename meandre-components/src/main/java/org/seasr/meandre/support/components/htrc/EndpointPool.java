@@ -0,0 +1,229 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Spreads requests across the instances of a service using least-outstanding-requests balancing:
+ * each request goes to the instance currently serving the fewest requests (ties are broken in
+ * round-robin order). An instance whose request failed is avoided for a cool-down period, unless
+ * all the instances are cooling down.
+ *
+ * The instances either come from an {@link EndpointResolver}, in which case the pool follows
+ * the resolver as its cache is refreshed (the lookup is done before taking the pool's lock, so a
+ * slow registry does not hold up the release of endpoints by other threads), or are fixed when
+ * the pool is created.
+ *
+ * Usage:
+ * <pre>
+ * Endpoint endpoint = pool.acquire();
+ * boolean failed = true;
+ * try {
+ *     ... send the request to endpoint.getURL() ...
+ *     failed = false;
+ * }
+ * finally {
+ *     pool.release(endpoint, failed);
+ * }
+ * </pre>
+ */
+public class EndpointPool {
+
+    private static final long FAILURE_COOLDOWN_MS = 30000;
+
+    private final EndpointResolver resolver;
+    private final String service;
+
+    private List<String> resolved = null;
+    private List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private int next = 0;
+
+
+    /**
+     * Creates a pool over the instances of a service listed in the registry
+     *
+     * @param resolver The resolver
+     * @param service The service (EndpointResolver.SERVICE_SOLR or EndpointResolver.SERVICE_DATA_API)
+     * @throws IOException Thrown if the service cannot be resolved
+     */
+    public EndpointPool(EndpointResolver resolver, String service) throws IOException {
+        this.resolver = resolver;
+        this.service = service;
+
+        update(resolver.resolve(service));
+    }
+
+    /**
+     * Creates a pool over a fixed set of endpoints
+     *
+     * @param urls The endpoints
+     */
+    public EndpointPool(List<String> urls) {
+        if (urls.isEmpty())
+            throw new IllegalArgumentException("No endpoints given");
+
+        this.resolver = null;
+        this.service = null;
+
+        for (String url : urls)
+            endpoints.add(new Endpoint(url));
+    }
+
+    /**
+     * Creates a pool over a single endpoint
+     *
+     * @param url The endpoint
+     */
+    public EndpointPool(String url) {
+        this(Collections.singletonList(url));
+    }
+
+    /**
+     * Creates the pool for a service, as configured on a component
+     *
+     * @param registryConfig The registry configuration file (empty = use the given endpoints)
+     * @param ttlSeconds How long registry lookups are cached, in seconds
+     * @param service The service (EndpointResolver.SERVICE_SOLR or EndpointResolver.SERVICE_DATA_API)
+     * @param urls The comma-separated endpoints to use when no registry is configured
+     * @return The pool
+     * @throws IOException Thrown if the registry configuration cannot be read or the service cannot be resolved
+     */
+    public static EndpointPool create(String registryConfig, long ttlSeconds, String service, String urls) throws IOException {
+        if (registryConfig.length() > 0)
+            return new EndpointPool(EndpointResolver.getInstance(new File(registryConfig), ttlSeconds * 1000), service);
+
+        List<String> endpoints = new ArrayList<String>();
+        for (String url : urls.split(","))
+            if (url.trim().length() > 0)
+                endpoints.add(url.trim());
+
+        return new EndpointPool(endpoints);
+    }
+
+    /**
+     * Picks the endpoint for a request and counts the request as outstanding on it
+     *
+     * @return The endpoint (must be given back through {@link #release(Endpoint, boolean)})
+     * @throws IOException Thrown if the service cannot be resolved
+     */
+    public Endpoint acquire() throws IOException {
+        List<String> urls = resolver != null ? resolver.resolve(service) : null;
+
+        synchronized (this) {
+            if (urls != null)
+                update(urls);
+
+            return pick();
+        }
+    }
+
+    private Endpoint pick() {
+        long now = System.currentTimeMillis();
+        int n = endpoints.size();
+
+        Endpoint best = null;
+        boolean bestAvailable = false;
+        for (int i = 0; i < n; i++) {
+            Endpoint endpoint = endpoints.get((next + i) % n);
+            boolean available = endpoint.downUntil <= now;
+
+            if (best == null || (available && !bestAvailable) ||
+                    (available == bestAvailable && endpoint.outstanding < best.outstanding)) {
+                best = endpoint;
+                bestAvailable = available;
+            }
+        }
+
+        next = (endpoints.indexOf(best) + 1) % n;
+        best.outstanding++;
+        best.requests++;
+
+        return best;
+    }
+
+    /**
+     * Gives back an endpoint once the request sent to it has completed
+     *
+     * @param endpoint The endpoint
+     * @param failed True if the request failed because of the endpoint
+     */
+    public synchronized void release(Endpoint endpoint, boolean failed) {
+        endpoint.outstanding--;
+
+        if (failed) {
+            endpoint.failures++;
+            endpoint.downUntil = System.currentTimeMillis() + FAILURE_COOLDOWN_MS;
+        }
+        else
+            endpoint.downUntil = 0;
+    }
+
+    /**
+     * @return The current endpoints
+     */
+    public synchronized List<Endpoint> getEndpoints() {
+        return new ArrayList<Endpoint>(endpoints);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(service != null ? service : "endpoints").append(':');
+        for (Endpoint endpoint : endpoints)
+            sb.append(String.format(" %s (%,d requests, %,d failed)", endpoint.url, endpoint.requests, endpoint.failures));
+
+        return sb.toString();
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private void update(List<String> urls) {
+        if (urls == resolved) return;  // unchanged since the last refresh
+
+        // keep the state of the instances that are still listed
+        List<Endpoint> current = new ArrayList<Endpoint>(urls.size());
+        for (String url : urls) {
+            Endpoint endpoint = null;
+            for (Endpoint e : endpoints)
+                if (e.url.equals(url)) {
+                    endpoint = e;
+                    break;
+                }
+
+            current.add(endpoint != null ? endpoint : new Endpoint(url));
+        }
+
+        resolved = urls;
+        endpoints = current;
+        next = 0;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public static class Endpoint {
+        private final String url;
+        private int outstanding = 0;
+        private long requests = 0;
+        private long failures = 0;
+        private long downUntil = 0;
+
+        private Endpoint(String url) {
+            this.url = url;
+        }
+
+        public String getURL() {
+            return url;
+        }
+
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+}
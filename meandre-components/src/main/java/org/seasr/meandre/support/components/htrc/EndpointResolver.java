@@ -0,0 +1,345 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Resolves the HTRC services (Data API, Solr) to the endpoints of their currently deployed
+ * instances by looking them up in the service registry, caching the result for a while.
+ *
+ * The registry is described by a configuration file in the format of <code>conf/config.properties</code>:
+ * the <code>solrindex</code> and <code>dataapi</code> keys give the registry names of the services
+ * (when a key is missing, the name HTRC registers the service under is used: htrc-apache-solr-search
+ * or htrc-data-api; the <code>repository</code> key names the Cassandra store, not the Data API,
+ * and is not used), and
+ * <ul>
+ * <li>if the file defines <code>endpoints.&lt;service name&gt;</code> keys (comma-separated URLs),
+ *     it is used as a local stand-in for the registry;</li>
+ * <li>otherwise the service descriptors are read from the WSO2 registry at <code>serverurl</code>,
+ *     under the <code>services</code> path, and every http(s) URL listed as an endpoint entry of the
+ *     service is taken as an instance.</li>
+ * </ul>
+ *
+ * Resolvers are shared by all the components of the JVM using the same configuration file,
+ * so a flow looks each service up once per TTL period. The registry is queried without holding
+ * any lock: while one thread refreshes an expired entry, the others keep getting the previous endpoints.
+ */
+public class EndpointResolver {
+
+    /** The configuration key holding the registry name of the Solr service */
+    public static final String SERVICE_SOLR = "solrindex";
+
+    /** The configuration key holding the registry name of the Data API service */
+    public static final String SERVICE_DATA_API = "dataapi";
+
+    private static final String LOCAL_ENDPOINTS_PREFIX = "endpoints.";
+
+    private static final Map<String, String> DEFAULT_SERVICE_NAMES = new HashMap<String, String>();
+    static {
+        DEFAULT_SERVICE_NAMES.put(SERVICE_SOLR, "htrc-apache-solr-search");
+        DEFAULT_SERVICE_NAMES.put(SERVICE_DATA_API, "htrc-data-api");
+    }
+
+    private static final Map<String, EndpointResolver> resolvers = new HashMap<String, EndpointResolver>();
+
+    private static final Logger logger = Logger.getLogger(EndpointResolver.class.getName());
+
+    private final Properties config;
+    private final Registry registry;
+    private final long ttlMillis;
+    private final Map<String, CachedLookup> cache = new HashMap<String, CachedLookup>();
+
+
+    /**
+     * Creates a resolver
+     *
+     * @param config The registry configuration
+     * @param registry The registry to query
+     * @param ttlMillis How long a lookup result is cached, in milliseconds
+     */
+    public EndpointResolver(Properties config, Registry registry, long ttlMillis) {
+        this.config = config;
+        this.registry = registry;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the resolver shared by all the users of a registry configuration file
+     *
+     * @param configFile The registry configuration file
+     * @param ttlMillis How long a lookup result is cached, in milliseconds (the first user decides)
+     * @return The resolver
+     * @throws IOException Thrown if the configuration file cannot be read
+     */
+    public static EndpointResolver getInstance(File configFile, long ttlMillis) throws IOException {
+        String key = configFile.getCanonicalPath();
+
+        synchronized (resolvers) {
+            EndpointResolver resolver = resolvers.get(key);
+            if (resolver == null) {
+                Properties config = loadConfig(configFile);
+                resolver = new EndpointResolver(config, createRegistry(config), ttlMillis);
+                resolvers.put(key, resolver);
+            }
+
+            return resolver;
+        }
+    }
+
+    /**
+     * Returns the endpoints of the instances of a service
+     *
+     * @param service The service (SERVICE_SOLR or SERVICE_DATA_API)
+     * @return The endpoints (never empty); the same list instance is returned until the cache entry expires
+     * @throws IOException Thrown if the service cannot be resolved
+     */
+    public List<String> resolve(String service) throws IOException {
+        String serviceName = getServiceName(service);
+
+        CachedLookup lookup;
+        synchronized (cache) {
+            lookup = cache.get(serviceName);
+            if (lookup != null) {
+                if (System.currentTimeMillis() < lookup.expires || lookup.refreshing)
+                    return lookup.endpoints;
+
+                lookup.refreshing = true;
+            }
+        }
+
+        // the registry is queried outside of the lock (only the very first lookups of a service may overlap)
+        List<String> endpoints;
+        try {
+            endpoints = registry.lookup(serviceName);
+            if (endpoints.isEmpty())
+                throw new IOException("The registry lists no instances of " + serviceName);
+        }
+        catch (IOException e) {
+            if (lookup == null)
+                throw e;
+
+            // keep using what we had rather than failing the flow, and retry after another period
+            logger.warning(String.format("Could not refresh the endpoints of %s, using the previous ones: %s",
+                    serviceName, e.getMessage()));
+            synchronized (cache) {
+                lookup.expires = System.currentTimeMillis() + ttlMillis;
+                lookup.refreshing = false;
+            }
+            return lookup.endpoints;
+        }
+        catch (RuntimeException e) {
+            if (lookup != null)
+                synchronized (cache) {
+                    lookup.refreshing = false;
+                }
+            throw e;
+        }
+
+        endpoints = Collections.unmodifiableList(new ArrayList<String>(endpoints));
+        logger.fine(String.format("Resolved %s to %s", serviceName, endpoints));
+
+        CachedLookup fresh = new CachedLookup();
+        fresh.endpoints = endpoints;
+        fresh.expires = System.currentTimeMillis() + ttlMillis;
+        synchronized (cache) {
+            cache.put(serviceName, fresh);
+        }
+
+        return endpoints;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private String getServiceName(String service) throws IOException {
+        String serviceName = config.getProperty(service);
+        if (serviceName != null && serviceName.trim().length() > 0)
+            return serviceName.trim();
+
+        serviceName = DEFAULT_SERVICE_NAMES.get(service);
+        if (serviceName == null)
+            throw new IOException(String.format("The registry configuration does not name the service: add the '%s' key", service));
+
+        return serviceName;
+    }
+
+    private static Properties loadConfig(File configFile) throws IOException {
+        Properties config = new Properties();
+        InputStream in = new FileInputStream(configFile);
+        try {
+            config.load(in);
+        }
+        finally {
+            in.close();
+        }
+
+        return config;
+    }
+
+    private static Registry createRegistry(Properties config) throws IOException {
+        for (String key : config.stringPropertyNames())
+            if (key.startsWith(LOCAL_ENDPOINTS_PREFIX))
+                return new LocalRegistry(config);
+
+        String serverURL = config.getProperty("serverurl");
+        if (serverURL == null)
+            throw new IOException("The registry configuration defines neither 'serverurl' nor local endpoints");
+
+        return new WSO2Registry(serverURL, config.getProperty("services", ""),
+                config.getProperty("username"), config.getProperty("password"));
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * A source of service instances
+     */
+    public interface Registry {
+        /**
+         * Looks up the instances of a service
+         *
+         * @param serviceName The registry name of the service
+         * @return The endpoints of the instances
+         * @throws IOException Thrown if the registry cannot be queried
+         */
+        public List<String> lookup(String serviceName) throws IOException;
+    }
+
+    /**
+     * Local stand-in for the registry: the instances are listed in the configuration itself,
+     * as <code>endpoints.&lt;service name&gt;=url1, url2, ...</code>
+     */
+    public static class LocalRegistry implements Registry {
+        private final Properties config;
+
+        public LocalRegistry(Properties config) {
+            this.config = config;
+        }
+
+        public List<String> lookup(String serviceName) throws IOException {
+            String value = config.getProperty(LOCAL_ENDPOINTS_PREFIX + serviceName);
+            if (value == null)
+                throw new IOException("No local endpoints defined for " + serviceName);
+
+            List<String> endpoints = new ArrayList<String>();
+            for (String endpoint : value.split(","))
+                if (endpoint.trim().length() > 0)
+                    endpoints.add(endpoint.trim());
+
+            return endpoints;
+        }
+    }
+
+    /**
+     * Reads the service descriptors from a WSO2 Governance Registry through its resource servlet
+     * (<code>https://host:port/registry/resource/&lt;path&gt;</code>) and extracts the endpoint URLs they list.
+     * The registry's certificate must be trusted by the JVM.
+     */
+    public static class WSO2Registry implements Registry {
+        private static final Pattern ENDPOINT_PATTERN = Pattern.compile("^(?:[^:/]*:)?(https?://\\S+)$");
+
+        private final String resourceURL;
+        private final String authorization;
+
+        public WSO2Registry(String serverURL, String servicesPath, String username, String password) {
+            // serverurl points at the admin services (https://host:port/services/)
+            String base = serverURL.replaceFirst("/services/?$", "");
+            if (!servicesPath.startsWith("/")) servicesPath = "/" + servicesPath;
+
+            this.resourceURL = base + "/registry/resource" + servicesPath + "/";
+            this.authorization = username != null ?
+                    "Basic " + DatatypeConverter.printBase64Binary((username + ":" + (password != null ? password : "")).getBytes()) :
+                    null;
+        }
+
+        public List<String> lookup(String serviceName) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(resourceURL + serviceName).openConnection();
+            connection.setConnectTimeout(30000);
+            connection.setReadTimeout(30000);
+            if (authorization != null)
+                connection.setRequestProperty("Authorization", authorization);
+
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK)
+                throw new IOException(String.format("The registry returned HTTP %d for %s", status, serviceName));
+
+            InputStream in = connection.getInputStream();
+            try {
+                return parseEndpoints(in);
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Extracts the endpoints of a service descriptor: the http(s) URLs held by the <code>entry</code>
+         * elements of its <code>endpoints</code> element, optionally prefixed by the environment
+         * (e.g. <code>&lt;entry&gt;Prod:https://host/data-api&lt;/entry&gt;</code>)
+         *
+         * @param descriptor The service descriptor (XML)
+         * @return The endpoints, in the order of the descriptor, without duplicates
+         * @throws IOException Thrown if the descriptor is not well-formed XML
+         */
+        public static List<String> parseEndpoints(InputStream descriptor) throws IOException {
+            Document document;
+            try {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true);
+                factory.setExpandEntityReferences(false);
+                document = factory.newDocumentBuilder().parse(descriptor);
+            }
+            catch (ParserConfigurationException e) {
+                throw new RuntimeException(e);
+            }
+            catch (SAXException e) {
+                IOException ioe = new IOException("Invalid service descriptor: " + e.getMessage());
+                ioe.initCause(e);
+                throw ioe;
+            }
+
+            List<String> endpoints = new ArrayList<String>();
+            NodeList lists = document.getElementsByTagNameNS("*", "endpoints");
+            for (int i = 0; i < lists.getLength(); i++)
+                for (Node node = lists.item(i).getFirstChild(); node != null; node = node.getNextSibling()) {
+                    if (node.getNodeType() != Node.ELEMENT_NODE || !"entry".equals(node.getLocalName()))
+                        continue;
+
+                    Matcher matcher = ENDPOINT_PATTERN.matcher(node.getTextContent().trim());
+                    if (matcher.matches() && !endpoints.contains(matcher.group(1)))
+                        endpoints.add(matcher.group(1));
+                }
+
+            return endpoints;
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static class CachedLookup {
+        private List<String> endpoints;
+        private long expires;
+        private boolean refreshing = false;
+    }
+}
@@ -0,0 +1,164 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.util.Arrays;
+
+/**
+ * Maps the words of a document straight to a sparse vector of fixed dimension (the "hashing trick"),
+ * so documents can be turned into features in a single pass, without building a vocabulary first.
+ *
+ * Words are maximal runs of letters or digits, as for {@link MinHasher}. Each word is hashed
+ * without creating a String; the hash picks the feature index and, with signed hashing, whether the
+ * word adds 1 or -1 to it, so that collisions tend to cancel out instead of accumulating.
+ *
+ * A hasher can be shared between threads.
+ */
+public class FeatureHasher {
+
+    private final int dimension;
+    private final boolean signed;
+    private final boolean lowercase;
+    private final int minWordLength;
+
+    // per-thread dense accumulator, cleared after each use
+    private final ThreadLocal<int[]> scratch = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[dimension];
+        }
+    };
+
+
+    /**
+     * Creates a hasher
+     *
+     * @param dimension The number of features
+     * @param signed True to use signed hashing
+     * @param lowercase True to convert the words to lower case
+     * @param minWordLength The length of the shortest words counted
+     */
+    public FeatureHasher(int dimension, boolean signed, boolean lowercase, int minWordLength) {
+        if (dimension < 1)
+            throw new IllegalArgumentException("The dimension must be positive");
+
+        this.dimension = dimension;
+        this.signed = signed;
+        this.lowercase = lowercase;
+        this.minWordLength = minWordLength;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Computes the feature vector of a set of texts, treated as a single document
+     *
+     * @param texts The texts
+     * @return The feature vector
+     */
+    public SparseVector hash(Iterable<String> texts) {
+        int[] counts = scratch.get();
+        int[] touched = new int[256];
+        int touchedCount = 0;
+
+        for (String text : texts) {
+            int len = text.length();
+            for (int start = TokenCounter.wordStart(text, 0), end; start < len; start = TokenCounter.wordStart(text, end)) {
+                end = TokenCounter.wordEnd(text, start);
+                if (end - start < minWordLength)
+                    continue;
+
+                long h = 0xcbf29ce484222325L;
+                for (int i = start; i < end; i++) {
+                    char c = text.charAt(i);
+                    h ^= lowercase ? Character.toLowerCase(c) : c;
+                    h *= 0x100000001b3L;
+                }
+
+                h = mix(h);
+                int index = (int) ((h >>> 1) % dimension);
+                int value = signed && (h & 1) != 0 ? -1 : 1;
+
+                if (counts[index] == 0) {
+                    if (touchedCount == touched.length)
+                        touched = Arrays.copyOf(touched, 2 * touched.length);
+                    touched[touchedCount++] = index;
+                }
+                counts[index] += value;
+            }
+        }
+
+        // an index is listed once even if its count went back to 0 and up again
+        Arrays.sort(touched, 0, touchedCount);
+
+        int[] indices = new int[touchedCount];
+        int[] values = new int[touchedCount];
+        int size = 0;
+        for (int t = 0; t < touchedCount; t++) {
+            int index = touched[t];
+            if (t > 0 && index == touched[t - 1]) continue;
+
+            if (counts[index] != 0) {
+                indices[size] = index;
+                values[size] = counts[index];
+                size++;
+            }
+            counts[index] = 0;
+        }
+
+        return new SparseVector(Arrays.copyOf(indices, size), Arrays.copyOf(values, size));
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * A sparse vector of counts, by increasing feature index
+     */
+    public static class SparseVector {
+        private final int[] indices;
+        private final int[] values;
+
+        private SparseVector(int[] indices, int[] values) {
+            this.indices = indices;
+            this.values = values;
+        }
+
+        /**
+         * @return The number of non-zero features
+         */
+        public int size() {
+            return indices.length;
+        }
+
+        public int getIndex(int i) {
+            return indices[i];
+        }
+
+        public int getValue(int i) {
+            return values[i];
+        }
+
+        /**
+         * @return The vector in the LIBSVM/SVMlight sparse format (<code>index:value</code> pairs, indices starting at 1)
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(8 * indices.length);
+            for (int i = 0; i < indices.length; i++) {
+                if (i > 0) sb.append(' ');
+                sb.append(indices[i] + 1).append(':').append(values[i]);
+            }
+
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+
+/**
+ * A compact on-disk collection of Mallet feature sequences (one per document), so a topic model
+ * can be trained over a workset without holding the instances of all its pages in memory.
+ *
+ * The {@link Writer} appends each document as it arrives: its name and its term ids, encoded as
+ * variable-length integers. Terms are numbered by an open-addressing term table, so the only
+ * state kept while writing is the vocabulary. The vocabulary is written after the last document,
+ * followed by a fixed-size trailer locating it.
+ *
+ * Reading maps the file into memory window by window and iterates over the documents as Mallet
+ * instances (data = FeatureSequence, name = document name), sharing a single Alphabet.
+ */
+public final class FeatureSequenceFile implements Iterable<Instance> {
+
+    private static final int MAGIC = 0x48544653;  // "HTFS"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 24;
+
+    /** The size of the part of the file mapped at once */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final File file;
+    private final Alphabet alphabet;
+    private final int documentCount;
+    private final long tokenCount;
+    private final long dataEnd;
+
+
+    /**
+     * Opens a feature sequence file and reads its vocabulary
+     *
+     * @param file The file
+     * @throws IOException If the file cannot be read or is not a feature sequence file
+     */
+    public FeatureSequenceFile(File file) throws IOException {
+        this.file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE + TRAILER_SIZE)
+                throw new IOException("Not a feature sequence file: " + file);
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a feature sequence file: " + file);
+            int version = header.getInt();
+            if (version != VERSION)
+                throw new IOException(String.format("Unsupported feature sequence file version %d: %s", version, file));
+
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_SIZE, TRAILER_SIZE);
+            dataEnd = trailer.getLong();
+            documentCount = trailer.getInt();
+            tokenCount = trailer.getLong();
+            if (trailer.getInt() != MAGIC)
+                throw new IOException("Incomplete feature sequence file: " + file);
+
+            ByteBuffer terms = channel.map(FileChannel.MapMode.READ_ONLY, dataEnd, size - TRAILER_SIZE - dataEnd);
+            int termCount = readVarInt(terms);
+            alphabet = new Alphabet(termCount);
+            for (int i = 0; i < termCount; i++)
+                alphabet.lookupIndex(readString(terms), true);
+            alphabet.stopGrowth();
+        }
+        finally {
+            // the mappings stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * @return The file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The vocabulary (term ids are the alphabet indices)
+     */
+    public Alphabet getAlphabet() {
+        return alphabet;
+    }
+
+    /**
+     * @return The number of documents
+     */
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * @return The total number of tokens in all the documents
+     */
+    public long getTokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * Reads all the documents into a Mallet InstanceList that uses the vocabulary of the file as its
+     * data alphabet, for the consumers that need an InstanceList (e.g. the Mallet topic model trainer)
+     *
+     * @return The instances, in the order they were written
+     */
+    public InstanceList toInstanceList() {
+        InstanceList instances = new InstanceList(alphabet, null);
+        for (Instance instance : this)
+            instances.add(instance);
+
+        return instances;
+    }
+
+    /**
+     * Iterates over the documents, in the order they were written; each call reads the file anew
+     */
+    public Iterator<Instance> iterator() {
+        return new InstanceIterator();
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[readVarInt(buffer)];
+        buffer.get(bytes);
+
+        return utf8(bytes, bytes.length);
+    }
+
+    private static String utf8(byte[] bytes, int length) {
+        try {
+            return new String(bytes, 0, length, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Reads the documents through a mapped window that slides along the file
+     */
+    private class InstanceIterator implements Iterator<Instance> {
+        private ByteBuffer window = null;
+        private long windowStart = 0;
+        private long position = HEADER_SIZE;
+
+        public boolean hasNext() {
+            return position < dataEnd;
+        }
+
+        public Instance next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            try {
+                int length = map(position, 4).getInt();
+                ByteBuffer record = map(position + 4, length);
+                position += 4 + length;
+
+                String name = readString(record);
+                int[] features = new int[readVarInt(record)];
+                for (int i = 0; i < features.length; i++)
+                    features[i] = readVarInt(record);
+
+                return new Instance(new FeatureSequence(alphabet, features, features.length), null, name, null);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Could not read " + file, e);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Returns a buffer positioned at the given offset of the file, holding at least <code>length</code> bytes
+         */
+        private ByteBuffer map(long offset, int length) throws IOException {
+            if (window == null || offset < windowStart || offset + length > windowStart + window.limit()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    long size = Math.min(Math.max(WINDOW_SIZE, length), dataEnd - offset);
+                    window = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+                    windowStart = offset;
+                }
+                finally {
+                    raf.close();
+                }
+            }
+
+            window.position((int) (offset - windowStart));
+            return window;
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Writes a feature sequence file, one document at a time
+     */
+    public static class Writer {
+        private final DataOutputStream out;
+        private final TermTable terms = new TermTable();
+
+        private byte[] record = new byte[4096];
+        private int recordLength;
+
+        private long position = HEADER_SIZE;
+        private int documentCount = 0;
+        private long tokenCount = 0;
+
+
+        /**
+         * Creates a feature sequence file
+         *
+         * @param file The file (replaced if it exists)
+         * @throws IOException If the file cannot be created
+         */
+        public Writer(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        /**
+         * Appends a document
+         *
+         * @param name The document name
+         * @param tokens The tokens of the document, in order
+         * @throws IOException If the document cannot be written
+         */
+        public void add(String name, List<String> tokens) throws IOException {
+            recordLength = 0;
+            putString(name);
+            putVarInt(tokens.size());
+            for (String token : tokens)
+                putVarInt(terms.id(token));
+
+            out.writeInt(recordLength);
+            out.write(record, 0, recordLength);
+
+            position += 4 + recordLength;
+            documentCount++;
+            tokenCount += tokens.size();
+        }
+
+        /**
+         * Writes the vocabulary and closes the file
+         *
+         * @throws IOException If the file cannot be written
+         */
+        public void close() throws IOException {
+            try {
+                recordLength = 0;
+                putVarInt(terms.size());
+                out.write(record, 0, recordLength);
+
+                for (int i = 0, iMax = terms.size(); i < iMax; i++) {
+                    recordLength = 0;
+                    putString(terms.term(i));
+                    out.write(record, 0, recordLength);
+                }
+
+                out.writeLong(position);
+                out.writeInt(documentCount);
+                out.writeLong(tokenCount);
+                out.writeInt(MAGIC);
+            }
+            finally {
+                out.close();
+            }
+        }
+
+        /**
+         * @return The number of documents written
+         */
+        public int getDocumentCount() {
+            return documentCount;
+        }
+
+        /**
+         * @return The number of tokens written
+         */
+        public long getTokenCount() {
+            return tokenCount;
+        }
+
+        /**
+         * @return The number of distinct terms written
+         */
+        public int getTermCount() {
+            return terms.size();
+        }
+
+        //----------------------------------------------------------------------------------------
+
+        private void ensureCapacity(int extra) {
+            if (recordLength + extra > record.length) {
+                byte[] grown = new byte[Math.max(2 * record.length, recordLength + extra)];
+                System.arraycopy(record, 0, grown, 0, recordLength);
+                record = grown;
+            }
+        }
+
+        private void putVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7f) != 0) {
+                record[recordLength++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            record[recordLength++] = (byte) value;
+        }
+
+        private void putString(String s) throws UnsupportedEncodingException {
+            byte[] bytes = s.getBytes("UTF-8");
+            putVarInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+            recordLength += bytes.length;
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Numbers terms in order of first appearance, using open addressing over parallel arrays
+     * instead of a map of boxed ids
+     */
+    private static final class TermTable {
+        private String[] keys = new String[1 << 12];
+        private int[] ids = new int[1 << 12];
+        private String[] terms = new String[1 << 11];
+        private int size = 0;
+
+        private int id(String term) {
+            int mask = keys.length - 1;
+            int slot = mix(term.hashCode()) & mask;
+
+            while (keys[slot] != null) {
+                if (keys[slot].equals(term))
+                    return ids[slot];
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == terms.length) {
+                String[] grown = new String[2 * terms.length];
+                System.arraycopy(terms, 0, grown, 0, size);
+                terms = grown;
+            }
+
+            int id = size++;
+            keys[slot] = term;
+            ids[slot] = id;
+            terms[id] = term;
+
+            // keep the table at most half full
+            if (2 * size > keys.length)
+                rehash();
+
+            return id;
+        }
+
+        private String term(int id) {
+            return terms[id];
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void rehash() {
+            String[] oldKeys = keys;
+            int[] oldIds = ids;
+
+            keys = new String[2 * oldKeys.length];
+            ids = new int[2 * oldIds.length];
+            int mask = keys.length - 1;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == null) continue;
+
+                int slot = mix(oldKeys[i].hashCode()) & mask;
+                while (keys[slot] != null)
+                    slot = (slot + 1) & mask;
+
+                keys[slot] = oldKeys[i];
+                ids[slot] = oldIds[i];
+            }
+        }
+
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            return h ^ (h >>> 13);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import com.google.protobuf.MessageLite;
+
+/**
+ * Records the traffic observed at one point of a flow: message counts, payload sizes,
+ * inter-arrival times and the boundaries of the (possibly nested) streams passing by.
+ *
+ * Times are kept as microseconds since the epoch, derived from a monotonic clock shared by
+ * all the probes of the JVM, so the probes of a flow can be lined up against each other by
+ * {@link FlowProbeReport}. Recording a message costs a clock read and a few additions.
+ *
+ * Instances are meant to be used from the component's execution thread.
+ */
+public class FlowProbe {
+
+    private static final long BASE_NANOS = System.nanoTime();
+    private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+
+    private static final String FORMAT = "flow-probe 1";
+
+    private final String name;
+    private final int position;
+
+    private long messages = 0;
+    private long bytes = 0;
+    private long unsized = 0;
+    private long first = -1;
+    private long last = -1;
+    private long lastMessage = -1;
+    private long gapSum = 0;
+    private long gapMax = 0;
+    private long unmatchedTerminators = 0;
+
+    // the recorded streams, in the order they started
+    private int streamCount = 0;
+    private int[] streamDepth = new int[16];
+    private long[] streamStart = new long[16];
+    private long[] streamEnd = new long[16];
+    private long[] streamMessages = new long[16];
+    private long[] streamBytes = new long[16];
+
+    // the indices of the streams currently open, innermost last
+    private int[] open = new int[8];
+    private int depth = 0;
+
+
+    /**
+     * Creates a probe
+     *
+     * @param name The probe name (unique within the flow)
+     * @param position The position of the probe along the flow (0 = closest to the source)
+     */
+    public FlowProbe(String name, int position) {
+        this.name = name;
+        this.position = position;
+    }
+
+    /**
+     * Returns the current time, in microseconds since the epoch, on the clock shared by all probes
+     *
+     * @return The current time
+     */
+    public static long now() {
+        return BASE_MICROS + (System.nanoTime() - BASE_NANOS) / 1000;
+    }
+
+    /**
+     * Cheaply estimates the size of a payload
+     *
+     * @param data The payload
+     * @return The size in bytes, or -1 if it cannot be estimated cheaply
+     */
+    public static long sizeOf(Object data) {
+        if (data instanceof MessageLite)
+            return ((MessageLite) data).getSerializedSize();  // memoized by protobuf
+
+        if (data instanceof byte[])
+            return ((byte[]) data).length;
+
+        if (data instanceof CharSequence)
+            return 2L * ((CharSequence) data).length();
+
+        return -1;
+    }
+
+    /**
+     * Records a message
+     *
+     * @param size The payload size, or -1 if unknown
+     */
+    public void message(long size) {
+        long t = touch();
+
+        if (lastMessage >= 0) {
+            long gap = t - lastMessage;
+            gapSum += gap;
+            if (gap > gapMax) gapMax = gap;
+        }
+        lastMessage = t;
+
+        messages++;
+        if (size >= 0)
+            bytes += size;
+        else
+            unsized++;
+
+        if (depth > 0) {
+            int s = open[depth - 1];
+            streamMessages[s]++;
+            if (size > 0) streamBytes[s] += size;
+        }
+    }
+
+    /**
+     * Records the start of a stream
+     */
+    public void streamStart() {
+        int s = addStream(depth, touch(), -1, 0, 0);
+
+        if (depth == open.length)
+            open = Arrays.copyOf(open, depth * 2);
+        open[depth++] = s;
+    }
+
+    /**
+     * Records the end of the innermost open stream
+     */
+    public void streamEnd() {
+        long t = touch();
+
+        if (depth == 0) {
+            unmatchedTerminators++;
+            return;
+        }
+
+        streamEnd[open[--depth]] = t;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public long getMessageCount() {
+        return messages;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getUnsizedCount() {
+        return unsized;
+    }
+
+    /** @return The time of the first message or stream marker, or -1 if nothing was seen */
+    public long getFirstTime() {
+        return first;
+    }
+
+    /** @return The time of the last message or stream marker, or -1 if nothing was seen */
+    public long getLastTime() {
+        return last;
+    }
+
+    /** @return The mean time between consecutive messages, in microseconds */
+    public long getMeanGap() {
+        return messages > 1 ? gapSum / (messages - 1) : 0;
+    }
+
+    /** @return The longest time between consecutive messages, in microseconds */
+    public long getMaxGap() {
+        return gapMax;
+    }
+
+    public long getUnmatchedTerminators() {
+        return unmatchedTerminators;
+    }
+
+    public int getStreamCount() {
+        return streamCount;
+    }
+
+    /** @return The nesting depth of the stream (0 = outermost) */
+    public int getStreamDepth(int i) {
+        return streamDepth[i];
+    }
+
+    public long getStreamStart(int i) {
+        return streamStart[i];
+    }
+
+    /** @return The time the stream ended, or -1 if it was never terminated */
+    public long getStreamEnd(int i) {
+        return streamEnd[i];
+    }
+
+    public long getStreamMessages(int i) {
+        return streamMessages[i];
+    }
+
+    public long getStreamBytes(int i) {
+        return streamBytes[i];
+    }
+
+    /**
+     * Returns the depth of the innermost streams seen, which in HTRC flows are the per-volume streams
+     *
+     * @return The deepest stream depth, or -1 if no stream was seen
+     */
+    public int getMaxStreamDepth() {
+        int max = -1;
+        for (int i = 0; i < streamCount; i++)
+            if (streamDepth[i] > max) max = streamDepth[i];
+
+        return max;
+    }
+
+    /**
+     * Returns the elapsed times of the completed streams at a given depth, in stream order
+     *
+     * @param depth The stream depth
+     * @return The elapsed times, in microseconds
+     */
+    public long[] getStreamElapsed(int depth) {
+        long[] elapsed = new long[streamCount];
+        int n = 0;
+        for (int i = 0; i < streamCount; i++)
+            if (streamDepth[i] == depth && streamEnd[i] >= 0)
+                elapsed[n++] = streamEnd[i] - streamStart[i];
+
+        return Arrays.copyOf(elapsed, n);
+    }
+
+    /**
+     * Returns the end times of the completed streams at a given depth, in stream order
+     *
+     * @param depth The stream depth
+     * @return The end times
+     */
+    public long[] getStreamEnds(int depth) {
+        long[] ends = new long[streamCount];
+        int n = 0;
+        for (int i = 0; i < streamCount; i++)
+            if (streamDepth[i] == depth && streamEnd[i] >= 0)
+                ends[n++] = streamEnd[i];
+
+        return Arrays.copyOf(ends, n);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Saves the recording
+     *
+     * @param file The file to write
+     * @throws IOException Thrown if an I/O error occurs
+     */
+    public void write(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println(FORMAT);
+            out.println("name\t" + name);
+            out.println("position\t" + position);
+            out.println("messages\t" + messages);
+            out.println("bytes\t" + bytes);
+            out.println("unsized\t" + unsized);
+            out.println("first\t" + first);
+            out.println("last\t" + last);
+            out.println("last_message\t" + lastMessage);
+            out.println("gap_sum\t" + gapSum);
+            out.println("gap_max\t" + gapMax);
+            out.println("unmatched_terminators\t" + unmatchedTerminators);
+
+            // stream <depth> <start> <end> <messages> <bytes>
+            for (int i = 0; i < streamCount; i++)
+                out.println(String.format("stream\t%d\t%d\t%d\t%d\t%d",
+                        streamDepth[i], streamStart[i], streamEnd[i], streamMessages[i], streamBytes[i]));
+        }
+        finally {
+            out.close();
+        }
+
+        if (out.checkError())
+            throw new IOException("Could not write the probe file " + file);
+    }
+
+    /**
+     * Loads a recording saved with {@link #write(File)}
+     *
+     * @param file The probe file
+     * @return The recording
+     * @throws IOException Thrown if the file cannot be read or is not a probe file
+     */
+    public static FlowProbe read(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!FORMAT.equals(in.readLine()))
+                throw new IOException("Not a flow probe file: " + file);
+
+            String name = null;
+            int position = 0;
+            FlowProbe probe = null;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t");
+                String key = parts[0];
+
+                if (key.equals("name")) {
+                    name = parts.length > 1 ? parts[1] : "";
+                    continue;
+                }
+                if (key.equals("position")) {
+                    position = Integer.parseInt(parts[1]);
+                    continue;
+                }
+
+                if (probe == null) {
+                    if (name == null)
+                        throw new IOException("Missing probe name: " + file);
+                    probe = new FlowProbe(name, position);
+                }
+
+                if (key.equals("stream")) {
+                    probe.addStream(Integer.parseInt(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                            Long.parseLong(parts[4]), Long.parseLong(parts[5]));
+                    continue;
+                }
+
+                long value = Long.parseLong(parts[1]);
+                if (key.equals("messages")) probe.messages = value;
+                else if (key.equals("bytes")) probe.bytes = value;
+                else if (key.equals("unsized")) probe.unsized = value;
+                else if (key.equals("first")) probe.first = value;
+                else if (key.equals("last")) probe.last = value;
+                else if (key.equals("last_message")) probe.lastMessage = value;
+                else if (key.equals("gap_sum")) probe.gapSum = value;
+                else if (key.equals("gap_max")) probe.gapMax = value;
+                else if (key.equals("unmatched_terminators")) probe.unmatchedTerminators = value;
+            }
+
+            if (probe == null)
+                throw new IOException("Truncated flow probe file: " + file);
+
+            return probe;
+        }
+        catch (RuntimeException e) {
+            throw new IOException("Invalid flow probe file: " + file, e);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        int volumeDepth = getMaxStreamDepth();
+        long[] elapsed = volumeDepth >= 0 ? getStreamElapsed(volumeDepth) : new long[0];
+        Arrays.sort(elapsed);
+
+        return String.format("probe '%s': %,d message(s), %,d bytes%s, %,d stream(s) over %,d ms, " +
+                "inter-arrival mean %.1f ms / max %.1f ms, innermost stream elapsed median %.1f ms / max %.1f ms",
+                name, messages, bytes, unsized > 0 ? String.format(" (+%,d unsized)", unsized) : "",
+                streamCount, first >= 0 ? (last - first) / 1000 : 0,
+                getMeanGap() / 1000.0, gapMax / 1000.0,
+                elapsed.length > 0 ? elapsed[elapsed.length / 2] / 1000.0 : 0,
+                elapsed.length > 0 ? elapsed[elapsed.length - 1] / 1000.0 : 0);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private int addStream(int d, long start, long end, long msgs, long size) {
+        if (streamCount == streamStart.length) {
+            int capacity = streamCount * 2;
+            streamDepth = Arrays.copyOf(streamDepth, capacity);
+            streamStart = Arrays.copyOf(streamStart, capacity);
+            streamEnd = Arrays.copyOf(streamEnd, capacity);
+            streamMessages = Arrays.copyOf(streamMessages, capacity);
+            streamBytes = Arrays.copyOf(streamBytes, capacity);
+        }
+
+        int s = streamCount++;
+        streamDepth[s] = d;
+        streamStart[s] = start;
+        streamEnd[s] = end;
+        streamMessages[s] = msgs;
+        streamBytes[s] = size;
+
+        return s;
+    }
+
+    private long touch() {
+        long t = now();
+        if (first < 0) first = t;
+        last = t;
+
+        return t;
+    }
+}
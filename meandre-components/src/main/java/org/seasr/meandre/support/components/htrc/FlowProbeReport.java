@@ -0,0 +1,200 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merges the recordings of the flow probes placed along a flow into a critical-path breakdown.
+ *
+ * Probes are grouped by their position; probes sharing a position sit on parallel branches,
+ * and the one that finished last is the one on the critical path. The end-to-end time, from
+ * the first event seen by the probes closest to the source to the last event seen by the
+ * probes closest to the sink, is split into one segment per position: the time between the
+ * critical probe of the previous position finishing and the critical probe of this position
+ * finishing, i.e. the time the flow spent waiting on the components in between. When the
+ * probes on both sides of a segment saw the same number of per-volume streams, the per-volume
+ * latency of the segment is reported as well.
+ *
+ * Usage: FlowProbeReport &lt;folder holding the .probe files&gt;
+ */
+public class FlowProbeReport {
+
+    public static final String PROBE_FILE_SUFFIX = ".probe";
+
+    private final TreeMap<Integer, List<FlowProbe>> levels = new TreeMap<Integer, List<FlowProbe>>();
+
+
+    public FlowProbeReport(List<FlowProbe> probes) {
+        for (FlowProbe probe : probes) {
+            List<FlowProbe> level = levels.get(probe.getPosition());
+            if (level == null) {
+                level = new ArrayList<FlowProbe>();
+                levels.put(probe.getPosition(), level);
+            }
+            level.add(probe);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: FlowProbeReport <folder holding the " + PROBE_FILE_SUFFIX + " files>");
+            System.exit(1);
+        }
+
+        List<FlowProbe> probes = load(new File(args[0]));
+        if (probes.isEmpty()) {
+            System.err.println("No probe files found in " + args[0]);
+            System.exit(1);
+        }
+
+        new FlowProbeReport(probes).print(System.out);
+    }
+
+    /**
+     * Loads all the probe files found in a folder
+     *
+     * @param dir The folder
+     * @return The probe recordings
+     * @throws IOException Thrown if a probe file cannot be read
+     */
+    public static List<FlowProbe> load(File dir) throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(PROBE_FILE_SUFFIX);
+            }
+        });
+
+        List<FlowProbe> probes = new ArrayList<FlowProbe>();
+        if (files == null) return probes;
+
+        Arrays.sort(files);
+        for (File file : files)
+            probes.add(FlowProbe.read(file));
+
+        return probes;
+    }
+
+    /**
+     * Prints the per-probe statistics followed by the critical-path breakdown
+     *
+     * @param out The output stream
+     */
+    public void print(PrintStream out) {
+        out.println("Probes");
+        out.println(String.format("%4s  %-30s %12s %12s %8s %12s %12s %14s",
+                "pos", "probe", "messages", "MB", "streams", "gap mean ms", "gap max ms", "volume med ms"));
+
+        for (Map.Entry<Integer, List<FlowProbe>> level : levels.entrySet())
+            for (FlowProbe probe : level.getValue()) {
+                int volumeDepth = probe.getMaxStreamDepth();
+                long[] elapsed = volumeDepth >= 0 ? probe.getStreamElapsed(volumeDepth) : new long[0];
+
+                out.println(String.format("%4d  %-30s %,12d %12.1f %,8d %12.2f %12.2f %14.2f",
+                        level.getKey(), probe.getName(), probe.getMessageCount(), probe.getBytes() / 1048576.0,
+                        probe.getStreamCount(), probe.getMeanGap() / 1000.0, probe.getMaxGap() / 1000.0,
+                        median(elapsed) / 1000.0));
+
+                if (probe.getUnmatchedTerminators() > 0)
+                    out.println(String.format("      warning: %,d stream terminator(s) without an initiator",
+                            probe.getUnmatchedTerminators()));
+            }
+
+        out.println();
+        out.println("Critical path");
+        out.println(String.format("%4s  %-30s %12s %8s %16s %16s",
+                "pos", "finishing probe", "segment ms", "share", "volume med ms", "volume p95 ms"));
+
+        long origin = Long.MAX_VALUE;
+        for (FlowProbe probe : levels.firstEntry().getValue())
+            if (probe.getFirstTime() >= 0 && probe.getFirstTime() < origin)
+                origin = probe.getFirstTime();
+
+        List<FlowProbe> path = new ArrayList<FlowProbe>();
+        for (List<FlowProbe> level : levels.values()) {
+            FlowProbe critical = null;
+            for (FlowProbe probe : level)
+                if (probe.getLastTime() >= 0 && (critical == null || probe.getLastTime() > critical.getLastTime()))
+                    critical = probe;
+
+            if (critical != null)
+                path.add(critical);
+        }
+
+        if (path.isEmpty() || origin == Long.MAX_VALUE) {
+            out.println("      no traffic recorded");
+            return;
+        }
+
+        long total = Math.max(1, path.get(path.size() - 1).getLastTime() - origin);
+        long prevEnd = origin;
+        FlowProbe prev = null;
+        FlowProbe bottleneck = null;
+        long bottleneckSegment = -1;
+
+        for (FlowProbe probe : path) {
+            long segment = Math.max(0, probe.getLastTime() - prevEnd);
+            long[] latencies = prev != null ? volumeLatencies(prev, probe) : null;
+
+            out.println(String.format("%4d  %-30s %,12d %7.1f%% %16s %16s",
+                    probe.getPosition(), probe.getName(), segment / 1000, 100.0 * segment / total,
+                    latencies != null ? String.format("%.2f", median(latencies) / 1000.0) : "-",
+                    latencies != null ? String.format("%.2f", percentile(latencies, 95) / 1000.0) : "-"));
+
+            if (segment > bottleneckSegment) {
+                bottleneckSegment = segment;
+                bottleneck = probe;
+            }
+
+            prevEnd = Math.max(prevEnd, probe.getLastTime());
+            prev = probe;
+        }
+
+        out.println();
+        out.println(String.format("End-to-end: %,d ms. Largest segment: %,d ms (%.1f%%) ending at probe '%s'.",
+                total / 1000, bottleneckSegment / 1000, 100.0 * bottleneckSegment / total, bottleneck.getName()));
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Matches the per-volume streams of two probes by order and returns, for each volume, the time
+     * between its stream ending at the upstream probe and ending at the downstream probe
+     *
+     * @return The latencies, or null if the streams cannot be matched
+     */
+    private static long[] volumeLatencies(FlowProbe upstream, FlowProbe downstream) {
+        int upDepth = upstream.getMaxStreamDepth();
+        int downDepth = downstream.getMaxStreamDepth();
+        if (upDepth < 0 || downDepth < 0) return null;
+
+        long[] upEnds = upstream.getStreamEnds(upDepth);
+        long[] downEnds = downstream.getStreamEnds(downDepth);
+        if (upEnds.length == 0 || upEnds.length != downEnds.length) return null;
+
+        long[] latencies = new long[upEnds.length];
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = downEnds[i] - upEnds[i];
+
+        return latencies;
+    }
+
+    private static long median(long[] values) {
+        return percentile(values, 50);
+    }
+
+    private static long percentile(long[] values, int p) {
+        if (values.length == 0) return 0;
+
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        return sorted[Math.min(sorted.length - 1, (int) ((long) sorted.length * p / 100))];
+    }
+}
@@ -0,0 +1,213 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits the amount of content that a component has pushed out but that has not yet been
+ * consumed downstream.
+ *
+ * Meandre does not tell a producer when a consumer is done with an item, so consumption is
+ * signaled explicitly: the producer accounts for the content of each volume it pushes out with
+ * {@link #admit(String, long)}, and the stage that consumes the volumes reports each volume it is
+ * done with, by volume ID, with {@link #release(String)} (in a flow, through the HTRC In-Flight
+ * Release component, which finds the budget by the name it is registered under).
+ * When the budget is exhausted, admitting the first content of a new volume blocks until enough
+ * volumes have been released. The content of a volume already in flight is always admitted, and so
+ * is a volume when nothing else is in flight, so a volume larger than the whole budget cannot stall
+ * the producer forever.
+ *
+ * A wait during which no volume is released at all fails with a {@link TimeoutException}: it means
+ * the volumes are not released (the release is missing from the flow, or placed after a consumer that
+ * holds on to the content until its stream ends), and waiting longer would deadlock the flow. The
+ * budget is never lifted behind the producer's back.
+ *
+ * A budget of 0 bytes is unlimited and tracks nothing.
+ */
+public class InFlightBudget {
+
+    private static final Map<String, InFlightBudget> registry = new HashMap<String, InFlightBudget>();
+
+    private final long maxBytes;
+    private final long maxWaitMillis;
+    private final Map<String, Long> inFlight = new HashMap<String, Long>();
+
+    private long bytesInFlight = 0;
+    private long highWaterMark = 0;
+    private long releasedCount = 0;
+    private long throttleCount = 0;
+    private long throttledNanos = 0;
+
+
+    /**
+     * Creates a budget
+     *
+     * @param maxBytes The maximum number of bytes in flight (0 = no limit)
+     * @param maxWaitMillis The longest wait for a volume to be released, before admitting fails
+     */
+    public InFlightBudget(long maxBytes, long maxWaitMillis) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("The in-flight budget cannot be negative");
+        if (maxWaitMillis <= 0)
+            throw new IllegalArgumentException("The wait for the in-flight budget must be positive");
+
+        this.maxBytes = maxBytes;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Registers a budget under a name, so that the consumers of the content can release it
+     *
+     * @param name The name of the budget, unique among the budgets in use
+     * @param budget The budget
+     * @throws IllegalArgumentException If another budget is registered under the same name
+     */
+    public static void register(String name, InFlightBudget budget) {
+        synchronized (registry) {
+            InFlightBudget registered = registry.get(name);
+            if (registered != null && registered != budget)
+                throw new IllegalArgumentException(String.format("The in-flight budget name '%s' is already in use", name));
+
+            registry.put(name, budget);
+        }
+    }
+
+    /**
+     * Removes a budget from the registry
+     *
+     * @param name The name of the budget
+     * @param budget The budget
+     */
+    public static void unregister(String name, InFlightBudget budget) {
+        synchronized (registry) {
+            if (registry.get(name) == budget)
+                registry.remove(name);
+        }
+    }
+
+    /**
+     * @param name The name of the budget
+     * @return The budget registered under the name, or null if none
+     */
+    public static InFlightBudget lookup(String name) {
+        synchronized (registry) {
+            return registry.get(name);
+        }
+    }
+
+    /**
+     * Accounts for content of a volume about to be pushed out, blocking while the budget is exhausted
+     *
+     * @param volumeId The volume the content belongs to
+     * @param bytes The (estimated) size of the content
+     * @throws InterruptedException If interrupted while waiting for the budget to drain
+     * @throws TimeoutException If no volume was released for the maximum wait while the budget was exhausted
+     */
+    public synchronized void admit(String volumeId, long bytes) throws InterruptedException, TimeoutException {
+        if (maxBytes == 0) return;
+
+        Long volumeBytes = inFlight.get(volumeId);
+        if (volumeBytes == null && bytesInFlight > 0 && bytesInFlight + bytes > maxBytes) {
+            long start = System.nanoTime();
+            throttleCount++;
+
+            try {
+                long deadline = System.currentTimeMillis() + maxWaitMillis;
+                while (bytesInFlight > 0 && bytesInFlight + bytes > maxBytes) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        throw new TimeoutException(String.format("No volume was released in %,d ms with %,d bytes " +
+                                "of %,d volume(s) in flight - are the consumed volumes released?",
+                                maxWaitMillis, bytesInFlight, inFlight.size()));
+
+                    long released = releasedCount;
+                    wait(remaining);
+
+                    // the wait is bounded between releases, not overall
+                    if (releasedCount != released)
+                        deadline = System.currentTimeMillis() + maxWaitMillis;
+                }
+            }
+            finally {
+                throttledNanos += System.nanoTime() - start;
+            }
+        }
+
+        inFlight.put(volumeId, volumeBytes == null ? bytes : volumeBytes + bytes);
+        bytesInFlight += bytes;
+        if (bytesInFlight > highWaterMark)
+            highWaterMark = bytesInFlight;
+    }
+
+    /**
+     * Returns the content of a volume to the budget, once it has been consumed
+     *
+     * @param volumeId The volume ID
+     * @return True if content of the volume was in flight
+     */
+    public synchronized boolean release(String volumeId) {
+        Long volumeBytes = inFlight.remove(volumeId);
+        if (volumeBytes == null)
+            return false;
+
+        bytesInFlight -= volumeBytes;
+        releasedCount++;
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * @return The number of bytes currently accounted as in flight
+     */
+    public synchronized long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    /**
+     * @return The largest number of bytes that were in flight at the same time
+     */
+    public synchronized long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return The number of times the producer had to wait for the budget to drain
+     */
+    public synchronized long getThrottleCount() {
+        return throttleCount;
+    }
+
+    /**
+     * @return The total time (in milliseconds) spent waiting for the budget to drain
+     */
+    public synchronized long getThrottledMillis() {
+        return throttledNanos / 1000000L;
+    }
+
+    /**
+     * @return The configured budget (0 = unlimited)
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Stops tracking all the volumes that are still in flight
+     */
+    public synchronized void clear() {
+        inFlight.clear();
+        bytesInFlight = 0;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (maxBytes == 0)
+            return "in-flight budget: unlimited";
+
+        return String.format("in-flight budget: %,d bytes, high-water mark: %,d bytes, %,d volume(s) released, " +
+                "throttled %,d time(s) for %,d ms", maxBytes, highWaterMark, releasedCount, throttleCount, getThrottledMillis());
+    }
+}
@@ -0,0 +1,149 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Locality-sensitive hashing index over MinHash signatures.
+ *
+ * Signatures are split into <i>b</i> bands of <i>r</i> rows; documents sharing all the rows of
+ * at least one band become candidates and are then verified against the similarity threshold.
+ * The band layout is the most selective one whose LSH "S-curve" threshold (1/b)^(1/r) is still
+ * at or below the requested similarity threshold, favoring recall over candidate checks.
+ */
+public class LSHIndex {
+
+    private final int numHashes;
+    private final double threshold;
+    private final int bands;
+    private final int rows;
+
+    private final List<Map<BandKey, List<Integer>>> buckets;
+    private final List<String> ids = new ArrayList<String>();
+    private final List<int[]> signatures = new ArrayList<int[]>();
+
+
+    /**
+     * Creates an index
+     *
+     * @param numHashes The signature length
+     * @param threshold The similarity at or above which two documents are considered near-duplicates
+     */
+    public LSHIndex(int numHashes, double threshold) {
+        if (threshold <= 0 || threshold > 1)
+            throw new IllegalArgumentException("The similarity threshold must be in (0, 1]");
+
+        this.numHashes = numHashes;
+        this.threshold = threshold;
+
+        // the most selective layout whose S-curve threshold does not exceed the requested one
+        // (candidates are verified against the exact threshold, so erring on the low side only costs time)
+        int bestRows = 1;
+        for (int r = 1; r <= numHashes; r++)
+            if (numHashes % r == 0 && Math.pow(1.0 / (numHashes / r), 1.0 / r) <= threshold)
+                bestRows = r;
+
+        rows = bestRows;
+        bands = numHashes / rows;
+
+        buckets = new ArrayList<Map<BandKey, List<Integer>>>(bands);
+        for (int i = 0; i < bands; i++)
+            buckets.add(new HashMap<BandKey, List<Integer>>());
+    }
+
+    public int getBands() {
+        return bands;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Finds the most similar indexed document whose similarity reaches the threshold
+     *
+     * @param signature The signature of the document to look up
+     * @return The id of the most similar indexed document, or null if there is none
+     */
+    public String findSimilar(int[] signature) {
+        checkLength(signature);
+
+        int best = -1;
+        double bestSimilarity = 0;
+        for (int band = 0; band < bands; band++) {
+            List<Integer> candidates = buckets.get(band).get(new BandKey(signature, band * rows, rows));
+            if (candidates == null) continue;
+
+            for (int candidate : candidates) {
+                if (candidate == best) continue;
+                double similarity = MinHasher.similarity(signature, signatures.get(candidate));
+                if (similarity >= threshold && similarity > bestSimilarity) {
+                    bestSimilarity = similarity;
+                    best = candidate;
+                }
+            }
+        }
+
+        return best < 0 ? null : ids.get(best);
+    }
+
+    /**
+     * Adds a document to the index
+     *
+     * @param id The document id
+     * @param signature The document signature
+     */
+    public void add(String id, int[] signature) {
+        checkLength(signature);
+
+        int idx = ids.size();
+        ids.add(id);
+        signatures.add(signature);
+
+        for (int band = 0; band < bands; band++) {
+            BandKey key = new BandKey(signature, band * rows, rows);
+            Map<BandKey, List<Integer>> bandBuckets = buckets.get(band);
+            List<Integer> bucket = bandBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Integer>(1);
+                bandBuckets.put(key, bucket);
+            }
+            bucket.add(idx);
+        }
+    }
+
+    private void checkLength(int[] signature) {
+        if (signature.length != numHashes)
+            throw new IllegalArgumentException(
+                    String.format("Expected a signature of length %d, got %d", numHashes, signature.length));
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static class BandKey {
+        private final int[] rows;
+        private final int hash;
+
+        BandKey(int[] signature, int offset, int length) {
+            rows = Arrays.copyOfRange(signature, offset, offset + length);
+            hash = Arrays.hashCode(rows);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof BandKey && Arrays.equals(rows, ((BandKey) obj).rows);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read-only access to a ZIP file through a memory mapping of the file.
+ *
+ * Only the central directory is parsed when the file is opened; entry data is located through
+ * the local headers and inflated on demand, straight from the mapped region. ZIP64 archives
+ * are not supported (volume ZIPs are far below the 4GB limit).
+ *
+ * Instances are safe for concurrent reads, but a mapping cannot be released explicitly -
+ * it goes away when the instance is garbage collected.
+ */
+public class MappedZipFile {
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIR_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final List<Entry> entries;
+
+
+    /**
+     * Opens a ZIP file and reads its central directory
+     *
+     * @param file The ZIP file
+     * @throws IOException If the file cannot be read or is not a valid ZIP file
+     */
+    public MappedZipFile(File file) throws IOException {
+        this.file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("ZIP file too large: " + file);
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+
+        entries = Collections.unmodifiableList(readCentralDirectory());
+    }
+
+    /**
+     * @return The ZIP file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The entries of the ZIP file, in central directory order
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Reads and uncompresses the content of an entry
+     *
+     * @param entry The entry
+     * @return The uncompressed content
+     * @throws IOException If the entry data is corrupt or uses an unsupported compression method
+     */
+    public byte[] read(Entry entry) throws IOException {
+        int pos = (int) entry.localHeaderOffset;
+        if (getInt(pos) != LOCAL_HEADER_SIG)
+            throw new IOException(String.format("Invalid local header for entry %s in %s", entry.name, file));
+
+        int dataStart = pos + 30 + getShort(pos + 26) + getShort(pos + 28);
+        byte[] data = new byte[(int) entry.compressedSize];
+        get(dataStart, data);
+
+        switch (entry.method) {
+            case METHOD_STORED:
+                return data;
+
+            case METHOD_DEFLATED:
+                byte[] content = new byte[(int) entry.size];
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(data);
+                    int len = 0;
+                    while (len < content.length) {
+                        int n = inflater.inflate(content, len, content.length - len);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                            break;
+                        len += n;
+                    }
+                    if (len != content.length)
+                        throw new IOException(String.format("Truncated data for entry %s in %s", entry.name, file));
+                }
+                catch (DataFormatException e) {
+                    throw new IOException(String.format("Corrupt data for entry %s in %s: %s", entry.name, file, e.getMessage()));
+                }
+                finally {
+                    inflater.end();
+                }
+                return content;
+
+            default:
+                throw new IOException(String.format("Unsupported compression method %d for entry %s in %s",
+                        entry.method, entry.name, file));
+        }
+    }
+
+    /**
+     * Reads the content of an entry as UTF-8 text
+     *
+     * @param entry The entry
+     * @return The text
+     * @throws IOException If the entry cannot be read
+     */
+    public String readText(Entry entry) throws IOException {
+        return new String(read(entry), "UTF-8");
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        int eocd = -1;
+        int limit = Math.max(0, buffer.capacity() - END_OF_CENTRAL_DIR_SIZE - MAX_COMMENT_SIZE);
+        for (int pos = buffer.capacity() - END_OF_CENTRAL_DIR_SIZE; pos >= limit; pos--)
+            if (getInt(pos) == END_OF_CENTRAL_DIR_SIG) {
+                eocd = pos;
+                break;
+            }
+
+        if (eocd < 0)
+            throw new IOException("Not a ZIP file: " + file);
+
+        int count = getShort(eocd + 10);
+        long cdOffset = getUnsignedInt(eocd + 16);
+        if (count == 0xffff || cdOffset == 0xffffffffL)
+            throw new IOException("ZIP64 archives are not supported: " + file);
+
+        List<Entry> list = new ArrayList<Entry>(count);
+        int pos = (int) cdOffset;
+        for (int i = 0; i < count; i++) {
+            if (getInt(pos) != CENTRAL_HEADER_SIG)
+                throw new IOException("Invalid central directory in " + file);
+
+            int nameLen = getShort(pos + 28);
+            byte[] name = new byte[nameLen];
+            get(pos + 46, name);
+
+            list.add(new Entry(decodeName(name), getShort(pos + 10),
+                    getUnsignedInt(pos + 20), getUnsignedInt(pos + 24), getUnsignedInt(pos + 42)));
+
+            pos += 46 + nameLen + getShort(pos + 30) + getShort(pos + 32);
+        }
+
+        return list;
+    }
+
+    private static String decodeName(byte[] name) {
+        try {
+            return new String(name, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int getShort(int pos) {
+        return buffer.getShort(pos) & 0xffff;
+    }
+
+    private int getInt(int pos) {
+        return buffer.getInt(pos);
+    }
+
+    private long getUnsignedInt(int pos) {
+        return buffer.getInt(pos) & 0xffffffffL;
+    }
+
+    private void get(int pos, byte[] dst) throws IOException {
+        if (pos < 0 || pos + dst.length > buffer.capacity())
+            throw new IOException("Entry data out of bounds in " + file);
+
+        // duplicate so that concurrent readers don't share the buffer position
+        ByteBuffer view = buffer.duplicate();
+        view.position(pos);
+        view.get(dst);
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public static class Entry {
+        private final String name;
+        private final int method;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Computes MinHash signatures of texts, based on their word shingles.
+ *
+ * Words are maximal runs of letters or digits (lowercased); a shingle is a sequence of
+ * <code>shingleSize</code> consecutive words. The fraction of positions at which two
+ * signatures agree estimates the Jaccard similarity of the two shingle sets.
+ *
+ * To save time on long texts, only the shingles whose hash falls in a 1 in <code>sampleRate</code>
+ * slice of the hash space update the signature. The choice only depends on the content of the
+ * shingle, so two texts sharing a passage sample the same shingles from it wherever it appears
+ * (unlike sampling by position, which misses the overlap when the texts are offset, e.g. scans
+ * of the same work with different front matter). The same rule applies to every text, whatever
+ * its length, so that all the signatures estimate the similarity of the same shingle population;
+ * a text too short to have any shingle sampled has no signature.
+ */
+public class MinHasher {
+
+    private final int numHashes;
+    private final int shingleSize;
+    private final int sampleRate;
+    private final long[] a;
+    private final long[] b;
+
+
+    /**
+     * Creates a MinHasher
+     *
+     * @param numHashes The signature length
+     * @param shingleSize The number of words per shingle
+     * @param seed The seed for the hash functions (signatures are only comparable for the same seed)
+     */
+    public MinHasher(int numHashes, int shingleSize, long seed) {
+        this(numHashes, shingleSize, 1, seed);
+    }
+
+    /**
+     * Creates a MinHasher that samples the shingles by hash value
+     *
+     * @param numHashes The signature length
+     * @param shingleSize The number of words per shingle
+     * @param sampleRate Only 1 in sampleRate shingles (chosen by hash value) are used (1 = all)
+     * @param seed The seed for the hash functions (signatures are only comparable for the same seed and sample rate)
+     */
+    public MinHasher(int numHashes, int shingleSize, int sampleRate, long seed) {
+        if (numHashes < 1 || shingleSize < 1 || sampleRate < 1)
+            throw new IllegalArgumentException("The number of hashes, the shingle size and the sample rate must be positive");
+
+        this.numHashes = numHashes;
+        this.shingleSize = shingleSize;
+        this.sampleRate = sampleRate;
+
+        Random random = new Random(seed);
+        a = new long[numHashes];
+        b = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            a[i] = random.nextLong() | 1L;
+            b[i] = random.nextLong();
+        }
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Computes the signature of a set of texts, treated as a single document
+     * (shingles do not span text boundaries)
+     *
+     * @param texts The texts
+     * @return The signature, or null if none of the shingles of the texts is sampled
+     */
+    public int[] signature(Iterable<String> texts) {
+        int[] signature = new int[numHashes];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        boolean empty = true;
+
+        long[] window = new long[shingleSize];
+        for (String text : texts) {
+            int words = 0;
+            int len = text.length();
+            for (int start = TokenCounter.wordStart(text, 0), end; start < len; start = TokenCounter.wordStart(text, end)) {
+                end = TokenCounter.wordEnd(text, start);
+
+                long h = 0xcbf29ce484222325L;
+                for (int i = start; i < end; i++) {
+                    h ^= Character.toLowerCase(text.charAt(i));
+                    h *= 0x100000001b3L;
+                }
+
+                window[words++ % shingleSize] = h;
+                if (words >= shingleSize) {
+                    long x = shingleHash(window, words);
+                    if (sampleRate == 1 || (int) ((x * 0xbf58476d1ce4e5b9L) >>> 33) % sampleRate == 0) {
+                        update(signature, x);
+                        empty = false;
+                    }
+                }
+            }
+        }
+
+        return empty ? null : signature;
+    }
+
+    /**
+     * Estimates the Jaccard similarity of the documents that produced two signatures
+     *
+     * @param s1 The first signature
+     * @param s2 The second signature
+     * @return The estimated similarity (0..1)
+     */
+    public static double similarity(int[] s1, int[] s2) {
+        if (s1.length != s2.length)
+            throw new IllegalArgumentException("Signatures of different lengths");
+
+        int same = 0;
+        for (int i = 0; i < s1.length; i++)
+            if (s1[i] == s2[i]) same++;
+
+        return (double) same / s1.length;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private long shingleHash(long[] window, int words) {
+        // combine the word hashes in shingle order, starting with the oldest word in the window
+        long h = 0;
+        for (int j = 0; j < shingleSize; j++)
+            h = h * 0x9e3779b97f4a7c15L + window[(words + j) % shingleSize];
+
+        return h;
+    }
+
+    private void update(int[] signature, long x) {
+        for (int i = 0; i < numHashes; i++) {
+            int h = (int) ((a[i] * x + b[i]) >>> 32);
+            if (h < signature[i])
+                signature[i] = h;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import opennlp.tools.namefind.NameFinderME;
+import opennlp.tools.namefind.TokenNameFinderModel;
+import opennlp.tools.postag.POSModel;
+import opennlp.tools.postag.POSTaggerME;
+import opennlp.tools.sentdetect.SentenceDetectorME;
+import opennlp.tools.sentdetect.SentenceModel;
+import opennlp.tools.tokenize.TokenizerME;
+import opennlp.tools.tokenize.TokenizerModel;
+import opennlp.tools.util.Span;
+
+/**
+ * Runs the OpenNLP sentence detector, tokenizer and POS tagger or named entity finders over a text
+ * in a single call, so a page can be analyzed by one thread instead of passing through a chain of
+ * single-threaded components.
+ *
+ * The models are loaded once and shared; the OpenNLP tools using them are not thread-safe, so
+ * each thread calling {@link #analyze(String)} gets its own set of tools.
+ *
+ * The models are read from a directory holding the files of the OpenNLP 1.5 model distribution:
+ * <code>&lt;lang&gt;-sent.bin</code>, <code>&lt;lang&gt;-token.bin</code>, <code>&lt;lang&gt;-pos-maxent.bin</code>
+ * and <code>&lt;lang&gt;-ner-&lt;type&gt;.bin</code>.
+ */
+public class OpenNLPPipeline {
+
+    public enum Analysis { ENTITIES, POS }
+
+    /** The tuple fields of the entities, as output by the OpenNLP named entity component */
+    public static final String[] ENTITY_FIELDS = { "sentenceId", "type", "textStart", "textEnd", "text" };
+
+    /** The tuple fields of the tagged tokens, as output by the OpenNLP POS tagger component */
+    public static final String[] POS_FIELDS = { "sentenceId", "token", "pos", "posProb", "tokenStart" };
+
+    private final Analysis analysis;
+    private final SentenceModel sentenceModel;
+    private final TokenizerModel tokenizerModel;
+    private final POSModel posModel;
+    private final String[] entityTypes;
+    private final TokenNameFinderModel[] entityModels;
+    private final Pattern posFilter;
+
+    private final ThreadLocal<Tools> tools = new ThreadLocal<Tools>() {
+        @Override
+        protected Tools initialValue() {
+            return new Tools();
+        }
+    };
+
+
+    /**
+     * Loads the models of a pipeline
+     *
+     * @param modelDir The directory holding the model files
+     * @param langCode The language of the models (2-character ISO 639-1 code)
+     * @param analysis What to extract
+     * @param entityTypes The entity types to tag (for Analysis.ENTITIES)
+     * @param posFilter Only the tokens whose POS tag matches are kept (for Analysis.POS; null = keep all)
+     * @throws IOException Thrown if a model cannot be loaded
+     */
+    public OpenNLPPipeline(File modelDir, String langCode, Analysis analysis, String[] entityTypes, Pattern posFilter)
+            throws IOException {
+        this.analysis = analysis;
+        this.posFilter = posFilter;
+
+        InputStream in = open(modelDir, langCode + "-sent.bin");
+        try {
+            sentenceModel = new SentenceModel(in);
+        }
+        finally {
+            in.close();
+        }
+
+        in = open(modelDir, langCode + "-token.bin");
+        try {
+            tokenizerModel = new TokenizerModel(in);
+        }
+        finally {
+            in.close();
+        }
+
+        if (analysis == Analysis.POS) {
+            in = open(modelDir, langCode + "-pos-maxent.bin");
+            try {
+                posModel = new POSModel(in);
+            }
+            finally {
+                in.close();
+            }
+
+            this.entityTypes = new String[0];
+            this.entityModels = new TokenNameFinderModel[0];
+        }
+        else {
+            posModel = null;
+
+            this.entityTypes = entityTypes;
+            this.entityModels = new TokenNameFinderModel[entityTypes.length];
+            for (int i = 0; i < entityTypes.length; i++) {
+                in = open(modelDir, langCode + "-ner-" + entityTypes[i] + ".bin");
+                try {
+                    entityModels[i] = new TokenNameFinderModel(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The names of the fields of the tuples returned by {@link #analyze(String)}
+     */
+    public String[] getFieldNames() {
+        return analysis == Analysis.POS ? POS_FIELDS : ENTITY_FIELDS;
+    }
+
+    /**
+     * Analyzes a text (can be called concurrently)
+     *
+     * @param text The text
+     * @return The entities or tagged tokens found, in text order; offsets are relative to the sentence
+     */
+    public List<String[]> analyze(String text) {
+        Tools t = tools.get();
+        List<String[]> tuples = new ArrayList<String[]>();
+
+        Span[] sentences = t.sentenceDetector.sentPosDetect(text);
+        for (int s = 0; s < sentences.length; s++) {
+            String sentence = sentences[s].getCoveredText(text).toString();
+            String sentenceId = Integer.toString(s);
+
+            Span[] tokenSpans = t.tokenizer.tokenizePos(sentence);
+            String[] tokens = new String[tokenSpans.length];
+            for (int i = 0; i < tokens.length; i++)
+                tokens[i] = tokenSpans[i].getCoveredText(sentence).toString();
+
+            if (analysis == Analysis.POS) {
+                String[] tags = t.posTagger.tag(tokens);
+                double[] probs = t.posTagger.probs();
+
+                for (int i = 0; i < tokens.length; i++) {
+                    if (posFilter != null && !posFilter.matcher(tags[i]).matches())
+                        continue;
+
+                    tuples.add(new String[] { sentenceId, tokens[i], tags[i], Double.toString(probs[i]),
+                            Integer.toString(tokenSpans[i].getStart()) });
+                }
+            }
+            else {
+                for (int f = 0; f < t.nameFinders.length; f++)
+                    for (Span entity : t.nameFinders[f].find(tokens)) {
+                        int start = tokenSpans[entity.getStart()].getStart();
+                        int end = tokenSpans[entity.getEnd() - 1].getEnd();
+
+                        tuples.add(new String[] { sentenceId, entityTypes[f], Integer.toString(start),
+                                Integer.toString(end), sentence.substring(start, end) });
+                    }
+            }
+        }
+
+        // the name finders adapt to the document they are reading
+        for (NameFinderME nameFinder : t.nameFinders)
+            nameFinder.clearAdaptiveData();
+
+        return tuples;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static InputStream open(File modelDir, String name) throws IOException {
+        File file = new File(modelDir, name);
+        if (!file.isFile())
+            throw new IOException("Missing OpenNLP model: " + file);
+
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * The OpenNLP tools of a thread
+     */
+    private class Tools {
+        private final SentenceDetectorME sentenceDetector = new SentenceDetectorME(sentenceModel);
+        private final TokenizerME tokenizer = new TokenizerME(tokenizerModel);
+        private final POSTaggerME posTagger = posModel != null ? new POSTaggerME(posModel) : null;
+        private final NameFinderME[] nameFinders = new NameFinderME[entityModels.length];
+
+        private Tools() {
+            for (int i = 0; i < nameFinders.length; i++)
+                nameFinders[i] = new NameFinderME(entityModels[i]);
+        }
+    }
+}
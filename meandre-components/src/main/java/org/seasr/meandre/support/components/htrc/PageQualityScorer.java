@@ -0,0 +1,157 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Scores the OCR quality of a page from cheap statistics computed in a single pass over the text,
+ * to tell prose apart from blank pages, plates, tables and OCR garbage:
+ *
+ * <ul>
+ * <li>the ratio of letters among the non-whitespace characters (garbage and tables are full of
+ *     punctuation, digits and stray symbols);</li>
+ * <li>the mean token length (OCR noise produces very short or very long tokens);</li>
+ * <li>the ratio of dictionary words in a sample of the tokens spread over the page (optional);</li>
+ * <li>the length of the page (pages shorter than a minimum score 0).</li>
+ * </ul>
+ *
+ * Each statistic is mapped to [0, 1] and the score is their mean.
+ */
+public class PageQualityScorer {
+
+    /** Common English words, used when no dictionary is given */
+    private static final String[] DEFAULT_DICTIONARY = {
+        "a", "about", "after", "all", "also", "an", "and", "any", "are", "as", "at", "be", "been", "but", "by",
+        "can", "could", "did", "do", "each", "for", "from", "had", "has", "have", "he", "her", "him", "his",
+        "how", "i", "if", "in", "into", "is", "it", "its", "may", "me", "more", "most", "my", "no", "not",
+        "now", "of", "on", "one", "only", "or", "other", "our", "out", "over", "said", "she", "so", "some",
+        "such", "than", "that", "the", "their", "them", "then", "there", "these", "they", "this", "those",
+        "through", "to", "two", "up", "upon", "very", "was", "we", "were", "what", "when", "which", "who",
+        "will", "with", "would", "you", "your"
+    };
+
+    /** Rough number of characters per token, used to spread the dictionary sample over the page */
+    private static final int CHARS_PER_TOKEN = 6;
+
+    private final int minLength;
+    private final int sampleSize;
+    private final Set<String> dictionary;
+
+
+    /**
+     * Creates a scorer
+     *
+     * @param minLength The minimum number of non-whitespace characters of a page (shorter pages score 0)
+     * @param sampleSize The number of tokens checked against the dictionary (0 = do not use the dictionary)
+     * @param dictionary The dictionary words, in lower case (null = common English words)
+     */
+    public PageQualityScorer(int minLength, int sampleSize, Set<String> dictionary) {
+        this.minLength = minLength;
+        this.sampleSize = sampleSize;
+        this.dictionary = dictionary != null ? dictionary : new HashSet<String>(Arrays.asList(DEFAULT_DICTIONARY));
+    }
+
+    /**
+     * Loads a dictionary file (one word per line)
+     *
+     * @param file The dictionary file
+     * @return The words, in lower case
+     * @throws IOException Thrown if the file cannot be read
+     */
+    public static Set<String> loadDictionary(File file) throws IOException {
+        Set<String> words = new HashSet<String>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0)
+                    words.add(line.toLowerCase());
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        return words;
+    }
+
+    /**
+     * Scores a page
+     *
+     * @param text The page text
+     * @return The score, between 0 (garbage or blank) and 1 (clean prose)
+     */
+    public double score(String text) {
+        int stride = Math.max(1, sampleSize > 0 ? text.length() / CHARS_PER_TOKEN / sampleSize : 1);
+
+        int nonSpace = 0;
+        int letters = 0;
+        int tokens = 0;
+        int tokenChars = 0;
+        int sampled = 0;
+        int hits = 0;
+
+        int tokenStart = -1;
+        for (int i = 0, iMax = text.length(); i <= iMax; i++) {
+            char c = i < iMax ? text.charAt(i) : ' ';
+
+            if (Character.isWhitespace(c)) {
+                if (tokenStart >= 0) {
+                    if (sampleSize > 0 && sampled < sampleSize && tokens % stride == 0) {
+                        sampled++;
+                        if (isDictionaryWord(text, tokenStart, i)) hits++;
+                    }
+
+                    tokens++;
+                    tokenChars += i - tokenStart;
+                    tokenStart = -1;
+                }
+                continue;
+            }
+
+            nonSpace++;
+            if (Character.isLetter(c)) letters++;
+            if (tokenStart < 0) tokenStart = i;
+        }
+
+        if (nonSpace < minLength || tokens == 0)
+            return 0;
+
+        double letterScore = scale((double) letters / nonSpace, 0.5, 0.8);
+
+        double meanTokenLength = (double) tokenChars / tokens;
+        double lengthScore = meanTokenLength < 4 ? scale(meanTokenLength, 2, 4) : 1 - scale(meanTokenLength, 9, 14);
+
+        if (sampleSize == 0)
+            return (letterScore + lengthScore) / 2;
+
+        double dictionaryScore = scale((double) hits / sampled, 0, 0.25);
+
+        return (letterScore + lengthScore + dictionaryScore) / 3;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private boolean isDictionaryWord(String text, int start, int end) {
+        // strip leading and trailing punctuation
+        while (start < end && !Character.isLetter(text.charAt(start))) start++;
+        while (end > start && !Character.isLetter(text.charAt(end - 1))) end--;
+
+        return start < end && dictionary.contains(text.substring(start, end).toLowerCase());
+    }
+
+    /**
+     * Maps a value linearly from [low, high] to [0, 1], clamping outside the range
+     */
+    private static double scale(double value, double low, double high) {
+        return value <= low ? 0 : value >= high ? 1 : (value - low) / (high - low);
+    }
+}
@@ -0,0 +1,132 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import gov.loc.repository.pairtree.Pairtree;
+
+/**
+ * Resolves HathiTrust volume IDs to the volume ZIP files of a local pairtree mirror.
+ *
+ * A volume ID has the form <i>namespace.id</i> (e.g. <code>mdp.39015012345678</code>) and is
+ * stored at <code>root/namespace/pairtree_root/pp/pp/.../cleanid/cleanid.zip</code>, where
+ * <i>cleanid</i> is the ID cleaned according to the pairtree specification and <i>pp</i>
+ * are its successive two-character "shorties".
+ */
+public class PairtreeMirror {
+
+    private static final String PAIRTREE_ROOT = "pairtree_root";
+    private static final Pairtree PAIRTREE = new Pairtree();
+
+    private final File root;
+
+
+    /**
+     * Creates a mirror resolver
+     *
+     * @param root The root folder of the mirror (containing one folder per namespace)
+     */
+    public PairtreeMirror(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @return The root folder of the mirror
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Returns the location where the ZIP file for a volume would be stored in the mirror
+     *
+     * @param volumeId The HathiTrust volume ID
+     * @return The location of the volume ZIP file (which may not exist)
+     * @throws IllegalArgumentException If the volume ID does not have a namespace prefix
+     */
+    public File resolve(String volumeId) {
+        int dot = volumeId.indexOf('.');
+        if (dot <= 0 || dot == volumeId.length() - 1)
+            throw new IllegalArgumentException("Invalid volume id: " + volumeId);
+
+        String namespace = volumeId.substring(0, dot);
+        String cleanId = cleanId(volumeId.substring(dot + 1));
+
+        File dir = new File(new File(root, namespace), PAIRTREE_ROOT);
+        for (int i = 0, iMax = cleanId.length(); i < iMax; i += 2)
+            dir = new File(dir, cleanId.substring(i, Math.min(i + 2, iMax)));
+
+        return new File(new File(dir, cleanId), cleanId + ".zip");
+    }
+
+    /**
+     * Returns the ZIP file for a volume, if the mirror contains it
+     *
+     * @param volumeId The HathiTrust volume ID
+     * @return The volume ZIP file, or null if the volume is not in the mirror
+     */
+    public File getVolumeZip(String volumeId) {
+        File zip;
+        try {
+            zip = resolve(volumeId);
+        }
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        return zip.isFile() ? zip : null;
+    }
+
+    /**
+     * Reads the text of all the pages of a volume from its ZIP file
+     *
+     * @param volumeZip The volume ZIP file
+     * @return The page texts, in page sequence order
+     * @throws IOException If the ZIP file cannot be read
+     */
+    public static List<String> readPages(File volumeZip) throws IOException {
+        MappedZipFile zip = new MappedZipFile(volumeZip);
+
+        // page files are named by their zero-padded sequence number, e.g. 00000001.txt
+        List<MappedZipFile.Entry> pageEntries = new ArrayList<MappedZipFile.Entry>();
+        for (MappedZipFile.Entry entry : zip.getEntries())
+            if (!entry.isDirectory() && entry.getName().endsWith(".txt"))
+                pageEntries.add(entry);
+
+        Collections.sort(pageEntries, new Comparator<MappedZipFile.Entry>() {
+            public int compare(MappedZipFile.Entry e1, MappedZipFile.Entry e2) {
+                return e1.getName().compareTo(e2.getName());
+            }
+        });
+
+        List<String> pages = new ArrayList<String>(pageEntries.size());
+        for (MappedZipFile.Entry entry : pageEntries)
+            pages.add(zip.readText(entry));
+
+        return pages;
+    }
+
+    /**
+     * Cleans an identifier according to the pairtree specification
+     *
+     * @param id The identifier (without the namespace prefix)
+     * @return The cleaned identifier
+     */
+    public static String cleanId(String id) {
+        return PAIRTREE.cleanId(id);
+    }
+
+    /**
+     * Reverses {@link #cleanId(String)}
+     *
+     * @param cleanId The cleaned identifier
+     * @return The original identifier
+     */
+    public static String uncleanId(String cleanId) {
+        return PAIRTREE.uncleanId(cleanId);
+    }
+}
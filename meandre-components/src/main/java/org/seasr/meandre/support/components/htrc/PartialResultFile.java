@@ -0,0 +1,285 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.seasr.datatypes.core.BasicDataTypes.IntegersMap;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypes.StringsArray;
+
+/**
+ * The file format used to exchange the partial results of a sharded flow.
+ *
+ * A partial file starts with a header identifying the run and the shard, followed by a sequence
+ * of records, each holding a serialized token count map or a tuple set (meta tuple + tuples),
+ * tagged with the volume ID it belongs to ("" for results that span volumes), or the position of a
+ * volume in the workset, which the merger orders the results of the volumes by. Writers produce the
+ * file under a temporary name and rename it when closed, so a reader never sees an incomplete
+ * partial; the run ID lets the merger tell the partials of the current run from stale ones.
+ */
+public final class PartialResultFile {
+
+    private static final int MAGIC = 0x48545043;  // "HTPC"
+    private static final int VERSION = 3;
+
+    private static final byte RECORD_TOKEN_COUNTS = 1;
+    private static final byte RECORD_TUPLES = 2;
+    private static final byte RECORD_POSITION = 3;
+
+    private static final String SUFFIX = ".part";
+    private static final String TMP_SUFFIX = ".tmp";
+
+
+    private PartialResultFile() {
+    }
+
+    /**
+     * Returns the location of the partial file for a shard
+     *
+     * @param dir The folder holding the partial files
+     * @param name The name of the result (shared by all shards)
+     * @param shardIndex The shard index
+     * @param shardCount The total number of shards
+     * @return The partial file location
+     */
+    public static File getFile(File dir, String name, int shardIndex, int shardCount) {
+        return new File(dir, String.format("%s.shard-%d-of-%d%s", name, shardIndex, shardCount, SUFFIX));
+    }
+
+    /**
+     * Reads the header of a partial file
+     *
+     * @param file The partial file
+     * @return The header
+     * @throws IOException If the file is not a valid partial file
+     */
+    public static Header readHeader(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return readHeader(in, file);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a partial file
+     *
+     * @param file The partial file
+     * @param handler The handler receiving the records
+     * @return The header of the file
+     * @throws Exception If the file is invalid or the handler fails
+     */
+    public static Header read(File file, RecordHandler handler) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            Header header = readHeader(in, file);
+
+            while (true) {
+                int type;
+                try {
+                    type = in.readByte();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+
+                String volumeId = in.readUTF();
+
+                switch (type) {
+                    case RECORD_TOKEN_COUNTS:
+                        handler.tokenCounts(volumeId, IntegersMap.parseFrom(readBlock(in)));
+                        break;
+
+                    case RECORD_TUPLES:
+                        Strings meta = Strings.parseFrom(readBlock(in));
+                        handler.tuples(volumeId, meta, StringsArray.parseFrom(readBlock(in)));
+                        break;
+
+                    case RECORD_POSITION:
+                        handler.position(volumeId, in.readInt());
+                        break;
+
+                    default:
+                        throw new IOException(String.format("Unknown record type %d in %s", type, file));
+                }
+            }
+
+            return header;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static Header readHeader(DataInputStream in, File file) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a partial result file: " + file);
+
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException(String.format("Unsupported partial result file version %d: %s", version, file));
+
+        String runId = in.readUTF();
+        int shardIndex = in.readInt();
+        int shardCount = in.readInt();
+
+        return new Header(runId, shardIndex, shardCount);
+    }
+
+    private static byte[] readBlock(DataInputStream in) throws IOException {
+        byte[] block = new byte[in.readInt()];
+        in.readFully(block);
+        return block;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public interface RecordHandler {
+        public void tokenCounts(String volumeId, IntegersMap counts) throws Exception;
+        public void tuples(String volumeId, Strings meta, StringsArray tuples) throws Exception;
+        public void position(String volumeId, int position) throws Exception;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public static class Header {
+        private final String runId;
+        private final int shardIndex;
+        private final int shardCount;
+
+        public Header(String runId, int shardIndex, int shardCount) {
+            this.runId = runId;
+            this.shardIndex = shardIndex;
+            this.shardCount = shardCount;
+        }
+
+        public String getRunId() {
+            return runId;
+        }
+
+        public int getShardIndex() {
+            return shardIndex;
+        }
+
+        public int getShardCount() {
+            return shardCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("run '%s', shard %d of %d", runId, shardIndex, shardCount);
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public static class Writer {
+        private final File file;
+        private final File tmpFile;
+        private final DataOutputStream out;
+        private int recordCount = 0;
+
+        /**
+         * Starts writing the partial file for a shard
+         *
+         * @param file The final location of the partial file
+         * @param runId The ID of the run (shared by all shards)
+         * @param shardIndex The shard index
+         * @param shardCount The total number of shards
+         * @throws IOException
+         */
+        public Writer(File file, String runId, int shardIndex, int shardCount) throws IOException {
+            this.file = file;
+            this.tmpFile = new File(file.getPath() + TMP_SUFFIX);
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(runId);
+            out.writeInt(shardIndex);
+            out.writeInt(shardCount);
+        }
+
+        /**
+         * @param volumeId The volume the counts belong to ("" if they span volumes)
+         * @param counts The token counts
+         * @throws IOException
+         */
+        public void writeTokenCounts(String volumeId, IntegersMap counts) throws IOException {
+            out.writeByte(RECORD_TOKEN_COUNTS);
+            out.writeUTF(volumeId);
+            writeBlock(counts.toByteArray());
+            recordCount++;
+        }
+
+        /**
+         * @param volumeId The volume the tuples belong to ("" if they span volumes)
+         * @param meta The meta tuple
+         * @param tuples The tuples
+         * @throws IOException
+         */
+        public void writeTuples(String volumeId, Strings meta, StringsArray tuples) throws IOException {
+            out.writeByte(RECORD_TUPLES);
+            out.writeUTF(volumeId);
+            writeBlock(meta.toByteArray());
+            writeBlock(tuples.toByteArray());
+            recordCount++;
+        }
+
+        /**
+         * @param volumeId The volume
+         * @param position The position of the volume in the workset (the first occurrence, counting from 0)
+         * @throws IOException
+         */
+        public void writePosition(String volumeId, int position) throws IOException {
+            out.writeByte(RECORD_POSITION);
+            out.writeUTF(volumeId);
+            out.writeInt(position);
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Finishes the partial file and makes it visible under its final name
+         *
+         * @throws IOException
+         */
+        public void close() throws IOException {
+            out.close();
+
+            if (file.exists() && !file.delete())
+                throw new IOException("Cannot replace existing partial file " + file);
+
+            if (!tmpFile.renameTo(file))
+                throw new IOException(String.format("Cannot rename %s to %s", tmpFile, file));
+        }
+
+        /**
+         * Abandons the partial file
+         */
+        public void discard() {
+            try {
+                out.close();
+            }
+            catch (IOException e) { }
+
+            tmpFile.delete();
+        }
+
+        private void writeBlock(byte[] block) throws IOException {
+            out.writeInt(block.length);
+            out.write(block);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.seasr.datatypes.core.BasicDataTypes.IntegersMap;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypes.StringsArray;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+
+/**
+ * Combines the partial result files of all the shards of a run into the result of the whole workset.
+ *
+ * Token counts are summed. Tuples are ordered by the workset position of the volume their record
+ * is tagged with, as recorded by the partial writers (the records of a volume keep the order they
+ * were written in), so the merged tuples are in the order of a single-node run that retrieves the
+ * workset in input order, whatever the number of shards. Records that are not tagged with a volume
+ * (results spanning volumes) follow, in shard order.
+ */
+public class PartialResultMerger {
+
+    private final String runId;
+    private final int shardCount;
+
+    private final Map<String, Integer> tokenCounts = new HashMap<String, Integer>();
+    private final List<TupleRecord> tupleRecords = new ArrayList<TupleRecord>();
+    private final Map<String, Integer> positions = new HashMap<String, Integer>();
+    private boolean hasTokenCounts = false;
+    private Strings meta = null;
+    private int shardsMerged = 0;
+    private int untaggedTupleRecords = 0;
+
+
+    /**
+     * Creates a merger
+     *
+     * @param runId The ID of the run whose partials are merged
+     * @param shardCount The total number of shards of the run
+     */
+    public PartialResultMerger(String runId, int shardCount) {
+        this.runId = runId;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Checks whether a partial file belongs to the run being merged
+     *
+     * @param header The header of the partial file
+     * @return True if the partial file was written by this run, for this number of shards
+     */
+    public boolean belongsToRun(PartialResultFile.Header header) {
+        return runId.equals(header.getRunId()) && header.getShardCount() == shardCount;
+    }
+
+    /**
+     * Adds the records of a partial file
+     *
+     * @param partial The partial file
+     * @param shardIndex The shard the file is expected to hold
+     * @throws Exception If the file does not belong to the run or shard, or is invalid
+     */
+    public void add(final File partial, int shardIndex) throws Exception {
+        final Set<String> taggedVolumes = new HashSet<String>();
+        PartialResultFile.Header header = PartialResultFile.read(partial, new PartialResultFile.RecordHandler() {
+            public void tokenCounts(String volumeId, IntegersMap counts) {
+                hasTokenCounts = true;
+                for (int i = 0, iMax = counts.getKeyCount(); i < iMax; i++) {
+                    String token = counts.getKey(i);
+                    int count = counts.getValue(i).getValue(0);
+                    Integer total = tokenCounts.get(token);
+                    tokenCounts.put(token, total == null ? count : total + count);
+                }
+            }
+
+            public void tuples(String volumeId, Strings tupleMeta, StringsArray tupleSet) throws IOException {
+                if (meta == null)
+                    meta = tupleMeta;
+                else if (!meta.getValueList().equals(tupleMeta.getValueList()))
+                    throw new IOException("The tuples in " + partial + " have a different meta tuple");
+
+                if (volumeId.length() == 0)
+                    untaggedTupleRecords++;
+                else
+                    taggedVolumes.add(volumeId);
+
+                tupleRecords.add(new TupleRecord(volumeId, tupleRecords.size(), tupleSet));
+            }
+
+            public void position(String volumeId, int position) {
+                positions.put(volumeId, position);
+            }
+        });
+
+        if (!belongsToRun(header) || header.getShardIndex() != shardIndex)
+            throw new IOException(String.format("%s holds %s, expected run '%s', shard %d of %d",
+                    partial, header, runId, shardIndex, shardCount));
+
+        for (String volumeId : taggedVolumes)
+            if (!positions.containsKey(volumeId))
+                throw new IOException(String.format("%s holds tuples of %s but not its workset position", partial, volumeId));
+
+        shardsMerged++;
+    }
+
+    /**
+     * @return True if any partial held token counts
+     */
+    public boolean hasTokenCounts() {
+        return hasTokenCounts;
+    }
+
+    /**
+     * @return The summed token counts
+     */
+    public Map<String, Integer> getTokenCounts() {
+        return tokenCounts;
+    }
+
+    /**
+     * @return The meta tuple of the tuples, or null if no partial held tuples
+     */
+    public Strings getMeta() {
+        return meta;
+    }
+
+    /**
+     * @return The tuples, in the workset order of their volumes
+     */
+    public List<Strings> getTuples() {
+        List<TupleRecord> records = new ArrayList<TupleRecord>(tupleRecords);
+        Collections.sort(records, new Comparator<TupleRecord>() {
+            public int compare(TupleRecord r1, TupleRecord r2) {
+                // untagged records last
+                boolean u1 = r1.volumeId.length() == 0, u2 = r2.volumeId.length() == 0;
+                if (u1 != u2) return u1 ? 1 : -1;
+
+                if (!u1) {
+                    int p1 = positions.get(r1.volumeId), p2 = positions.get(r2.volumeId);
+                    if (p1 != p2) return p1 < p2 ? -1 : 1;
+                }
+
+                return r1.seq < r2.seq ? -1 : (r1.seq == r2.seq ? 0 : 1);
+            }
+        });
+
+        List<Strings> tuples = new ArrayList<Strings>();
+        for (TupleRecord record : records)
+            Collections.addAll(tuples, BasicDataTypesTools.stringsArrayToJavaArray(record.tuples));
+
+        return tuples;
+    }
+
+    /**
+     * @return The number of tuple records that are not tagged with a volume, whose order depends on the sharding
+     */
+    public int getUntaggedTupleRecords() {
+        return untaggedTupleRecords;
+    }
+
+    public int getShardsMerged() {
+        return shardsMerged;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static class TupleRecord {
+        private final String volumeId;
+        private final int seq;
+        private final StringsArray tuples;
+
+        private TupleRecord(String volumeId, int seq, StringsArray tuples) {
+            this.volumeId = volumeId;
+            this.seq = seq;
+            this.tuples = tuples;
+        }
+    }
+}
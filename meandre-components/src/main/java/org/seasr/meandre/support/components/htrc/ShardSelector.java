@@ -0,0 +1,102 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Deterministically assigns volumes to one of N shards based on a hash of the volume ID,
+ * so that N independent flow instances (possibly on different JVMs or hosts) can each
+ * process a disjoint slice of the same workset.
+ *
+ * The hash is a 64-bit FNV-1a over the UTF-8 bytes of the ID, which - unlike
+ * {@link Object#hashCode()} of arbitrary objects - is stable across JVMs and releases.
+ */
+public class ShardSelector {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int shardIndex;
+    private final int shardCount;
+
+
+    /**
+     * Creates a shard selector
+     *
+     * @param shardIndex The index of the shard to select (0 <= shardIndex < shardCount)
+     * @param shardCount The total number of shards
+     */
+    public ShardSelector(int shardIndex, int shardCount) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("The shard count must be at least 1");
+
+        if (shardIndex < 0 || shardIndex >= shardCount)
+            throw new IllegalArgumentException(
+                    String.format("The shard index must be between 0 and %d (was %d)", shardCount - 1, shardIndex));
+
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @return True if there is a single shard (everything is selected)
+     */
+    public boolean selectsAll() {
+        return shardCount == 1;
+    }
+
+    /**
+     * @param volumeId The volume ID
+     * @return True if the volume belongs to this shard
+     */
+    public boolean accepts(String volumeId) {
+        return shardCount == 1 || shardOf(volumeId, shardCount) == shardIndex;
+    }
+
+    /**
+     * Computes the shard a volume belongs to
+     *
+     * @param volumeId The volume ID
+     * @param shardCount The number of shards
+     * @return The shard index
+     */
+    public static int shardOf(String volumeId, int shardCount) {
+        return (int) ((hash(volumeId) & Long.MAX_VALUE) % shardCount);
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a hash of the UTF-8 encoding of a string
+     *
+     * @param s The string
+     * @return The hash
+     */
+    public static long hash(String s) {
+        byte[] bytes;
+        try {
+            bytes = s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+
+        long h = FNV_OFFSET_BASIS;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= FNV_PRIME;
+        }
+
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("shard %d of %d", shardIndex + 1, shardCount);
+    }
+}
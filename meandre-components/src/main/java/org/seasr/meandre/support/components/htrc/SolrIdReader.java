@@ -0,0 +1,133 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Retrieves the ids of the volumes matching a query from the HTRC Solr index, in pages of a
+ * configurable size.
+ *
+ * The ids are returned in the order Solr returns them. With {@link Paging#RANGE} and
+ * {@link Paging#CURSOR} the matches are sorted by id, so the pages are stable and each request
+ * costs the same; with {@link Paging#OFFSET} they come in the order of the query, but every
+ * request makes Solr collect all the matches before the requested page.
+ */
+public class SolrIdReader {
+
+    /**
+     * How to page through the matches
+     */
+    public enum Paging {
+        /** Sorted by id, each request asks for the ids after the last one received (any Solr version) */
+        RANGE,
+        /** Sorted by id, with cursorMark (Solr 4.7 or later) */
+        CURSOR,
+        /** In the order of the query, with start= */
+        OFFSET
+    }
+
+    private final SolrTransport transport;
+    private final String handler;
+    private final int rowsPerRequest;
+    private final Paging paging;
+
+
+    /**
+     * Creates a volume id reader
+     *
+     * @param transport The transport to the Solr endpoint
+     * @param handler The search request handler (e.g. select)
+     * @param rowsPerRequest The number of ids to ask for in a single request
+     * @param paging How to page through the matches
+     */
+    public SolrIdReader(SolrTransport transport, String handler, int rowsPerRequest, Paging paging) {
+        if (rowsPerRequest < 1)
+            throw new IllegalArgumentException("The number of rows per request must be at least 1");
+
+        this.transport = transport;
+        this.handler = handler;
+        this.rowsPerRequest = rowsPerRequest;
+        this.paging = paging;
+    }
+
+    /**
+     * Retrieves the ids of the volumes matching a query
+     *
+     * @param query The Solr query
+     * @return The volume ids, in the order returned by Solr
+     * @throws IOException
+     */
+    public List<String> read(String query) throws IOException {
+        List<String> volumeIDs = new ArrayList<String>();
+        String rows = Integer.toString(rowsPerRequest);
+
+        switch (paging) {
+            case OFFSET:
+                long numFound = 0;
+                do {
+                    SolrDocumentList docs = getDocs(transport.query(handler, "q", query, "fl", "id",
+                            "start", Integer.toString(volumeIDs.size()), "rows", rows));
+                    if (docs == null || docs.isEmpty())
+                        break;
+
+                    numFound = docs.getNumFound();
+                    addIds(docs, volumeIDs);
+                } while (volumeIDs.size() < numFound);
+                break;
+
+            case CURSOR:
+                String cursorMark = "*";
+                while (true) {
+                    NamedList<Object> response = transport.query(handler, "q", query, "fl", "id",
+                            "sort", "id asc", "rows", rows, "cursorMark", cursorMark);
+
+                    SolrDocumentList docs = getDocs(response);
+                    if (docs != null)
+                        addIds(docs, volumeIDs);
+
+                    Object nextCursorMark = response.get("nextCursorMark");
+                    if (nextCursorMark == null)
+                        throw new IOException("Solr did not return a cursor mark (cursor paging requires Solr 4.7 or later)");
+
+                    if (nextCursorMark.equals(cursorMark))
+                        break;
+                    cursorMark = nextCursorMark.toString();
+                }
+                break;
+
+            case RANGE:
+                String lastId = null;
+                while (true) {
+                    SolrDocumentList docs = getDocs(lastId == null
+                            ? transport.query(handler, "q", query, "fl", "id", "sort", "id asc", "rows", rows)
+                            : transport.query(handler, "q", query, "fl", "id", "sort", "id asc", "rows", rows,
+                                    "fq", "id:{\"" + lastId.replace("\\", "\\\\").replace("\"", "\\\"") + "\" TO *}"));
+                    if (docs == null || docs.isEmpty())
+                        break;
+
+                    addIds(docs, volumeIDs);
+                    lastId = volumeIDs.get(volumeIDs.size() - 1);
+
+                    if (docs.size() < rowsPerRequest)
+                        break;
+                }
+                break;
+        }
+
+        return volumeIDs;
+    }
+
+    private static SolrDocumentList getDocs(NamedList<Object> response) {
+        return (SolrDocumentList) response.get("response");
+    }
+
+    private static void addIds(SolrDocumentList docs, List<String> volumeIDs) {
+        for (SolrDocument doc : docs)
+            volumeIDs.add(doc.getFieldValue("id").toString());
+    }
+}
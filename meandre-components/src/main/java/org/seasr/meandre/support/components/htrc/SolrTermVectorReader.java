@@ -0,0 +1,229 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Retrieves per-volume term vectors from the HTRC Solr index through Solr's TermVectorComponent.
+ *
+ * Volumes are requested in pages of a configurable size. The term frequencies of each volume are
+ * accumulated in a single reused {@link TokenCounter} that is handed to the handler as soon as the
+ * volume's term vector ends. XML responses are parsed as a stream, so memory use is bounded by the
+ * largest volume; javabin responses are decoded a request at a time, so memory use is bounded by
+ * the page size.
+ */
+public class SolrTermVectorReader {
+
+    private final SolrTransport transport;
+    private final String handler;
+    private final String field;
+
+    private final XMLInputFactory xmlInputFactory;
+
+
+    /**
+     * Creates a term vector reader
+     *
+     * @param transport The transport to the Solr endpoint
+     * @param handler The request handler that has the TermVectorComponent enabled (e.g. tvrh)
+     * @param field The indexed field whose term vectors to retrieve
+     */
+    public SolrTermVectorReader(SolrTransport transport, String handler, String field) {
+        this.transport = transport;
+        this.handler = handler;
+        this.field = field;
+
+        xmlInputFactory = XMLInputFactory.newInstance();
+    }
+
+    /**
+     * Retrieves the term vectors of a set of volumes
+     *
+     * @param volumeIDs The volume IDs
+     * @param volumesPerRequest The maximum number of volumes to ask for in a single request
+     * @param termVectorHandler The handler receiving the term vector of each volume
+     * @return The number of volumes for which a term vector was found
+     * @throws Exception
+     */
+    public int read(List<String> volumeIDs, int volumesPerRequest, final TermVectorHandler termVectorHandler) throws Exception {
+        final TokenCounter counts = new TokenCounter();
+        int found = 0;
+
+        for (int i = 0, iMax = volumeIDs.size(); i < iMax; i += volumesPerRequest) {
+            List<String> page = volumeIDs.subList(i, Math.min(i + volumesPerRequest, iMax));
+
+            found += transport.execute(handler, new SolrTransport.ResponseParser<Integer>() {
+                public Integer parse(InputStream in, SolrTransport.ResponseFormat format) throws IOException {
+                    try {
+                        switch (format) {
+                            case JAVABIN:
+                                return parseJavaBin(in, counts, termVectorHandler);
+
+                            default:
+                                return parseXML(in, counts, termVectorHandler);
+                        }
+                    }
+                    catch (IOException e) {
+                        throw e;
+                    }
+                    catch (Exception e) {
+                        IOException ioe = new IOException("Error handling the term vectors: " + e.getMessage());
+                        ioe.initCause(e);
+                        throw ioe;
+                    }
+                }
+            }, "q", buildQuery(page), "fl", "id", "rows", Integer.toString(page.size()),
+               "tv", "true", "tv.tf", "true", "tv.fl", field);
+        }
+
+        return found;
+    }
+
+    /**
+     * Builds the query matching a set of volumes
+     */
+    protected String buildQuery(List<String> volumeIDs) {
+        StringBuilder query = new StringBuilder("id:(");
+        for (int i = 0, iMax = volumeIDs.size(); i < iMax; i++) {
+            if (i > 0) query.append(" OR ");
+            query.append('"').append(volumeIDs.get(i).trim().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        query.append(')');
+
+        return query.toString();
+    }
+
+    /**
+     * Walks the termVectors section of a javabin response
+     */
+    @SuppressWarnings("unchecked")
+    protected int parseJavaBin(InputStream in, TokenCounter counts, TermVectorHandler termVectorHandler) throws Exception {
+        NamedList<Object> response = (NamedList<Object>) new JavaBinCodec().unmarshal(in);
+        NamedList<Object> termVectors = (NamedList<Object>) response.get("termVectors");
+        if (termVectors == null)
+            return 0;
+
+        int found = 0;
+        for (int i = 0, iMax = termVectors.size(); i < iMax; i++) {
+            if (!(termVectors.getVal(i) instanceof NamedList)) continue;
+
+            NamedList<Object> doc = (NamedList<Object>) termVectors.getVal(i);
+            Object volumeId = doc.get("uniqueKey");
+            if (volumeId == null) continue;
+
+            counts.clear();
+            NamedList<Object> terms = (NamedList<Object>) doc.get(field);
+            if (terms != null)
+                for (int j = 0, jMax = terms.size(); j < jMax; j++) {
+                    Object tf = ((NamedList<Object>) terms.getVal(j)).get("tf");
+                    if (tf != null)
+                        counts.add(terms.getName(j), ((Number) tf).intValue());
+                }
+
+            termVectorHandler.termVector(volumeId.toString(), counts);
+            found++;
+        }
+
+        return found;
+    }
+
+    /**
+     * Parses the termVectors section of an XML response as a stream
+     */
+    protected int parseXML(InputStream in, TokenCounter counts, TermVectorHandler termVectorHandler) throws Exception {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in, "UTF-8");
+        int found = 0;
+
+        try {
+            // depth relative to the <lst name="termVectors"> element (0 = outside of it)
+            int depth = 0;
+            String volumeId = null;
+            String term = null;
+            boolean inField = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getAttributeValue(null, "name");
+
+                    if (depth == 0) {
+                        if ("lst".equals(reader.getLocalName()) && "termVectors".equals(name))
+                            depth = 1;
+                        continue;
+                    }
+
+                    depth++;
+                    switch (depth) {
+                        case 2:  // a document
+                            volumeId = null;
+                            counts.clear();
+                            break;
+
+                        case 3:  // the unique key, or the term vector of a field
+                            if ("uniqueKey".equals(name))
+                                volumeId = reader.getElementText().trim();
+                            else
+                                inField = field.equals(name);
+                            if (event != reader.getEventType())
+                                depth--;  // getElementText() consumed the end element
+                            break;
+
+                        case 4:  // a term
+                            term = inField ? name : null;
+                            break;
+
+                        case 5:  // a statistic of the term
+                            if (term != null && "tf".equals(name))
+                                counts.add(term, Integer.parseInt(reader.getElementText().trim()));
+                            else
+                                reader.getElementText();
+                            depth--;
+                            break;
+                    }
+                }
+
+                else if (event == XMLStreamConstants.END_ELEMENT && depth > 0) {
+                    if (depth == 2 && volumeId != null) {
+                        termVectorHandler.termVector(volumeId, counts);
+                        found++;
+                    }
+                    if (depth == 3)
+                        inField = false;
+
+                    depth--;
+                }
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new IOException("Invalid Solr term vector response: " + e.getMessage());
+        }
+        finally {
+            reader.close();
+        }
+
+        return found;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public interface TermVectorHandler {
+        /**
+         * Receives the term vector of a volume
+         *
+         * @param volumeId The volume ID
+         * @param counts The term frequencies (only valid for the duration of the call)
+         * @throws Exception
+         */
+        public void termVector(String volumeId, TokenCounter counts) throws Exception;
+    }
+}
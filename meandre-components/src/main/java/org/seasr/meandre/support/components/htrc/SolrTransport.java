@@ -0,0 +1,317 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.solr.client.solrj.impl.XMLResponseParser;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * HTTP transport for Solr requests issued by the HTRC Solr components.
+ *
+ * <ul>
+ * <li>Connections are persistent: every response is read to the end and closed so the JVM's
+ *     keep-alive cache can reuse the connection for the next request to the same host
+ *     (the number of idle connections kept per host is controlled by the standard
+ *     <code>http.maxConnections</code> system property); the number of concurrent requests
+ *     is bounded by <code>maxConnections</code>.</li>
+ * <li>The configured connection and read timeouts are applied to every request.</li>
+ * <li>Requests whose parameters would make the URL longer than {@link #MAX_GET_LENGTH} characters
+ *     (e.g. queries on many volume ids) are sent as form-encoded POST requests.</li>
+ * <li>Requests are spread across the Solr instances of an {@link EndpointPool}.</li>
+ * <li>Responses are requested gzip-compressed (honored if the Solr container compresses responses)
+ *     and in Solr's binary (javabin) format, or in XML.</li>
+ * </ul>
+ *
+ * The transport keeps statistics about the bytes transferred and the time spent transferring
+ * versus parsing the responses, to compare formats and compression settings.
+ */
+public class SolrTransport {
+
+    public enum ResponseFormat {
+        JAVABIN("javabin&version=2"),
+        XML("xml");
+
+        private final String wt;
+
+        private ResponseFormat(String wt) {
+            this.wt = wt;
+        }
+    }
+
+    /** The maximum length of the encoded parameters sent in the URL of a GET request */
+    public static final int MAX_GET_LENGTH = 4000;
+
+    private final EndpointPool endpoints;
+    private final int connectionTimeout;
+    private final int readTimeout;
+    private final boolean compress;
+    private final ResponseFormat format;
+    private final Semaphore connections;
+
+    // statistics
+    private long requestCount = 0;
+    private long wireBytes = 0;
+    private long responseBytes = 0;
+    private long transferNanos = 0;
+    private long parseNanos = 0;
+
+
+    /**
+     * Creates a transport
+     *
+     * @param endpoints The Solr instances (e.g. http://host:port/solr) to spread the requests across
+     * @param connectionTimeout The connection timeout in milliseconds (0 = wait forever)
+     * @param readTimeout The read timeout in milliseconds (0 = wait forever)
+     * @param compress True to ask for gzip-compressed responses
+     * @param format The response format
+     * @param maxConnections The maximum number of concurrent requests
+     */
+    public SolrTransport(EndpointPool endpoints, int connectionTimeout, int readTimeout,
+            boolean compress, ResponseFormat format, int maxConnections) {
+        this.endpoints = endpoints;
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+        this.compress = compress;
+        this.format = format;
+        this.connections = new Semaphore(maxConnections, true);
+    }
+
+    public EndpointPool getEndpoints() {
+        return endpoints;
+    }
+
+    public ResponseFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Sends a request and parses the response into a NamedList
+     *
+     * @param handler The request handler (e.g. select)
+     * @param params The request parameters, as name/value pairs
+     * @return The parsed response
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public NamedList<Object> query(String handler, String... params) throws IOException {
+        return execute(handler, new ResponseParser<NamedList<Object>>() {
+            public NamedList<Object> parse(InputStream in, ResponseFormat responseFormat) throws IOException {
+                switch (responseFormat) {
+                    case JAVABIN:
+                        return (NamedList<Object>) new JavaBinCodec().unmarshal(in);
+
+                    default:
+                        return new XMLResponseParser().processResponse(in, "UTF-8");
+                }
+            }
+        }, params);
+    }
+
+    /**
+     * Sends a request and hands the (decompressed) response stream to a parser
+     *
+     * @param handler The request handler (e.g. select)
+     * @param parser The response parser
+     * @param params The request parameters, as name/value pairs
+     * @return The result of the parser
+     * @throws IOException
+     */
+    public <T> T execute(String handler, ResponseParser<T> parser, String... params) throws IOException {
+        if (params.length % 2 != 0)
+            throw new IllegalArgumentException("The request parameters must be name/value pairs");
+
+        StringBuilder query = new StringBuilder("wt=").append(format.wt);
+        for (int i = 0; i < params.length; i += 2)
+            query.append('&').append(URLEncoder.encode(params[i], "UTF-8"))
+               .append('=').append(URLEncoder.encode(params[i+1], "UTF-8"));
+        boolean post = query.length() > MAX_GET_LENGTH;
+
+        try {
+            connections.acquire();
+        }
+        catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a Solr connection");
+        }
+
+        EndpointPool.Endpoint endpoint = null;
+        boolean failed = true;
+        try {
+            endpoint = endpoints.acquire();
+
+            String solrEPR = endpoint.getURL();
+            URL url = new URL((solrEPR.endsWith("/") ? solrEPR : solrEPR + "/") + handler + (post ? "" : "?" + query));
+
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(connectionTimeout);
+            connection.setReadTimeout(readTimeout);
+            if (compress)
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+
+            long start = System.nanoTime();
+            if (post) {
+                byte[] body = query.toString().getBytes("UTF-8");
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                }
+                finally {
+                    out.close();
+                }
+            }
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                InputStream err = connection.getErrorStream();
+                if (err != null) drainAndClose(err);
+                failed = status >= 500;  // a bad request is not the instance's fault
+                throw new IOException(String.format("Solr (%s) returned HTTP %d: %s",
+                        solrEPR, status, connection.getResponseMessage()));
+            }
+
+            MeteredInputStream wire = new MeteredInputStream(connection.getInputStream());
+            wire.nanos = System.nanoTime() - start;
+
+            MeteredInputStream decoded = wire;
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+                decoded = new MeteredInputStream(new GZIPInputStream(wire));
+
+            try {
+                // the parser must not close the stream (StAX readers may at the end of the document),
+                // the rest of the response is drained first so the connection can be reused
+                T result = parser.parse(new FilterInputStream(decoded) {
+                    @Override
+                    public void close() { }
+                }, format);
+                drainAndClose(decoded);
+                failed = false;
+
+                synchronized (this) {
+                    requestCount++;
+                    wireBytes += wire.bytes;
+                    responseBytes += decoded.bytes;
+                    transferNanos += wire.nanos;
+                    parseNanos += System.nanoTime() - start - wire.nanos;
+                }
+
+                return result;
+            }
+            finally {
+                decoded.close();
+            }
+        }
+        finally {
+            if (endpoint != null)
+                endpoints.release(endpoint, failed);
+
+            connections.release();
+        }
+    }
+
+    public synchronized long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return The number of response bytes received over the network
+     */
+    public synchronized long getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * @return The number of response bytes after decompression
+     */
+    public synchronized long getResponseBytes() {
+        return responseBytes;
+    }
+
+    /**
+     * @return The time spent waiting for response data, in milliseconds
+     */
+    public synchronized long getTransferMillis() {
+        return transferNanos / 1000000L;
+    }
+
+    /**
+     * @return The time spent decompressing and parsing responses, in milliseconds
+     */
+    public synchronized long getParseMillis() {
+        return parseNanos / 1000000L;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Solr transport (%s%s): %,d requests, %,d bytes transferred (%,d bytes uncompressed), " +
+                "%,d ms transfer, %,d ms parsing", format.name().toLowerCase(), compress ? "+gzip" : "",
+                requestCount, wireBytes, responseBytes, getTransferMillis(), getParseMillis());
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static void drainAndClose(InputStream in) throws IOException {
+        try {
+            byte[] buf = new byte[8192];
+            while (in.read(buf) >= 0) ;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    public interface ResponseParser<T> {
+        public T parse(InputStream in, ResponseFormat format) throws IOException;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Counts the bytes read through the stream and the time spent blocked reading
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        private long bytes = 0;
+        private long nanos = 0;
+
+        public MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            nanos += System.nanoTime() - start;
+            if (b >= 0) bytes++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            int n = super.read(b, off, len);
+            nanos += System.nanoTime() - start;
+            if (n > 0) bytes += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            bytes += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Retrieves the word count of a set of volumes from the HTRC Solr index with a facet query on the
+ * text field, restricted to the volumes by a filter query. Each word is counted once per volume
+ * containing it.
+ *
+ * Volumes are filtered in pages of a configurable size. When the volumes fit in a single page, Solr
+ * is only asked for the most frequent words; otherwise it is asked for all the words of each page
+ * and the counts are summed, so the result is exact whatever the page size.
+ */
+public class SolrWordCountReader {
+
+    private final SolrTransport transport;
+    private final String handler;
+    private final String field;
+
+
+    /**
+     * Creates a word count reader
+     *
+     * @param transport The transport to the Solr endpoint
+     * @param handler The search request handler (e.g. select)
+     * @param field The indexed field holding the volume text
+     */
+    public SolrWordCountReader(SolrTransport transport, String handler, String field) {
+        this.transport = transport;
+        this.handler = handler;
+        this.field = field;
+    }
+
+    /**
+     * Retrieves the word count of a set of volumes
+     *
+     * @param volumeIDs The volume IDs
+     * @param volumesPerRequest The maximum number of volumes to filter on in a single request
+     * @param limit The maximum number of words needed by the caller (Integer.MAX_VALUE = all)
+     * @return The word count (at least the <code>limit</code> most frequent words)
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public TokenCounter read(List<String> volumeIDs, int volumesPerRequest, int limit) throws IOException {
+        TokenCounter wordCount = new TokenCounter();
+        String facetLimit = volumeIDs.size() <= volumesPerRequest && limit != Integer.MAX_VALUE
+                ? Integer.toString(limit) : "-1";
+
+        for (int i = 0, iMax = volumeIDs.size(); i < iMax; i += volumesPerRequest) {
+            List<String> page = volumeIDs.subList(i, Math.min(i + volumesPerRequest, iMax));
+
+            NamedList<Object> response = transport.query(handler, "q", "*:*", "fq", buildFilter(page), "rows", "0",
+                    "facet", "true", "facet.field", field, "facet.sort", "count", "facet.mincount", "1",
+                    "facet.limit", facetLimit);
+
+            NamedList<Object> facetCounts = (NamedList<Object>) response.get("facet_counts");
+            NamedList<Object> facetFields = facetCounts != null ? (NamedList<Object>) facetCounts.get("facet_fields") : null;
+            NamedList<Object> words = facetFields != null ? (NamedList<Object>) facetFields.get(field) : null;
+            if (words == null)
+                throw new IOException("Solr did not return the facet counts of the field " + field);
+
+            for (int j = 0, jMax = words.size(); j < jMax; j++)
+                wordCount.add(words.getName(j), ((Number) words.getVal(j)).intValue());
+        }
+
+        return wordCount;
+    }
+
+    /**
+     * Builds the filter query matching a set of volumes
+     */
+    protected String buildFilter(List<String> volumeIDs) {
+        StringBuilder filter = new StringBuilder("id:(");
+        for (int i = 0, iMax = volumeIDs.size(); i < iMax; i++) {
+            if (i > 0) filter.append(" OR ");
+            filter.append('"').append(volumeIDs.get(i).trim().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        filter.append(')');
+
+        return filter.toString();
+    }
+}
@@ -0,0 +1,175 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Limits the retrieval of a workset to a wall-clock budget.
+ *
+ * The cost of a volume is estimated from the throughput observed since the retrieval started
+ * (which includes the time spent waiting on the consumers downstream), and retrieval stops once
+ * the remaining time cannot cover another volume. Volumes are retrieved in a seeded random order,
+ * so that the part of the workset covered is an unbiased - and reproducible - sample of it.
+ *
+ * A budget of 0 places no limit: the volumes are retrieved in their original order.
+ * Instances are meant to be used from the component's execution thread.
+ */
+public class TimeBudget {
+
+    private final long budgetMillis;
+    private final long seed;
+
+    private long startTime;
+    private int volumeCount;
+    private int volumesDone;
+    private int volumesSkipped;
+
+
+    /**
+     * Creates a time budget
+     *
+     * @param budgetMillis The wall-clock budget for a workset, in milliseconds (0 = no limit)
+     * @param seed The seed of the random order of the volumes
+     */
+    public TimeBudget(long budgetMillis, long seed) {
+        if (budgetMillis < 0)
+            throw new IllegalArgumentException("The time budget cannot be negative");
+
+        this.budgetMillis = budgetMillis;
+        this.seed = seed;
+    }
+
+    /**
+     * @return True if the retrieval time is limited
+     */
+    public boolean isLimited() {
+        return budgetMillis > 0;
+    }
+
+    /**
+     * Starts the clock for a new workset
+     */
+    public void start() {
+        startTime = System.currentTimeMillis();
+        volumeCount = 0;
+        volumesDone = 0;
+        volumesSkipped = 0;
+    }
+
+    /**
+     * Adds volumes to the workset, returning them in the order they should be retrieved
+     *
+     * @param volumeIDs The volume IDs
+     * @return The volume IDs, or a shuffled view of them (backed by a permutation, not a copy) if the time is limited
+     */
+    public List<String> order(final List<String> volumeIDs) {
+        volumeCount += volumeIDs.size();
+
+        if (!isLimited())
+            return volumeIDs;
+
+        // the same workset is always sampled the same way
+        final int[] permutation = new int[volumeIDs.size()];
+        for (int i = 0; i < permutation.length; i++)
+            permutation[i] = i;
+
+        Random random = new Random(seed + volumeCount);
+        for (int i = permutation.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = t;
+        }
+
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return volumeIDs.get(permutation[index]);
+            }
+
+            @Override
+            public int size() {
+                return permutation.length;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of volumes to retrieve next: half of what the remaining time is estimated
+     * to cover (so the estimate gets refined as the deadline nears), or 0 if it cannot cover a single volume
+     *
+     * @param max The largest number of volumes asked for
+     * @return The number of volumes to retrieve next (0 = stop), at most max
+     */
+    public int affordable(int max) {
+        if (!isLimited() || max <= 0)
+            return max;
+
+        long remaining = getRemainingMillis();
+        if (remaining <= 0)
+            return 0;
+
+        // nothing observed yet, try a single volume
+        if (volumesDone == 0)
+            return 1;
+
+        double costPerVolume = Math.max((double) getElapsedMillis() / volumesDone, 1d);
+        long covered = (long) (remaining / costPerVolume);
+        if (covered < 1)
+            return 0;
+
+        return (int) Math.min(max, Math.max(1, covered / 2));
+    }
+
+    /**
+     * Records volumes retrieved
+     *
+     * @param count The number of volumes
+     */
+    public void done(int count) {
+        volumesDone += count;
+    }
+
+    /**
+     * Records volumes left out for lack of time
+     *
+     * @param count The number of volumes
+     */
+    public void skipped(int count) {
+        volumesSkipped += count;
+    }
+
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    public long getRemainingMillis() {
+        return budgetMillis - getElapsedMillis();
+    }
+
+    public int getVolumeCount() {
+        return volumeCount;
+    }
+
+    public int getVolumesDone() {
+        return volumesDone;
+    }
+
+    public int getVolumesSkipped() {
+        return volumesSkipped;
+    }
+
+    /**
+     * @return The fraction of the volumes of the workset that were not left out for lack of time
+     */
+    public double getCoverage() {
+        return volumeCount > 0 ? (double) (volumeCount - volumesSkipped) / volumeCount : 1d;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Covered %,d of %,d volumes (%.1f%%) in %,d ms (time budget: %,d ms, seed: %d)",
+                volumeCount - volumesSkipped, volumeCount, 100 * getCoverage(), getElapsedMillis(), budgetMillis, seed);
+    }
+}
@@ -0,0 +1,239 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.seasr.datatypes.core.BasicDataTypes.Integers;
+import org.seasr.datatypes.core.BasicDataTypes.IntegersMap;
+
+/**
+ * A token to count map backed by primitive arrays (open addressing with linear probing),
+ * avoiding the per-entry overhead of a <code>HashMap&lt;String, Integer&gt;</code>.
+ *
+ * Not thread-safe.
+ */
+public class TokenCounter {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private String[] keys;
+    private int[] counts;
+    private int size;
+    private long total;
+    private int resizeThreshold;
+
+
+    public TokenCounter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize The expected number of distinct tokens
+     */
+    public TokenCounter(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Adds to the count of a token
+     *
+     * @param token The token
+     * @param count The amount to add
+     */
+    public void add(String token, int count) {
+        int slot = slot(token);
+        if (keys[slot] == null) {
+            keys[slot] = token;
+            counts[slot] = count;
+            if (++size > resizeThreshold)
+                allocate(keys.length << 1);
+        } else
+            counts[slot] += count;
+
+        total += count;
+    }
+
+    /**
+     * Increments the count of a token by one
+     *
+     * @param token The token
+     */
+    public void increment(String token) {
+        add(token, 1);
+    }
+
+    /**
+     * @param token The token
+     * @return The count of the token (0 if never seen)
+     */
+    public int get(String token) {
+        int slot = slot(token);
+        return keys[slot] == null ? 0 : counts[slot];
+    }
+
+    /**
+     * Adds all the counts of another counter to this one
+     *
+     * @param other The other counter
+     */
+    public void addAll(TokenCounter other) {
+        for (int i = 0; i < other.keys.length; i++)
+            if (other.keys[i] != null)
+                add(other.keys[i], other.counts[i]);
+    }
+
+    /**
+     * Adds all the counts of a token count map to this counter
+     *
+     * @param map The token counts
+     */
+    public void addAll(IntegersMap map) {
+        for (int i = 0, iMax = map.getKeyCount(); i < iMax; i++)
+            add(map.getKey(i), map.getValue(i).getValue(0));
+    }
+
+    /**
+     * @return The number of distinct tokens
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The sum of all counts
+     */
+    public long total() {
+        return total;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all tokens, keeping the allocated capacity
+     */
+    public void clear() {
+        Arrays.fill(keys, null);
+        size = 0;
+        total = 0;
+    }
+
+    /**
+     * Returns the tokens and their counts in parallel arrays (in no particular order)
+     *
+     * @param tokens Receives the tokens (must have room for {@link #size()} entries)
+     * @param tokenCounts Receives the counts (must have room for {@link #size()} entries)
+     */
+    public void copyTo(String[] tokens, int[] tokenCounts) {
+        for (int i = 0, j = 0; i < keys.length; i++)
+            if (keys[i] != null) {
+                tokens[j] = keys[i];
+                tokenCounts[j++] = counts[i];
+            }
+    }
+
+    /**
+     * Converts the counts to a token count map, sorted by decreasing count (ties broken by token)
+     *
+     * @param limit The maximum number of tokens to include (the most frequent ones are kept)
+     * @return The token count map
+     */
+    public IntegersMap toIntegersMap(int limit) {
+        Integer[] slots = new Integer[size];
+        for (int i = 0, j = 0; i < keys.length; i++)
+            if (keys[i] != null)
+                slots[j++] = i;
+
+        Arrays.sort(slots, new Comparator<Integer>() {
+            public int compare(Integer s1, Integer s2) {
+                int c1 = counts[s1], c2 = counts[s2];
+                if (c1 != c2) return c1 > c2 ? -1 : 1;
+                return keys[s1].compareTo(keys[s2]);
+            }
+        });
+
+        IntegersMap.Builder builder = IntegersMap.newBuilder();
+        for (int i = 0, iMax = Math.min(limit, slots.length); i < iMax; i++) {
+            builder.addKey(keys[slots[i]]);
+            builder.addValue(Integers.newBuilder().addValue(counts[slots[i]]).build());
+        }
+
+        return builder.build();
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Counts the words (maximal runs of letters or digits) of a text
+     *
+     * @param text The text
+     * @param counts The counter receiving the words
+     * @param lowercase True to convert the words to lower case
+     * @param minWordLength The length of the shortest words counted
+     */
+    public static void countWords(String text, TokenCounter counts, boolean lowercase, int minWordLength) {
+        int len = text.length();
+        for (int start = wordStart(text, 0), end; start < len; start = wordStart(text, end)) {
+            end = wordEnd(text, start);
+            if (end - start >= minWordLength) {
+                String word = text.substring(start, end);
+                counts.increment(lowercase ? word.toLowerCase() : word);
+            }
+        }
+    }
+
+    /**
+     * @param text The text
+     * @param from The position to start searching from
+     * @return The position of the first letter or digit at or after <code>from</code>, or the length of the text
+     */
+    public static int wordStart(CharSequence text, int from) {
+        int i = from, len = text.length();
+        while (i < len && !Character.isLetterOrDigit(text.charAt(i))) i++;
+        return i;
+    }
+
+    /**
+     * @param text The text
+     * @param start The position of the first character of a word
+     * @return The position just after the last letter or digit of the word
+     */
+    public static int wordEnd(CharSequence text, int start) {
+        int i = start, len = text.length();
+        while (i < len && Character.isLetterOrDigit(text.charAt(i))) i++;
+        return i;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private int slot(String token) {
+        int h = token.hashCode();
+        h ^= (h >>> 16);
+        int mask = keys.length - 1;
+        int slot = (h * 0x9e3779b9) & mask;
+        while (keys[slot] != null && !keys[slot].equals(token))
+            slot = (slot + 1) & mask;
+
+        return slot;
+    }
+
+    private void allocate(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldCounts = counts;
+
+        keys = new String[capacity];
+        counts = new int[capacity];
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+
+        if (oldKeys != null)
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldKeys[i] != null) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    counts[slot] = oldCounts[i];
+                }
+    }
+}
@@ -0,0 +1,458 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable, sorted set of volume IDs stored in a compact form, for worksets of millions of volumes.
+ *
+ * The IDs are sorted by their UTF-8 bytes (the same as sorting by code point) and front-coded in
+ * blocks of {@value #BLOCK_SIZE}: the first ID of a block is stored whole, each following ID as the
+ * length of the prefix it shares with the previous ID plus the rest of its bytes. Volume IDs share
+ * long prefixes (<code>mdp.39015...</code>, <code>uc1.b...</code>), so a million IDs take a few MB
+ * instead of the hundreds of MB of a list of Strings. Lookups binary search the blocks and scan
+ * a single block. The set is a read-only {@link List}, so its {@link #subList(int, int)} views can be
+ * used as request partitions without copying; {@link Marks} records which IDs were seen in a bit set.
+ *
+ * The set also remembers the order in which the IDs were first added (as the position of each one in
+ * the sorted set, 4 more bytes per ID), so that {@link #inInputOrder()} can hand them out in the
+ * order of the workset. An ID added more than once is kept at its first position; the number of IDs
+ * dropped that way is available from {@link #getDuplicateCount()}.
+ *
+ * Instances can be shared between threads.
+ */
+public final class VolumeIdSet extends AbstractList<String> implements RandomAccess {
+
+    public static final int BLOCK_SIZE = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final VolumeIdSet EMPTY = new VolumeIdSet(new byte[0], new int[0], 0, new int[0], 0);
+
+    private final byte[] data;
+    private final int[] blockOffsets;
+    private final int size;
+    private final int[] inputOrder;
+    private final int duplicateCount;
+
+
+    private VolumeIdSet(byte[] data, int[] blockOffsets, int size, int[] inputOrder, int duplicateCount) {
+        this.data = data;
+        this.blockOffsets = blockOffsets;
+        this.size = size;
+        this.inputOrder = inputOrder;
+        this.duplicateCount = duplicateCount;
+    }
+
+    /**
+     * Creates a set of volume IDs
+     *
+     * @param volumeIDs The volume IDs (duplicates are dropped)
+     * @return The set
+     */
+    public static VolumeIdSet of(Collection<String> volumeIDs) {
+        Builder builder = new Builder();
+        for (String volumeId : volumeIDs)
+            builder.add(volumeId);
+
+        return builder.build();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of volume IDs that were dropped because they had already been added
+     */
+    public int getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+        byte[] id = new byte[64];
+        int[] pos = { blockOffsets[index / BLOCK_SIZE] };
+        int len = 0;
+
+        for (int i = 0, iMax = index % BLOCK_SIZE; i <= iMax; i++) {
+            int shared = i == 0 ? 0 : readVarInt(pos);
+            int suffix = readVarInt(pos);
+            if (shared + suffix > id.length)
+                id = Arrays.copyOf(id, Math.max(2 * id.length, shared + suffix));
+
+            System.arraycopy(data, pos[0], id, shared, suffix);
+            pos[0] += suffix;
+            len = shared + suffix;
+        }
+
+        return new String(id, 0, len, UTF8);
+    }
+
+    /**
+     * Finds a volume ID
+     *
+     * @param volumeId The volume ID
+     * @return The index of the volume ID, or -1 if it is not in the set
+     */
+    public int indexOf(String volumeId) {
+        if (size == 0) return -1;
+
+        byte[] key = volumeId.getBytes(UTF8);
+
+        // find the last block whose first ID is <= key
+        int lo = 0, hi = blockOffsets.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            int[] pos = { blockOffsets[mid] };
+            int len = readVarInt(pos);
+            if (compare(data, pos[0], len, key) <= 0)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        byte[] id = new byte[Math.max(64, key.length)];
+        int[] pos = { blockOffsets[lo] };
+        int len = 0;
+
+        for (int i = 0, iMax = Math.min(BLOCK_SIZE, size - lo * BLOCK_SIZE); i < iMax; i++) {
+            int shared = i == 0 ? 0 : readVarInt(pos);
+            int suffix = readVarInt(pos);
+            if (shared + suffix > id.length)
+                id = Arrays.copyOf(id, Math.max(2 * id.length, shared + suffix));
+
+            System.arraycopy(data, pos[0], id, shared, suffix);
+            pos[0] += suffix;
+            len = shared + suffix;
+
+            int cmp = compare(id, 0, len, key);
+            if (cmp == 0)
+                return lo * BLOCK_SIZE + i;
+            if (cmp > 0)
+                break;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        return o instanceof String ? indexOf((String) o) : -1;
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return indexOf(o) >= 0;
+    }
+
+    /**
+     * @return A read-only view of the volume IDs in the order they were first added
+     */
+    public List<String> inInputOrder() {
+        return new InputOrder();
+    }
+
+    /**
+     * Splits the set into consecutive views of at most <code>count</code> volume IDs
+     *
+     * @param count The maximum size of a partition (0 = a single partition)
+     * @return The partitions
+     */
+    public List<List<String>> partition(int count) {
+        List<List<String>> partitions = new ArrayList<List<String>>();
+        if (count <= 0)
+            partitions.add(this);
+        else
+            for (int i = 0; i < size; i += count)
+                partitions.add(subList(i, Math.min(i + count, size)));
+
+        return partitions;
+    }
+
+    /**
+     * @return The number of bytes used by the encoded IDs, the block index and the input order
+     */
+    public long getEncodedSize() {
+        return data.length + 4L * blockOffsets.length + 4L * inputOrder.length;
+    }
+
+    /**
+     * @return A new, empty, set of marks over this set
+     */
+    public Marks newMarks() {
+        return new Marks();
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private int readVarInt(int[] pos) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static int compare(byte[] a, int offset, int len, byte[] b) {
+        for (int i = 0, iMax = Math.min(len, b.length); i < iMax; i++) {
+            int cmp = (a[offset + i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+
+        return len - b.length;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private class InputOrder extends AbstractList<String> implements RandomAccess {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public String get(int index) {
+            return VolumeIdSet.this.get(inputOrder[index]);
+        }
+    }
+
+    /**
+     * Records which volume IDs of the set were seen (for example, retrieved) in a bit set
+     */
+    public class Marks {
+        private final BitSet marked = new BitSet(size);
+
+        private Marks() {
+        }
+
+        /**
+         * Marks a volume ID
+         *
+         * @param volumeId The volume ID
+         * @return False if the volume ID is not in the set
+         */
+        public boolean mark(String volumeId) {
+            int index = indexOf(volumeId);
+            if (index < 0) return false;
+
+            marked.set(index);
+            return true;
+        }
+
+        public boolean isMarked(String volumeId) {
+            int index = indexOf(volumeId);
+            return index >= 0 && marked.get(index);
+        }
+
+        public boolean isMarked(int index) {
+            return marked.get(index);
+        }
+
+        /**
+         * @return The number of marked volume IDs
+         */
+        public int count() {
+            return marked.cardinality();
+        }
+
+        /**
+         * @param volumeIDs Volume IDs of the set
+         * @return Those of the volume IDs that are not marked, in the same order
+         */
+        public List<String> getUnmarked(List<String> volumeIDs) {
+            List<String> unmarked = new ArrayList<String>();
+            for (String volumeId : volumeIDs)
+                if (!isMarked(volumeId))
+                    unmarked.add(volumeId);
+
+            return unmarked;
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Collects volume IDs, as UTF-8 bytes, and builds a {@link VolumeIdSet} from them
+     */
+    public static class Builder {
+        private byte[] bytes = new byte[1024];
+        private int[] offsets = new int[64];
+        private int count = 0;
+        private int length = 0;
+
+        /**
+         * Adds a volume ID
+         *
+         * @param volumeId The volume ID
+         * @return This builder
+         */
+        public Builder add(String volumeId) {
+            byte[] id = volumeId.getBytes(UTF8);
+
+            if (count + 2 > offsets.length)
+                offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+            if (length + id.length > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + id.length));
+
+            System.arraycopy(id, 0, bytes, length, id.length);
+            offsets[count++] = length;
+            length += id.length;
+            offsets[count] = length;
+
+            return this;
+        }
+
+        /**
+         * @return The number of volume IDs added (including duplicates)
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Builds the set; the builder can be reused afterwards
+         *
+         * @return The set
+         */
+        public VolumeIdSet build() {
+            if (count == 0)
+                return EMPTY;
+
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++)
+                order[i] = i;
+            sort(order, new int[count], 0, count);
+
+            ByteSink out = new ByteSink(length / 2 + 16);
+            int[] blockOffsets = new int[(count + BLOCK_SIZE - 1) / BLOCK_SIZE];
+            int size = 0;
+            int prev = -1;
+
+            // the position in the set of each ID added, -1 for the later duplicates
+            // (the sort is stable, so the first of equal IDs is the one added first)
+            int[] positions = new int[count];
+            Arrays.fill(positions, -1);
+
+            for (int k = 0; k < count; k++) {
+                int id = order[k];
+                if (prev >= 0 && compareIds(prev, id) == 0)
+                    continue;
+
+                positions[id] = size;
+
+                int start = offsets[id], len = offsets[id + 1] - start;
+                if (size % BLOCK_SIZE == 0) {
+                    blockOffsets[size / BLOCK_SIZE] = out.size();
+                    out.writeVarInt(len);
+                    out.write(bytes, start, len);
+                } else {
+                    int prevStart = offsets[prev], prevLen = offsets[prev + 1] - prevStart;
+                    int shared = 0;
+                    while (shared < len && shared < prevLen && bytes[start + shared] == bytes[prevStart + shared])
+                        shared++;
+
+                    out.writeVarInt(shared);
+                    out.writeVarInt(len - shared);
+                    out.write(bytes, start + shared, len - shared);
+                }
+
+                prev = id;
+                size++;
+            }
+
+            int[] inputOrder = new int[size];
+            for (int id = 0, i = 0; id < count; id++)
+                if (positions[id] >= 0)
+                    inputOrder[i++] = positions[id];
+
+            VolumeIdSet set = new VolumeIdSet(out.toByteArray(),
+                    Arrays.copyOf(blockOffsets, (size + BLOCK_SIZE - 1) / BLOCK_SIZE), size, inputOrder, count - size);
+
+            bytes = new byte[1024];
+            offsets = new int[64];
+            count = 0;
+            length = 0;
+
+            return set;
+        }
+
+        /** Merge sorts the IDs of a[lo..hi) without boxing them */
+        private void sort(int[] a, int[] tmp, int lo, int hi) {
+            if (hi - lo < 2) return;
+
+            int mid = (lo + hi) >>> 1;
+            sort(a, tmp, lo, mid);
+            sort(a, tmp, mid, hi);
+            if (compareIds(a[mid - 1], a[mid]) <= 0) return;
+
+            System.arraycopy(a, lo, tmp, lo, hi - lo);
+            for (int i = lo, j = mid, k = lo; k < hi; k++)
+                a[k] = j >= hi || (i < mid && compareIds(tmp[i], tmp[j]) <= 0) ? tmp[i++] : tmp[j++];
+        }
+
+        private int compareIds(int i1, int i2) {
+            int s1 = offsets[i1], e1 = offsets[i1 + 1];
+            int s2 = offsets[i2], e2 = offsets[i2 + 1];
+            for (; s1 < e1 && s2 < e2; s1++, s2++) {
+                int cmp = (bytes[s1] & 0xff) - (bytes[s2] & 0xff);
+                if (cmp != 0) return cmp;
+            }
+
+            return (e1 - s1) - (e2 - s2);
+        }
+    }
+
+    private static class ByteSink {
+        private byte[] buf;
+        private int count = 0;
+
+        private ByteSink(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(2 * buf.length, count + extra));
+        }
+
+        private void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buf[count++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        private void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        private int size() {
+            return count;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+}
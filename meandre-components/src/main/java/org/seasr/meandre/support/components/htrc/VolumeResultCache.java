@@ -0,0 +1,278 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An on-disk cache of per-volume results (token counts), so that a flow re-run over a workset that
+ * overlaps an earlier one only needs to fetch and analyze the volumes it has not seen yet.
+ *
+ * The results of a volume depend on the volume and on the configuration of the per-volume stage
+ * (cleaning, tokenizing...), so the cache is split into namespaces: each configuration key gets a
+ * folder of its own, named after a hash of the key, and the key itself is recorded in the folder.
+ * Within a namespace, the result of a volume is stored in <code>hh/cleanid.tc</code>, where
+ * <i>cleanid</i> is the volume ID cleaned according to the pairtree specification and <i>hh</i>
+ * spreads the files over 256 folders. Files are written under a temporary name and renamed, so a
+ * reader never sees an incomplete result.
+ *
+ * Only the results of complete volumes belong in the cache. A retriever that could only deliver part
+ * of a volume marks it as incomplete (<code>hh/cleanid.incomplete</code>), which drops any result
+ * cached for it and tells the producer of the results not to store one, until the volume is retrieved
+ * again and the mark is cleared.
+ *
+ * Instances can be shared between threads.
+ */
+public class VolumeResultCache {
+
+    private static final int MAGIC = 0x48544d43;  // "HTMC"
+    private static final int VERSION = 1;
+
+    private static final String KEY_FILE = "memo.key";
+    private static final String SETTINGS_FILE = "memo.settings";
+    private static final String SUFFIX = ".tc";
+    private static final String INCOMPLETE_SUFFIX = ".incomplete";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File dir;
+    private final String key;
+
+
+    /**
+     * Opens (or creates) the namespace of a configuration key
+     *
+     * @param root The root folder of the cache
+     * @param key The configuration key
+     * @throws IOException If the namespace cannot be created, or belongs to a different key
+     */
+    public VolumeResultCache(File root, String key) throws IOException {
+        this.key = key;
+        this.dir = new File(root, String.format("%016x", ShardSelector.hash(key)));
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create the cache folder " + dir);
+
+        File keyFile = new File(dir, KEY_FILE);
+        if (keyFile.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(keyFile));
+            try {
+                String recorded = in.readUTF();
+                if (!recorded.equals(key))
+                    throw new IOException(String.format("The cache folder %s belongs to the key '%s' (hash collision)", dir, recorded));
+            }
+            finally {
+                in.close();
+            }
+        } else
+            writeString(keyFile, key);
+    }
+
+    /**
+     * Checks that the results of the namespace were produced with the given settings, recording
+     * them if this is the first use of the namespace. Settings that the key does not capture (those
+     * of the component producing the results) are checked this way, so that the results of different
+     * settings are never mixed up.
+     *
+     * @param settings The settings of the component producing the results
+     * @throws IOException If the namespace holds results produced with different settings
+     */
+    public synchronized void checkSettings(String settings) throws IOException {
+        File settingsFile = new File(dir, SETTINGS_FILE);
+        if (settingsFile.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(settingsFile));
+            try {
+                String recorded = in.readUTF();
+                if (!recorded.equals(settings))
+                    throw new IOException(String.format("The results cached in %s were produced with different settings " +
+                            "(%s instead of %s) - change the memo key", dir, recorded, settings));
+            }
+            finally {
+                in.close();
+            }
+        } else
+            writeString(settingsFile, settings);
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @param volumeId The volume ID
+     * @return The file holding the result of the volume
+     */
+    public File getFile(String volumeId) {
+        String cleanId = PairtreeMirror.cleanId(volumeId);
+        String bucket = String.format("%02x", ShardSelector.hash(volumeId) & 0xff);
+
+        return new File(new File(dir, bucket), cleanId + SUFFIX);
+    }
+
+    /**
+     * Checks whether the result of a volume is cached and recent enough
+     *
+     * @param volumeId The volume ID
+     * @param maxAgeMillis The maximum age of the result, in milliseconds (0 = no limit)
+     * @return True if the result can be used
+     */
+    public boolean contains(String volumeId, long maxAgeMillis) {
+        File file = getFile(volumeId);
+        long modified = file.lastModified();
+        if (modified == 0 || isIncomplete(volumeId))
+            return false;
+
+        return maxAgeMillis <= 0 || System.currentTimeMillis() - modified <= maxAgeMillis;
+    }
+
+    /**
+     * Marks a volume as incomplete in the current run, dropping the result cached for it
+     *
+     * @param volumeId The volume ID
+     * @throws IOException If the mark cannot be written
+     */
+    public void markIncomplete(String volumeId) throws IOException {
+        File mark = getIncompleteFile(volumeId);
+        File parent = mark.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Cannot create the cache folder " + parent);
+
+        if (!mark.exists() && !mark.createNewFile() && !mark.exists())
+            throw new IOException("Cannot mark the cached result as incomplete: " + mark);
+
+        getFile(volumeId).delete();
+    }
+
+    /**
+     * Clears the incomplete mark of a volume, before retrieving it again
+     *
+     * @param volumeId The volume ID
+     */
+    public void clearIncomplete(String volumeId) {
+        getIncompleteFile(volumeId).delete();
+    }
+
+    /**
+     * @param volumeId The volume ID
+     * @return True if the volume was marked as incomplete, so its result must not be stored
+     */
+    public boolean isIncomplete(String volumeId) {
+        return getIncompleteFile(volumeId).exists();
+    }
+
+    /**
+     * Reads the token counts of a volume
+     *
+     * @param volumeId The volume ID
+     * @return The token counts, or null if they are not cached
+     * @throws IOException If the cached result cannot be read
+     */
+    public TokenCounter readTokenCounts(String volumeId) throws IOException {
+        File file = getFile(volumeId);
+        if (!file.exists())
+            return null;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a cached result: " + file);
+
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException(String.format("Unsupported cached result version %d: %s", version, file));
+
+            int size = in.readInt();
+            TokenCounter counts = new TokenCounter(size);
+            for (int i = 0; i < size; i++) {
+                String token = in.readUTF();
+                counts.add(token, in.readInt());
+            }
+
+            return counts;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stores the token counts of a volume, replacing those cached before
+     *
+     * @param volumeId The volume ID
+     * @param counts The token counts
+     * @throws IOException If the result cannot be written
+     */
+    public void writeTokenCounts(String volumeId, TokenCounter counts) throws IOException {
+        File file = getFile(volumeId);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Cannot create the cache folder " + parent);
+
+        String[] tokens = new String[counts.size()];
+        int[] tokenCounts = new int[counts.size()];
+        counts.copyTo(tokens, tokenCounts);
+
+        // unique per thread, so concurrent writers of the same volume do not clash
+        File tmp = new File(parent, file.getName() + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(tokens.length);
+            for (int i = 0; i < tokens.length; i++) {
+                out.writeUTF(tokens[i]);
+                out.writeInt(tokenCounts[i]);
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            // renaming over an existing file fails on some platforms
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot store the cached result " + file);
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private File getIncompleteFile(String volumeId) {
+        File file = getFile(volumeId);
+        String name = file.getName();
+
+        return new File(file.getParentFile(), name.substring(0, name.length() - SUFFIX.length()) + INCOMPLETE_SUFFIX);
+    }
+
+    private static void writeString(File file, String value) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + TMP_SUFFIX);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            out.writeUTF(value);
+        }
+        finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file) && !file.exists())
+            throw new IOException("Cannot create " + file);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cache %s (key '%s')", dir, key);
+    }
+}
@@ -0,0 +1,339 @@
+package org.seasr.meandre.components.tools.text.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.seasr.datatypes.core.BasicDataTypes.IntegersMap;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypes.StringsArray;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+import org.seasr.meandre.support.components.htrc.PartialResultFile;
+import org.seasr.meandre.support.components.htrc.PartialResultMerger;
+import org.seasr.meandre.support.components.htrc.ShardSelector;
+import org.seasr.meandre.support.components.htrc.VolumeIdSet;
+
+/**
+ * Drives the sharding path of a flow, from the volume selection of the HTRC Page Retriever External
+ * to the HTRC Shard Partial Writer, and checks that the shards merge into the single-shard result.
+ *
+ * The shards must select disjoint slices of the workset that cover it and keep the order of the input
+ * tuples. The per-volume token counts and tuples of each shard are fed to a Shard Partial Writer, framed
+ * as the retriever frames them with stream_per_volume and wrap_workset (per-volume streams nested in a
+ * workset stream), with the tuples running ahead of the token counts, the volume ids lagging behind
+ * them and the workset tuples arriving before or after the results. The records of every partial must
+ * be tagged with the right volume, and the partials must merge into the tuples of a single-node run, in
+ * the order the retriever requests the workset. A partial must not be published while a connected input
+ * has not started its workset stream, and per-volume streams that are not wrapped in a workset stream
+ * must be rejected.
+ */
+public class ShardPartialWriterTest {
+
+    private static final String RUN_ID = "partial-writer-test";
+    private static final String RESULT_NAME = "test";
+    private static final String[] EPRS = { "https://dataapi-1.example.org/data-api", "https://dataapi-2.example.org/data-api/" };
+    private static final String[] PREFIXES = { "mdp.39015", "uc1.b", "hvd.32044", "inu.30000", "uc2.ark:/13960/t" };
+    private static final String[] WORDS = { "the", "of", "and", "whale", "ship", "sea", "captain", "boat", "harpoon", "deck" };
+    private static final String[] PORTS = {
+        HTRCShardPartialWriter.IN_TOKEN_COUNTS, HTRCShardPartialWriter.IN_VOLUMEID,
+        HTRCShardPartialWriter.IN_META_TUPLE, HTRCShardPartialWriter.IN_TUPLES };
+    private static final Strings INPUT_META = BasicDataTypesTools.stringToStrings(
+            new String[] { HTRCPageRetrieverExternal.HTRC_VOLUME_ID, HTRCPageRetrieverExternal.HTRC_VOLUME_EPR });
+    private static final Strings TUPLE_META = BasicDataTypesTools.stringToStrings(new String[] { "volume_id", "token", "count" });
+
+    private static final int SHARD_COUNT = 4;
+    private static final int VOLUME_COUNT = 500;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void selectsDisjointShardsThatCoverTheWorksetInInputOrder() {
+        Strings[] input = input();
+
+        Set<String> covered = new HashSet<String>();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            List<String> volumeIDs = select(input, new ShardSelector(i, SHARD_COUNT));
+            for (String volumeId : volumeIDs) {
+                assertEquals(volumeId, i, ShardSelector.shardOf(volumeId, SHARD_COUNT));
+                assertTrue(volumeId + " selected by more than one shard", covered.add(volumeId));
+            }
+
+            // in input order, EPR by EPR
+            Map<String, List<String>> byEpr = new LinkedHashMap<String, List<String>>();
+            for (Strings tuple : input)
+                if (ShardSelector.shardOf(tuple.getValue(0), SHARD_COUNT) == i) {
+                    List<String> vols = byEpr.get(tuple.getValue(1));
+                    if (vols == null) {
+                        vols = new ArrayList<String>();
+                        byEpr.put(tuple.getValue(1), vols);
+                    }
+                    vols.add(tuple.getValue(0));
+                }
+            List<String> inputOrder = new ArrayList<String>();
+            for (List<String> vols : byEpr.values())
+                inputOrder.addAll(vols);
+            assertEquals(inputOrder, volumeIDs);
+        }
+
+        assertEquals(VOLUME_COUNT, covered.size());
+    }
+
+    @Test
+    public void mergesThePartialsIntoTheSingleNodeResult() throws Exception {
+        Strings[] input = input();
+        File shardedDir = folder.newFolder("sharded");
+        File singleDir = folder.newFolder("single");
+
+        for (int i = 0; i < SHARD_COUNT; i++)
+            writePartial(shardedDir, i, SHARD_COUNT, input, select(input, new ShardSelector(i, SHARD_COUNT)), i % 2 == 0);
+
+        List<String> singleNode = select(input, new ShardSelector(0, 1));
+        writePartial(singleDir, 0, 1, input, singleNode, true);
+
+        PartialResultMerger sharded = new PartialResultMerger(RUN_ID, SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++)
+            sharded.add(checkTags(PartialResultFile.getFile(shardedDir, RESULT_NAME, i, SHARD_COUNT)), i);
+
+        PartialResultMerger single = new PartialResultMerger(RUN_ID, 1);
+        single.add(checkTags(PartialResultFile.getFile(singleDir, RESULT_NAME, 0, 1)), 0);
+
+        assertEquals(single.getTokenCounts(), sharded.getTokenCounts());
+        assertEquals(values(single.getTuples()), values(sharded.getTuples()));
+
+        // the tuples a single-node run outputs, in the order the retriever requests the volumes
+        List<Strings> expected = new ArrayList<Strings>();
+        for (String volumeId : singleNode)
+            expected.addAll(Arrays.asList(BasicDataTypesTools.stringsArrayToJavaArray(tuples(volumeId))));
+        assertEquals(values(expected), values(sharded.getTuples()));
+    }
+
+    /**
+     * The partial must not be published when the inputs that have started the workset stream have
+     * ended it, but another connected input has not started it yet (inputs fire independently)
+     */
+    @Test
+    public void doesNotPublishBeforeAllTheInputsStartedTheWorkset() throws Exception {
+        Strings[] input = input();
+        List<String> volumeIDs = select(input, new ShardSelector(0, 1));
+        File dir = folder.newFolder("late");
+
+        HTRCShardPartialWriter writer = open(dir, 0, 1, PORTS);
+        addWorkset(writer, input);
+
+        writer.startStream(HTRCShardPartialWriter.IN_META_TUPLE);
+        writer.startStream(HTRCShardPartialWriter.IN_TUPLES);
+        for (String volumeId : volumeIDs) {
+            writer.addTuples(tuples(volumeId));
+            writer.addMetaTuple(TUPLE_META);
+        }
+        assertFalse(writer.endStream(HTRCShardPartialWriter.IN_TUPLES));
+        assertFalse(writer.endStream(HTRCShardPartialWriter.IN_META_TUPLE));
+        assertFalse(PartialResultFile.getFile(dir, RESULT_NAME, 0, 1).exists());
+
+        writer.startStream(HTRCShardPartialWriter.IN_TOKEN_COUNTS);
+        writer.startStream(HTRCShardPartialWriter.IN_VOLUMEID);
+        for (String volumeId : volumeIDs) {
+            writer.addTokenCounts(BasicDataTypesTools.mapToIntegerMap(counts(volumeId), true));
+            writer.addVolumeId(volumeId);
+        }
+        assertFalse(writer.endStream(HTRCShardPartialWriter.IN_TOKEN_COUNTS));
+        assertTrue(writer.endStream(HTRCShardPartialWriter.IN_VOLUMEID));
+        assertTrue(PartialResultFile.getFile(dir, RESULT_NAME, 0, 1).exists());
+    }
+
+    /**
+     * Per-volume streams that are not nested in a workset stream must be rejected instead of
+     * publishing the first volume as the whole partial
+     */
+    @Test
+    public void rejectsPerVolumeStreamsNotWrappedInAWorksetStream() throws Exception {
+        Strings[] input = input();
+        List<String> volumeIDs = select(input, new ShardSelector(0, 1));
+
+        HTRCShardPartialWriter writer = open(folder.newFolder("unwrapped"), 0, 1,
+                HTRCShardPartialWriter.IN_TOKEN_COUNTS, HTRCShardPartialWriter.IN_VOLUMEID);
+        addWorkset(writer, input);
+
+        writeVolume(writer, volumeIDs.get(0));
+        try {
+            writeVolume(writer, volumeIDs.get(1));
+            fail("The second outermost stream was accepted");
+        }
+        catch (Exception e) {
+            // expected
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * The input tuples of the retriever: volume id, EPR
+     */
+    private static Strings[] input() {
+        Random ids = new Random(42);
+        Strings[] input = new Strings[VOLUME_COUNT];
+        for (int v = 0; v < VOLUME_COUNT; v++) {
+            String volumeId = String.format("%s%09d", PREFIXES[ids.nextInt(PREFIXES.length)], ids.nextInt(1000000000));
+            input[v] = BasicDataTypesTools.stringToStrings(new String[] { volumeId, EPRS[v % EPRS.length] });
+        }
+
+        return input;
+    }
+
+    /**
+     * Selects the volumes of a shard, as the retriever does
+     */
+    private static List<String> select(Strings[] input, ShardSelector shard) {
+        List<String> volumeIDs = new ArrayList<String>();
+        for (VolumeIdSet vols : HTRCPageRetrieverExternal.groupByEpr(input, 0, 1, EPRS[0], shard).values())
+            volumeIDs.addAll(vols.inInputOrder());
+
+        return volumeIDs;
+    }
+
+    private static HTRCShardPartialWriter open(File dir, int shardIndex, int shardCount, String... ports) throws Exception {
+        HTRCShardPartialWriter writer = new HTRCShardPartialWriter();
+        writer.open(PartialResultFile.getFile(dir, RESULT_NAME, shardIndex, shardCount), RUN_ID, shardIndex, shardCount,
+                true, "volume_id", HTRCPageRetrieverExternal.HTRC_VOLUME_ID, Arrays.asList(ports));
+
+        return writer;
+    }
+
+    private static void addWorkset(HTRCShardPartialWriter writer, Strings[] input) throws Exception {
+        writer.addWorksetTuples(BasicDataTypesTools.javaArrayToStringsArray(input));
+        writer.addWorksetMetaTuple(INPUT_META);
+    }
+
+    /**
+     * Feeds the token counts of a volume in a per-volume stream
+     */
+    private static void writeVolume(HTRCShardPartialWriter writer, String volumeId) throws Exception {
+        writer.startStream(HTRCShardPartialWriter.IN_TOKEN_COUNTS);
+        writer.startStream(HTRCShardPartialWriter.IN_VOLUMEID);
+        writer.addTokenCounts(BasicDataTypesTools.mapToIntegerMap(counts(volumeId), true));
+        writer.addVolumeId(volumeId);
+        writer.endStream(HTRCShardPartialWriter.IN_TOKEN_COUNTS);
+        writer.endStream(HTRCShardPartialWriter.IN_VOLUMEID);
+    }
+
+    /**
+     * Feeds the results of the volumes of a shard to a Shard Partial Writer (per_volume set)
+     */
+    private static void writePartial(File dir, int shardIndex, int shardCount, Strings[] input, List<String> volumeIDs,
+            boolean worksetFirst) throws Exception {
+        HTRCShardPartialWriter writer = open(dir, shardIndex, shardCount, PORTS);
+        if (worksetFirst)
+            addWorkset(writer, input);
+
+        for (String port : PORTS)
+            writer.startStream(port);
+
+        // the tuples of all the volumes run ahead, in their own per-volume streams
+        for (String volumeId : volumeIDs) {
+            writer.startStream(HTRCShardPartialWriter.IN_META_TUPLE);
+            writer.startStream(HTRCShardPartialWriter.IN_TUPLES);
+            writer.addTuples(tuples(volumeId));
+            writer.addMetaTuple(TUPLE_META);
+            assertFalse("published at the end of a volume", writer.endStream(HTRCShardPartialWriter.IN_TUPLES));
+            assertFalse("published at the end of a volume", writer.endStream(HTRCShardPartialWriter.IN_META_TUPLE));
+        }
+
+        // the volume id of the token counts of a volume arrives with the counts of the next volume
+        String lagging = null;
+        for (String volumeId : volumeIDs) {
+            writer.startStream(HTRCShardPartialWriter.IN_TOKEN_COUNTS);
+            writer.startStream(HTRCShardPartialWriter.IN_VOLUMEID);
+            writer.addTokenCounts(BasicDataTypesTools.mapToIntegerMap(counts(volumeId), true));
+            if (lagging != null)
+                writer.addVolumeId(lagging);
+            lagging = volumeId;
+            assertFalse("published at the end of a volume", writer.endStream(HTRCShardPartialWriter.IN_TOKEN_COUNTS));
+            assertFalse("published at the end of a volume", writer.endStream(HTRCShardPartialWriter.IN_VOLUMEID));
+        }
+        if (lagging != null)
+            writer.addVolumeId(lagging);
+
+        if (!worksetFirst)
+            addWorkset(writer, input);
+
+        boolean published = false;
+        for (String port : PORTS)
+            published = writer.endStream(port);
+        assertTrue("the partial was not published at the end of the workset stream", published);
+    }
+
+    /**
+     * Checks that every record of a partial holds the results of the volume it is tagged with
+     */
+    private static File checkTags(File partial) throws Exception {
+        PartialResultFile.read(partial, new PartialResultFile.RecordHandler() {
+            public void tokenCounts(String volumeId, IntegersMap counts) {
+                Map<String, Integer> map = new HashMap<String, Integer>();
+                for (int i = 0, iMax = counts.getKeyCount(); i < iMax; i++)
+                    map.put(counts.getKey(i), counts.getValue(i).getValue(0));
+
+                assertEquals("token counts tagged with " + volumeId, counts(volumeId), map);
+            }
+
+            public void tuples(String volumeId, Strings meta, StringsArray tuples) {
+                for (Strings tuple : BasicDataTypesTools.stringsArrayToJavaArray(tuples))
+                    assertEquals(volumeId, tuple.getValue(0));
+            }
+
+            public void position(String volumeId, int position) {
+            }
+        });
+
+        return partial;
+    }
+
+    /**
+     * The token counts of a volume only depend on its ID
+     */
+    private static Map<String, Integer> counts(String volumeId) {
+        Random words = new Random(ShardSelector.hash(volumeId));
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0, iMax = 50 + words.nextInt(200); i < iMax; i++) {
+            String word = WORDS[words.nextInt(WORDS.length)];
+            Integer count = counts.get(word);
+            counts.put(word, count == null ? 1 : count + 1);
+        }
+
+        return counts;
+    }
+
+    private static StringsArray tuples(String volumeId) {
+        List<Strings> tuples = new ArrayList<Strings>();
+        for (Map.Entry<String, Integer> entry : counts(volumeId).entrySet())
+            if (entry.getValue() > 25)
+                tuples.add(BasicDataTypesTools.stringToStrings(
+                        new String[] { volumeId, entry.getKey(), entry.getValue().toString() }));
+
+        return BasicDataTypesTools.javaArrayToStringsArray(tuples.toArray(new Strings[tuples.size()]));
+    }
+
+    private static List<List<String>> values(List<Strings> tuples) {
+        List<List<String>> values = new ArrayList<List<String>>();
+        for (Strings tuple : tuples)
+            values.add(tuple.getValueList());
+
+        return values;
+    }
+}
@@ -0,0 +1,129 @@
+package org.seasr.meandre.support.components.htrc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.seasr.datatypes.core.BasicDataTypes.IntegersMap;
+
+/**
+ * Checks the log-likelihood ratio against values computed by hand, and the bounded selection of
+ * the {@link DunningScorer} against scoring and sorting the whole vocabulary.
+ */
+public class DunningScorerTest {
+
+    @Test
+    public void computesTheSignedLogLikelihoodRatio() {
+        assertEquals(22.1382, DunningScorer.logLikelihood(10, 10, 100, 1000), 1e-4);
+        assertEquals(-100 * Math.log(2), DunningScorer.logLikelihood(0, 50, 1000, 1000), 1e-9);
+        assertEquals(0, DunningScorer.logLikelihood(30, 300, 1000, 10000), 1e-9);
+    }
+
+    @Test
+    public void keepsTheMostOverAndUnderRepresentedWords() {
+        TokenCounter analysis = new TokenCounter();
+        analysis.add("whale", 100);
+        analysis.add("sea", 50);
+        analysis.add("the", 500);
+        analysis.add("rare", 2);
+
+        TokenCounter reference = new TokenCounter();
+        reference.add("sea", 50);
+        reference.add("the", 500);
+        reference.add("war", 80);
+        reference.add("peace", 40);
+        reference.add("rare", 1);
+
+        DunningScorer scorer = new DunningScorer(5, 2);
+        scorer.score(analysis, reference);
+
+        // "rare" is below the cutoff in both corpora
+        assertEquals(5, scorer.getScoredCount());
+        assertEquals(Arrays.asList("whale", "the"), scorer.getOverRepresented().getKeyList());
+        assertEquals(Arrays.asList("war", "peace"), scorer.getUnderRepresented().getKeyList());
+
+        IntegersMap signed = scorer.getSignedScores();
+        assertEquals(Arrays.asList("whale", "the", "peace", "war"), signed.getKeyList());
+        for (int i = 1; i < signed.getKeyCount(); i++)
+            assertTrue(signed.getValue(i - 1).getValue(0) >= signed.getValue(i).getValue(0));
+        assertTrue(signed.getValue(3).getValue(0) < 0);
+    }
+
+    @Test
+    public void selectsTheSameWordsAsSortingTheWholeVocabulary() {
+        Random random = new Random(42);
+        TokenCounter analysis = new TokenCounter();
+        TokenCounter reference = new TokenCounter();
+        for (int i = 0; i < 200000; i++) {
+            String word = "w" + (int) Math.abs(random.nextGaussian() * 500);
+            (random.nextInt(3) == 0 ? analysis : reference).increment(word);
+        }
+
+        int cutoff = 3, topK = 25;
+        DunningScorer scorer = new DunningScorer(cutoff, topK);
+        scorer.score(analysis, reference);
+
+        final List<String> over = new ArrayList<String>();
+        final List<String> under = new ArrayList<String>();
+        final List<Double> scores = new ArrayList<Double>();
+        final List<String> words = new ArrayList<String>();
+
+        String[] tokens = new String[reference.size()];
+        reference.copyTo(tokens, new int[tokens.length]);
+        List<String> vocabulary = new ArrayList<String>(Arrays.asList(tokens));
+        tokens = new String[analysis.size()];
+        analysis.copyTo(tokens, new int[tokens.length]);
+        for (String token : tokens)
+            if (reference.get(token) == 0)
+                vocabulary.add(token);
+
+        for (String word : vocabulary) {
+            int a = analysis.get(word), b = reference.get(word);
+            if (a < cutoff && b < cutoff) continue;
+
+            words.add(word);
+            scores.add(DunningScorer.logLikelihood(a, b, analysis.total(), reference.total()));
+        }
+        assertEquals(words.size(), scorer.getScoredCount());
+
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < words.size(); i++)
+            order.add(i);
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                double m1 = Math.abs(scores.get(i1)), m2 = Math.abs(scores.get(i2));
+                if (m1 != m2) return m1 > m2 ? -1 : 1;
+                return words.get(i1).compareTo(words.get(i2));
+            }
+        });
+
+        for (int i : order) {
+            List<String> side = scores.get(i) >= 0 ? over : under;
+            if (side.size() < topK)
+                side.add(words.get(i));
+        }
+
+        assertEquals(over, scorer.getOverRepresented().getKeyList());
+        assertEquals(under, scorer.getUnderRepresented().getKeyList());
+    }
+
+    @Test
+    public void scoresNothingWhenACorpusIsEmpty() {
+        TokenCounter analysis = new TokenCounter();
+        analysis.add("whale", 100);
+
+        DunningScorer scorer = new DunningScorer(1, 10);
+        scorer.score(analysis, new TokenCounter());
+
+        assertEquals(0, scorer.getScoredCount());
+        assertEquals(0, scorer.getOverRepresented().getKeyCount());
+        assertEquals(0, scorer.getUnderRepresented().getKeyCount());
+    }
+}
@@ -0,0 +1,115 @@
+package org.seasr.meandre.support.components.htrc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+/**
+ * Resolves the services through the local registry of <code>conf/registry-local.properties</code>,
+ * checks the caching of the lookups and the parsing of WSO2 service descriptors.
+ */
+public class EndpointResolverTest {
+
+    private static final File LOCAL_CONFIG = new File("conf/registry-local.properties");
+
+    @Test
+    public void resolvesTheServicesOfTheLocalRegistry() throws IOException {
+        EndpointResolver resolver = EndpointResolver.getInstance(LOCAL_CONFIG, 60000);
+
+        assertEquals(Arrays.asList("http://coffeetree.cs.indiana.edu:9994/solr"),
+                resolver.resolve(EndpointResolver.SERVICE_SOLR));
+        assertEquals(Arrays.asList("https://silvermaple.pti.indiana.edu:25443/data-api/"),
+                resolver.resolve(EndpointResolver.SERVICE_DATA_API));
+        assertSame(resolver, EndpointResolver.getInstance(LOCAL_CONFIG, 60000));
+    }
+
+    @Test
+    public void poolsTheEndpointsOfTheLocalRegistry() throws IOException {
+        EndpointPool pool = EndpointPool.create(LOCAL_CONFIG.getPath(), 60, EndpointResolver.SERVICE_DATA_API,
+                "http://unused.example.org/");
+
+        EndpointPool.Endpoint endpoint = pool.acquire();
+        assertEquals("https://silvermaple.pti.indiana.edu:25443/data-api/", endpoint.getURL());
+        assertEquals(1, endpoint.getOutstanding());
+
+        pool.release(endpoint, false);
+        assertEquals(0, endpoint.getOutstanding());
+    }
+
+    @Test
+    public void usesTheRegisteredNameWhenTheConfigurationDoesNotNameTheService() throws IOException {
+        Properties config = new Properties();
+        config.setProperty("solrindex", "htrc-apache-solr-search");
+        config.setProperty("endpoints.htrc-data-api", "http://a/data-api, http://b/data-api");
+
+        EndpointResolver resolver = new EndpointResolver(config, new EndpointResolver.LocalRegistry(config), 60000);
+        assertEquals(Arrays.asList("http://a/data-api", "http://b/data-api"),
+                resolver.resolve(EndpointResolver.SERVICE_DATA_API));
+    }
+
+    @Test
+    public void cachesTheLookupsAndKeepsThemWhenTheRegistryFails() throws IOException {
+        Properties config = new Properties();
+        final int[] lookups = new int[1];
+        final boolean[] down = new boolean[1];
+
+        EndpointResolver.Registry registry = new EndpointResolver.Registry() {
+            public List<String> lookup(String serviceName) throws IOException {
+                lookups[0]++;
+                if (down[0])
+                    throw new IOException("down");
+                return Collections.singletonList("http://solr" + lookups[0]);
+            }
+        };
+
+        EndpointResolver cached = new EndpointResolver(config, registry, 60000);
+        List<String> first = cached.resolve(EndpointResolver.SERVICE_SOLR);
+        assertSame(first, cached.resolve(EndpointResolver.SERVICE_SOLR));
+        assertEquals(1, lookups[0]);
+
+        EndpointResolver expiring = new EndpointResolver(config, registry, 0);
+        assertEquals(Arrays.asList("http://solr2"), expiring.resolve(EndpointResolver.SERVICE_SOLR));
+        down[0] = true;
+        assertEquals(Arrays.asList("http://solr2"), expiring.resolve(EndpointResolver.SERVICE_SOLR));
+        assertEquals(3, lookups[0]);
+    }
+
+    @Test
+    public void readsTheEndpointEntriesOfAServiceDescriptor() throws IOException {
+        String descriptor =
+                "<metadata xmlns=\"http://www.wso2.org/governance/metadata\">" +
+                "<overview><name>htrc-data-api</name><description>See http://wiki.example.org/</description></overview>" +
+                "<endpoints>" +
+                "<entry>Prod:https://host1:25443/data-api/</entry>" +
+                "<entry> https://host2:25443/data-api/ </entry>" +
+                "<entry>Dev:https://host1:25443/data-api/</entry>" +
+                "<entry>not an endpoint</entry>" +
+                "</endpoints>" +
+                "<docLinks><url>http://docs.example.org/data-api</url></docLinks>" +
+                "</metadata>";
+
+        assertEquals(Arrays.asList("https://host1:25443/data-api/", "https://host2:25443/data-api/"),
+                EndpointResolver.WSO2Registry.parseEndpoints(new ByteArrayInputStream(descriptor.getBytes("UTF-8"))));
+    }
+
+    @Test
+    public void rejectsAMalformedServiceDescriptor() {
+        try {
+            EndpointResolver.WSO2Registry.parseEndpoints(new ByteArrayInputStream("<metadata><endpoints>".getBytes()));
+            fail("A truncated descriptor was accepted");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.seasr.meandre.support.components.htrc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.seasr.datatypes.core.BasicDataTypes.Strings;
+import org.seasr.datatypes.core.BasicDataTypesTools;
+
+/**
+ * Checks that a workset processed in N shards merges into exactly the result of processing it in a
+ * single shard.
+ *
+ * Each shard selects its slice of a generated workset with {@link ShardSelector} and writes a partial
+ * result file with synthetic per-volume token counts and tuples, and the workset positions of its
+ * volumes, the way the HTRC Shard Partial Writer does. The partials are merged with
+ * {@link PartialResultMerger} and compared with the single-shard partial and with the tuples of a
+ * single-node run in workset order.
+ */
+public class ShardMergeTest {
+
+    private static final String RUN_ID = "shard-merge-test";
+    private static final String RESULT_NAME = "test";
+    private static final String[] PREFIXES = { "mdp.39015", "uc1.b", "hvd.32044", "inu.30000", "uc2.ark:/13960/t" };
+    private static final String[] WORDS = { "the", "of", "and", "whale", "ship", "sea", "captain", "boat", "harpoon", "deck" };
+
+    private static final int SHARD_COUNT = 4;
+    private static final int VOLUME_COUNT = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void mergesTheShardsIntoTheSingleShardResult() throws Exception {
+        File shardedDir = folder.newFolder("sharded");
+        File singleDir = folder.newFolder("single");
+
+        for (int i = 0; i < SHARD_COUNT; i++)
+            writePartial(shardedDir, i, SHARD_COUNT);
+        writePartial(singleDir, 0, 1);
+
+        PartialResultMerger sharded = merge(shardedDir, SHARD_COUNT);
+        PartialResultMerger single = merge(singleDir, 1);
+
+        assertEquals(SHARD_COUNT, sharded.getShardsMerged());
+        assertEquals(single.getTokenCounts(), sharded.getTokenCounts());
+        assertEquals(values(single.getTuples()), values(sharded.getTuples()));
+
+        // a single-node run outputs the tuples of the volumes in workset order
+        List<Strings> expected = new ArrayList<Strings>();
+        for (String volumeId : workset())
+            expected.addAll(tuples(volumeId, counts(volumeId)));
+        assertEquals(values(expected), values(sharded.getTuples()));
+    }
+
+    @Test
+    public void tellsAStalePartialFromThoseOfTheRun() throws Exception {
+        File dir = folder.newFolder("stale");
+        File stale = PartialResultFile.getFile(dir, RESULT_NAME, 0, SHARD_COUNT);
+        new PartialResultFile.Writer(stale, "earlier-run", 0, SHARD_COUNT).close();
+
+        PartialResultMerger merger = new PartialResultMerger(RUN_ID, SHARD_COUNT);
+        assertFalse(merger.belongsToRun(PartialResultFile.readHeader(stale)));
+        try {
+            merger.add(stale, 0);
+            fail("A partial of another run was merged");
+        }
+        catch (IOException e) {
+            // expected
+        }
+
+        writePartial(dir, 1, SHARD_COUNT);
+        File partial = PartialResultFile.getFile(dir, RESULT_NAME, 1, SHARD_COUNT);
+        assertTrue(merger.belongsToRun(PartialResultFile.readHeader(partial)));
+        try {
+            merger.add(partial, 2);
+            fail("The partial of shard 1 was merged as shard 2");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static PartialResultMerger merge(File dir, int shardCount) throws Exception {
+        PartialResultMerger merger = new PartialResultMerger(RUN_ID, shardCount);
+        for (int i = 0; i < shardCount; i++)
+            merger.add(PartialResultFile.getFile(dir, RESULT_NAME, i, shardCount), i);
+
+        return merger;
+    }
+
+    /**
+     * Writes the partial result of a shard, as a flow with the HTRC Shard Partial Writer (per_volume set) would
+     */
+    private static void writePartial(File dir, int shardIndex, int shardCount) throws IOException {
+        ShardSelector shard = new ShardSelector(shardIndex, shardCount);
+        PartialResultFile.Writer writer = new PartialResultFile.Writer(
+                PartialResultFile.getFile(dir, RESULT_NAME, shardIndex, shardCount), RUN_ID, shardIndex, shardCount);
+
+        Strings meta = BasicDataTypesTools.stringToStrings(new String[] { "volume_id", "token", "count" });
+        List<String> workset = workset();
+
+        // the shards process their volumes in an order of their own
+        List<String> volumeIDs = new ArrayList<String>();
+        for (String volumeId : workset)
+            if (shard.accepts(volumeId))
+                volumeIDs.add(volumeId);
+        Collections.shuffle(volumeIDs, new Random(shardIndex));
+
+        for (String volumeId : volumeIDs) {
+            Map<String, Integer> counts = counts(volumeId);
+            List<Strings> tuples = tuples(volumeId, counts);
+
+            writer.writeTokenCounts(volumeId, BasicDataTypesTools.mapToIntegerMap(counts, true));
+            writer.writeTuples(volumeId, meta, BasicDataTypesTools.javaArrayToStringsArray(tuples.toArray(new Strings[tuples.size()])));
+        }
+
+        for (String volumeId : volumeIDs)
+            writer.writePosition(volumeId, workset.indexOf(volumeId));
+
+        writer.close();
+    }
+
+    private static List<String> workset() {
+        Random ids = new Random(42);
+        List<String> workset = new ArrayList<String>();
+        for (int v = 0; v < VOLUME_COUNT; v++)
+            workset.add(String.format("%s%09d", PREFIXES[ids.nextInt(PREFIXES.length)], ids.nextInt(1000000000)));
+
+        return workset;
+    }
+
+    /**
+     * The counts of a volume only depend on its ID
+     */
+    private static Map<String, Integer> counts(String volumeId) {
+        Random words = new Random(ShardSelector.hash(volumeId));
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0, iMax = 50 + words.nextInt(200); i < iMax; i++) {
+            String word = WORDS[words.nextInt(WORDS.length)];
+            Integer count = counts.get(word);
+            counts.put(word, count == null ? 1 : count + 1);
+        }
+
+        return counts;
+    }
+
+    private static List<Strings> tuples(String volumeId, Map<String, Integer> counts) {
+        List<Strings> tuples = new ArrayList<Strings>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet())
+            if (entry.getValue() > 25)
+                tuples.add(BasicDataTypesTools.stringToStrings(
+                        new String[] { volumeId, entry.getKey(), entry.getValue().toString() }));
+
+        return tuples;
+    }
+
+    private static List<List<String>> values(List<Strings> tuples) {
+        List<List<String>> values = new ArrayList<List<String>>();
+        for (Strings tuple : tuples)
+            values.add(tuple.getValueList());
+
+        return values;
+    }
+}
@@ -0,0 +1,496 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.indiana.d2i.htrc.clients.solr.HTRCSolrClient;
+
+/**
+ * Measures the bytes transferred and the time spent transferring and parsing Solr term vector
+ * responses with {@link SolrTransport} and {@link SolrTermVectorReader}, for each response format
+ * with and without compression. The first configuration (XML, uncompressed) is the one the
+ * components used before the pooled transport.
+ *
+ * It then measures the word count of all the volumes with {@link SolrWordCountReader} (a facet query
+ * filtered on the volume ids, the 'solr_filter' word count of the HTRC Solr Word Count Puller), for
+ * each response format, with and without compression.
+ *
+ * It then measures the retrieval of the ids of the volumes matching a query, first with the legacy
+ * HTRCSolrClient (the 'client' transport of the HTRC Solr Id Puller), then with {@link SolrIdReader}
+ * for each response format, with and without compression, and each way of paging.
+ *
+ * The responses are served by a local HTTP server from synthetic term vectors (Zipf-like term
+ * frequencies) and synthetic volume ids; they are rendered and compressed during a warm-up round,
+ * so the times only cover the client side. The javabin configurations need the solr-solrj jar on
+ * the class path, the legacy client needs the HTRC Solr client jar.
+ *
+ * Usage: SolrTransportBenchmark [volumes (default 1000)] [distinct terms per volume (default 2000)] [volumes per request (default 100)]
+ *                               [matching volume ids (default 100000)] [ids per request (default 1000)]
+ */
+public class SolrTransportBenchmark {
+
+    private static final String FIELD = "ocr";
+    private static final Pattern ID = Pattern.compile("\"([^\"]+)\"");
+
+    private static final Map<String, byte[]> responses = new HashMap<String, byte[]>();
+    private static final Map<String, int[][]> termVectors = new HashMap<String, int[][]>();
+    private static final List<String> matches = new ArrayList<String>();
+    private static final List<String> sortedMatches = new ArrayList<String>();
+
+
+    public static void main(String[] args) throws Exception {
+        int volumeCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int termCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int volumesPerRequest = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int matchCount = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+        int idsPerRequest = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+
+        run(volumeCount, termCount, volumesPerRequest, matchCount, idsPerRequest, System.out);
+    }
+
+    public static void run(int volumeCount, int termCount, int volumesPerRequest, int matchCount, int idsPerRequest,
+            PrintStream out) throws Exception {
+        List<String> volumeIDs = new ArrayList<String>();
+        Random random = new Random(42);
+        long totalTf = 0;
+        for (int v = 0; v < volumeCount; v++) {
+            String volumeId = String.format("mdp.39015%09d", random.nextInt(1000000000));
+            int[][] terms = new int[termCount][2];
+            for (int t = 0; t < termCount; t++) {
+                terms[t][0] = t + random.nextInt(10 * termCount);
+                terms[t][1] = 1 + (int) (5000.0 / (t + 1) * random.nextDouble());
+                totalTf += terms[t][1];
+            }
+            volumeIDs.add(volumeId);
+            termVectors.put(volumeId, terms);
+        }
+
+        Set<String> ids = new HashSet<String>();
+        while (matches.size() < matchCount) {
+            String volumeId = String.format("uc1.b%09d", random.nextInt(1000000000));
+            if (ids.add(volumeId))
+                matches.add(volumeId);
+        }
+        sortedMatches.addAll(matches);
+        Collections.sort(sortedMatches);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/solr/tvrh", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.createContext("/solr/select", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/solr";
+            out.println(String.format("%,d volumes x %,d terms, %,d volumes per request", volumeCount, termCount, volumesPerRequest));
+            out.println();
+            out.println(String.format("%-16s %14s %14s %10s %10s %10s", "format", "wire bytes", "decoded bytes", "transfer", "parse", "total"));
+
+            for (SolrTransport.ResponseFormat format : SolrTransport.ResponseFormat.values())
+                for (boolean compress : new boolean[] { false, true }) {
+                    String name = format.name().toLowerCase() + (compress ? "+gzip" : "");
+                    try {
+                        // warm up (renders the responses and loads the classes), then measure
+                        measure(url, format, compress, volumeIDs, volumesPerRequest, totalTf);
+                        long start = System.nanoTime();
+                        SolrTransport transport = measure(url, format, compress, volumeIDs, volumesPerRequest, totalTf);
+                        long totalMillis = (System.nanoTime() - start) / 1000000;
+
+                        out.println(String.format("%-16s %,14d %,14d %,8d ms %,8d ms %,8d ms", name,
+                                transport.getWireBytes(), transport.getResponseBytes(),
+                                transport.getTransferMillis(), transport.getParseMillis(), totalMillis));
+                    }
+                    catch (Throwable t) {
+                        out.println(String.format("%-16s skipped (%s)", name, t));
+                    }
+                }
+
+            out.println();
+            out.println(String.format("word count of %,d volumes, %,d volumes per request", volumeCount, volumesPerRequest));
+            out.println();
+            out.println(String.format("%-16s %14s %14s %10s %10s %10s", "format", "wire bytes", "decoded bytes", "transfer", "parse", "total"));
+
+            long expectedDf = 0;
+            for (int[][] terms : termVectors.values())
+                expectedDf += distinctTerms(terms).size();
+
+            for (SolrTransport.ResponseFormat format : SolrTransport.ResponseFormat.values())
+                for (boolean compress : new boolean[] { false, true }) {
+                    String name = format.name().toLowerCase() + (compress ? "+gzip" : "");
+                    try {
+                        measureWordCount(url, format, compress, volumeIDs, volumesPerRequest, expectedDf);
+                        long start = System.nanoTime();
+                        SolrTransport transport = measureWordCount(url, format, compress, volumeIDs, volumesPerRequest, expectedDf);
+                        long totalMillis = (System.nanoTime() - start) / 1000000;
+
+                        out.println(String.format("%-16s %,14d %,14d %,8d ms %,8d ms %,8d ms", name,
+                                transport.getWireBytes(), transport.getResponseBytes(),
+                                transport.getTransferMillis(), transport.getParseMillis(), totalMillis));
+                    }
+                    catch (Throwable t) {
+                        out.println(String.format("%-16s skipped (%s)", name, t));
+                    }
+                }
+
+            out.println();
+            out.println(String.format("%,d matching volume ids, %,d ids per request", matchCount, idsPerRequest));
+            out.println();
+            out.println(String.format("%-24s %14s %14s %10s %10s %10s", "transport", "wire bytes", "decoded bytes", "transfer", "parse", "total"));
+
+            try {
+                // the legacy client pages (or not) by itself, only the total time is known
+                measureClient(url);
+                long start = System.nanoTime();
+                measureClient(url);
+                out.println(String.format("%-24s %14s %14s %10s %10s %,8d ms", "client", "-", "-", "-", "-",
+                        (System.nanoTime() - start) / 1000000));
+            }
+            catch (Throwable t) {
+                out.println(String.format("%-24s skipped (%s)", "client", t));
+            }
+
+            for (SolrIdReader.Paging paging : SolrIdReader.Paging.values())
+                for (SolrTransport.ResponseFormat format : SolrTransport.ResponseFormat.values())
+                    for (boolean compress : new boolean[] { false, true }) {
+                        String name = "pooled " + format.name().toLowerCase() + (compress ? "+gzip" : "") +
+                                " " + paging.name().toLowerCase();
+                        try {
+                            measureIds(url, format, compress, paging, idsPerRequest);
+                            long start = System.nanoTime();
+                            SolrTransport transport = measureIds(url, format, compress, paging, idsPerRequest);
+                            long totalMillis = (System.nanoTime() - start) / 1000000;
+
+                            out.println(String.format("%-24s %,14d %,14d %,8d ms %,8d ms %,8d ms", name,
+                                    transport.getWireBytes(), transport.getResponseBytes(),
+                                    transport.getTransferMillis(), transport.getParseMillis(), totalMillis));
+                        }
+                        catch (Throwable t) {
+                            out.println(String.format("%-24s skipped (%s)", name, t));
+                        }
+                    }
+        }
+        finally {
+            server.stop(0);
+        }
+    }
+
+    private static SolrTransport measure(String url, SolrTransport.ResponseFormat format, boolean compress,
+            List<String> volumeIDs, int volumesPerRequest, long expectedTf) throws Exception {
+        SolrTransport transport = new SolrTransport(new EndpointPool(url), 0, 0, compress, format, 1);
+        SolrTermVectorReader reader = new SolrTermVectorReader(transport, "tvrh", FIELD);
+
+        final long[] tf = new long[1];
+        int found = reader.read(volumeIDs, volumesPerRequest, new SolrTermVectorReader.TermVectorHandler() {
+            public void termVector(String volumeId, TokenCounter counts) {
+                tf[0] += counts.total();
+            }
+        });
+
+        if (found != volumeIDs.size() || tf[0] != expectedTf)
+            throw new IllegalStateException(String.format("read %,d volumes / %,d terms instead of %,d / %,d",
+                    found, tf[0], volumeIDs.size(), expectedTf));
+
+        return transport;
+    }
+
+    private static SolrTransport measureWordCount(String url, SolrTransport.ResponseFormat format, boolean compress,
+            List<String> volumeIDs, int volumesPerRequest, long expectedDf) throws Exception {
+        SolrTransport transport = new SolrTransport(new EndpointPool(url), 0, 0, compress, format, 1);
+        TokenCounter wordCount = new SolrWordCountReader(transport, "select", FIELD)
+                .read(volumeIDs, volumesPerRequest, Integer.MAX_VALUE);
+
+        if (wordCount.total() != expectedDf)
+            throw new IllegalStateException(String.format("counted %,d words instead of %,d", wordCount.total(), expectedDf));
+
+        return transport;
+    }
+
+    private static void measureClient(String url) throws Exception {
+        List<String> volumeIDs = new HTRCSolrClient(url).getVolumeIDs("*:*");
+
+        if (!new HashSet<String>(volumeIDs).equals(new HashSet<String>(matches)))
+            throw new IllegalStateException(String.format("read %,d ids instead of the %,d matches",
+                    volumeIDs.size(), matches.size()));
+    }
+
+    private static SolrTransport measureIds(String url, SolrTransport.ResponseFormat format, boolean compress,
+            SolrIdReader.Paging paging, int idsPerRequest) throws Exception {
+        SolrTransport transport = new SolrTransport(new EndpointPool(url), 0, 0, compress, format, 1);
+        List<String> volumeIDs = new SolrIdReader(transport, "select", idsPerRequest, paging).read("*:*");
+
+        List<String> expected = paging == SolrIdReader.Paging.OFFSET ? matches : sortedMatches;
+        if (!volumeIDs.equals(expected))
+            throw new IllegalStateException(String.format("read %,d ids instead of the %,d matches, or out of order",
+                    volumeIDs.size(), expected.size()));
+
+        return transport;
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    private static void serve(HttpExchange exchange) throws IOException {
+        // the parameters come in the URL, or in the body of a POST
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        if (rawQuery == null)
+            rawQuery = read(exchange.getRequestBody());
+
+        Map<String, String> params = new HashMap<String, String>();
+        for (String param : rawQuery.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0)
+                params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+        }
+
+        String wt = params.get("wt");
+        boolean javabin = wt != null && wt.startsWith("javabin");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        boolean select = exchange.getRequestURI().getPath().endsWith("/select");
+
+        String key = exchange.getRequestURI().getPath() + gzip + rawQuery;
+        byte[] body;
+        synchronized (responses) {
+            body = responses.get(key);
+            if (body == null) {
+                body = !select ? render(params.get("q"), javabin)
+                        : params.containsKey("facet") ? renderFacets(params, javabin) : renderIds(params, javabin);
+                if (gzip) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    GZIPOutputStream zip = new GZIPOutputStream(bytes);
+                    zip.write(body);
+                    zip.close();
+                    body = bytes.toByteArray();
+                }
+                responses.put(key, body);
+            }
+        }
+
+        if (gzip)
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private static byte[] render(String query, boolean javabin) throws IOException {
+        List<String> ids = new ArrayList<String>();
+        Matcher m = ID.matcher(query);
+        while (m.find())
+            ids.add(m.group(1));
+
+        if (javabin) {
+            NamedList<Object> tvs = new NamedList<Object>();
+            for (int d = 0; d < ids.size(); d++) {
+                NamedList<Object> terms = new NamedList<Object>();
+                for (int[] term : termVectors.get(ids.get(d))) {
+                    NamedList<Object> stats = new NamedList<Object>();
+                    stats.add("tf", term[1]);
+                    terms.add("w" + term[0], stats);
+                }
+
+                NamedList<Object> doc = new NamedList<Object>();
+                doc.add("uniqueKey", ids.get(d));
+                doc.add(FIELD, terms);
+                tvs.add("doc-" + d, doc);
+            }
+            tvs.add("uniqueKeyFieldName", "id");
+
+            NamedList<Object> response = new NamedList<Object>();
+            response.add("termVectors", tvs);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new JavaBinCodec().marshal(response, bytes);
+            return bytes.toByteArray();
+        }
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>");
+        xml.append("<lst name=\"responseHeader\"><int name=\"status\">0</int><int name=\"QTime\">1</int></lst>");
+        xml.append("<lst name=\"termVectors\">");
+        for (int d = 0; d < ids.size(); d++) {
+            xml.append("<lst name=\"doc-").append(d).append("\"><str name=\"uniqueKey\">").append(ids.get(d)).append("</str>");
+            xml.append("<lst name=\"").append(FIELD).append("\">");
+            for (int[] term : termVectors.get(ids.get(d)))
+                xml.append("<lst name=\"w").append(term[0]).append("\"><int name=\"tf\">").append(term[1]).append("</int></lst>");
+            xml.append("</lst></lst>");
+        }
+        xml.append("<str name=\"uniqueKeyFieldName\">id</str></lst></response>");
+
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Renders the facet counts of the volumes of an fq=id:(...) filter: the number of volumes
+     * containing each term, most frequent first, honoring facet.limit
+     */
+    private static byte[] renderFacets(Map<String, String> params, boolean javabin) throws IOException {
+        final Map<String, Integer> df = new HashMap<String, Integer>();
+        Matcher m = ID.matcher(params.get("fq"));
+        while (m.find())
+            for (String term : distinctTerms(termVectors.get(m.group(1)))) {
+                Integer count = df.get(term);
+                df.put(term, count == null ? 1 : count + 1);
+            }
+
+        List<String> terms = new ArrayList<String>(df.keySet());
+        Collections.sort(terms, new Comparator<String>() {
+            public int compare(String t1, String t2) {
+                int c = df.get(t2).compareTo(df.get(t1));
+                return c != 0 ? c : t1.compareTo(t2);
+            }
+        });
+        int limit = Integer.parseInt(params.get("facet.limit"));
+        if (limit >= 0 && limit < terms.size())
+            terms = terms.subList(0, limit);
+
+        if (javabin) {
+            NamedList<Object> counts = new NamedList<Object>();
+            for (String term : terms)
+                counts.add(term, df.get(term));
+
+            NamedList<Object> fields = new NamedList<Object>();
+            fields.add(FIELD, counts);
+            NamedList<Object> facetCounts = new NamedList<Object>();
+            facetCounts.add("facet_queries", new NamedList<Object>());
+            facetCounts.add("facet_fields", fields);
+
+            SolrDocumentList docs = new SolrDocumentList();
+            docs.setNumFound(df.isEmpty() ? 0 : termVectors.size());
+            NamedList<Object> response = new NamedList<Object>();
+            response.add("response", docs);
+            response.add("facet_counts", facetCounts);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new JavaBinCodec().marshal(response, bytes);
+            return bytes.toByteArray();
+        }
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>");
+        xml.append("<lst name=\"responseHeader\"><int name=\"status\">0</int><int name=\"QTime\">1</int></lst>");
+        xml.append("<result name=\"response\" numFound=\"0\" start=\"0\"/>");
+        xml.append("<lst name=\"facet_counts\"><lst name=\"facet_queries\"/><lst name=\"facet_fields\">");
+        xml.append("<lst name=\"").append(FIELD).append("\">");
+        for (String term : terms)
+            xml.append("<int name=\"").append(term).append("\">").append(df.get(term)).append("</int>");
+        xml.append("</lst></lst></lst></response>");
+
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    private static Set<String> distinctTerms(int[][] terms) {
+        Set<String> distinct = new HashSet<String>();
+        for (int[] term : terms)
+            distinct.add("w" + term[0]);
+
+        return distinct;
+    }
+
+    /**
+     * Renders a page of the ids matching any query, honoring start, rows, sort=id asc,
+     * an fq=id:{"x" TO *} range and cursorMark
+     */
+    private static byte[] renderIds(Map<String, String> params, boolean javabin) throws IOException {
+        String cursorMark = params.get("cursorMark");
+        boolean sorted = params.containsKey("sort") || cursorMark != null;
+        List<String> ids = sorted ? sortedMatches : matches;
+
+        int from = params.containsKey("start") ? Integer.parseInt(params.get("start")) : 0;
+        String fq = params.get("fq");
+        if (fq != null) {
+            Matcher m = ID.matcher(fq);
+            if (m.find())
+                from = after(m.group(1).replace("\\\"", "\"").replace("\\\\", "\\"));
+        }
+        if (cursorMark != null && !cursorMark.equals("*"))
+            from = after(cursorMark);
+
+        int rows = params.containsKey("rows") ? Integer.parseInt(params.get("rows")) : 10;
+        from = Math.min(from, ids.size());
+        List<String> page = ids.subList(from, (int) Math.min((long) from + rows, ids.size()));
+
+        // the mark of the last id returned, or the same mark when there is nothing left
+        String nextCursorMark = cursorMark == null ? null : page.isEmpty() ? cursorMark : page.get(page.size() - 1);
+
+        if (javabin) {
+            SolrDocumentList docs = new SolrDocumentList();
+            docs.setNumFound(ids.size());
+            docs.setStart(from);
+            for (String id : page) {
+                SolrDocument doc = new SolrDocument();
+                doc.addField("id", id);
+                docs.add(doc);
+            }
+
+            NamedList<Object> response = new NamedList<Object>();
+            response.add("response", docs);
+            if (nextCursorMark != null)
+                response.add("nextCursorMark", nextCursorMark);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new JavaBinCodec().marshal(response, bytes);
+            return bytes.toByteArray();
+        }
+
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<response>");
+        xml.append("<lst name=\"responseHeader\"><int name=\"status\">0</int><int name=\"QTime\">1</int></lst>");
+        xml.append("<result name=\"response\" numFound=\"").append(ids.size()).append("\" start=\"").append(from).append("\">");
+        for (String id : page)
+            xml.append("<doc><str name=\"id\">").append(id).append("</str></doc>");
+        xml.append("</result>");
+        if (nextCursorMark != null)
+            xml.append("<str name=\"nextCursorMark\">").append(nextCursorMark).append("</str>");
+        xml.append("</response>");
+
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * @return The position of the first sorted id greater than the given one
+     */
+    private static int after(String id) {
+        int pos = Collections.binarySearch(sortedMatches, id);
+        return pos >= 0 ? pos + 1 : -pos - 1;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; )
+            bytes.write(buffer, 0, n);
+
+        return bytes.toString("UTF-8");
+    }
+}
@@ -0,0 +1,122 @@
+package org.seasr.meandre.support.components.htrc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.seasr.datatypes.core.BasicDataTypes.IntegersMap;
+
+/**
+ * Checks the counts kept by a {@link TokenCounter} against a <code>HashMap</code>, the order of its
+ * token count maps and the word scanner shared by the HTRC components.
+ */
+public class TokenCounterTest {
+
+    @Test
+    public void keepsTheSameCountsAsAHashMapAcrossResizes() {
+        Random random = new Random(42);
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        TokenCounter counter = new TokenCounter(4);
+        long total = 0;
+
+        for (int i = 0; i < 100000; i++) {
+            String token = "t" + random.nextInt(5000);
+            int count = 1 + random.nextInt(3);
+            Integer previous = expected.get(token);
+            expected.put(token, previous == null ? count : previous + count);
+            counter.add(token, count);
+            total += count;
+        }
+
+        assertEquals(expected.size(), counter.size());
+        assertEquals(total, counter.total());
+        for (Map.Entry<String, Integer> entry : expected.entrySet())
+            assertEquals(entry.getKey(), entry.getValue().intValue(), counter.get(entry.getKey()));
+        assertEquals(0, counter.get("unknown"));
+
+        String[] tokens = new String[counter.size()];
+        int[] counts = new int[counter.size()];
+        counter.copyTo(tokens, counts);
+        for (int i = 0; i < tokens.length; i++)
+            assertEquals(expected.get(tokens[i]).intValue(), counts[i]);
+    }
+
+    @Test
+    public void mergesCountersAndTokenCountMaps() {
+        TokenCounter a = new TokenCounter();
+        a.add("whale", 3);
+        a.increment("sea");
+
+        TokenCounter b = new TokenCounter();
+        b.add("whale", 2);
+        b.add("ship", 4);
+
+        a.addAll(b);
+        a.addAll(b.toIntegersMap(Integer.MAX_VALUE));
+
+        assertEquals(7, a.get("whale"));
+        assertEquals(8, a.get("ship"));
+        assertEquals(1, a.get("sea"));
+        assertEquals(16, a.total());
+
+        a.clear();
+        assertTrue(a.isEmpty());
+        assertEquals(0, a.total());
+        assertEquals(0, a.get("whale"));
+    }
+
+    @Test
+    public void sortsTheTokenCountMapByDecreasingCountThenToken() {
+        TokenCounter counter = new TokenCounter();
+        counter.add("b", 2);
+        counter.add("c", 5);
+        counter.add("a", 2);
+        counter.add("d", 1);
+
+        IntegersMap all = counter.toIntegersMap(Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("c", "a", "b", "d"), all.getKeyList());
+        assertEquals(5, all.getValue(0).getValue(0));
+        assertEquals(1, all.getValue(3).getValue(0));
+
+        IntegersMap top = counter.toIntegersMap(2);
+        assertEquals(Arrays.asList("c", "a"), top.getKeyList());
+    }
+
+    @Test
+    public void countsTheWordsOfAText() {
+        TokenCounter counts = new TokenCounter();
+        TokenCounter.countWords("Call me Ishmael. Some years ago - never mind how long precisely - " +
+                "having little or no money in my purse, I thought I would sail about; 1851 ME", counts, true, 2);
+
+        assertEquals(2, counts.get("me"));
+        assertEquals(1, counts.get("ishmael"));
+        assertEquals(1, counts.get("1851"));
+        assertEquals(0, counts.get("i"));
+        assertEquals(0, counts.get("Ishmael"));
+        assertEquals(25, counts.total());
+
+        TokenCounter cased = new TokenCounter();
+        TokenCounter.countWords("Me me, m\u00e9!", cased, false, 1);
+        assertEquals(1, cased.get("Me"));
+        assertEquals(1, cased.get("me"));
+        assertEquals(1, cased.get("m\u00e9"));
+        assertEquals(3, cased.total());
+    }
+
+    @Test
+    public void findsTheWordBoundaries() {
+        String text = "  --ab1 c,";
+
+        assertEquals(4, TokenCounter.wordStart(text, 0));
+        assertEquals(7, TokenCounter.wordEnd(text, 4));
+        assertEquals(8, TokenCounter.wordStart(text, 7));
+        assertEquals(9, TokenCounter.wordEnd(text, 8));
+        assertEquals(text.length(), TokenCounter.wordStart(text, 9));
+        assertEquals(0, TokenCounter.wordStart("", 0));
+    }
+}
@@ -0,0 +1,177 @@
+package org.seasr.meandre.support.components.htrc;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the memory footprint and lookup speed of a {@link VolumeIdSet} (with {@link VolumeIdSet.Marks})
+ * against the collections the retrievers used before it: the volume IDs grouped in
+ * <code>ArrayList</code>s inside a <code>HashMap</code>, plus a <code>HashSet</code> of the retrieved IDs.
+ *
+ * The volume IDs are read from a file (one per line) or generated, in the shape of HathiTrust IDs.
+ * Memory is measured as the growth of the used heap, so the results are only indicative;
+ * run with a fixed heap (-Xms = -Xmx) for steadier numbers. The correctness of the set is checked
+ * by {@link VolumeIdSetTest}.
+ *
+ * Usage: VolumeIdSetBenchmark &lt;number of volume IDs to generate | file of volume IDs&gt;
+ */
+public class VolumeIdSetBenchmark {
+
+    private static final String[] PREFIXES = { "mdp.39015", "uc1.b", "hvd.32044", "inu.30000", "uc2.ark:/13960/t" };
+
+    private static final int LOOKUPS = 1000000;
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: VolumeIdSetBenchmark <number of volume IDs to generate | file of volume IDs>");
+            System.exit(1);
+        }
+
+        List<String> volumeIDs;
+        try {
+            volumeIDs = generate(Integer.parseInt(args[0]), 42);
+        }
+        catch (NumberFormatException e) {
+            volumeIDs = load(args[0]);
+        }
+
+        run(volumeIDs, System.out);
+    }
+
+    public static void run(List<String> volumeIDs, PrintStream out) {
+        String[] ids = volumeIDs.toArray(new String[volumeIDs.size()]);
+        volumeIDs = null;
+
+        // probe with the IDs as new strings (as read from a response) and with IDs that are not in the set
+        Random random = new Random(7);
+        String[] probes = new String[LOOKUPS];
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = i % 2 == 0 ? new String(ids[random.nextInt(ids.length)]) : ids[random.nextInt(ids.length)] + "x";
+
+        out.println(String.format("%,d volume IDs, %,d lookups (half of them misses)", ids.length, LOOKUPS));
+        out.println();
+
+        // the collections used before
+        long before = usedMemory();
+        long start = System.nanoTime();
+        Map<String, List<String>> volMap = new HashMap<String, List<String>>();
+        Set<String> retrieved = new HashSet<String>();
+        for (String id : ids) {
+            String copy = new String(id);
+            List<String> vols = volMap.get("epr");
+            if (vols == null) {
+                vols = new ArrayList<String>();
+                volMap.put("epr", vols);
+            }
+            vols.add(copy);
+            retrieved.add(copy);
+        }
+        long buildNanos = System.nanoTime() - start;
+        long collectionsBytes = usedMemory() - before;
+
+        start = System.nanoTime();
+        int found = 0;
+        for (String probe : probes)
+            if (retrieved.contains(probe)) found++;
+        long lookupNanos = System.nanoTime() - start;
+
+        report(out, "HashMap<ArrayList<String>> + HashSet<String>", collectionsBytes, buildNanos, lookupNanos, found);
+
+        volMap = null;
+        retrieved = null;
+
+        // the compact set
+        before = usedMemory();
+        start = System.nanoTime();
+        VolumeIdSet.Builder builder = new VolumeIdSet.Builder();
+        for (String id : ids)
+            builder.add(id);
+        VolumeIdSet set = builder.build();
+        VolumeIdSet.Marks marks = set.newMarks();
+        for (String id : ids)
+            marks.mark(id);
+        buildNanos = System.nanoTime() - start;
+        long setBytes = usedMemory() - before;
+
+        start = System.nanoTime();
+        found = 0;
+        for (String probe : probes)
+            if (set.indexOf(probe) >= 0) found++;
+        lookupNanos = System.nanoTime() - start;
+
+        report(out, "VolumeIdSet + Marks", setBytes, buildNanos, lookupNanos, found);
+
+        out.println();
+        out.println(String.format("VolumeIdSet: %,d distinct IDs in %,d encoded bytes (%.1f bytes per ID)",
+                set.size(), set.getEncodedSize(), (double) set.getEncodedSize() / Math.max(1, set.size())));
+        if (setBytes > 0)
+            out.println(String.format("Memory ratio: %.1fx smaller", (double) collectionsBytes / setBytes));
+    }
+
+    /**
+     * Generates volume IDs in the shape of HathiTrust IDs
+     *
+     * @param count The number of IDs
+     * @param seed The random seed
+     * @return The IDs
+     */
+    public static List<String> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> ids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            String prefix = PREFIXES[random.nextInt(PREFIXES.length)];
+            ids.add(String.format("%s%09d", prefix, random.nextInt(1000000000)));
+        }
+
+        return ids;
+    }
+
+    private static List<String> load(String file) throws IOException {
+        List<String> ids = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0)
+                    ids.add(line);
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        return ids;
+    }
+
+    private static void report(PrintStream out, String name, long bytes, long buildNanos, long lookupNanos, int found) {
+        out.println(String.format("%-45s %,8d KB  build %,6d ms  lookup %,6d ns/op  (%,d found)",
+                name, bytes / 1024, buildNanos / 1000000, lookupNanos / LOOKUPS, found));
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,147 @@
+package org.seasr.meandre.support.components.htrc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * Checks the order of a {@link VolumeIdSet} (sorted by code point, and the input order handed out to the
+ * retrievers), the lookups, the partitions and the marks against plain collections.
+ */
+public class VolumeIdSetTest {
+
+    private static final String[] PREFIXES = {
+        "mdp.39015", "uc1.b", "hvd.32044", "inu.30000", "uc2.ark:/13960/t", "x.\u00e9", "x.\ud835\udc00", "x.\uffe0" };
+
+    /** Orders the IDs by their UTF-8 bytes */
+    private static final Comparator<String> BY_UTF8 = new Comparator<String>() {
+        public int compare(String s1, String s2) {
+            byte[] b1 = utf8(s1), b2 = utf8(s2);
+            for (int i = 0, iMax = Math.min(b1.length, b2.length); i < iMax; i++)
+                if (b1[i] != b2[i])
+                    return (b1[i] & 0xff) - (b2[i] & 0xff);
+
+            return b1.length - b2.length;
+        }
+    };
+
+
+    @Test
+    public void sortsTheIdsAndKeepsTheInputOrder() {
+        List<String> volumeIDs = generate(5000, 42);
+        // a tenth of the IDs are added twice
+        for (int i = 0; i < 500; i++)
+            volumeIDs.add(new Random(i).nextInt(volumeIDs.size()), volumeIDs.get(i * 7));
+
+        VolumeIdSet set = VolumeIdSet.of(volumeIDs);
+
+        TreeSet<String> sorted = new TreeSet<String>(BY_UTF8);
+        sorted.addAll(volumeIDs);
+        assertEquals(new ArrayList<String>(sorted), new ArrayList<String>(set));
+
+        assertEquals(new ArrayList<String>(new LinkedHashSet<String>(volumeIDs)), new ArrayList<String>(set.inInputOrder()));
+        assertEquals(volumeIDs.size() - sorted.size(), set.getDuplicateCount());
+    }
+
+    @Test
+    public void findsTheIdsOfTheSet() {
+        List<String> volumeIDs = generate(3000, 7);
+        VolumeIdSet set = VolumeIdSet.of(volumeIDs);
+
+        for (int i = 0; i < set.size(); i++)
+            assertEquals(i, set.indexOf(set.get(i)));
+
+        for (String volumeId : volumeIDs) {
+            assertTrue(set.contains(new String(volumeId)));
+            assertFalse(set.contains(volumeId + "x"));
+            assertFalse(set.contains(volumeId.substring(0, volumeId.length() - 1)));
+        }
+        assertEquals(-1, set.indexOf(""));
+        assertFalse(set.contains(Integer.valueOf(1)));
+    }
+
+    @Test
+    public void partitionsAndMarksTheIds() {
+        VolumeIdSet set = VolumeIdSet.of(generate(1000, 3));
+
+        List<List<String>> partitions = set.partition(64);
+        assertEquals(16, partitions.size());
+        List<String> joined = new ArrayList<String>();
+        for (List<String> partition : partitions) {
+            assertTrue(partition.size() <= 64);
+            joined.addAll(partition);
+        }
+        assertEquals(set, joined);
+        assertEquals(Collections.singletonList(set), set.partition(0));
+
+        VolumeIdSet.Marks marks = set.newMarks();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < set.size(); i++)
+            if (i % 3 == 0)
+                assertTrue(marks.mark(set.get(i)));
+            else
+                expected.add(set.get(i));
+
+        assertFalse(marks.mark("not.a.volume"));
+        assertEquals(set.size() - expected.size(), marks.count());
+        assertTrue(marks.isMarked(0));
+        assertFalse(marks.isMarked(set.get(1)));
+        assertEquals(expected, marks.getUnmarked(set));
+    }
+
+    @Test
+    public void buildsEmptySetsAndCanBeReused() {
+        VolumeIdSet empty = VolumeIdSet.of(Collections.<String>emptyList());
+        assertTrue(empty.isEmpty());
+        assertEquals(-1, empty.indexOf("mdp.39015"));
+        assertTrue(empty.inInputOrder().isEmpty());
+
+        VolumeIdSet.Builder builder = new VolumeIdSet.Builder();
+        builder.add("b").add("a").add("b");
+        assertEquals(3, builder.size());
+        VolumeIdSet first = builder.build();
+        assertEquals(Arrays.asList("a", "b"), first);
+        assertEquals(Arrays.asList("b", "a"), first.inInputOrder());
+        assertEquals(1, first.getDuplicateCount());
+
+        assertEquals(0, builder.size());
+        VolumeIdSet second = builder.add("c").build();
+        assertEquals(Arrays.asList("c"), second);
+        assertEquals(0, second.getDuplicateCount());
+    }
+
+    //--------------------------------------------------------------------------------------------
+
+    /**
+     * Generates distinct volume IDs in the shape of HathiTrust IDs, with a few non-ASCII ones
+     */
+    private static List<String> generate(int count, long seed) {
+        Random random = new Random(seed);
+        LinkedHashSet<String> ids = new LinkedHashSet<String>();
+        while (ids.size() < count)
+            ids.add(String.format("%s%09d", PREFIXES[random.nextInt(PREFIXES.length)], random.nextInt(1000000000)));
+
+        return new ArrayList<String>(ids);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}